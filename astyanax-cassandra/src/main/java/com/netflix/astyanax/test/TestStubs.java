@@ -0,0 +1,85 @@
+package com.netflix.astyanax.test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.netflix.astyanax.connectionpool.OperationResult;
+import com.netflix.astyanax.model.Column;
+import com.netflix.astyanax.model.ColumnList;
+
+/**
+ * Stubs of the model and query interfaces for unit tests that run without a cluster.  Use
+ * them with TestKeyspace.  A method that the stub doesn't handle throws
+ * UnsupportedOperationException with the method's name.
+ */
+public class TestStubs {
+    /**
+     * Handler of the methods of a stub.  Subclasses handle the methods they need and delegate
+     * the rest to super.invoke().
+     */
+    public static class StubHandler implements InvocationHandler {
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            throw new UnsupportedOperationException(method.getName());
+        }
+    }
+
+    /**
+     * @param type    Interface to implement
+     * @param handler
+     * @return Stub implementing the interface
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T newStub(Class<?> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, handler);
+    }
+
+    /**
+     * @param type   Interface to implement
+     * @param values Return value of each handled method, by method name
+     * @return Stub implementing the interface
+     */
+    public static <T> T newStub(Class<?> type, final Map<String, ?> values) {
+        return newStub(type, new StubHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (values.containsKey(method.getName()))
+                    return values.get(method.getName());
+                return super.invoke(proxy, method, args);
+            }
+        });
+    }
+
+    /**
+     * @param columns
+     * @return ColumnList that can be iterated and accessed by index
+     */
+    public static <C> ColumnList<C> newColumnList(final List<Column<C>> columns) {
+        return newStub(ColumnList.class, new StubHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("iterator"))
+                    return columns.iterator();
+                if (method.getName().equals("size"))
+                    return columns.size();
+                if (method.getName().equals("isEmpty"))
+                    return columns.isEmpty();
+                if (method.getName().equals("getColumnByIndex"))
+                    return columns.get((Integer) args[0]);
+                return super.invoke(proxy, method, args);
+            }
+        });
+    }
+
+    /**
+     * @param result
+     * @return OperationResult that only provides its result
+     */
+    public static <R> OperationResult<R> newResult(R result) {
+        return newStub(OperationResult.class, Collections.singletonMap("getResult", result));
+    }
+}
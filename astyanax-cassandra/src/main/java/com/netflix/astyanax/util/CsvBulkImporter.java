@@ -0,0 +1,464 @@
+/*******************************************************************************
+ * Copyright 2011 Netflix
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.netflix.astyanax.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.netflix.astyanax.ColumnListMutation;
+import com.netflix.astyanax.Keyspace;
+import com.netflix.astyanax.MutationBatch;
+import com.netflix.astyanax.Serializer;
+import com.netflix.astyanax.SerializerPackage;
+import com.netflix.astyanax.model.ColumnFamily;
+import com.netflix.astyanax.serializers.ByteBufferSerializer;
+import com.netflix.astyanax.serializers.ComparatorType;
+
+/**
+ * Parallel bulk import of a CSV file into a column family.  This is the high throughput
+ * alternative to CsvRecordReader + ColumnarRecordWriter for large files.
+ * 
+ * The file is split into line aligned chunks that are memory mapped and parsed in 
+ * parallel.  Chunks are only mapped by the task that parses them and at most 
+ * setMaxPendingChunks chunks are queued or being parsed at any time, so memory use does
+ * not grow with the size of the file.  Fields are converted directly from the mapped bytes into serialized 
+ * ByteBuffers using the column family's SerializerPackage.  UTF8 and ASCII fields are 
+ * copied as is without decoding to a String.  Column names are serialized once from the
+ * header line.  Each chunk is written using its own MutationBatch, executed every 
+ * batchSize rows.
+ * 
+ * The first field of each line is the row key and the remaining fields are columns 
+ * named by the header line (or setNames).  Empty fields are skipped.  Quoted fields 
+ * are supported but a record may not span multiple lines.
+ */
+public class CsvBulkImporter {
+    private static final Logger LOG = LoggerFactory.getLogger(CsvBulkImporter.class);
+    
+    private static final Charset UTF8           = Charset.forName("UTF-8");
+    private static final int  DEFAULT_CHUNK_SIZE = 32 * 1024 * 1024;
+    private static final int  DEFAULT_BATCH_SIZE = 100;
+    private static final int  SCAN_BUFFER_SIZE   = 8 * 1024;
+    private static final byte QUOTE              = '"';
+    private static final byte NEWLINE            = '\n';
+    private static final byte CR                 = '\r';
+    
+    private final Keyspace keyspace;
+    private final SerializerPackage serializers;
+    private final ColumnFamily<ByteBuffer, ByteBuffer> cf;
+    private final AtomicBoolean cancelled = new AtomicBoolean(false);
+    private int threadCount = Runtime.getRuntime().availableProcessors();
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private Integer maxPendingChunks = null;
+    private boolean hasHeaderLine = true;
+    private String[] names = null;
+    private byte delimiter = ',';
+    
+    public CsvBulkImporter(Keyspace keyspace, String cfName, SerializerPackage serializers) {
+        this.keyspace    = keyspace;
+        this.serializers = serializers;
+        this.cf = new ColumnFamily<ByteBuffer, ByteBuffer>(cfName, ByteBufferSerializer.get(),
+                ByteBufferSerializer.get());
+    }
+    
+    public CsvBulkImporter setThreadCount(int threadCount) {
+        Preconditions.checkArgument(threadCount >= 1, "Thread count must be >= 1");
+        this.threadCount = threadCount;
+        return this;
+    }
+    
+    /**
+     * Approximate number of bytes parsed by each task.  Chunks are extended to the 
+     * next line boundary.
+     * @param chunkSize
+     * @return
+     */
+    public CsvBulkImporter setChunkSize(int chunkSize) {
+        Preconditions.checkArgument(chunkSize >= 1, "Chunk size must be >= 1");
+        this.chunkSize = chunkSize;
+        return this;
+    }
+    
+    public CsvBulkImporter setBatchSize(int batchSize) {
+        Preconditions.checkArgument(batchSize >= 1, "Batch size must be >= 1");
+        this.batchSize = batchSize;
+        return this;
+    }
+    
+    /**
+     * Maximum number of chunks queued or being parsed.  Defaults to twice the thread count.
+     * @param maxPendingChunks
+     * @return
+     */
+    public CsvBulkImporter setMaxPendingChunks(int maxPendingChunks) {
+        Preconditions.checkArgument(maxPendingChunks >= 1, "Max pending chunks must be >= 1");
+        this.maxPendingChunks = maxPendingChunks;
+        return this;
+    }
+    
+    public CsvBulkImporter setHasHeaderLine(boolean flag) {
+        this.hasHeaderLine = flag;
+        return this;
+    }
+    
+    /**
+     * Field names, including the key as the first name.  When a header line is also
+     * present it is skipped and these names are used instead.
+     * @param names
+     * @return
+     */
+    public CsvBulkImporter setNames(String... names) {
+        this.names = names;
+        return this;
+    }
+    
+    public CsvBulkImporter setDelimiter(char delimiter) {
+        Preconditions.checkArgument(delimiter < 128, "Delimiter must be an ASCII character");
+        this.delimiter = (byte)delimiter;
+        return this;
+    }
+    
+    /**
+     * Import the entire file
+     * @param file
+     * @return Number of rows written
+     * @throws Exception
+     */
+    public long importFile(File file) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            
+            cancelled.set(false);
+            
+            long start = 0;
+            String[] fieldNames = this.names;
+            if (hasHeaderLine) {
+                long end = findNextLine(channel, 1, size);
+                ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, end);
+                String[] headerNames = new LineParser(header, delimiter).nextRecordAsStrings();
+                // An empty file has no header and nothing to import
+                if (headerNames == null && end >= size)
+                    return 0;
+                if (fieldNames == null)
+                    fieldNames = headerNames;
+                start = end;
+            }
+            Preconditions.checkState(fieldNames != null && fieldNames.length > 0, "Field names must be provided if there is no header line");
+            
+            if (start >= size)
+                return 0;
+            
+            Target target = new Target(fieldNames);
+            
+            long chunkCount = (size - start + chunkSize - 1) / chunkSize;
+            ExecutorService executor = Executors.newFixedThreadPool((int)Math.min(threadCount, chunkCount), 
+                    new ThreadFactoryBuilder().setDaemon(true)
+                        .setNameFormat("CsvBulkImporter-%d")
+                        .build());
+            try {
+                int maxPending = (maxPendingChunks != null) ? maxPendingChunks : 2 * threadCount;
+                Deque<Future<Long>> pending = new ArrayDeque<Future<Long>>(maxPending);
+                long count = 0;
+                while (start < size) {
+                    // Wait for the oldest chunk before starting another one
+                    if (pending.size() >= maxPending)
+                        count += waitForChunk(pending.poll());
+                    
+                    long end = findNextLine(channel, Math.min(size, start + chunkSize), size);
+                    pending.add(executor.submit(makeChunkTask(channel, start, end, target)));
+                    start = end;
+                }
+                
+                while (!pending.isEmpty()) {
+                    count += waitForChunk(pending.poll());
+                }
+                return count;
+            }
+            finally {
+                executor.shutdownNow();
+            }
+        }
+        finally {
+            raf.close();
+        }
+    }
+    
+    /**
+     * @return Number of rows written by the chunk.  Cancels the import if the chunk failed.
+     */
+    private long waitForChunk(Future<Long> future) throws Exception {
+        try {
+            return future.get();
+        }
+        catch (ExecutionException e) {
+            cancelled.set(true);
+            if (e.getCause() instanceof Exception)
+                throw (Exception)e.getCause();
+            throw e;
+        }
+    }
+    
+    private Callable<Long> makeChunkTask(final FileChannel channel, final long start, final long end, final Target target) {
+        return new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                ByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+                LineParser parser = new LineParser(chunk, delimiter);
+                MutationBatch mutation = keyspace.prepareMutationBatch();
+                long count = 0;
+                
+                try {
+                    while (!cancelled.get() && parser.nextRecord()) {
+                        if (parser.getFieldCount() <= 1 || parser.isEmpty(0))
+                            continue;
+                        
+                        ColumnListMutation<ByteBuffer> row = mutation.withRow(cf, 
+                                parser.getField(0, target.keySerializer, target.keyIsRaw));
+                        int fieldCount = Math.min(parser.getFieldCount(), target.columnNames.length);
+                        for (int i = 1; i < fieldCount; i++) {
+                            if (parser.isEmpty(i))
+                                continue;
+                            row.putColumn(target.columnNames[i], 
+                                    parser.getField(i, target.valueSerializers[i], target.valueIsRaw[i]), null);
+                        }
+                        
+                        count++;
+                        if (mutation.getRowCount() >= batchSize) {
+                            mutation.execute();
+                            mutation = keyspace.prepareMutationBatch();
+                        }
+                    }
+                    
+                    if (mutation.getRowCount() > 0) 
+                        mutation.execute();
+                    
+                    return count;
+                }
+                catch (Exception e) {
+                    LOG.error(String.format("Failed to import chunk [%d, %d)", start, end), e);
+                    throw e;
+                }
+            }
+        };
+    }
+    
+    /**
+     * Find the start of the first line that begins at or after position.
+     */
+    static long findNextLine(FileChannel channel, long position, long size) throws IOException {
+        if (position == 0 || position >= size)
+            return Math.min(position, size);
+        
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        long offset = position - 1;
+        while (offset < size) {
+            buffer.clear();
+            int read = channel.read(buffer, offset);
+            if (read <= 0)
+                break;
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == NEWLINE) 
+                    return offset + i + 1;
+            }
+            offset += read;
+        }
+        return size;
+    }
+    
+    /**
+     * Pre-serialized column names and serializers for each field position
+     */
+    private class Target {
+        final ByteBuffer[]    columnNames;
+        final Serializer<?>   keySerializer;
+        final boolean         keyIsRaw;
+        final Serializer<?>[] valueSerializers;
+        final boolean[]       valueIsRaw;
+        
+        Target(String[] names) {
+            this.columnNames      = new ByteBuffer[names.length];
+            this.valueSerializers = new Serializer<?>[names.length];
+            this.valueIsRaw       = new boolean[names.length];
+            this.keySerializer    = serializers.getKeySerializer();
+            this.keyIsRaw         = isRaw(keySerializer);
+            
+            for (int i = 1; i < names.length; i++) {
+                columnNames[i]      = serializers.columnAsByteBuffer(names[i]);
+                valueSerializers[i] = serializers.getColumnSerializer(columnNames[i]);
+                valueIsRaw[i]       = isRaw(valueSerializers[i]);
+            }
+        }
+        
+        private boolean isRaw(Serializer<?> serializer) {
+            try {
+                ComparatorType type = serializer.getComparatorType();
+                return type == ComparatorType.UTF8TYPE || type == ComparatorType.ASCIITYPE;
+            }
+            catch (Exception e) {
+                return false;
+            }
+        }
+    }
+    
+    /**
+     * Minimal CSV line parser operating directly on a ByteBuffer.  Field boundaries for the
+     * current record are kept in reusable arrays so no objects are allocated per field 
+     * until the field is converted.
+     */
+    static class LineParser {
+        private final ByteBuffer buffer;
+        private final byte       delimiter;
+        private int              position;
+        private int              fieldCount;
+        private int[]            fieldStart  = new int[16];
+        private int[]            fieldEnd    = new int[16];
+        private boolean[]        fieldQuoted = new boolean[16];
+        
+        LineParser(ByteBuffer buffer, byte delimiter) {
+            this.buffer    = buffer;
+            this.delimiter = delimiter;
+            this.position  = buffer.position();
+        }
+        
+        /**
+         * Advance to the next non blank record
+         * @return false if the end of the buffer was reached
+         */
+        boolean nextRecord() {
+            int limit = buffer.limit();
+            while (position < limit) {
+                fieldCount = 0;
+                boolean endOfLine = false;
+                while (!endOfLine) {
+                    int start = position;
+                    int end;
+                    boolean quoted = false;
+                    if (position < limit && buffer.get(position) == QUOTE) {
+                        quoted = true;
+                        start = ++position;
+                        while (position < limit) {
+                            if (buffer.get(position) == QUOTE) {
+                                if (position + 1 < limit && buffer.get(position + 1) == QUOTE) {
+                                    position += 2;
+                                    continue;
+                                }
+                                break;
+                            }
+                            position++;
+                        }
+                        end = position;
+                        // Skip the closing quote and anything up to the delimiter
+                        while (position < limit && buffer.get(position) != delimiter && buffer.get(position) != NEWLINE)
+                            position++;
+                    }
+                    else {
+                        while (position < limit && buffer.get(position) != delimiter && buffer.get(position) != NEWLINE)
+                            position++;
+                        end = position;
+                        if (end > start && buffer.get(end - 1) == CR)
+                            end--;
+                    }
+                    
+                    if (position >= limit || buffer.get(position) == NEWLINE)
+                        endOfLine = true;
+                    position++;
+                    addField(start, end, quoted);
+                }
+                
+                if (fieldCount > 1 || fieldEnd[0] > fieldStart[0])
+                    return true;
+            }
+            return false;
+        }
+        
+        int getFieldCount() {
+            return fieldCount;
+        }
+        
+        boolean isEmpty(int index) {
+            return fieldEnd[index] <= fieldStart[index];
+        }
+        
+        ByteBuffer getField(int index, Serializer<?> serializer, boolean raw) {
+            if (raw && !fieldQuoted[index]) {
+                int length = fieldEnd[index] - fieldStart[index];
+                ByteBuffer slice = buffer.duplicate();
+                slice.limit(fieldEnd[index]).position(fieldStart[index]);
+                ByteBuffer result = ByteBuffer.allocate(length);
+                result.put(slice);
+                result.flip();
+                return result;
+            }
+            return serializer.fromString(getFieldAsString(index));
+        }
+        
+        String getFieldAsString(int index) {
+            int length = fieldEnd[index] - fieldStart[index];
+            byte[] bytes = new byte[length];
+            int j = 0;
+            for (int i = fieldStart[index]; i < fieldEnd[index]; i++) {
+                byte b = buffer.get(i);
+                bytes[j++] = b;
+                if (b == QUOTE && fieldQuoted[index])
+                    i++;    // Escaped quote
+            }
+            return new String(bytes, 0, j, UTF8);
+        }
+        
+        String[] nextRecordAsStrings() {
+            if (!nextRecord())
+                return null;
+            String[] result = new String[fieldCount];
+            for (int i = 0; i < fieldCount; i++) {
+                result[i] = getFieldAsString(i);
+            }
+            return result;
+        }
+        
+        private void addField(int start, int end, boolean quoted) {
+            if (fieldCount == fieldStart.length) {
+                int size = fieldCount * 2;
+                fieldStart  = Arrays.copyOf(fieldStart, size);
+                fieldEnd    = Arrays.copyOf(fieldEnd, size);
+                fieldQuoted = Arrays.copyOf(fieldQuoted, size);
+            }
+            fieldStart[fieldCount]  = start;
+            fieldEnd[fieldCount]    = end;
+            fieldQuoted[fieldCount] = quoted;
+            fieldCount++;
+        }
+    }
+}
@@ -15,14 +15,233 @@
  ******************************************************************************/
 package com.netflix.astyanax.util;
 
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.netflix.astyanax.SerializerPackage;
+import com.netflix.astyanax.model.Column;
+import com.netflix.astyanax.model.Row;
 import com.netflix.astyanax.model.Rows;
 
-public class CsvRowsWriter implements RowsWriter {
+/**
+ * Write rows as CSV.  Two layouts are supported
+ * 
+ * 1. One line per row with the row key followed by one field for each of a
+ *    fixed set of column names.  The column names are either provided with
+ *    setFixedColumnNames or taken from the column family metadata.
+ * 2. One line per column (key,column,value,timestamp,ttl).  This is the layout
+ *    used when setColumnsAsRows(true) is called or when there are no known
+ *    column names, since the header must be written before the first row.
+ * 
+ * The fixed column layout can be read back using CsvRecordReader.
+ */
+public class CsvRowsWriter implements StreamingRowsWriter {
+    private static final String[] COLUMNS_AS_ROWS_NAMES = {"column", "value", "timestamp", "ttl"};
+
+    private final PrintWriter out;
+    private final SerializerPackage serializers;
+    private String rowKeyName = "key";
+    private List<String> names;
+    private boolean columnsAsRows = false;
+    private boolean hasHeaderLine = true;
+    private boolean ignoreExceptions = true;
+    private char delimiter = ',';
+    private int rowCount = 0;
+    private int columnCount = 0;
+    private boolean activeColumnsAsRows;
+
+    public CsvRowsWriter(PrintWriter out, SerializerPackage serializers) {
+        this.out = out;
+        this.serializers = serializers;
+    }
+
+    public CsvRowsWriter setRowKeyName(String rowKeyName) {
+        this.rowKeyName = rowKeyName;
+        return this;
+    }
+
+    public CsvRowsWriter setFixedColumnNames(String... columns) {
+        this.names = Arrays.asList(columns);
+        return this;
+    }
+
+    public CsvRowsWriter setColumnsAsRows(boolean columnsAsRows) {
+        this.columnsAsRows = columnsAsRows;
+        return this;
+    }
+
+    public CsvRowsWriter setHasHeaderLine(boolean flag) {
+        this.hasHeaderLine = flag;
+        return this;
+    }
+
+    public CsvRowsWriter setIgnoreExceptions(boolean flag) {
+        this.ignoreExceptions = flag;
+        return this;
+    }
+
+    public CsvRowsWriter setDelimiter(char delimiter) {
+        this.delimiter = delimiter;
+        return this;
+    }
+
+    int getColumnCount() {
+        return this.columnCount;
+    }
+
+    int getRowCount() {
+        return this.rowCount;
+    }
+
+    @Override
+    public void write(Rows<?, ?> rows) throws Exception {
+        start();
+        for (Row<?, ?> row : rows) {
+            writeRow(row);
+        }
+        end();
+    }
 
     @Override
-    public void write(Rows<?, ?> rows) {
-        // TODO Auto-generated method stub
+    public void start() throws Exception {
+        this.rowCount = 0;
+        this.columnCount = 0;
+
+        List<String> header = Lists.newArrayList(rowKeyName);
+        List<String> fixedNames = this.names;
+        if (!columnsAsRows && fixedNames == null) {
+            fixedNames = getColumnNamesFromMetadata();
+        }
+
+        if (columnsAsRows || fixedNames == null || fixedNames.isEmpty()) {
+            this.activeColumnsAsRows = true;
+            header.addAll(Arrays.asList(COLUMNS_AS_ROWS_NAMES));
+        }
+        else {
+            this.activeColumnsAsRows = false;
+            this.names = fixedNames;
+            header.addAll(fixedNames);
+        }
 
+        if (hasHeaderLine) {
+            writeLine(header);
+        }
     }
 
+    @Override
+    public void writeRow(Row<?, ?> row) throws Exception {
+        if (row.getColumns().isEmpty())
+            return;
+
+        try {
+            String key = serializers.keyAsString(row.getRawKey());
+            rowCount++;
+            if (activeColumnsAsRows) {
+                for (Column<?> column : row.getColumns()) {
+                    try {
+                        String columnName = serializers.columnAsString(column.getRawName());
+                        String value = serializers.valueAsString(column.getRawName(), column.getByteBufferValue());
+                        writeLine(Arrays.asList(key, columnName, value, 
+                                Long.toString(column.getTimestamp()), Integer.toString(column.getTtl())));
+                        columnCount++;
+                    }
+                    catch (Exception e) {
+                        if (!ignoreExceptions) {
+                            throw e;
+                        }
+                    }
+                }
+            }
+            else {
+                Map<String, String> values = Maps.newHashMap();
+                for (Column<?> column : row.getColumns()) {
+                    try {
+                        String columnName = serializers.columnAsString(column.getRawName());
+                        values.put(columnName, serializers.valueAsString(column.getRawName(), column.getByteBufferValue()));
+                        columnCount++;
+                    }
+                    catch (Exception e) {
+                        if (!ignoreExceptions) {
+                            throw e;
+                        }
+                    }
+                }
+                List<String> fields = Lists.newArrayListWithCapacity(names.size() + 1);
+                fields.add(key);
+                for (String name : names) {
+                    fields.add(values.get(name));
+                }
+                writeLine(fields);
+            }
+        }
+        catch (Exception e) {
+            if (!ignoreExceptions) {
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public void end() throws Exception {
+        out.flush();
+    }
+
+    private List<String> getColumnNamesFromMetadata() {
+        List<String> list = Lists.newArrayList();
+        try {
+            for (ByteBuffer name : this.serializers.getColumnNames()) {
+                list.add(this.serializers.columnAsString(name));
+            }
+        }
+        catch (Exception e) {
+            return null;
+        }
+        Collections.sort(list);
+        return list;
+    }
+
+    private void writeLine(List<String> fields) {
+        StringBuilder sb = new StringBuilder();
+        boolean first = true;
+        for (String field : fields) {
+            if (!first)
+                sb.append(delimiter);
+            else
+                first = false;
+            appendField(sb, field);
+        }
+        out.println(sb.toString());
+    }
+
+    private void appendField(StringBuilder sb, String field) {
+        if (field == null || field.isEmpty())
+            return;
+
+        boolean quote = Character.isWhitespace(field.charAt(0)) || Character.isWhitespace(field.charAt(field.length() - 1));
+        for (int i = 0; i < field.length() && !quote; i++) {
+            char c = field.charAt(i);
+            if (c == delimiter || c == '"' || c == '\n' || c == '\r') 
+                quote = true;
+        }
+
+        if (!quote) {
+            sb.append(field);
+            return;
+        }
+
+        sb.append('"');
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c == '"')
+                sb.append('"');
+            sb.append(c);
+        }
+        sb.append('"');
+    }
 }
@@ -38,7 +38,7 @@ import com.netflix.astyanax.model.ColumnList;
 import com.netflix.astyanax.model.Row;
 import com.netflix.astyanax.model.Rows;
 
-public class JsonRowsWriter implements RowsWriter {
+public class JsonRowsWriter implements StreamingRowsWriter {
     public interface ErrorHandler {
         boolean onException(Exception e);
     }
@@ -65,6 +65,8 @@ public class JsonRowsWriter implements RowsWriter {
     private boolean columnsAsRows = false;
     private int rowCount = 0;
     private int columnCount = 0;
+    private int count = 0;
+    private boolean firstRow = true;
     private int maxStringLength = 256;
     private String rowColumnDelimiter = "$";
 
@@ -181,8 +183,19 @@ public class JsonRowsWriter implements RowsWriter {
 
     @Override
     public void write(Rows<?, ?> rows) throws Exception {
+        start();
+        for (Row<?, ?> row : rows) {
+            writeRow(row);
+        }
+        end();
+    }
+
+    @Override
+    public void start() throws Exception {
         this.rowCount = 0;
         this.columnCount = 0;
+        this.count = 0;
+        this.firstRow = true;
 
         out.println("{");
 
@@ -198,95 +211,93 @@ public class JsonRowsWriter implements RowsWriter {
 
         out.append(jsonifyString(this.fieldNames.get(Field.ROWS))).append(":");
 
-        int count = 0;
         if (columnsAsRows) {
             addExtra("columnsAsRows", "true");
             if (rowsAsArray) {
                 out.append("[");
             }
-            boolean firstRow = true;
-            for (Row<?, ?> row : rows) {
-                if (row.getColumns().isEmpty())
-                    continue;
-                rowCount++;
-                String idString = serializers.keyAsString(row.getRawKey());
-                count += writeColumnsAsRows(idString, row.getColumns(), firstRow);
+        }
+        else if (rowsAsArray) {
+            out.append("[").println();
+        }
+        else {
+            out.append("{").println();
+        }
+    }
+
+    @Override
+    public void writeRow(Row<?, ?> row) throws Exception {
+        if (row.getColumns().isEmpty())
+            return;
+        rowCount++;
+
+        if (columnsAsRows) {
+            String idString = serializers.keyAsString(row.getRawKey());
+            count += writeColumnsAsRows(idString, row.getColumns(), firstRow);
+            firstRow = false;
+        }
+        else if (rowsAsArray) {
+            if (!firstRow) {
+                out.println(",");
+            }
+            else {
                 firstRow = false;
             }
 
-            if (rowsAsArray) {
-                out.append("]");
+            out.append("{");
+            try {
+                String idString = serializers.keyAsString(row.getRawKey());
+                out.append(jsonifyString(this.fieldNames.get(Field.ROW_KEY))).append(":")
+                        .append(jsonifyString(idString));
+                writeColumns(row.getColumns(), false);
+                count++;
             }
-            out.println();
+            catch (Exception e) {
+                if (!ignoreExceptions) {
+                    throw e;
+                }
+            }
+            out.print("}");
         }
         else {
-            if (rowsAsArray) {
-                out.append("[").println();
-
-                boolean firstRow = true;
-                for (Row<?, ?> row : rows) {
-                    if (row.getColumns().isEmpty())
-                        continue;
-                    rowCount++;
-                    if (!firstRow) {
-                        out.println(",");
-                    }
-                    else {
-                        firstRow = false;
-                    }
-
-                    out.append("{");
-                    try {
-                        String idString = serializers.keyAsString(row.getRawKey());
-                        out.append(jsonifyString(this.fieldNames.get(Field.ROW_KEY))).append(":")
-                                .append(jsonifyString(idString));
-                        writeColumns(row.getColumns(), false);
-                        count++;
-                    }
-                    catch (Exception e) {
-                        if (!ignoreExceptions) {
-                            throw e;
-                        }
-                    }
-                    out.print("}");
-                }
-
-                out.println();
-                out.append("]");
+            if (!firstRow) {
+                out.println(",");
             }
             else {
-                out.append("{").println();
-
-                boolean firstRow = true;
-                for (Row<?, ?> row : rows) {
-                    if (row.getColumns().isEmpty())
-                        continue;
-                    rowCount++;
-                    if (!firstRow) {
-                        out.println(",");
-                    }
-                    else {
-                        firstRow = false;
-                    }
+                firstRow = false;
+            }
 
-                    try {
-                        String idString = serializers.keyAsString(row.getRawKey());
-                        out.append(jsonifyString(idString)).append(":{");
-                        // out.append(jsonifyString(this.fieldNames.get(Field.ROW_KEY))).append(":").append(jsonifyString(idString));
-                        writeColumns(row.getColumns(), true);
-                        out.print("}");
-                        count++;
-                    }
-                    catch (Exception e) {
-                        if (!ignoreExceptions) {
-                            throw e;
-                        }
-                    }
+            try {
+                String idString = serializers.keyAsString(row.getRawKey());
+                out.append(jsonifyString(idString)).append(":{");
+                writeColumns(row.getColumns(), true);
+                out.print("}");
+                count++;
+            }
+            catch (Exception e) {
+                if (!ignoreExceptions) {
+                    throw e;
                 }
-                out.println();
-                out.append("}");
             }
         }
+    }
+
+    @Override
+    public void end() throws Exception {
+        if (columnsAsRows) {
+            if (rowsAsArray) {
+                out.append("]");
+            }
+            out.println();
+        }
+        else if (rowsAsArray) {
+            out.println();
+            out.append("]");
+        }
+        else {
+            out.println();
+            out.append("}");
+        }
         out.println(",");
 
         if (this.dynamicNames != null) {
@@ -301,6 +312,7 @@ public class JsonRowsWriter implements RowsWriter {
         out.append(jsonifyString(this.fieldNames.get(Field.COUNT))).append(":").append(Integer.toString(count))
                 .println();
         out.println("}");
+        out.flush();
     }
 
     private int writeColumnsAsRows(String rowKey, ColumnList<?> columns, boolean first) throws Exception {
@@ -0,0 +1,48 @@
+/*******************************************************************************
+ * Copyright 2011 Netflix
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.netflix.astyanax.util;
+
+import com.netflix.astyanax.model.Row;
+
+/**
+ * RowsWriter that can also be fed one row at a time so that the output can be
+ * produced without first materializing all the rows in a single Rows object.
+ * 
+ * Usage is start(), any number of calls to writeRow(), then end().  Calling
+ * write(Rows) is equivalent to the full sequence for all rows in the set.
+ * Implementations are not thread safe.
+ */
+public interface StreamingRowsWriter extends RowsWriter {
+    /**
+     * Write any header.  Must be called once before the first call to writeRow
+     * @throws Exception
+     */
+    public void start() throws Exception;
+    
+    /**
+     * Write a single row
+     * @param row
+     * @throws Exception
+     */
+    public void writeRow(Row<?, ?> row) throws Exception;
+    
+    /**
+     * Write any trailer and flush the output.  No rows may be written after
+     * this call.
+     * @throws Exception
+     */
+    public void end() throws Exception;
+}
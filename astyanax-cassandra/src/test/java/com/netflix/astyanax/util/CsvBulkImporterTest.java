@@ -0,0 +1,244 @@
+package com.netflix.astyanax.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.netflix.astyanax.ColumnListMutation;
+import com.netflix.astyanax.Keyspace;
+import com.netflix.astyanax.MutationBatch;
+import com.netflix.astyanax.serializers.LongSerializer;
+import com.netflix.astyanax.serializers.SerializerPackageImpl;
+import com.netflix.astyanax.serializers.StringSerializer;
+import com.netflix.astyanax.test.TestKeyspace;
+import com.netflix.astyanax.test.TestStubs;
+import com.netflix.astyanax.test.TestStubs.StubHandler;
+
+public class CsvBulkImporterTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    
+    private CsvBulkImporter.LineParser parser(String text) {
+        return new CsvBulkImporter.LineParser(ByteBuffer.wrap(text.getBytes(UTF8)), (byte)',');
+    }
+    
+    @Test
+    public void testParseFields() {
+        CsvBulkImporter.LineParser parser = parser("key,a,\"b,\"\"c\"\"\"\r\n\n\nk2,,123");
+        
+        Assert.assertTrue(parser.nextRecord());
+        Assert.assertEquals(3, parser.getFieldCount());
+        Assert.assertEquals("key", parser.getFieldAsString(0));
+        Assert.assertEquals("a",   parser.getFieldAsString(1));
+        Assert.assertEquals("b,\"c\"", parser.getFieldAsString(2));
+        Assert.assertEquals("b,\"c\"", StringSerializer.get().fromByteBuffer(parser.getField(2, StringSerializer.get(), true)));
+        
+        // Blank lines are skipped
+        Assert.assertTrue(parser.nextRecord());
+        Assert.assertEquals(3, parser.getFieldCount());
+        Assert.assertEquals("k2", StringSerializer.get().fromByteBuffer(parser.getField(0, StringSerializer.get(), true)));
+        Assert.assertTrue(parser.isEmpty(1));
+        Assert.assertEquals(123L, LongSerializer.get().fromByteBuffer(parser.getField(2, LongSerializer.get(), false)).longValue());
+        
+        Assert.assertFalse(parser.nextRecord());
+    }
+    
+    @Test
+    public void testHeader() {
+        String[] names = parser("key,first,last\nfoo,bar,baz\n").nextRecordAsStrings();
+        Assert.assertEquals(3, names.length);
+        Assert.assertEquals("last", names[2]);
+        
+        Assert.assertNull(parser("").nextRecordAsStrings());
+    }
+    
+    private static File newFile(String text) throws IOException {
+        File file = File.createTempFile("CsvBulkImporterTest", ".csv");
+        file.deleteOnExit();
+        FileOutputStream os = new FileOutputStream(file);
+        try {
+            os.write(text.getBytes(UTF8));
+        }
+        finally {
+            os.close();
+        }
+        return file;
+    }
+    
+    private static long findNextLine(File file, long position) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            return CsvBulkImporter.findNextLine(channel, position, channel.size());
+        }
+        finally {
+            raf.close();
+        }
+    }
+    
+    /**
+     * Keyspace stub that records the rows written as key -> column -> value, failing any 
+     * batch that contains failKey
+     */
+    private static Keyspace newKeyspace(final ConcurrentMap<String, Map<String, String>> rows, final String failKey) {
+        return new TestKeyspace("CsvBulkImporterTest") {
+            @Override
+            public MutationBatch prepareMutationBatch() {
+                return newMutationBatch(rows, failKey);
+            }
+        };
+    }
+    
+    private static MutationBatch newMutationBatch(final ConcurrentMap<String, Map<String, String>> rows, final String failKey) {
+        final Map<String, Map<String, String>> batch = Maps.newHashMap();
+        return TestStubs.newStub(MutationBatch.class, new StubHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("withRow")) {
+                    final Map<String, String> columns = Maps.newHashMap();
+                    batch.put(StringSerializer.get().fromByteBuffer(((ByteBuffer)args[1]).duplicate()), columns);
+                    return TestStubs.newStub(ColumnListMutation.class, new StubHandler() {
+                        @Override
+                        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                            if (!method.getName().equals("putColumn"))
+                                return super.invoke(proxy, method, args);
+                            columns.put(StringSerializer.get().fromByteBuffer(((ByteBuffer)args[0]).duplicate()), 
+                                        StringSerializer.get().fromByteBuffer(((ByteBuffer)args[1]).duplicate()));
+                            return proxy;
+                        }
+                    });
+                }
+                if (method.getName().equals("getRowCount"))
+                    return batch.size();
+                if (method.getName().equals("execute")) {
+                    if (batch.containsKey(failKey))
+                        throw new RuntimeException("Failed batch with " + failKey);
+                    rows.putAll(batch);
+                    return null;
+                }
+                return super.invoke(proxy, method, args);
+            }
+        });
+    }
+    
+    private static SerializerPackageImpl newSerializers() {
+        return new SerializerPackageImpl()
+            .setKeySerializer(StringSerializer.get())
+            .setColumnNameSerializer(StringSerializer.get())
+            .setDefaultValueSerializer(StringSerializer.get());
+    }
+    
+    @Test
+    public void testFindNextLine() throws Exception {
+        File file = newFile("aaa\nbbbbbb\ncc");
+        
+        Assert.assertEquals(0,  findNextLine(file, 0));
+        // A position at the start of a line is already aligned
+        Assert.assertEquals(4,  findNextLine(file, 4));
+        // A line straddling the position belongs to the previous chunk
+        Assert.assertEquals(11, findNextLine(file, 5));
+        Assert.assertEquals(11, findNextLine(file, 10));
+        Assert.assertEquals(11, findNextLine(file, 11));
+        // The last line has no trailing newline so it extends to the end of the file
+        Assert.assertEquals(13, findNextLine(file, 12));
+        Assert.assertEquals(13, findNextLine(file, 20));
+    }
+    
+    @Test
+    public void testFindNextLineAcrossScanBuffers() throws Exception {
+        // A line much longer than the scan buffer
+        StringBuilder sb = new StringBuilder("k,");
+        for (int i = 0; i < 20000; i++) {
+            sb.append('x');
+        }
+        sb.append('\n').append("k2,y\n");
+        File file = newFile(sb.toString());
+        
+        Assert.assertEquals(20003, findNextLine(file, 1));
+        Assert.assertEquals(20003, findNextLine(file, 8192));
+        Assert.assertEquals(20003, findNextLine(file, 20003));
+        Assert.assertEquals(20008, findNextLine(file, 20004));
+    }
+    
+    @Test
+    public void testImportFile() throws Exception {
+        int rowCount = 200;
+        StringBuilder sb = new StringBuilder("key,name,value\n");
+        for (int i = 0; i < rowCount; i++) {
+            sb.append("key").append(i).append(",\"name ").append(i).append("\",").append(i);
+            // No trailing newline on the last line
+            if (i < rowCount - 1)
+                sb.append(i % 2 == 0 ? "\n" : "\r\n");
+        }
+        File file = newFile(sb.toString());
+        
+        ConcurrentMap<String, Map<String, String>> rows = Maps.newConcurrentMap();
+        // Small chunks so that many lines straddle chunk boundaries and many chunks are pending
+        long count = new CsvBulkImporter(newKeyspace(rows, null), "Standard1", newSerializers())
+            .setThreadCount(3)
+            .setChunkSize(50)
+            .setMaxPendingChunks(2)
+            .setBatchSize(3)
+            .importFile(file);
+        
+        Assert.assertEquals(rowCount, count);
+        Assert.assertEquals(rowCount, rows.size());
+        for (int i = 0; i < rowCount; i++) {
+            Map<String, String> columns = rows.get("key" + i);
+            Assert.assertNotNull("key" + i, columns);
+            Assert.assertEquals("name " + i, columns.get("name"));
+            Assert.assertEquals(Integer.toString(i), columns.get("value"));
+        }
+    }
+    
+    @Test
+    public void testImportFileWithoutRows() throws Exception {
+        ConcurrentMap<String, Map<String, String>> rows = Maps.newConcurrentMap();
+        for (String text : new String[] { "", "\n", "key,name\n", "key,name", "key,name\r\n\n" }) {
+            long count = new CsvBulkImporter(newKeyspace(rows, null), "Standard1", newSerializers())
+                .importFile(newFile(text));
+            Assert.assertEquals(0, count);
+        }
+        Assert.assertTrue(rows.isEmpty());
+    }
+    
+    @Test
+    public void testImportFileFailure() throws Exception {
+        StringBuilder sb = new StringBuilder("key,value\n");
+        for (int i = 0; i < 1000; i++) {
+            sb.append("key").append(i).append(',').append(i).append('\n');
+        }
+        File file = newFile(sb.toString());
+        
+        ConcurrentMap<String, Map<String, String>> rows = Maps.newConcurrentMap();
+        try {
+            new CsvBulkImporter(newKeyspace(rows, "key10"), "Standard1", newSerializers())
+                .setThreadCount(2)
+                .setChunkSize(100)
+                .setBatchSize(1)
+                .importFile(file);
+            Assert.fail();
+        }
+        catch (RuntimeException e) {
+            Assert.assertEquals("Failed batch with key10", e.getMessage());
+        }
+        
+        // The import stops instead of parsing the rest of the file
+        Set<String> keys = Sets.newHashSet(rows.keySet());
+        Assert.assertFalse(keys.contains("key10"));
+        Assert.assertTrue(keys.size() < 999);
+    }
+}
@@ -0,0 +1,92 @@
+package com.netflix.astyanax.util;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.netflix.astyanax.model.Column;
+import com.netflix.astyanax.model.ColumnList;
+import com.netflix.astyanax.model.Row;
+import com.netflix.astyanax.serializers.SerializerPackageImpl;
+import com.netflix.astyanax.serializers.StringSerializer;
+import com.netflix.astyanax.test.TestStubs;
+
+public class CsvRowsWriterTest {
+    private static final String NL = System.getProperty("line.separator");
+    
+    private static Column<String> newColumn(String name, String value) {
+        return TestStubs.newStub(Column.class, ImmutableMap.<String, Object>of(
+                "getRawName",          StringSerializer.get().toByteBuffer(name),
+                "getByteBufferValue",  StringSerializer.get().toByteBuffer(value),
+                "getTimestamp",        1000L,
+                "getTtl",              0));
+    }
+    
+    private static Row<String, String> newRow(String key, String... namesAndValues) {
+        final List<Column<String>> columns = Lists.newArrayList();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            columns.add(newColumn(namesAndValues[i], namesAndValues[i+1]));
+        }
+        ColumnList<String> columnList = TestStubs.newColumnList(columns);
+        
+        return TestStubs.newStub(Row.class, ImmutableMap.<String, Object>of(
+                "getKey",     key,
+                "getRawKey",  StringSerializer.get().toByteBuffer(key),
+                "getColumns", columnList));
+    }
+    
+    private static SerializerPackageImpl newSerializers() {
+        return new SerializerPackageImpl()
+            .setKeySerializer(StringSerializer.get())
+            .setColumnNameSerializer(StringSerializer.get())
+            .setDefaultValueSerializer(StringSerializer.get());
+    }
+    
+    @Test
+    public void testFixedColumnsQuotingAndNulls() throws Exception {
+        StringWriter sw = new StringWriter();
+        CsvRowsWriter writer = new CsvRowsWriter(new PrintWriter(sw), newSerializers())
+            .setFixedColumnNames("a", "b", "c");
+        
+        writer.start();
+        writer.writeRow(newRow("k1", "a", "plain", "b", "with,comma", "c", "say \"hi\""));
+        writer.writeRow(newRow("k2", "a", "two" + "\n" + "lines", "c", " padded "));
+        writer.writeRow(newRow("k3", "b", ""));
+        // Rows without columns are skipped
+        writer.writeRow(newRow("k4"));
+        writer.end();
+        
+        Assert.assertEquals(
+                "key,a,b,c" + NL
+              + "k1,plain,\"with,comma\",\"say \"\"hi\"\"\"" + NL
+              + "k2,\"two\nlines\",,\" padded \"" + NL
+              + "k3,,," + NL,
+                sw.toString());
+        Assert.assertEquals(3, writer.getRowCount());
+        Assert.assertEquals(6, writer.getColumnCount());
+    }
+    
+    @Test
+    public void testColumnsAsRows() throws Exception {
+        StringWriter sw = new StringWriter();
+        CsvRowsWriter writer = new CsvRowsWriter(new PrintWriter(sw), newSerializers())
+            .setHasHeaderLine(false)
+            .setDelimiter(';');
+        
+        // There are no known column names so each column is written on its own line
+        writer.start();
+        writer.writeRow(newRow("k1", "x", "1;2", "y", "3,4"));
+        writer.end();
+        
+        Assert.assertEquals(
+                "k1;x;\"1;2\";1000;0" + NL
+              + "k1;y;3,4;1000;0" + NL,
+                sw.toString());
+    }
+}
@@ -0,0 +1,415 @@
+package com.netflix.astyanax.recipes.queue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.UUID;
+
+import org.xerial.snappy.Snappy;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.netflix.astyanax.recipes.queue.triggers.RepeatingTrigger;
+import com.netflix.astyanax.recipes.queue.triggers.RunOnceTrigger;
+import com.netflix.astyanax.recipes.queue.triggers.Trigger;
+
+/**
+ * Compact binary message codec.
+ *
+ * Format:
+ *  [magic:1][version:1][flags:1][body]
+ *
+ * The body is Snappy compressed when the flags have FLAG_SNAPPY set, which is done for
+ * bodies larger than the compression threshold.  The body starts with a bit mask of the
+ * fields that are present followed by the fields in a fixed order.  The built in triggers
+ * and common parameter value types (strings, numbers, booleans, byte arrays, UUIDs, maps
+ * and lists) are written without any reflection.  Any other trigger or parameter type
+ * is written as its class name followed by its JSON representation.
+ *
+ * Messages that don't start with the magic byte are decoded as JSON.
+ */
+public class BinaryMessageCodec implements MessageCodec {
+    public static final int     DEFAULT_COMPRESSION_THRESHOLD = 4096;
+
+    static final byte           MAGIC           = (byte)0xB1;
+    static final byte           VERSION         = 1;
+    static final byte           FLAG_SNAPPY     = 0x01;
+
+    private static final Charset UTF8           = Charset.forName("UTF-8");
+
+    // Field presence bits
+    private static final int    HAS_TOKEN       = 1;
+    private static final int    HAS_RANDOM      = 1 << 1;
+    private static final int    HAS_KEY         = 1 << 2;
+    private static final int    HAS_TASK_CLASS  = 1 << 3;
+    private static final int    HAS_TRIGGER     = 1 << 4;
+    private static final int    HAS_PARAMETERS  = 1 << 5;
+    private static final int    KEEP_HISTORY    = 1 << 6;
+    private static final int    UNIQUE_KEY      = 1 << 7;
+    private static final int    AUTO_COMMIT     = 1 << 8;
+
+    // Trigger types
+    private static final byte   TRIGGER_RUN_ONCE    = 1;
+    private static final byte   TRIGGER_REPEATING   = 2;
+    private static final byte   TRIGGER_JSON        = 3;
+
+    // Value types
+    private static final byte   TYPE_NULL       = 0;
+    private static final byte   TYPE_STRING     = 1;
+    private static final byte   TYPE_INTEGER    = 2;
+    private static final byte   TYPE_LONG       = 3;
+    private static final byte   TYPE_BOOLEAN    = 4;
+    private static final byte   TYPE_DOUBLE     = 5;
+    private static final byte   TYPE_FLOAT      = 6;
+    private static final byte   TYPE_SHORT      = 7;
+    private static final byte   TYPE_BYTE       = 8;
+    private static final byte   TYPE_BYTES      = 9;
+    private static final byte   TYPE_UUID       = 10;
+    private static final byte   TYPE_MAP        = 11;
+    private static final byte   TYPE_LIST       = 12;
+    private static final byte   TYPE_JSON       = 13;
+
+    private final int compressionThreshold;
+
+    public BinaryMessageCodec() {
+        this(DEFAULT_COMPRESSION_THRESHOLD);
+    }
+
+    /**
+     * @param compressionThreshold Compress messages larger than this number of bytes.  0 to
+     *      never compress.
+     */
+    public BinaryMessageCodec(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    @Override
+    public byte[] encode(Message message) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(baos);
+
+        int fields = 0;
+        if (message.getToken() != null)         fields |= HAS_TOKEN;
+        if (message.getRandom() != null)        fields |= HAS_RANDOM;
+        if (message.getKey() != null)           fields |= HAS_KEY;
+        if (message.getTaskClass() != null)     fields |= HAS_TASK_CLASS;
+        if (message.getTrigger() != null)       fields |= HAS_TRIGGER;
+        if (message.getParameters() != null)    fields |= HAS_PARAMETERS;
+        if (message.isKeepHistory())            fields |= KEEP_HISTORY;
+        if (message.hasUniqueKey())             fields |= UNIQUE_KEY;
+        if (message.isAutoCommitTrigger())      fields |= AUTO_COMMIT;
+
+        out.writeShort(fields);
+        out.writeByte(message.getPriority());
+        out.writeInt(message.getTimeout());
+        if (message.getToken() != null)
+            writeUUID(out, message.getToken());
+        if (message.getRandom() != null)
+            writeUUID(out, message.getRandom());
+        if (message.getKey() != null)
+            writeString(out, message.getKey());
+        if (message.getTaskClass() != null)
+            writeString(out, message.getTaskClass());
+        if (message.getTrigger() != null)
+            writeTrigger(out, message.getTrigger());
+        if (message.getParameters() != null)
+            writeMap(out, message.getParameters());
+        out.flush();
+
+        byte[] body  = baos.toByteArray();
+        byte   flags = 0;
+        if (compressionThreshold > 0 && body.length > compressionThreshold) {
+            byte[] compressed = Snappy.compress(body);
+            if (compressed.length < body.length) {
+                body   = compressed;
+                flags |= FLAG_SNAPPY;
+            }
+        }
+
+        byte[] data = new byte[body.length + 3];
+        data[0] = MAGIC;
+        data[1] = VERSION;
+        data[2] = flags;
+        System.arraycopy(body, 0, data, 3, body.length);
+        return data;
+    }
+
+    @Override
+    public Message decode(byte[] data) throws Exception {
+        if (!isBinary(data))
+            return JsonMessageCodec.decodeJson(data);
+        return decodeBinary(data);
+    }
+
+    /**
+     * @return True if the data was written by this codec
+     */
+    static boolean isBinary(byte[] data) {
+        return data != null && data.length >= 3 && data[0] == MAGIC;
+    }
+
+    static Message decodeBinary(byte[] data) throws Exception {
+        if (data[1] > VERSION)
+            throw new IOException("Unsupported message version " + data[1]);
+
+        byte[] body;
+        if ((data[2] & FLAG_SNAPPY) != 0) {
+            byte[] compressed = new byte[data.length - 3];
+            System.arraycopy(data, 3, compressed, 0, compressed.length);
+            body = Snappy.uncompress(compressed);
+        }
+        else {
+            body = data;
+        }
+
+        DataInputStream in = new DataInputStream(body == data
+                ? new ByteArrayInputStream(data, 3, data.length - 3)
+                : new ByteArrayInputStream(body));
+
+        int fields = in.readUnsignedShort();
+        Message message = new Message();
+        message.setPriority(in.readByte());
+        message.setTimeout(in.readInt());
+        if ((fields & HAS_TOKEN) != 0)
+            message.setToken(readUUID(in));
+        if ((fields & HAS_RANDOM) != 0)
+            message.setRandom(readUUID(in));
+        if ((fields & HAS_KEY) != 0) {
+            String key = readString(in);
+            if ((fields & UNIQUE_KEY) != 0)
+                message.setUniqueKey(key);
+            else
+                message.setKey(key);
+        }
+        if ((fields & HAS_TASK_CLASS) != 0)
+            message.setTaskClass(readString(in));
+        if ((fields & HAS_TRIGGER) != 0)
+            message.setTrigger(readTrigger(in));
+        if ((fields & HAS_PARAMETERS) != 0)
+            message.setParameters(BinaryMessageCodec.<String>readMap(in));
+        message.setKeepHistory((fields & KEEP_HISTORY) != 0);
+        message.setAutoCommitTrigger((fields & AUTO_COMMIT) != 0);
+        return message;
+    }
+
+    private static void writeTrigger(DataOutputStream out, Trigger trigger) throws IOException {
+        if (trigger.getClass() == RunOnceTrigger.class) {
+            RunOnceTrigger runOnce = (RunOnceTrigger)trigger;
+            out.writeByte(TRIGGER_RUN_ONCE);
+            out.writeLong(runOnce.getTriggerTime());
+            out.writeLong(runOnce.getExecutionCount());
+        }
+        else if (trigger.getClass() == RepeatingTrigger.class) {
+            RepeatingTrigger repeating = (RepeatingTrigger)trigger;
+            out.writeByte(TRIGGER_REPEATING);
+            out.writeLong(repeating.getTriggerTime());
+            out.writeLong(repeating.getExecutionCount());
+            out.writeLong(repeating.getInterval());
+            out.writeLong(repeating.getEndTime());
+            writeNullableLong(out, repeating.getDelay());
+            writeNullableLong(out, repeating.getRepeatCount());
+        }
+        else {
+            out.writeByte(TRIGGER_JSON);
+            writeJson(out, trigger);
+        }
+    }
+
+    private static Trigger readTrigger(DataInputStream in) throws Exception {
+        byte type = in.readByte();
+        switch (type) {
+        case TRIGGER_RUN_ONCE: {
+            RunOnceTrigger trigger = new RunOnceTrigger();
+            trigger.setTriggerTime(in.readLong());
+            trigger.setExecutionCount(in.readLong());
+            return trigger;
+        }
+        case TRIGGER_REPEATING: {
+            RepeatingTrigger trigger = new RepeatingTrigger();
+            trigger.setTriggerTime(in.readLong());
+            trigger.setExecutionCount(in.readLong());
+            trigger.setInterval(in.readLong());
+            trigger.setEndTime(in.readLong());
+            Long delay = readNullableLong(in);
+            if (delay != null)
+                trigger.setDelay(delay);
+            Long repeatCount = readNullableLong(in);
+            if (repeatCount != null)
+                trigger.setRepeatCount(repeatCount);
+            return trigger;
+        }
+        case TRIGGER_JSON:
+            return (Trigger)readJson(in);
+        default:
+            throw new IOException("Unknown trigger type " + type);
+        }
+    }
+
+    private static void writeMap(DataOutputStream out, Map<?, ?> map) throws IOException {
+        out.writeInt(map.size());
+        for (Entry<?, ?> entry : map.entrySet()) {
+            writeValue(out, entry.getKey());
+            writeValue(out, entry.getValue());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K> Map<K, Object> readMap(DataInputStream in) throws Exception {
+        int size = in.readInt();
+        Map<K, Object> map = Maps.newLinkedHashMap();
+        for (int i = 0; i < size; i++) {
+            K key = (K)readValue(in);
+            map.put(key, readValue(in));
+        }
+        return map;
+    }
+
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(TYPE_NULL);
+        }
+        else if (value instanceof String) {
+            out.writeByte(TYPE_STRING);
+            writeString(out, (String)value);
+        }
+        else if (value instanceof Integer) {
+            out.writeByte(TYPE_INTEGER);
+            out.writeInt((Integer)value);
+        }
+        else if (value instanceof Long) {
+            out.writeByte(TYPE_LONG);
+            out.writeLong((Long)value);
+        }
+        else if (value instanceof Boolean) {
+            out.writeByte(TYPE_BOOLEAN);
+            out.writeBoolean((Boolean)value);
+        }
+        else if (value instanceof Double) {
+            out.writeByte(TYPE_DOUBLE);
+            out.writeDouble((Double)value);
+        }
+        else if (value instanceof Float) {
+            out.writeByte(TYPE_FLOAT);
+            out.writeFloat((Float)value);
+        }
+        else if (value instanceof Short) {
+            out.writeByte(TYPE_SHORT);
+            out.writeShort((Short)value);
+        }
+        else if (value instanceof Byte) {
+            out.writeByte(TYPE_BYTE);
+            out.writeByte((Byte)value);
+        }
+        else if (value instanceof byte[]) {
+            byte[] bytes = (byte[])value;
+            out.writeByte(TYPE_BYTES);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+        else if (value instanceof UUID) {
+            out.writeByte(TYPE_UUID);
+            writeUUID(out, (UUID)value);
+        }
+        else if (value instanceof Map) {
+            out.writeByte(TYPE_MAP);
+            writeMap(out, (Map<?, ?>)value);
+        }
+        else if (value instanceof List) {
+            Collection<?> list = (Collection<?>)value;
+            out.writeByte(TYPE_LIST);
+            out.writeInt(list.size());
+            for (Object item : list) {
+                writeValue(out, item);
+            }
+        }
+        else {
+            out.writeByte(TYPE_JSON);
+            writeJson(out, value);
+        }
+    }
+
+    private static Object readValue(DataInputStream in) throws Exception {
+        byte type = in.readByte();
+        switch (type) {
+        case TYPE_NULL:     return null;
+        case TYPE_STRING:   return readString(in);
+        case TYPE_INTEGER:  return in.readInt();
+        case TYPE_LONG:     return in.readLong();
+        case TYPE_BOOLEAN:  return in.readBoolean();
+        case TYPE_DOUBLE:   return in.readDouble();
+        case TYPE_FLOAT:    return in.readFloat();
+        case TYPE_SHORT:    return in.readShort();
+        case TYPE_BYTE:     return in.readByte();
+        case TYPE_BYTES: {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            return bytes;
+        }
+        case TYPE_UUID:     return readUUID(in);
+        case TYPE_MAP:      return BinaryMessageCodec.<Object>readMap(in);
+        case TYPE_LIST: {
+            int size = in.readInt();
+            List<Object> list = Lists.newArrayListWithCapacity(size);
+            for (int i = 0; i < size; i++) {
+                list.add(readValue(in));
+            }
+            return list;
+        }
+        case TYPE_JSON:     return readJson(in);
+        default:
+            throw new IOException("Unknown value type " + type);
+        }
+    }
+
+    private static void writeJson(DataOutputStream out, Object value) throws IOException {
+        writeString(out, value.getClass().getName());
+        byte[] json = JsonMessageCodec.getMapper().writeValueAsBytes(value);
+        out.writeInt(json.length);
+        out.write(json);
+    }
+
+    private static Object readJson(DataInputStream in) throws Exception {
+        String className = readString(in);
+        byte[] json = new byte[in.readInt()];
+        in.readFully(json);
+        return JsonMessageCodec.getMapper().readValue(json, Class.forName(className));
+    }
+
+    private static void writeNullableLong(DataOutputStream out, Long value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null)
+            out.writeLong(value);
+    }
+
+    private static Long readNullableLong(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readLong() : null;
+    }
+
+    private static void writeUUID(DataOutputStream out, UUID uuid) throws IOException {
+        out.writeLong(uuid.getMostSignificantBits());
+        out.writeLong(uuid.getLeastSignificantBits());
+    }
+
+    private static UUID readUUID(DataInputStream in) throws IOException {
+        return new UUID(in.readLong(), in.readLong());
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+}
@@ -3,7 +3,11 @@ package com.netflix.astyanax.recipes.queue;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
 
-public class CountingQueueStats implements MessageQueueStats {
+import com.netflix.astyanax.recipes.Log2Histogram;
+
+public class CountingQueueStats implements MessageQueueDepthStats {
+    private static final int LAG_BUCKET_COUNT = 40;
+    
     private AtomicLong emptyPartitionCount = new AtomicLong();
     private AtomicLong lockContentionCount = new AtomicLong();
     private AtomicLong eventProcessCount   = new AtomicLong();
@@ -13,6 +17,9 @@ public class CountingQueueStats implements MessageQueueStats {
     private AtomicLong sendMessageCount    = new AtomicLong();
     private AtomicLong invalidTaskCount    = new AtomicLong();
     private AtomicLong persistErrorCount   = new AtomicLong();
+    private Log2Histogram consumeLag       = new Log2Histogram(LAG_BUCKET_COUNT);
+    private volatile long depthEstimate    = -1;
+    private volatile long oldestMessageAge = 0;
     
     @Override
     public void incEmptyPartitionCount() {
@@ -59,6 +66,17 @@ public class CountingQueueStats implements MessageQueueStats {
         persistErrorCount.incrementAndGet();
     }
 
+    @Override
+    public void recordConsumeLag(long lagMillis) {
+        consumeLag.record(lagMillis);
+    }
+    
+    @Override
+    public void setDepthSample(long depth, long oldestMessageAge) {
+        this.depthEstimate    = depth;
+        this.oldestMessageAge = oldestMessageAge;
+    }
+
     @Override
     public long getEmptyPartitionCount() {
         return this.emptyPartitionCount.get();
@@ -104,6 +122,26 @@ public class CountingQueueStats implements MessageQueueStats {
         return this.persistErrorCount.get();
     }
     
+    @Override
+    public long getDepthEstimate() {
+        return this.depthEstimate;
+    }
+    
+    @Override
+    public long getOldestMessageAge() {
+        return this.oldestMessageAge;
+    }
+    
+    @Override
+    public long getConsumeLagPercentile(double percentile) {
+        return consumeLag.getPercentile(percentile);
+    }
+    
+    @Override
+    public long[] getConsumeLagHistogram() {
+        return consumeLag.getCounts();
+    }
+    
     @Override
     public String toString() {
         return "CountingQueueStats [empty=" + emptyPartitionCount.get() 
@@ -113,6 +151,9 @@ public class CountingQueueStats implements MessageQueueStats {
                 + ", exp="      + expiredLockCount .get()
                 + ", released=" + ackMessageCount .get()
                 + ", new="      + sendMessageCount .get()
-                + ", invalid="  + invalidTaskCount + "]";
+                + ", invalid="  + invalidTaskCount
+                + ", depth="    + depthEstimate
+                + ", age="      + oldestMessageAge 
+                + ", lag99="    + getConsumeLagPercentile(99) + "]";
     }
 }
@@ -0,0 +1,90 @@
+package com.netflix.astyanax.recipes.queue;
+
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+/**
+ * MBean monitoring for a message queue.  Depth and age are only available when
+ * depth sampling is enabled for the queue and its stats implement MessageQueueDepthStats.
+ */
+public class JmxMessageQueueMonitor implements JmxMessageQueueMonitorMBean {
+    private final MessageQueue      queue;
+    private final MessageQueueStats stats;
+    private final MessageQueueDepthStats depthStats;
+    
+    public JmxMessageQueueMonitor(MessageQueue queue, MessageQueueStats stats) {
+        this.queue      = queue;
+        this.stats      = stats;
+        this.depthStats = (stats instanceof MessageQueueDepthStats) ? (MessageQueueDepthStats)stats : null;
+    }
+    
+    @Override
+    public long getDepthEstimate() {
+        return depthStats != null ? depthStats.getDepthEstimate() : -1;
+    }
+
+    @Override
+    public long getOldestMessageAge() {
+        return depthStats != null ? depthStats.getOldestMessageAge() : 0;
+    }
+
+    @Override
+    public long getConsumeLag50() {
+        return getConsumeLag(50);
+    }
+
+    @Override
+    public long getConsumeLag95() {
+        return getConsumeLag(95);
+    }
+
+    @Override
+    public long getConsumeLag99() {
+        return getConsumeLag(99);
+    }
+    
+    private long getConsumeLag(double percentile) {
+        return depthStats != null ? depthStats.getConsumeLagPercentile(percentile) : 0;
+    }
+
+    @Override
+    public long getProcessCount() {
+        return stats.getProcessCount();
+    }
+
+    @Override
+    public long getReprocessCount() {
+        return stats.getReprocessCount();
+    }
+
+    @Override
+    public long getSendMessageCount() {
+        return stats.getSendMessageCount();
+    }
+
+    @Override
+    public long getAckMessageCount() {
+        return stats.getAckMessageCount();
+    }
+
+    @Override
+    public long getLockContentionCount() {
+        return stats.getLockCountentionCount();
+    }
+
+    @Override
+    public long getEmptyPartitionCount() {
+        return stats.getEmptyPartitionCount();
+    }
+
+    @Override
+    public String getShardDepths() {
+        Map<String, Long> depths = new TreeMap<String, Long>();
+        for (Entry<String, MessageQueueShardStats> entry : queue.getShardStats().entrySet()) {
+            if (entry.getValue() instanceof MessageQueueShardDepthStats)
+                depths.put(entry.getKey(), ((MessageQueueShardDepthStats)entry.getValue()).getDepth());
+        }
+        return depths.toString();
+    }
+}
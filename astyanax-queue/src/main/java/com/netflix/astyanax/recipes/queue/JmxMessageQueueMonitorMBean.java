@@ -0,0 +1,27 @@
+package com.netflix.astyanax.recipes.queue;
+
+public interface JmxMessageQueueMonitorMBean {
+    long getDepthEstimate();
+    
+    long getOldestMessageAge();
+    
+    long getConsumeLag50();
+    
+    long getConsumeLag95();
+    
+    long getConsumeLag99();
+    
+    long getProcessCount();
+    
+    long getReprocessCount();
+    
+    long getSendMessageCount();
+    
+    long getAckMessageCount();
+    
+    long getLockContentionCount();
+    
+    long getEmptyPartitionCount();
+    
+    String getShardDepths();
+}
@@ -0,0 +1,37 @@
+package com.netflix.astyanax.recipes.queue;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.annotate.JsonSerialize;
+
+/**
+ * Message codec that stores messages as JSON.  Trigger and parameter types are 
+ * stored by class name.
+ */
+public class JsonMessageCodec implements MessageCodec {
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    static {
+        mapper.setSerializationInclusion(JsonSerialize.Inclusion.NON_NULL);
+        mapper.enableDefaultTyping();
+    }
+    
+    @Override
+    public byte[] encode(Message message) throws Exception {
+        return mapper.writeValueAsBytes(message);
+    }
+
+    @Override
+    public Message decode(byte[] data) throws Exception {
+        if (BinaryMessageCodec.isBinary(data))
+            return BinaryMessageCodec.decodeBinary(data);
+        return decodeJson(data);
+    }
+    
+    static Message decodeJson(byte[] data) throws Exception {
+        return mapper.readValue(data, Message.class);
+    }
+    
+    static ObjectMapper getMapper() {
+        return mapper;
+    }
+}
@@ -5,6 +5,8 @@ import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 
 import org.codehaus.jackson.annotate.JsonIgnore;
+import org.codehaus.jackson.annotate.JsonProperty;
+import org.codehaus.jackson.map.annotate.JsonSerialize;
 
 import com.google.common.collect.Maps;
 import com.netflix.astyanax.recipes.queue.triggers.Trigger;
@@ -192,6 +194,21 @@ public class Message {
     public boolean hasUniqueKey() {
         return this.key != null && this.hasUniqueKey;
     }
+    
+    /**
+     * The unique key flag is only serialized when set so that older queue instances, 
+     * which don't know the property, can still read messages without a unique key
+     */
+    @JsonProperty("hasUniqueKey")
+    @JsonSerialize(include = JsonSerialize.Inclusion.NON_DEFAULT)
+    private boolean getHasUniqueKey() {
+        return this.hasUniqueKey;
+    }
+    
+    @JsonProperty("hasUniqueKey")
+    private void setHasUniqueKey(boolean hasUniqueKey) {
+        this.hasUniqueKey = hasUniqueKey;
+    }
 
     public String getTaskClass() {
         return taskClass;
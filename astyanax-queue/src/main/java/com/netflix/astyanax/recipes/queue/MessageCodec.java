@@ -0,0 +1,23 @@
+package com.netflix.astyanax.recipes.queue;
+
+/**
+ * Encoding of a Message into the value of a queue column
+ */
+public interface MessageCodec {
+    /**
+     * Serialize a message
+     * @param message
+     * @return
+     * @throws Exception
+     */
+    byte[] encode(Message message) throws Exception;
+    
+    /**
+     * Deserialize a message.  Implementations should be able to read messages written 
+     * by the JSON codec so that existing queues remain readable.
+     * @param data
+     * @return
+     * @throws Exception
+     */
+    Message decode(byte[] data) throws Exception;
+}
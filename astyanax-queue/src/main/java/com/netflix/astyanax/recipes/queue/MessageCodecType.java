@@ -0,0 +1,29 @@
+package com.netflix.astyanax.recipes.queue;
+
+/**
+ * Built in message codecs that may be selected in MessageQueueSettings
+ */
+public enum MessageCodecType {
+    /**
+     * Jackson JSON.  This was the only format prior to the introduction of codecs.
+     */
+    JSON {
+        @Override
+        public MessageCodec newCodec() {
+            return new JsonMessageCodec();
+        }
+    },
+    
+    /**
+     * Compact versioned binary format.  See BinaryMessageCodec.  Opt-in since it can't
+     * be read by queue instances from before codecs were introduced.
+     */
+    BINARY {
+        @Override
+        public MessageCodec newCodec() {
+            return new BinaryMessageCodec();
+        }
+    };
+    
+    public abstract MessageCodec newCodec();
+}
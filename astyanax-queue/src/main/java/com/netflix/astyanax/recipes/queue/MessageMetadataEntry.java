@@ -56,6 +56,14 @@ public class MessageMetadataEntry {
     public static MessageMetadataEntry newLock() {
         return new MessageMetadataEntry(MessageMetadataEntryType.Lock,   TimeUUIDUtils.getUniqueTimeUUIDinMicros().toString());
     }
+
+    public static MessageMetadataEntry newMember(String memberId) {
+        return new MessageMetadataEntry(MessageMetadataEntryType.Member, memberId);
+    }
+
+    public static MessageMetadataEntry newSlot(String name) {
+        return new MessageMetadataEntry(MessageMetadataEntryType.Slot, name);
+    }
     
     @Override
     public int hashCode() {
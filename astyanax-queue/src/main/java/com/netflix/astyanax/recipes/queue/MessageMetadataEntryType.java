@@ -4,5 +4,7 @@ public enum MessageMetadataEntryType {
     Lock,
     Unique,
     MessageId,
-    Field
+    Field,
+    Member,
+    Slot
 }
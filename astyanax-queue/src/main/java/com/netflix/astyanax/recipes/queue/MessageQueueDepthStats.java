@@ -0,0 +1,48 @@
+package com.netflix.astyanax.recipes.queue;
+
+/**
+ * Queue stats that also track the consume lag and the sampled depth of the queue.  
+ * The queue only records these if its MessageQueueStats implements this interface.
+ */
+public interface MessageQueueDepthStats extends MessageQueueStats {
+    /**
+     * Record the time between a message becoming due and it being consumed
+     * @param lagMillis
+     */
+    void recordConsumeLag(long lagMillis);
+    
+    /**
+     * Update the sampled queue depth and age of the oldest due message
+     * @param depth
+     * @param oldestMessageAge
+     */
+    void setDepthSample(long depth, long oldestMessageAge);
+    
+    /**
+     * Number of messages in the queue as of the last depth sample or -1 if the 
+     * queue was never sampled.  See ShardedDistributedMessageQueue.Builder.withDepthSampling
+     * @return
+     */
+    long getDepthEstimate();
+    
+    /**
+     * Time in milliseconds since the oldest message at the head of any shard became due, as of
+     * the last depth sample
+     * @return
+     */
+    long getOldestMessageAge();
+    
+    /**
+     * Consume lag in milliseconds below which the specified percentage of messages were consumed
+     * @param percentile Value between 0 and 100
+     * @return
+     */
+    long getConsumeLagPercentile(double percentile);
+    
+    /**
+     * Histogram of consume lag.  Bucket 0 counts messages consumed within 1 millisecond 
+     * and bucket i counts messages consumed with a lag of [2^(i-1), 2^i) milliseconds.
+     * @return
+     */
+    long[] getConsumeLagHistogram();
+}
@@ -1,10 +1,17 @@
 package com.netflix.astyanax.recipes.queue;
 
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.lang.StringUtils;
@@ -14,6 +21,7 @@ import org.slf4j.LoggerFactory;
 import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Queues;
 import com.netflix.astyanax.recipes.locks.BusyLockException;
 
@@ -21,6 +29,17 @@ import com.netflix.astyanax.recipes.locks.BusyLockException;
  * The message queue dispatcher reads message from the message queue
  * and dispatches to worker threads.
  * 
+ * By default all consumers read from all shards and hand messages to the processor
+ * threads through a single backlog queue.  With shard affinity each consumer reads
+ * only its own subset of the shards and feeds its own bounded buffer which is drained by
+ * a dedicated subset of the processor threads, so consumers don't contend with each other.
+ * Processing may instead be handed off to an executor supplied by the caller, in which 
+ * case no processor threads are started and the backlog size limits the number of 
+ * messages in flight.
+ * 
+ * Acks are partitioned by shard across the ack threads and each ack batch is grouped 
+ * by shard so that every mutation batch targets a single queue row.
+ * 
  * @author elandau
  *
  */
@@ -33,6 +52,7 @@ public class MessageQueueDispatcher {
     public final static int   DEFAULT_CONSUMER_COUNT        = 1;
     public final static int   DEFAULT_ACK_SIZE              = 100;
     public final static int   DEFAULT_ACK_INTERVAL          = 100;
+    public final static int   DEFAULT_ACK_THREAD_COUNT      = 1;
     public final static int   DEFAULT_BACKLOG_SIZE          = 1000;
     
     public static class Builder {
@@ -110,7 +130,8 @@ public class MessageQueueDispatcher {
         }
         
         /**
-         * Interval for polling from the queue.  
+         * Maximum time a consumer waits for messages before checking if the dispatcher
+         * has been stopped.  Consumers don't wait this long once messages are available.
          * @param interval
          * @param units
          */
@@ -119,6 +140,40 @@ public class MessageQueueDispatcher {
             return this;
         }
         
+        /**
+         * Give each consumer thread affinity to a subset of the queue's shards.  Shards are
+         * assigned round robin to the consumers and each consumer feeds its own backlog
+         * which is drained by processor threads (id % consumerCount).  Requires a queue that
+         * implements ShardedMessageQueue.
+         * @param shardAffinity
+         */
+        public Builder withShardAffinity(boolean shardAffinity) {
+            dispatcher.shardAffinity = shardAffinity;
+            return this;
+        }
+        
+        /**
+         * Process messages on the provided executor instead of the dispatcher's processor
+         * threads.  Each message is submitted as a separate task so the executor may
+         * run messages on a thread per message.  At most backlogSize messages will be 
+         * submitted but not yet processed.  The executor is not shut down by stop().
+         * @param executor
+         */
+        public Builder withProcessorExecutor(Executor executor) {
+            dispatcher.processorExecutor = executor;
+            return this;
+        }
+        
+        /**
+         * Number of threads acking messages.  Messages are assigned to an ack thread 
+         * by shard.
+         * @param threadCount
+         */
+        public Builder withAckThreadCount(int threadCount) {
+            dispatcher.ackThreadCount = threadCount;
+            return this;
+        }
+        
         /**
          * Callback to process messages.  The callback is called from any of the internal processing
          * threads and is therefore not thread safe.
@@ -142,7 +197,8 @@ public class MessageQueueDispatcher {
         }
         
         public MessageQueueDispatcher build() {
-            Preconditions.checkArgument(dispatcher.consumerCount <= dispatcher.processorThreadCount, "consumerCounter must be <= threadCount");
+            Preconditions.checkArgument(dispatcher.processorExecutor != null || dispatcher.consumerCount <= dispatcher.processorThreadCount, "consumerCounter must be <= threadCount");
+            Preconditions.checkArgument(dispatcher.ackThreadCount > 0, "ackThreadCount must be > 0");
             dispatcher.initialize();
             return dispatcher;
         }
@@ -153,16 +209,19 @@ public class MessageQueueDispatcher {
     private int             consumerCount = DEFAULT_CONSUMER_COUNT;
     private int             ackSize       = DEFAULT_ACK_SIZE;
     private long            ackInterval   = DEFAULT_ACK_INTERVAL;
+    private int             ackThreadCount = DEFAULT_ACK_THREAD_COUNT;
     private int             backlogSize   = DEFAULT_BACKLOG_SIZE;
     private long            pollingInterval = DEFAULT_POLLING_INTERVAL;
-    private boolean         terminate     = false;
+    private boolean         shardAffinity = false;
+    private volatile boolean terminate    = false;
     private MessageQueue    messageQueue;
     private ExecutorService executor;
-    private MessageConsumer ackConsumer;
+    private Executor        processorExecutor;
+    private Semaphore       processorPermits;
     private Function<MessageContext, Boolean>   callback;
     private MessageHandlerFactory handlerFactory;
-    private LinkedBlockingQueue<MessageContext> toAck = Queues.newLinkedBlockingQueue();
-    private LinkedBlockingQueue<MessageContext> toProcess = Queues.newLinkedBlockingQueue(500);
+    private List<LinkedBlockingQueue<MessageContext>> toAck = Lists.newArrayList();
+    private List<BlockingQueue<MessageContext>>       toProcess = Lists.newArrayList();
     
     private MessageQueueDispatcher() {
     }
@@ -172,19 +231,44 @@ public class MessageQueueDispatcher {
         
         if (this.handlerFactory == null)
             this.handlerFactory = new SimpleMessageHandlerFactory();
-        toProcess = Queues.newLinkedBlockingQueue(backlogSize);
+        
+        if (shardAffinity && !(messageQueue instanceof ShardedMessageQueue)) {
+            LOG.warn("Shard affinity requires a ShardedMessageQueue.  Consumers will read from all shards.");
+            shardAffinity = false;
+        }
+        
+        for (int i = 0; i < ackThreadCount; i++) {
+            toAck.add(Queues.<MessageContext>newLinkedBlockingQueue());
+        }
+        
+        if (processorExecutor != null) {
+            processorPermits = new Semaphore(backlogSize);
+        }
+        else if (shardAffinity) {
+            // Each consumer has its own ring buffer
+            for (int i = 0; i < consumerCount; i++) {
+                toProcess.add(new ArrayBlockingQueue<MessageContext>(Math.max(1, backlogSize / consumerCount)));
+            }
+        }
+        else {
+            toProcess.add(Queues.<MessageContext>newLinkedBlockingQueue(backlogSize));
+        }
     }
     
     public void start() {
-        executor = Executors.newScheduledThreadPool(processorThreadCount + consumerCount + 1);
+        int processorThreads = (processorExecutor == null) ? processorThreadCount : 0;
+        executor = Executors.newScheduledThreadPool(processorThreads + consumerCount + ackThreadCount);
         
-        startAckThread();
+        for (int i = 0; i < ackThreadCount; i++) {
+            startAckThread(i);
+        }
         
+        List<List<String>> consumerShards = assignShards();
         for (int i = 0; i < consumerCount; i++) {
-            startConsumer(i);
+            startConsumer(i, consumerShards.get(i));
         }
         
-        for (int i = 0; i < processorThreadCount; i++) {
+        for (int i = 0; i < processorThreads; i++) {
             startProcessor(i);
         }
     }
@@ -194,24 +278,80 @@ public class MessageQueueDispatcher {
         executor.shutdownNow();
     }
     
-    private void startAckThread() {
-        ackConsumer = messageQueue.createConsumer();
+    /**
+     * Assign the queue's shards round robin to the consumers.  An empty list means
+     * the consumer reads from all shards.
+     */
+    private List<List<String>> assignShards() {
+        List<List<String>> assignments = Lists.newArrayList();
+        for (int i = 0; i < consumerCount; i++) {
+            assignments.add(Lists.<String>newArrayList());
+        }
+        
+        if (shardAffinity) {
+            List<String> shardNames = Lists.newArrayList(messageQueue.getShardStats().keySet());
+            Collections.sort(shardNames);
+            if (shardNames.size() >= consumerCount) {
+                for (int i = 0; i < shardNames.size(); i++) {
+                    assignments.get(i % consumerCount).add(shardNames.get(i));
+                }
+            }
+            else {
+                LOG.warn("Not enough shards for shard affinity.  consumerCount=" + consumerCount + " shardCount=" + shardNames.size());
+            }
+        }
+        return assignments;
+    }
+    
+    /**
+     * Return the shard of the timeout event that will be deleted when acking
+     * the message.  The ack message id is of the form shard$messageId. 
+     */
+    private static String getAckShard(MessageContext context) {
+        String ackMessageId = context.getAckMessageId();
+        if (ackMessageId == null)
+            return "";
+        int index = ackMessageId.indexOf(ShardedDistributedMessageQueue.COMPOSITE_KEY_DELIMITER);
+        return index < 0 ? ackMessageId : ackMessageId.substring(0, index);
+    }
+    
+    private void ack(MessageContext context) {
+        int index = (getAckShard(context).hashCode() & Integer.MAX_VALUE) % toAck.size();
+        toAck.get(index).add(context);
+    }
+    
+    private void startAckThread(final int id) {
+        final MessageConsumer ackConsumer = messageQueue.createConsumer();
+        final LinkedBlockingQueue<MessageContext> queue = toAck.get(id);
         
         executor.submit(new Runnable() {
             @Override
             public void run() {
-                String name = StringUtils.join(Lists.newArrayList(messageQueue.getName(), "Ack"), ":");
+                String name = StringUtils.join(Lists.newArrayList(messageQueue.getName(), "Ack", Integer.toString(id)), ":");
                 Thread.currentThread().setName(name);
                 
                 while (!terminate) {
                     try {
                         List<MessageContext> messages = Lists.newArrayList();
-                        toAck.drainTo(messages);
-                        if (!messages.isEmpty()) {
+                        queue.drainTo(messages);
+                        
+                        // Group by shard so each batch only mutates a single row
+                        Map<String, List<MessageContext>> byShard = Maps.newHashMap();
+                        for (MessageContext context : messages) {
+                            String shard = getAckShard(context);
+                            List<MessageContext> group = byShard.get(shard);
+                            if (group == null) {
+                                group = Lists.newArrayList();
+                                byShard.put(shard, group);
+                            }
+                            group.add(context);
+                        }
+                        
+                        for (List<MessageContext> group : byShard.values()) {
                             try {
-                                ackConsumer.ackMessages(messages);
+                                ackConsumer.ackMessages(group);
                             } catch (MessageQueueException e) {
-                                toAck.addAll(messages);
+                                queue.addAll(group);
                                 LOG.warn("Failed to ack consumer", e);
                             }
                         }
@@ -231,7 +371,7 @@ public class MessageQueueDispatcher {
         });
     }
     
-    private void startConsumer(final int id) {
+    private void startConsumer(final int id, final List<String> shardNames) {
         executor.submit(new Runnable() {
             @Override
             public void run() {
@@ -239,22 +379,31 @@ public class MessageQueueDispatcher {
                 Thread.currentThread().setName(name);
                 
                 // Create the consumer context
-                final MessageConsumer consumer = messageQueue.createConsumer();
+                final MessageConsumer consumer = shardNames.isEmpty() 
+                        ? messageQueue.createConsumer() 
+                        : ((ShardedMessageQueue)messageQueue).createConsumer(shardNames);
+                final BlockingQueue<MessageContext> queue = toProcess.isEmpty() 
+                        ? null 
+                        : toProcess.get(id % toProcess.size());
                 
                 while (!terminate) {
                     // Process events in a tight loop, until asked to terminate
                     Collection<MessageContext> messages = null;
                     try {
-                        messages = consumer.readMessages(batchSize);
-                        if (messages.isEmpty()) {
-                            Thread.sleep(pollingInterval);
-                        }
-                        else {
-                            for (MessageContext context : messages) {
-                                toProcess.put(context);
-                            }
+                        // The consumer waits for up to the polling interval for messages to arrive 
+                        // so there is no need to sleep here when no messages were read
+                        messages = consumer.readMessages(batchSize, pollingInterval, TimeUnit.MILLISECONDS);
+                        for (MessageContext context : messages) {
+                            if (queue != null) 
+                                queue.put(context);
+                            else 
+                                submitMessage(context);
                         }
                     } 
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
                     catch (BusyLockException e) {
                         try {
                             Thread.sleep(pollingInterval);
@@ -271,7 +420,31 @@ public class MessageQueueDispatcher {
         });
     }
     
+    private void submitMessage(final MessageContext context) throws InterruptedException {
+        processorPermits.acquire();
+        try {
+            processorExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        processMessage(context);
+                    }
+                    finally {
+                        processorPermits.release();
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            // The message will time out and be processed again
+            processorPermits.release();
+            LOG.warn("Processor executor rejected message " + context.getMessage().getKey(), e);
+        }
+    }
+    
     private void startProcessor(final int id) {
+        final BlockingQueue<MessageContext> queue = toProcess.get(id % toProcess.size());
+        
         executor.submit(new Runnable() {
             @Override
             public void run() {
@@ -283,7 +456,7 @@ public class MessageQueueDispatcher {
                         // Pop a message off the queue, blocking if empty
                         final MessageContext context;
                         try {
-                            context = toProcess.take();
+                            context = queue.take();
                             if (context == null)
                                 continue;
                         } catch (InterruptedException e) {
@@ -291,36 +464,7 @@ public class MessageQueueDispatcher {
                             return;
                         }
                         
-                        // Process the message
-                        Message message = context.getMessage();
-                        try {
-                            // Message has a specific handler class
-                            if (message.getTaskClass() != null) {
-                                @SuppressWarnings("unchecked")
-                                Function<MessageContext, Boolean> task = handlerFactory.createInstance(message.getTaskClass());
-                                if (task.apply(context)) {
-                                    toAck.add(context);
-                                }
-                                continue;
-                            }
-                            
-                            // Use default callback
-                            if (callback.apply(context)) {
-                                context.setStatus(MessageStatus.DONE);
-                                toAck.add(context);
-                                continue;
-                            }
-                        }
-                        catch (Throwable t) {
-                            context.setException(t);
-                            toAck.add(context);
-                            LOG.error("Error processing message " + message.getKey(), t);
-//                            try {
-//                                ackConsumer.ackPoisonMessage(context);
-//                            } catch (MessageQueueException e) {
-//                                LOG.warn("Failed to ack poison message " + message.getKey(), e);
-//                            }
-                        }
+                        processMessage(context);
                     }
                 }
                 catch (Throwable t) {
@@ -329,4 +473,30 @@ public class MessageQueueDispatcher {
             }
         });
     }
+    
+    private void processMessage(MessageContext context) {
+        Message message = context.getMessage();
+        try {
+            // Message has a specific handler class
+            if (message.getTaskClass() != null) {
+                @SuppressWarnings("unchecked")
+                Function<MessageContext, Boolean> task = handlerFactory.createInstance(message.getTaskClass());
+                if (task.apply(context)) {
+                    ack(context);
+                }
+                return;
+            }
+            
+            // Use default callback
+            if (callback.apply(context)) {
+                context.setStatus(MessageStatus.DONE);
+                ack(context);
+            }
+        }
+        catch (Throwable t) {
+            context.setException(t);
+            ack(context);
+            LOG.error("Error processing message " + message.getKey(), t);
+        }
+    }
 }
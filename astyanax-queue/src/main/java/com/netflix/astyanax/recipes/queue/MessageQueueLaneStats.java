@@ -0,0 +1,80 @@
+package com.netflix.astyanax.recipes.queue;
+
+import java.util.Collection;
+
+/**
+ * Aggregate stats of all the shards of a priority lane
+ */
+public class MessageQueueLaneStats implements MessageQueueShardDepthStats {
+    private final int                                   lane;
+    private final Collection<? extends MessageQueueShardDepthStats> shards;
+    
+    public MessageQueueLaneStats(int lane, Collection<? extends MessageQueueShardDepthStats> shards) {
+        this.lane   = lane;
+        this.shards = shards;
+    }
+    
+    public int getLane() {
+        return lane;
+    }
+    
+    public int getShardCount() {
+        return shards.size();
+    }
+    
+    @Override
+    public long getLastReadCount() {
+        long count = 0;
+        for (MessageQueueShardStats shard : shards) {
+            count += shard.getLastReadCount();
+        }
+        return count;
+    }
+
+    @Override
+    public long getReadCount() {
+        long count = 0;
+        for (MessageQueueShardStats shard : shards) {
+            count += shard.getReadCount();
+        }
+        return count;
+    }
+
+    @Override
+    public long getWriteCount() {
+        long count = 0;
+        for (MessageQueueShardStats shard : shards) {
+            count += shard.getWriteCount();
+        }
+        return count;
+    }
+
+    /**
+     * Sum of the sampled depth of the lane's shards or -1 if none of the shards was sampled
+     */
+    @Override
+    public long getDepth() {
+        long depth = -1;
+        for (MessageQueueShardDepthStats shard : shards) {
+            long shardDepth = shard.getDepth();
+            if (shardDepth >= 0)
+                depth = Math.max(depth, 0) + shardDepth;
+        }
+        return depth;
+    }
+
+    @Override
+    public long getOldestMessageAge() {
+        long age = 0;
+        for (MessageQueueShardDepthStats shard : shards) {
+            age = Math.max(age, shard.getOldestMessageAge());
+        }
+        return age;
+    }
+
+    @Override
+    public String toString() {
+        return "MessageQueueLaneStats [lane=" + lane + ", shards=" + shards.size() + ", readCount=" + getReadCount() 
+                + ", writeCount=" + getWriteCount() + ", depth=" + getDepth() + ", oldestMessageAge=" + getOldestMessageAge() + "]";
+    }
+}
@@ -0,0 +1,82 @@
+package com.netflix.astyanax.recipes.queue;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Register message queue stats with JMX
+ */
+public class MessageQueueMBeanManager {
+    private static Logger LOG = LoggerFactory.getLogger(MessageQueueMBeanManager.class);
+
+    private MBeanServer mbs;
+
+    private static MessageQueueMBeanManager monitorInstance;
+
+    private HashMap<String, JmxMessageQueueMonitorMBean> monitors;
+
+    private MessageQueueMBeanManager() {
+        mbs = ManagementFactory.getPlatformMBeanServer();
+        monitors = Maps.newHashMap();
+    }
+
+    public static synchronized MessageQueueMBeanManager getInstance() {
+        if (monitorInstance == null) {
+            monitorInstance = new MessageQueueMBeanManager();
+        }
+        return monitorInstance;
+    }
+
+    public synchronized void registerMonitor(ShardedDistributedMessageQueue queue) {
+        registerMonitor(queue, queue.getStats());
+    }
+    
+    public synchronized void registerMonitor(MessageQueue queue, MessageQueueStats stats) {
+        String monitorName = generateMonitorName(queue.getName());
+
+        if (!monitors.containsKey(monitorName)) {
+            try {
+                LOG.info("Registering mbean: " + monitorName);
+                JmxMessageQueueMonitorMBean mbean = new JmxMessageQueueMonitor(queue, stats);
+                monitors.put(monitorName, mbean);
+                mbs.registerMBean(mbean, new ObjectName(monitorName));
+            }
+            catch (Exception e) {
+                LOG.error(e.getMessage());
+                monitors.remove(monitorName);
+            }
+        }
+    }
+
+    public synchronized void unregisterMonitor(MessageQueue queue) {
+        String monitorName = generateMonitorName(queue.getName());
+        monitors.remove(monitorName);
+        try {
+            mbs.unregisterMBean(new ObjectName(monitorName));
+        }
+        catch (Exception e) {
+            LOG.error(e.getMessage());
+        }
+    }
+
+    public synchronized JmxMessageQueueMonitorMBean getQueueMonitor(String name) {
+        return monitors.get(generateMonitorName(name));
+    }
+
+    private String generateMonitorName(String name) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("com.netflix.MonitoredResources");
+        sb.append(":type=ASTYANAX");
+        sb.append(",name=" + name);
+        sb.append(",ServiceType=queue");
+        return sb.toString();
+    }
+}
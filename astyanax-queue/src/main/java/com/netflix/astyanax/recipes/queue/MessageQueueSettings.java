@@ -2,12 +2,26 @@ package com.netflix.astyanax.recipes.queue;
 
 import java.util.concurrent.TimeUnit;
 
+import org.codehaus.jackson.annotate.JsonIgnore;
+import org.codehaus.jackson.annotate.JsonIgnoreProperties;
+import org.codehaus.jackson.annotate.JsonProperty;
+import org.codehaus.jackson.map.annotate.JsonSerialize;
+
 import com.netflix.astyanax.recipes.queue.shard.TimeModShardPolicy;
 import com.netflix.astyanax.recipes.queue.shard.ModShardPolicy;
 
 /**
  * MessageQueueSettings settings that are persisted to cassandra
+ * 
+ * Settings that are at their default value are not written.  Queue instances from before 
+ * this class ignored unknown properties fail to parse the settings of a queue that has any 
+ * of the newer settings (maxPollInterval, messageCodec, readShardCount, shardMapVersion, 
+ * shardMapTimestamp, timingWheelSlotDuration and laneCount) set to a non default value.  
+ * All instances must therefore be upgraded before changing any of these settings, using 
+ * MessageCodecType.BINARY or resharding the queue.
  */
+@JsonIgnoreProperties(ignoreUnknown = true)
+@JsonSerialize(include = JsonSerialize.Inclusion.NON_DEFAULT)
 public class MessageQueueSettings {
     public static final Integer       DEFAULT_RETENTION_TIMEOUT = null;
     public static final int           DEFAULT_SHARD_COUNT       = 1;
@@ -16,14 +30,24 @@ public class MessageQueueSettings {
     public static final Integer       DEFAULT_HISTORY_TTL       = null;
     public static final String        DEFAULT_QUEUE_NAME        = "Queue";
     public static final long          DEFAULT_POLL_WAIT         = TimeUnit.MILLISECONDS.convert(100, TimeUnit.MILLISECONDS);
+    public static final long          DEFAULT_MAX_POLL_WAIT     = TimeUnit.MILLISECONDS.convert(1,   TimeUnit.SECONDS);
+    public static final MessageCodecType DEFAULT_MESSAGE_CODEC  = MessageCodecType.JSON;
+    public static final int           DEFAULT_LANE_COUNT        = 1;
     
     private Long      partitionDuration = DEFAULT_BUCKET_DURATION;
     private int       partitionCount    = DEFAULT_BUCKET_COUNT;
     private Integer   retentionTimeout  = DEFAULT_RETENTION_TIMEOUT;
-    private int       shardCount        = DEFAULT_SHARD_COUNT;
+    private volatile int  shardCount        = DEFAULT_SHARD_COUNT;
     private Integer   historyTtl        = DEFAULT_HISTORY_TTL;
     private String    queueName         = DEFAULT_QUEUE_NAME;
     private long      pollInterval      = DEFAULT_POLL_WAIT;
+    private long      maxPollInterval   = DEFAULT_MAX_POLL_WAIT;
+    private MessageCodecType messageCodec = DEFAULT_MESSAGE_CODEC;
+    private volatile int  readShardCount    = 0;
+    private volatile long shardMapVersion   = 0;
+    private volatile long shardMapTimestamp = 0;
+    private Long      timingWheelSlotDuration = null;
+    private int       laneCount         = DEFAULT_LANE_COUNT;
     
     public Long getPartitionDuration() {
         return partitionDuration;
@@ -70,11 +94,91 @@ public class MessageQueueSettings {
     public void setPollInterval(long pollInterval) {
         this.pollInterval = pollInterval;
     }
+    /**
+     * Maximum time in milliseconds to back off from reading a shard that keeps coming up empty.  
+     * The backoff starts at the poll interval and doubles for every consecutive empty read.
+     */
+    public long getMaxPollInterval() {
+        return maxPollInterval;
+    }
+    public void setMaxPollInterval(long maxPollInterval) {
+        this.maxPollInterval = maxPollInterval;
+    }
+    /**
+     * Codec used to write messages.  Messages are readable regardless of the codec 
+     * they were written with, but only by upgraded queue instances.  Defaults to JSON.
+     */
+    public MessageCodecType getMessageCodec() {
+        return messageCodec;
+    }
+    public void setMessageCodec(MessageCodecType messageCodec) {
+        this.messageCodec = messageCodec;
+    }
+    /**
+     * Number of mod shards consumers read from.  This is greater than the shard count
+     * while the shards that were removed when shrinking the queue are being drained.
+     */
+    @JsonIgnore
+    public int getReadShardCount() {
+        return Math.max(shardCount, readShardCount);
+    }
+    @JsonProperty("readShardCount")
+    public void setReadShardCount(int readShardCount) {
+        this.readShardCount = readShardCount;
+    }
+    /**
+     * Only written while removed shards are being drained
+     */
+    @JsonProperty("readShardCount")
+    private int getDrainingReadShardCount() {
+        return readShardCount > shardCount ? readShardCount : 0;
+    }
+    /**
+     * Version of the shard map (shardCount and readShardCount).  Incremented every time
+     * the queue is resharded.
+     */
+    public long getShardMapVersion() {
+        return shardMapVersion;
+    }
+    public void setShardMapVersion(long shardMapVersion) {
+        this.shardMapVersion = shardMapVersion;
+    }
+    /**
+     * Time in milliseconds when the current version of the shard map was written
+     */
+    public long getShardMapTimestamp() {
+        return shardMapTimestamp;
+    }
+    public void setShardMapTimestamp(long shardMapTimestamp) {
+        this.shardMapTimestamp = shardMapTimestamp;
+    }
+    /**
+     * Duration in milliseconds of a timing wheel slot or null if the queue does
+     * not use a timing wheel.  See TimingWheel.
+     */
+    public Long getTimingWheelSlotDuration() {
+        return timingWheelSlotDuration;
+    }
+    public void setTimingWheelSlotDuration(Long timingWheelSlotDuration) {
+        this.timingWheelSlotDuration = timingWheelSlotDuration;
+    }
+    /**
+     * Number of priority lanes.  Each lane has its own set of shards and messages are
+     * assigned to lane min(priority, laneCount - 1).
+     */
+    public int getLaneCount() {
+        return laneCount;
+    }
+    public void setLaneCount(int laneCount) {
+        this.laneCount = laneCount;
+    }
     
     @Override
     public String toString() {
         return "MessageQueueSettings [partitionDuration=" + partitionDuration + ", partitionCount=" + partitionCount
                 + ", retentionTimeout=" + retentionTimeout + ", shardCount=" + shardCount + ", historyTtl=" + historyTtl
-                + ", queueName=" + queueName + ", pollInterval=" + pollInterval + "]";
+                + ", queueName=" + queueName + ", pollInterval=" + pollInterval + ", maxPollInterval=" + maxPollInterval + ", messageCodec=" + messageCodec
+                + ", readShardCount=" + readShardCount + ", shardMapVersion=" + shardMapVersion + ", shardMapTimestamp=" + shardMapTimestamp
+                + ", timingWheelSlotDuration=" + timingWheelSlotDuration + ", laneCount=" + laneCount + "]";
     }
 }
\ No newline at end of file
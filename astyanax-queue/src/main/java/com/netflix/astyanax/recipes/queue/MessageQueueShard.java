@@ -1,24 +1,70 @@
 package com.netflix.astyanax.recipes.queue;
 
+import java.util.List;
 import java.util.concurrent.atomic.AtomicLong;
 
+import com.google.common.collect.Lists;
+
 /**
  * Track the state of a partition
  * 
  * @author elandau
  */
-public class MessageQueueShard implements MessageQueueShardStats {
+public class MessageQueueShard implements MessageQueueShardDepthStats {
     private volatile int   lastCount = 0;
+    private volatile int   emptyReadCount = 0;
+    private volatile long  depth = -1;
+    private volatile long  oldestMessageAge = 0;
     private final String   name;
     private final int      partition;
     private final int      shard;
+    private final int      lane;
     private final AtomicLong readCount = new AtomicLong();
     private final AtomicLong writeCount = new AtomicLong();
     
     public MessageQueueShard(String name, int partition, int shard) {
+        this(name, partition, shard, 0);
+    }
+    
+    public MessageQueueShard(String name, int partition, int shard, int lane) {
         this.name      = name;
         this.partition = partition;
         this.shard     = shard;
+        this.lane      = lane;
+    }
+    
+    /**
+     * Return the row key of a shard.  Shards of the first (highest priority) lane 
+     * have no lane suffix.
+     * 
+     * @param queueName
+     * @param lane
+     * @param partition
+     * @param shard
+     */
+    public static String getShardName(String queueName, int lane, int partition, int shard) {
+        String name = queueName + ":" + partition + ":" + shard;
+        return lane == 0 ? name : name + ":" + lane;
+    }
+    
+    /**
+     * Create the shards with mod shard index in [fromShard, toShard) for all lanes 
+     * and time partitions of a queue
+     * 
+     * @param settings
+     * @param fromShard
+     * @param toShard
+     */
+    public static List<MessageQueueShard> newShards(MessageQueueSettings settings, int fromShard, int toShard) {
+        List<MessageQueueShard> shards = Lists.newArrayList();
+        for (int lane = 0; lane < settings.getLaneCount(); lane++) {
+            for (int i = 0; i < settings.getPartitionCount(); i++) {
+                for (int j = fromShard; j < toShard; j++) {
+                    shards.add(new MessageQueueShard(getShardName(settings.getQueueName(), lane, i, j), i, j, lane));
+                }
+            }
+        }
+        return shards;
     }
     
     public String getName() {
@@ -28,6 +74,24 @@ public class MessageQueueShard implements MessageQueueShardStats {
     public void setLastCount(int count) {
         this.lastCount = count;
         this.readCount.addAndGet(count);
+        if (count == 0)
+            this.emptyReadCount++;
+        else 
+            this.emptyReadCount = 0;
+    }
+    
+    /**
+     * @return Number of consecutive reads that returned no messages
+     */
+    public int getEmptyReadCount() {
+        return this.emptyReadCount;
+    }
+    
+    /**
+     * Reset the empty read state of the shard after messages were written to it
+     */
+    public void resetEmptyReadCount() {
+        this.emptyReadCount = 0;
     }
     
     @Override
@@ -45,6 +109,26 @@ public class MessageQueueShard implements MessageQueueShardStats {
         return this.lastCount;
     }
     
+    @Override
+    public long getDepth() {
+        return this.depth;
+    }
+    
+    @Override
+    public long getOldestMessageAge() {
+        return this.oldestMessageAge;
+    }
+    
+    /**
+     * Update the shard's depth sample
+     * @param depth
+     * @param oldestMessageAge
+     */
+    public void setDepth(long depth, long oldestMessageAge) {
+        this.depth            = depth;
+        this.oldestMessageAge = oldestMessageAge;
+    }
+    
     public void incInsertCount(int count) {
         this.writeCount.addAndGet(count);
     }
@@ -56,9 +140,16 @@ public class MessageQueueShard implements MessageQueueShardStats {
     public int getPartition() {
         return this.partition;
     }
+    
+    /**
+     * @return Priority lane of the shard, 0 being the highest priority
+     */
+    public int getLane() {
+        return this.lane;
+    }
 
     @Override
     public String toString() {
-        return "Partition [lastCount=" + lastCount + ", name=" + name + ", partition=" + partition + ", shard=" + shard + "]";
+        return "Partition [lastCount=" + lastCount + ", name=" + name + ", partition=" + partition + ", shard=" + shard + ", lane=" + lane + "]";
     }
 }
\ No newline at end of file
@@ -0,0 +1,18 @@
+package com.netflix.astyanax.recipes.queue;
+
+/**
+ * Shard stats that include the shard's sampled depth
+ */
+public interface MessageQueueShardDepthStats extends MessageQueueShardStats {
+    /**
+     * Number of messages in the shard as of the last depth sample, or -1 if the 
+     * shard was not sampled
+     */
+    public long getDepth();
+    
+    /**
+     * Time in milliseconds since the message at the head of the shard became due, as 
+     * of the last depth sample.  0 if the shard is empty or has no due message.
+     */
+    public long getOldestMessageAge();
+}
@@ -0,0 +1,393 @@
+package com.netflix.astyanax.recipes.queue;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Maps;
+import com.netflix.astyanax.ColumnListMutation;
+import com.netflix.astyanax.Keyspace;
+import com.netflix.astyanax.MutationBatch;
+import com.netflix.astyanax.connectionpool.exceptions.ConnectionException;
+import com.netflix.astyanax.connectionpool.exceptions.NotFoundException;
+import com.netflix.astyanax.model.Column;
+import com.netflix.astyanax.model.ColumnFamily;
+import com.netflix.astyanax.model.ColumnList;
+import com.netflix.astyanax.model.ConsistencyLevel;
+import com.netflix.astyanax.serializers.AnnotatedCompositeSerializer;
+import com.netflix.astyanax.util.TimeUUIDUtils;
+
+/**
+ * Tracks long lived leases over queue shards so that a consumer can read from a shard
+ * it owns without going through the lock protocol on every read.
+ *
+ * A lease is an 'Acquired' lock column in the shard row whose value is the lease expiration
+ * time.  It is acquired using the same protocol as the per-read lock so that consumers
+ * that don't use leases will see the shard as busy while the lease is held.  A lease
+ * is renewed by rewriting the column once half of the lease duration has elapsed.
+ *
+ * Lock columns are shared with consumers that lock a shard for every read, including
+ * consumers of older versions, so leases keep the per-read lock's value format: the time of
+ * the lock column's UUID in milliseconds plus the lock timeout in microseconds.  See
+ * encodeExpiration and decodeExpiration.
+ *
+ * Every queue instance using leases registers itself as a member of the queue with a
+ * heartbeat column.  The number of live members determines the fair share of shards
+ * each member may own so that shards are rebalanced as members join and leave.  Leases
+ * of a member that dies are reclaimed by other members once they expire.
+ */
+public class ShardLeaseManager {
+    private static final Logger LOG = LoggerFactory.getLogger(ShardLeaseManager.class);
+
+    public static final String MEMBERS_ROW_SUFFIX = ":members";
+
+    private final static AnnotatedCompositeSerializer<MessageQueueEntry> entrySerializer
+        = new AnnotatedCompositeSerializer<MessageQueueEntry>(MessageQueueEntry.class);
+    private final static AnnotatedCompositeSerializer<MessageMetadataEntry>   metadataSerializer
+        = new AnnotatedCompositeSerializer<MessageMetadataEntry>(MessageMetadataEntry.class);
+
+    /**
+     * A lease held by this member
+     */
+    private static class Lease {
+        private final MessageQueueEntry column;
+        private volatile long           expiration;
+
+        Lease(MessageQueueEntry column, long expiration) {
+            this.column     = column;
+            this.expiration = expiration;
+        }
+    }
+
+    private final Keyspace                                  keyspace;
+    private final ColumnFamily<String, MessageQueueEntry>   queueColumnFamily;
+    private final ColumnFamily<String, MessageMetadataEntry> keyIndexColumnFamily;
+    private final ConsistencyLevel                          consistencyLevel;
+    private final MessageQueueStats                         stats;
+    private final String                                    membersRowKey;
+    private final long                                      leaseDuration;
+    private final int                                       leaseTtl;
+    private final MessageMetadataEntry                      memberColumn;
+    private final ConcurrentMap<String, Lease>              leases      = Maps.newConcurrentMap();
+    private final ConcurrentMap<String, Long>               busyShards  = Maps.newConcurrentMap();
+
+    private volatile int    shardCount;
+    private volatile int    memberCount     = 1;
+    private volatile long   nextRefreshTime = 0;
+
+    /**
+     * @param keyspace
+     * @param queueColumnFamily
+     * @param keyIndexColumnFamily
+     * @param consistencyLevel
+     * @param queueName
+     * @param shardCount    Total number of shards in the queue
+     * @param leaseDuration Lease duration in microseconds
+     * @param stats
+     */
+    public ShardLeaseManager(
+            Keyspace keyspace,
+            ColumnFamily<String, MessageQueueEntry>    queueColumnFamily,
+            ColumnFamily<String, MessageMetadataEntry> keyIndexColumnFamily,
+            ConsistencyLevel consistencyLevel,
+            String queueName,
+            int    shardCount,
+            long   leaseDuration,
+            MessageQueueStats stats) {
+        this.keyspace               = keyspace;
+        this.queueColumnFamily      = queueColumnFamily;
+        this.keyIndexColumnFamily   = keyIndexColumnFamily;
+        this.consistencyLevel       = consistencyLevel;
+        this.shardCount             = shardCount;
+        this.leaseDuration          = leaseDuration;
+        this.leaseTtl               = (int)TimeUnit.SECONDS.convert(leaseDuration, TimeUnit.MICROSECONDS) + 1;
+        this.stats                  = stats;
+        this.membersRowKey          = queueName + MEMBERS_ROW_SUFFIX;
+        this.memberColumn           = MessageMetadataEntry.newMember(TimeUUIDUtils.getUniqueTimeUUIDinMicros().toString());
+    }
+
+    /**
+     * @return Unique id of this member
+     */
+    public String getMemberId() {
+        return memberColumn.getName();
+    }
+
+    /**
+     * @return Number of live members last seen for this queue
+     */
+    public int getMemberCount() {
+        return memberCount;
+    }
+
+    /**
+     * @return Names of the shards currently leased by this member
+     */
+    public Collection<String> getOwnedShards() {
+        return Collections.unmodifiableSet(leases.keySet());
+    }
+
+    /**
+     * Change the total number of shards used to compute this member's fair share
+     * @param shardCount
+     */
+    public void setShardCount(int shardCount) {
+        this.shardCount = shardCount;
+    }
+
+    /**
+     * Determine if this member holds a valid lease on the shard.  A lease is only
+     * considered valid until three quarters of the lease duration to leave a margin
+     * for clock drift between members.
+     * @param shardName
+     */
+    public boolean isOwned(String shardName) {
+        Lease lease = leases.get(shardName);
+        return lease != null && now() < lease.expiration - leaseDuration / 4;
+    }
+
+    /**
+     * Make sure this member owns the shard, acquiring or renewing the lease if needed.
+     * A new lease is only acquired if this member owns less than its fair share of shards.
+     *
+     * @param shardName
+     * @return True if the shard is owned by this member
+     * @throws MessageQueueException
+     */
+    public boolean acquire(String shardName) throws MessageQueueException {
+        refreshMembership();
+
+        long now = now();
+        Lease lease = leases.get(shardName);
+        if (lease != null) {
+            if (now < lease.expiration - leaseDuration / 2)
+                return true;
+            if (now < lease.expiration - leaseDuration / 4)
+                return renew(shardName, lease, now);
+            // Too close to expiration to safely renew
+            release(shardName);
+        }
+
+        Long busyUntil = busyShards.get(shardName);
+        if (busyUntil != null) {
+            if (now < busyUntil)
+                return false;
+            busyShards.remove(shardName);
+        }
+
+        if (leases.size() >= getFairShare())
+            return false;
+
+        return tryAcquire(shardName, now);
+    }
+
+    /**
+     * Release the lease on a shard so that it may be picked up by another member
+     * @param shardName
+     */
+    public void release(String shardName) {
+        Lease lease = leases.remove(shardName);
+        if (lease == null)
+            return;
+
+        try {
+            keyspace.prepareColumnMutation(queueColumnFamily, shardName, lease.column)
+                .setConsistencyLevel(consistencyLevel)
+                .deleteColumn()
+                .execute();
+        } catch (ConnectionException e) {
+            LOG.warn("Failed to release lease on shard " + shardName + ". It will expire.", e);
+        }
+    }
+
+    /**
+     * Release all leases and leave the member group
+     */
+    public void releaseAll() {
+        for (String shardName : leases.keySet()) {
+            release(shardName);
+        }
+
+        try {
+            keyspace.prepareColumnMutation(keyIndexColumnFamily, membersRowKey, memberColumn)
+                .setConsistencyLevel(consistencyLevel)
+                .deleteColumn()
+                .execute();
+        } catch (ConnectionException e) {
+            LOG.warn("Failed to remove member " + getMemberId(), e);
+        }
+    }
+
+    private int getFairShare() {
+        int members = Math.max(1, memberCount);
+        return (shardCount + members - 1) / members;
+    }
+
+    /**
+     * Heartbeat this member and read back the list of live members.  Leases in
+     * excess of the fair share are released.  This is done at most twice per lease
+     * duration.
+     */
+    private void refreshMembership() throws MessageQueueException {
+        long now = now();
+        if (now < nextRefreshTime)
+            return;
+
+        synchronized (this) {
+            if (now < nextRefreshTime)
+                return;
+            nextRefreshTime = now + leaseDuration / 2;
+
+            try {
+                keyspace.prepareColumnMutation(keyIndexColumnFamily, membersRowKey, memberColumn)
+                    .setConsistencyLevel(consistencyLevel)
+                    .putEmptyColumn(leaseTtl)
+                    .execute();
+
+                ColumnList<MessageMetadataEntry> members = keyspace.prepareQuery(keyIndexColumnFamily)
+                    .setConsistencyLevel(consistencyLevel)
+                    .getRow(membersRowKey)
+                    .withColumnRange(metadataSerializer.buildRange()
+                        .greaterThanEquals((byte)MessageMetadataEntryType.Member.ordinal())
+                        .lessThanEquals((byte)MessageMetadataEntryType.Member.ordinal())
+                        .build())
+                    .execute()
+                    .getResult();
+                memberCount = Math.max(1, members.size());
+            }
+            catch (NotFoundException e) {
+                memberCount = 1;
+            }
+            catch (ConnectionException e) {
+                throw new MessageQueueException("Failed to refresh members in " + membersRowKey, e);
+            }
+        }
+
+        int excess = leases.size() - getFairShare();
+        if (excess > 0) {
+            LOG.info("Releasing " + excess + " shard leases to rebalance across " + memberCount + " members");
+            for (String shardName : leases.keySet()) {
+                if (excess-- <= 0)
+                    break;
+                release(shardName);
+            }
+        }
+    }
+
+    private boolean renew(String shardName, Lease lease, long now) throws MessageQueueException {
+        try {
+            keyspace.prepareColumnMutation(queueColumnFamily, shardName, lease.column)
+                .setConsistencyLevel(consistencyLevel)
+                .putValue(encodeExpiration(lease.column.getTimestamp(), now + leaseDuration), leaseTtl)
+                .execute();
+            lease.expiration = now + leaseDuration;
+            return true;
+        } catch (ConnectionException e) {
+            leases.remove(shardName);
+            throw new MessageQueueException("Failed to renew lease on shard " + shardName, e);
+        }
+    }
+
+    /**
+     * Acquire the lease using the same write/read back protocol used to lock a shard
+     * for a single read.
+     */
+    private boolean tryAcquire(String shardName, long now) throws MessageQueueException {
+        MessageQueueEntry lockColumn = MessageQueueEntry.newLockEntry(MessageQueueEntryState.None);
+        long expiration = now + leaseDuration;
+
+        try {
+            keyspace.prepareColumnMutation(queueColumnFamily, shardName, lockColumn)
+                .setConsistencyLevel(consistencyLevel)
+                .putValue(encodeExpiration(lockColumn.getTimestamp(), expiration), leaseTtl)
+                .execute();
+
+            ColumnList<MessageQueueEntry> result = keyspace.prepareQuery(queueColumnFamily)
+                    .setConsistencyLevel(consistencyLevel)
+                    .getKey(shardName)
+                    .withColumnRange(entrySerializer.buildRange()
+                            .greaterThanEquals((byte)MessageQueueEntryType.Lock.ordinal())
+                            .lessThanEquals((byte)MessageQueueEntryType.Lock.ordinal())
+                            .build())
+                    .execute()
+                    .getResult();
+
+            MutationBatch m = keyspace.prepareMutationBatch().setConsistencyLevel(consistencyLevel);
+            ColumnListMutation<MessageQueueEntry> rowMutation = m.withRow(queueColumnFamily, shardName);
+            rowMutation.deleteColumn(lockColumn);
+
+            boolean acquired = false;
+            long    busyUntil = 0;
+            for (Column<MessageQueueEntry> column : result) {
+                MessageQueueEntry lock = column.getName();
+                long lockExpiration = decodeExpiration(lock.getTimestamp(), column.getLongValue());
+                if (lockExpiration < now) {
+                    stats.incExpiredLockCount();
+                    rowMutation.deleteColumn(lock);
+                }
+                else if (lock.getState() == MessageQueueEntryState.Acquired) {
+                    busyUntil = Math.max(busyUntil, lockExpiration);
+                }
+                else if (busyUntil == 0 && !acquired) {
+                    // First pending lock wins
+                    if (lock.getTimestamp().equals(lockColumn.getTimestamp()))
+                        acquired = true;
+                    else
+                        busyUntil = now + leaseDuration / 2;
+                }
+            }
+
+            if (acquired && busyUntil == 0) {
+                MessageQueueEntry leaseColumn = MessageQueueEntry.newLockEntry(lockColumn.getTimestamp(), MessageQueueEntryState.Acquired);
+                rowMutation.putColumn(leaseColumn, encodeExpiration(leaseColumn.getTimestamp(), expiration), leaseTtl);
+                m.execute();
+                leases.put(shardName, new Lease(leaseColumn, expiration));
+                return true;
+            }
+
+            m.execute();
+            stats.incLockContentionCount();
+            busyShards.put(shardName, busyUntil == 0 ? now + leaseDuration / 2 : busyUntil);
+            return false;
+        } catch (NotFoundException e) {
+            return false;
+        } catch (ConnectionException e) {
+            throw new MessageQueueException("Failed to acquire lease on shard " + shardName, e);
+        }
+    }
+
+    /**
+     * Convert an expiration time in microseconds to the value of a lock column.  The value 
+     * is the lock time in milliseconds plus the remaining timeout in microseconds, which is
+     * how consumers lock a shard for a single read.
+     * @param lockTime          UUID of the lock column
+     * @param expirationMicros
+     */
+    static long encodeExpiration(UUID lockTime, long expirationMicros) {
+        return TimeUUIDUtils.getTimeFromUUID(lockTime) + (expirationMicros - TimeUUIDUtils.getMicrosTimeFromUUID(lockTime));
+    }
+
+    /**
+     * Convert the value of a lock column to its expiration time in microseconds
+     * @param lockTime  UUID of the lock column
+     * @param value     Lock column value
+     */
+    static long decodeExpiration(UUID lockTime, long value) {
+        return TimeUUIDUtils.getMicrosTimeFromUUID(lockTime) + (value - TimeUUIDUtils.getTimeFromUUID(lockTime));
+    }
+
+    private static long now() {
+        return TimeUnit.MICROSECONDS.convert(System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return "ShardLeaseManager [member=" + getMemberId() + ", members=" + memberCount + ", leases=" + leases.keySet() + "]";
+    }
+}
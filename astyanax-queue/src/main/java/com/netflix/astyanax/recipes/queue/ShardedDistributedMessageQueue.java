@@ -4,18 +4,23 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.cassandra.thrift.SchemaDisagreementException;
 import org.apache.commons.lang.StringUtils;
 import org.codehaus.jackson.JsonGenerationException;
+import org.codehaus.jackson.JsonNode;
 import org.codehaus.jackson.JsonParseException;
 import org.codehaus.jackson.map.JsonMappingException;
 import org.codehaus.jackson.map.ObjectMapper;
@@ -28,8 +33,11 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.netflix.astyanax.ColumnListMutation;
 import com.netflix.astyanax.Keyspace;
 import com.netflix.astyanax.MutationBatch;
@@ -46,9 +54,13 @@ import com.netflix.astyanax.model.Rows;
 import com.netflix.astyanax.recipes.locks.BusyLockException;
 import com.netflix.astyanax.recipes.queue.triggers.Trigger;
 import com.netflix.astyanax.recipes.queue.shard.ModShardPolicy;
+import com.netflix.astyanax.recipes.queue.shard.ResizableShardReaderPolicy;
 import com.netflix.astyanax.recipes.queue.shard.ShardReaderPolicy;
+import com.netflix.astyanax.recipes.queue.shard.ShardScalingPolicy;
 import com.netflix.astyanax.recipes.queue.shard.TimeModShardPolicy;
 import com.netflix.astyanax.recipes.queue.shard.TimePartitionedShardReaderPolicy;
+import com.netflix.astyanax.recipes.queue.shard.WakeableShardReaderPolicy;
+import com.netflix.astyanax.recipes.queue.shard.WeightedLaneShardReaderPolicy;
 import com.netflix.astyanax.retry.RetryPolicy;
 import com.netflix.astyanax.retry.RunOnce;
 import com.netflix.astyanax.serializers.AnnotatedCompositeSerializer;
@@ -99,6 +111,48 @@ import com.netflix.astyanax.util.TimeUUIDUtils;
  *      by changing the state to NotRepeatable.
  *  6.  Issue a delete for processed job
  *  
+ * Deque with shard leases (see Builder.withShardLeases):
+ *  Instead of locking the shard on every read each queue instance leases a fair share of the
+ *  shards for a longer period and renews the lease as it keeps reading.  Reads from an owned shard 
+ *  skip steps 1 and 3 and only read the top N columns and commit the mutation.  Shards are 
+ *  rebalanced as queue instances join and leave.  See ShardLeaseManager.
+ *  
+ * Unique keys:
+ *  A message with a unique key is only written once a Unique column was written to the key's row in the
+ *  key index and read back as the only Unique column.  The Unique columns of all keys of a batch are 
+ *  written in one batch and read back with one multiget.  The message insert is committed in the same batch as the 
+ *  Unique column.  With optimistic unique keys (see Builder.withOptimisticUniqueKeys) the Unique column, 
+ *  whose value is the message id, and the message are written in a single batch and duplicates are 
+ *  discarded by the consumer, keeping the message whose Unique column was written first.
+ *  
+ * Timing wheel:
+ *  Queues created with a timing wheel (see Builder.withTimingWheel) write a marker for the time slot
+ *  in which each message becomes due.  Consumers skip shards that have no marker for a due slot so that 
+ *  shards holding only messages scheduled far in the future are not polled.  Markers are stored in one
+ *  row per bucket of slots so that rows of past buckets are dropped once all their markers were removed.
+ *  See TimingWheel.
+ *  
+ * Priority lanes:
+ *  Queues created with priority lanes (see Builder.withPriorityLanes) keep a separate set of shards
+ *  for each lane and write messages to lane min(priority, laneCount - 1), lane 0 being the highest
+ *  priority.  Consumers pick lanes by weighted round robin (see WeightedLaneShardReaderPolicy) so that 
+ *  a flood of low priority messages does not delay high priority messages while low priority lanes
+ *  still make progress.  Per lane stats are available from getLaneStats().
+ *  
+ * Depth sampling:
+ *  getMessageCount() and getShardCounts() count all columns of every shard on demand.  To monitor
+ *  a queue cheaply enable depth sampling (see Builder.withDepthSampling) which periodically counts
+ *  the messages and reads the head of a few shards at a time from a background thread and publishes 
+ *  the results to MessageQueueShardDepthStats and MessageQueueDepthStats.  Use MessageQueueMBeanManager 
+ *  to expose the stats through JMX.
+ *  
+ * Resharding:
+ *  The shard map (shardCount and readShardCount) is part of the queue settings stored in the 
+ *  metadata column and is versioned.  Queue instances configured with a shard map refresh interval
+ *  or a shard scaling policy reload the settings on that interval.  Producers write to the new layout as soon as they see a new version while consumers 
+ *  keep reading the shards that were removed (readShardCount) until they are empty.  The queue may
+ *  be resharded manually with setShardCount() or automatically with a ShardScalingPolicy.
+ *  
  * Schema:
  *      RowKey: TimeBucket + Shard
  *      Column: <type><priority><timeuuid><state>
@@ -125,7 +179,7 @@ import com.netflix.astyanax.util.TimeUUIDUtils;
  * @author elandau
  *
  */
-public class ShardedDistributedMessageQueue implements MessageQueue {
+public class ShardedDistributedMessageQueue implements ShardedMessageQueue {
     private static final Logger LOG = LoggerFactory.getLogger(ShardedDistributedMessageQueue.class);
     
     public static final char             COMPOSITE_ID_DELIMITER          = ':';
@@ -141,6 +195,9 @@ public class ShardedDistributedMessageQueue implements MessageQueue {
     public static final String           DEFAULT_METADATA_SUFFIX         = "_metadata";
     public static final String           DEFAULT_HISTORY_SUFFIX          = "_history";
     public static final long             SCHEMA_CHANGE_DELAY             = 3000;
+    public static final long             DEFAULT_SHARD_MAP_REFRESH_INTERVAL = 0;
+    public static final long             DEFAULT_SHARD_SCALING_REFRESH_INTERVAL = TimeUnit.MILLISECONDS.convert(10, TimeUnit.SECONDS);
+    public static final int              DEFAULT_DEPTH_SAMPLE_SHARD_COUNT = 32;
     public static final ImmutableMap<String, Object> DEFAULT_COLUMN_FAMILY_SETTINGS = ImmutableMap.<String, Object>builder()
             .put("read_repair_chance",       1.0)
             .put("gc_grace_seconds",         5)     // TODO: Calculate gc_grace_seconds
@@ -210,6 +267,28 @@ public class ShardedDistributedMessageQueue implements MessageQueue {
             return this;
         }
         
+        /**
+         * Maximum interval for polling a shard that keeps coming up empty.  Consumers back off 
+         * exponentially from the poll interval up to this value.
+         * @param interval
+         * @param units
+         */
+        public Builder withMaxPollInterval(Long interval, TimeUnit units) {
+            queue.settings.setMaxPollInterval(TimeUnit.MILLISECONDS.convert(interval,  units));
+            return this;
+        }
+        
+        /**
+         * Wake up consumers of this queue instance as soon as a producer of the same instance
+         * sends a message that is ready to be consumed.  Enabled by default.  Only applies to 
+         * shard reader policies that implement WakeableShardReaderPolicy.
+         * @param enabled
+         */
+        public Builder withLocalWakeup(boolean enabled) {
+            queue.localWakeup = enabled;
+            return this;
+        }
+        
         public Builder withQueueName(String queueName) {
             queue.settings.setQueueName(queueName);
             return this;
@@ -255,11 +334,144 @@ public class ShardedDistributedMessageQueue implements MessageQueue {
             return this;
         }
         
+        /**
+         * Codec used to write messages for a new queue.  Ignored if the queue already exists
+         * since the codec is part of the queue's persisted settings.  Defaults to JSON.  All
+         * instances must be upgraded before creating a queue with MessageCodecType.BINARY.
+         * @param codec
+         */
+        public Builder withMessageCodec(MessageCodecType codec) {
+            queue.settings.setMessageCodec(codec);
+            return this;
+        }
+        
+        /**
+         * Use a custom message codec.  All queue instances must use the same codec.
+         * @param codec
+         */
+        public Builder withMessageCodec(MessageCodec codec) {
+            queue.messageCodec = codec;
+            return this;
+        }
+        
+        /**
+         * Use a custom shard reader policy.  The policy must implement ResizableShardReaderPolicy
+         * to follow shard map changes and WakeableShardReaderPolicy to support local wakeup.
+         * @param shardReaderPolicy
+         */
         public Builder withShardReaderPolicy(ShardReaderPolicy shardReaderPolicy) {
             queue.shardReaderPolicy = shardReaderPolicy;
             return this;
         }
         
+        /**
+         * Have consumers lease shards for the specified duration instead of locking
+         * a shard on every read.  Leases are renewed while the shard is being read and
+         * shards are balanced across all queue instances using leases.
+         * 
+         * @param duration
+         * @param units
+         */
+        public Builder withShardLeases(Long duration, TimeUnit units) {
+            queue.leaseDuration = TimeUnit.MICROSECONDS.convert(duration, units);
+            return this;
+        }
+        
+        /**
+         * Grow and shrink the number of shards at runtime using the specified policy.  The policy is
+         * evaluated every shard map refresh interval, DEFAULT_SHARD_SCALING_REFRESH_INTERVAL unless
+         * set with withShardMapRefreshInterval.  The policy is given the sampled shard depths when depth 
+         * sampling is enabled (see withDepthSampling) and otherwise the message count of every shard.
+         * @param policy
+         */
+        public Builder withShardScalingPolicy(ShardScalingPolicy policy) {
+            queue.shardScalingPolicy = policy;
+            return this;
+        }
+        
+        /**
+         * Interval at which the queue checks for a new version of the shard map and 
+         * evaluates the shard scaling policy.  This is done by a background thread which is
+         * stopped by shutdown().  Disabled (0) by default.  All instances of a queue that is 
+         * resharded must refresh their shard map.
+         * @param interval
+         * @param units
+         */
+        public Builder withShardMapRefreshInterval(long interval, TimeUnit units) {
+            queue.shardMapRefreshInterval = TimeUnit.MILLISECONDS.convert(interval, units);
+            return this;
+        }
+        
+        /**
+         * Write messages with unique keys in a single round trip and discard duplicates when they
+         * are consumed instead of checking uniqueness before writing.  sendMessages will never report
+         * keys as not unique.  Must be enabled on all queue instances.
+         * @param enabled
+         */
+        public Builder withOptimisticUniqueKeys(boolean enabled) {
+            queue.optimisticUniqueKeys = enabled;
+            return this;
+        }
+        
+        /**
+         * Sample the depth and the age of the oldest message of the shards on this interval from
+         * a background thread.  Each sample covers at most DEFAULT_DEPTH_SAMPLE_SHARD_COUNT shards.
+         * See MessageQueueDepthStats.getDepthEstimate()
+         * @param interval
+         * @param units
+         */
+        public Builder withDepthSampling(long interval, TimeUnit units) {
+            return withDepthSampling(interval, units, DEFAULT_DEPTH_SAMPLE_SHARD_COUNT);
+        }
+        
+        /**
+         * Sample the depth and the age of the oldest message of the shards on this interval from
+         * a background thread.  Counting the messages of a shard reads the entire shard row so 
+         * each sample only covers the next shardsPerSample shards, going round robin through all 
+         * shards.  
+         * @param interval
+         * @param units
+         * @param shardsPerSample
+         */
+        public Builder withDepthSampling(long interval, TimeUnit units, int shardsPerSample) {
+            Preconditions.checkArgument(shardsPerSample > 0, "Shards per sample must be > 0");
+            queue.depthSamplingInterval  = TimeUnit.MILLISECONDS.convert(interval, units);
+            queue.depthSampleShardCount  = shardsPerSample;
+            return this;
+        }
+        
+        /**
+         * Create the queue with a timing wheel of the specified slot duration.  Ignored if the queue 
+         * already exists since the timing wheel is part of the queue's persisted settings.
+         * @param slotDuration
+         * @param units
+         */
+        public Builder withTimingWheel(long slotDuration, TimeUnit units) {
+            queue.settings.setTimingWheelSlotDuration(TimeUnit.MILLISECONDS.convert(slotDuration, units));
+            return this;
+        }
+        
+        /**
+         * Create the queue with the specified number of priority lanes.  Ignored if the queue
+         * already exists since the lane count is part of the queue's persisted settings.
+         * @param laneCount
+         */
+        public Builder withPriorityLanes(int laneCount) {
+            Preconditions.checkArgument(laneCount > 0, "Lane count must be > 0");
+            queue.settings.setLaneCount(laneCount);
+            return this;
+        }
+        
+        /**
+         * Relative share of reads given to each priority lane, highest priority lane first.
+         * Defaults to halving the weight for each lower lane.
+         * @param weights
+         */
+        public Builder withLaneWeights(int... weights) {
+            queue.laneWeights = weights;
+            return this;
+        }
+        
         public ShardedDistributedMessageQueue build() throws MessageQueueException {
             queue.queueColumnFamily    = ColumnFamily.newColumnFamily(columnFamilyName + DEFAULT_QUEUE_SUFFIX,    StringSerializer.get(), entrySerializer); 
             queue.keyIndexColumnFamily = ColumnFamily.newColumnFamily(columnFamilyName + DEFAULT_METADATA_SUFFIX, StringSerializer.get(), metadataSerializer); 
@@ -281,17 +493,37 @@ public class ShardedDistributedMessageQueue implements MessageQueue {
     private int                             lockTtl             = DEFAULT_LOCK_TTL;
     private int                             metadataDeleteTTL   = DEFAULT_METADATA_DELETE_TTL;
     private MessageQueueStats               stats               = new CountingQueueStats();
+    private MessageQueueDepthStats          depthStats;
     private AtomicLong                      counter             = new AtomicLong(new Random().nextInt(1000));
     private Collection<MessageQueueHooks>   hooks               = Lists.newArrayList();
     private MessageQueueSettings            settings            = new MessageQueueSettings();
     private Boolean                         bPoisonQueueEnabled = DEFAULT_POISON_QUEUE_ENABLED;
     private Map<String, Object>             columnFamilySettings = DEFAULT_COLUMN_FAMILY_SETTINGS;
     private ShardReaderPolicy               shardReaderPolicy;
+    private int[]                           laneWeights;
+    // Held weakly since there is no way to close a consumer. A policy goes away with its consumer.
+    private Collection<ShardReaderPolicy>   consumerShardReaderPolicies = Collections.newSetFromMap(
+                                                new MapMaker().weakKeys().<ShardReaderPolicy, Boolean>makeMap());
     private ModShardPolicy                  modShardPolicy;
-    private Function<String, Message>       invalidMessageHandler  = new Function<String, Message>() {
+    private long                            leaseDuration       = 0;
+    private boolean                         localWakeup         = true;
+    private boolean                         optimisticUniqueKeys = false;
+    private long                            depthSamplingInterval = 0;
+    private int                             depthSampleShardCount = DEFAULT_DEPTH_SAMPLE_SHARD_COUNT;
+    private int                             depthSampleCursor   = 0;
+    private ScheduledExecutorService        backgroundExecutor;
+    private TimingWheel                     timingWheel;
+    private MessageCodec                    messageCodec;
+    private ShardLeaseManager               leaseManager;
+    private ShardScalingPolicy              shardScalingPolicy;
+    private long                            shardMapRefreshInterval = DEFAULT_SHARD_MAP_REFRESH_INTERVAL;
+    private long                            lastLockContentionCount = 0;
+    private long                            lastScalingTime     = System.currentTimeMillis();
+    private Function<byte[], Message>       invalidMessageHandler  = new Function<byte[], Message>() {
                                                                         @Override
-                                                                        public Message apply(String input) {
-                                                                            LOG.warn("Invalid message: " + input);
+                                                                        public Message apply(byte[] input) {
+                                                                            // Binary messages can't be logged as a string
+                                                                            LOG.warn("Invalid message (base64): " + BaseEncoding.base64().encode(input));
                                                                             return null;
                                                                         }
                                                                     };
@@ -303,15 +535,7 @@ public class ShardedDistributedMessageQueue implements MessageQueue {
         Preconditions.checkNotNull(keyspace, "Must specify keyspace");
         
         try {
-            Column<MessageQueueEntry> column = keyspace.prepareQuery(queueColumnFamily)
-                    .setConsistencyLevel(consistencyLevel)
-                    .getRow(settings.getQueueName())
-                    .getColumn(MessageQueueEntry.newMetadataEntry())
-                    .execute()
-                    .getResult();
-            
-            ByteArrayInputStream bais = new ByteArrayInputStream(column.getByteArrayValue());
-            settings = mapper.readValue(bais, MessageQueueSettings.class);
+            settings = readQueueSettings();
         } 
         catch (NotFoundException e) {
             LOG.info("Message queue metadata not found.  Queue does not exist in CF and will be created now.");
@@ -329,10 +553,449 @@ public class ShardedDistributedMessageQueue implements MessageQueue {
         }
         
         if (shardReaderPolicy == null)
-            shardReaderPolicy = new TimePartitionedShardReaderPolicy(settings);
+            shardReaderPolicy = newShardReaderPolicy(MessageQueueShard.newShards(settings, 0, settings.getReadShardCount()));
         
         if (modShardPolicy == null)
             modShardPolicy = TimeModShardPolicy.getInstance();
+        
+        if (stats instanceof MessageQueueDepthStats)
+            depthStats = (MessageQueueDepthStats)stats;
+        
+        if (messageCodec == null) 
+            messageCodec = (settings.getMessageCodec() != null ? settings.getMessageCodec() : MessageCodecType.JSON).newCodec();
+        
+        if (leaseDuration > 0) {
+            Preconditions.checkArgument(
+                    TimeUnit.SECONDS.convert(leaseDuration, TimeUnit.MICROSECONDS) >= 1, 
+                    "Shard lease duration must be at least 1 second");
+            leaseManager = new ShardLeaseManager(keyspace, queueColumnFamily, keyIndexColumnFamily, consistencyLevel, 
+                    settings.getQueueName(), shardReaderPolicy.listShards().size(), leaseDuration, stats);
+        }
+        
+        if (settings.getTimingWheelSlotDuration() != null) {
+            Preconditions.checkArgument(settings.getTimingWheelSlotDuration() > 0, "Timing wheel slot duration must be > 0");
+            timingWheel = new TimingWheel(keyspace, keyIndexColumnFamily, consistencyLevel, settings);
+        }
+        
+        if (shardScalingPolicy != null && shardMapRefreshInterval <= 0)
+            shardMapRefreshInterval = DEFAULT_SHARD_SCALING_REFRESH_INTERVAL;
+        
+        if (depthSamplingInterval > 0 || shardMapRefreshInterval > 0) {
+            backgroundExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                    .setDaemon(true)
+                    .setNameFormat(settings.getQueueName() + ":Background")
+                    .build());
+        }
+        
+        if (depthSamplingInterval > 0) {
+            backgroundExecutor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        sampleDepth();
+                    }
+                    catch (Exception e) {
+                        LOG.warn("Error sampling depth of queue " + settings.getQueueName(), e);
+                    }
+                }
+            }, depthSamplingInterval, depthSamplingInterval, TimeUnit.MILLISECONDS);
+        }
+        
+        // The shard map is refreshed in the background so that producers and consumers only 
+        // ever read the current shard counts, which are volatile in MessageQueueSettings
+        if (shardMapRefreshInterval > 0) {
+            backgroundExecutor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        refreshShardMap();
+                    }
+                    catch (BusyLockException e) {
+                        LOG.debug("Queue metadata is locked by another instance");
+                    }
+                    catch (Exception e) {
+                        LOG.warn("Error refreshing shard map for queue " + settings.getQueueName(), e);
+                    }
+                }
+            }, shardMapRefreshInterval, shardMapRefreshInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    /**
+     * Sample the number of messages and the age of the message at the head of the next shards 
+     * in round robin order and update the shard stats.  The queue stats are updated with the 
+     * most recent sample of every shard.  Costs two multiget calls regardless of the number of 
+     * shards.
+     * @throws MessageQueueException
+     */
+    public synchronized void sampleDepth() throws MessageQueueException {
+        List<MessageQueueShard> shards = Lists.newArrayList(shardReaderPolicy.listShards());
+        if (shards.isEmpty())
+            return;
+        
+        int count = Math.min(shards.size(), depthSampleShardCount);
+        List<MessageQueueShard> sampled = Lists.newArrayListWithCapacity(count);
+        List<String> keys = Lists.newArrayListWithCapacity(count);
+        for (int i = 0; i < count; i++) {
+            MessageQueueShard shard = shards.get((depthSampleCursor + i) % shards.size());
+            sampled.add(shard);
+            keys.add(shard.getName());
+        }
+        depthSampleCursor = (depthSampleCursor + count) % shards.size();
+        
+        try {
+            Map<String, Integer> counts = keyspace.prepareQuery(queueColumnFamily)
+                    .setConsistencyLevel(consistencyLevel)
+                    .getKeySlice(keys)
+                    .withColumnRange(entrySerializer.buildRange()
+                            .greaterThanEquals((byte)MessageQueueEntryType.Message.ordinal())
+                            .lessThanEquals((byte)MessageQueueEntryType.Message.ordinal())
+                            .build())
+                    .getColumnCounts()
+                    .execute()
+                    .getResult();
+            
+            Rows<String, MessageQueueEntry> heads = keyspace.prepareQuery(queueColumnFamily)
+                    .setConsistencyLevel(consistencyLevel)
+                    .getKeySlice(keys)
+                    .withColumnRange(entrySerializer.buildRange()
+                            .greaterThanEquals((byte)MessageQueueEntryType.Message.ordinal())
+                            .lessThanEquals((byte)MessageQueueEntryType.Message.ordinal())
+                            .limit(1)
+                            .build())
+                    .execute()
+                    .getResult();
+            
+            long now = System.currentTimeMillis();
+            for (MessageQueueShard shard : sampled) {
+                Integer shardCount = counts.get(shard.getName());
+                long depth         = (shardCount == null) ? 0 : shardCount;
+                long age           = 0;
+                
+                Row<String, MessageQueueEntry> row = heads.getRow(shard.getName());
+                if (row != null && !row.getColumns().isEmpty()) {
+                    MessageQueueEntry head = row.getColumns().getColumnByIndex(0).getName();
+                    age = Math.max(0, now - head.getTimestamp(TimeUnit.MILLISECONDS));
+                }
+                
+                shard.setDepth(depth, age);
+            }
+        } catch (ConnectionException e) {
+            throw new MessageQueueException("Failed to sample queue depth", e);
+        }
+        
+        if (depthStats != null) {
+            long totalDepth = 0;
+            long oldestAge  = 0;
+            for (MessageQueueShard shard : shards) {
+                if (shard.getDepth() > 0) 
+                    totalDepth += shard.getDepth();
+                oldestAge = Math.max(oldestAge, shard.getOldestMessageAge());
+            }
+            depthStats.setDepthSample(totalDepth, oldestAge);
+        }
+    }
+    
+    /**
+     * Stop the background threads of this queue instance
+     */
+    public void shutdown() {
+        if (backgroundExecutor != null)
+            backgroundExecutor.shutdownNow();
+    }
+    
+    public MessageQueueStats getStats() {
+        return stats;
+    }
+    
+    private MessageQueueSettings readQueueSettings() throws ConnectionException, IOException {
+        Column<MessageQueueEntry> column = keyspace.prepareQuery(queueColumnFamily)
+                .setConsistencyLevel(consistencyLevel)
+                .getRow(settings.getQueueName())
+                .getColumn(MessageQueueEntry.newMetadataEntry())
+                .execute()
+                .getResult();
+        
+        JsonNode node = mapper.readTree(new ByteArrayInputStream(column.getByteArrayValue()));
+        MessageQueueSettings settings = mapper.readValue(node, MessageQueueSettings.class);
+        
+        // Queues created before message codecs were introduced only contain JSON messages 
+        if (!node.has("messageCodec"))
+            settings.setMessageCodec(MessageCodecType.JSON);
+        return settings;
+    }
+    
+    private void writeQueueSettings(MessageQueueSettings settings) throws ConnectionException, IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        mapper.writeValue(baos, settings);
+        baos.flush();
+        keyspace.prepareColumnMutation(queueColumnFamily, settings.getQueueName(), MessageQueueEntry.newMetadataEntry())
+                .setConsistencyLevel(consistencyLevel)
+                .putValue(baos.toByteArray(), null)
+                .execute();
+    }
+    
+    /**
+     * Load the latest version of the shard map, complete draining removed shards 
+     * and evaluate the shard scaling policy.
+     * @throws MessageQueueException
+     * @throws BusyLockException
+     */
+    public void refreshShardMap() throws MessageQueueException, BusyLockException {
+        try {
+            applyShardMap(readQueueSettings());
+        }
+        catch (NotFoundException e) {
+            return;
+        }
+        catch (Exception e) {
+            throw new MessageQueueException("Error reading queue settings", e);
+        }
+        
+        // Stop reading from removed shards once they are empty.  Wait for all instances
+        // to have picked up the new shard map so no producer is still writing to the old shards.
+        long refreshInterval = Math.max(shardMapRefreshInterval, DEFAULT_SHARD_SCALING_REFRESH_INTERVAL);
+        if (settings.getReadShardCount() > settings.getShardCount() 
+            && System.currentTimeMillis() - settings.getShardMapTimestamp() > 2 * refreshInterval) {
+            List<String> draining = Lists.newArrayList();
+            for (MessageQueueShard shard : MessageQueueShard.newShards(settings, settings.getShardCount(), settings.getReadShardCount())) {
+                draining.add(shard.getName());
+            }
+            
+            for (Integer count : countShardMessages(draining).values()) {
+                if (count > 0)
+                    return;
+            }
+            
+            LOG.info("Shards drained for queue '" + settings.getQueueName() + "' : " + draining);
+            updateShardMap(settings.getShardMapVersion(), settings.getShardCount(), settings.getShardCount());
+        }
+        
+        if (shardScalingPolicy != null) {
+            long now        = System.currentTimeMillis();
+            long contention = stats.getLockCountentionCount();
+            int shardCount  = shardScalingPolicy.getShardCount(settings, getShardDepths(), contention - lastLockContentionCount, now - lastScalingTime);
+            lastLockContentionCount = contention;
+            lastScalingTime         = now;
+            
+            if (shardCount != settings.getShardCount()) {
+                LOG.info("Resharding queue '" + settings.getQueueName() + "' from " + settings.getShardCount() + " to " + shardCount + " shards");
+                
+                // Another instance may have rescaled the queue since the shard map was read, in which 
+                // case the policy is evaluated again against the new shard map on the next refresh
+                updateShardMap(settings.getShardMapVersion(), shardCount, Math.max(shardCount, settings.getReadShardCount()));
+            }
+        }
+    }
+    
+    /**
+     * Number of messages in each shard for the shard scaling policy.  Uses the most recent depth
+     * samples if depth sampling is enabled and every shard has been sampled.  Otherwise counts 
+     * only the message columns of the shards.
+     */
+    private Map<String, Integer> getShardDepths() throws MessageQueueException {
+        if (depthSamplingInterval > 0) {
+            Map<String, Integer> result = Maps.newTreeMap();
+            for (MessageQueueShard shard : shardReaderPolicy.listShards()) {
+                if (shard.getDepth() < 0) 
+                    break;
+                result.put(shard.getName(), (int)Math.min(Integer.MAX_VALUE, shard.getDepth()));
+            }
+            if (result.size() == shardReaderPolicy.listShards().size())
+                return result;
+        }
+        
+        List<String> keys = Lists.newArrayList();
+        for (MessageQueueShard shard : MessageQueueShard.newShards(settings, 0, settings.getReadShardCount())) {
+            keys.add(shard.getName());
+        }
+        return countShardMessages(keys);
+    }
+    
+    /**
+     * Count only the messages of the shards.  Lock and lease columns stay in a shard while it is being read.
+     * @param shardNames
+     */
+    private Map<String, Integer> countShardMessages(Collection<String> shardNames) throws MessageQueueException {
+        try {
+            Map<String, Integer> result = Maps.newTreeMap();
+            result.putAll(keyspace.prepareQuery(queueColumnFamily)
+                    .setConsistencyLevel(consistencyLevel)
+                    .getKeySlice(shardNames)
+                    .withColumnRange(entrySerializer.buildRange()
+                            .greaterThanEquals((byte)MessageQueueEntryType.Message.ordinal())
+                            .lessThanEquals((byte)MessageQueueEntryType.Message.ordinal())
+                            .build())
+                    .getColumnCounts()
+                    .execute()
+                    .getResult());
+            return result;
+        } catch (ConnectionException e) {
+            throw new MessageQueueException("Failed to get counts", e);
+        }
+    }
+    
+    /**
+     * Reshard the queue.  Producers of all queue instances will write to the new shards once they 
+     * refresh their shard map while consumers continue to read from any removed shards until they
+     * are empty.
+     * @param shardCount
+     * @throws MessageQueueException
+     * @throws BusyLockException if another queue instance is updating the shard map or changed it 
+     *      since this instance last read it.  The latest shard map has been loaded when this is thrown.
+     */
+    public void setShardCount(int shardCount) throws MessageQueueException, BusyLockException {
+        Preconditions.checkArgument(shardCount > 0, "Shard count must be > 0");
+        
+        LOG.info("Resharding queue '" + settings.getQueueName() + "' from " + settings.getShardCount() + " to " + shardCount + " shards");
+        if (!updateShardMap(settings.getShardMapVersion(), shardCount, Math.max(shardCount, settings.getReadShardCount()))) 
+            throw new BusyLockException("Shard map of queue '" + settings.getQueueName() + "' was changed by another instance");
+    }
+    
+    /**
+     * Write a new version of the shard map while holding the queue metadata lock.  If the shard map
+     * is no longer at the expected version the latest shard map is loaded instead.
+     * @param expectedVersion Only update the shard map if it is still at this version
+     * @return True if the shard map was updated
+     */
+    private boolean updateShardMap(long expectedVersion, int shardCount, int readShardCount) throws MessageQueueException, BusyLockException {
+        MessageQueueEntry lockColumn = lockQueueMetadata();
+        try {
+            MessageQueueSettings latest = readQueueSettings();
+            if (latest.getShardMapVersion() != expectedVersion) {
+                applyShardMap(latest);
+                return false;
+            }
+            
+            latest.setShardCount(shardCount);
+            latest.setReadShardCount(Math.max(readShardCount, latest.getShardCount()));
+            latest.setShardMapVersion(latest.getShardMapVersion() + 1);
+            latest.setShardMapTimestamp(System.currentTimeMillis());
+            writeQueueSettings(latest);
+            
+            applyShardMap(latest);
+            return true;
+        }
+        catch (NotFoundException e) {
+            throw new MessageQueueException("Queue '" + settings.getQueueName() + "' does not exist", e);
+        }
+        catch (ConnectionException e) {
+            throw new MessageQueueException("Error updating shard map", e);
+        }
+        catch (IOException e) {
+            throw new MessageQueueException("Error serializing queue settings", e);
+        }
+        finally {
+            unlockQueueMetadata(lockColumn);
+        }
+    }
+    
+    /**
+     * Switch producers and consumers to a newer version of the shard map
+     * @param latest
+     */
+    private synchronized void applyShardMap(MessageQueueSettings latest) {
+        if (latest.getShardMapVersion() <= settings.getShardMapVersion())
+            return;
+        
+        int oldReadShardCount = settings.getReadShardCount();
+        int newReadShardCount = latest.getReadShardCount();
+        
+        settings.setShardCount(latest.getShardCount());
+        settings.setReadShardCount(latest.getReadShardCount());
+        settings.setShardMapTimestamp(latest.getShardMapTimestamp());
+        settings.setShardMapVersion(latest.getShardMapVersion());
+        
+        List<MessageQueueShard> added   = MessageQueueShard.newShards(settings, oldReadShardCount, newReadShardCount);
+        List<String>            removed = Lists.newArrayList();
+        for (MessageQueueShard shard : MessageQueueShard.newShards(settings, newReadShardCount, oldReadShardCount)) {
+            removed.add(shard.getName());
+        }
+        
+        if (shardReaderPolicy instanceof ResizableShardReaderPolicy) {
+            ((ResizableShardReaderPolicy)shardReaderPolicy).removeShards(removed);
+            ((ResizableShardReaderPolicy)shardReaderPolicy).addShards(added);
+        }
+        else {
+            LOG.warn("Shard reader policy of queue '" + settings.getQueueName() + "' does not implement ResizableShardReaderPolicy. "
+                    + "Consumers will keep reading the original shards.");
+        }
+        
+        // Consumers with shard affinity split the new shards between them
+        List<ResizableShardReaderPolicy> consumerPolicies = Lists.newArrayList();
+        for (ShardReaderPolicy policy : consumerShardReaderPolicies) {
+            if (policy instanceof ResizableShardReaderPolicy) 
+                consumerPolicies.add((ResizableShardReaderPolicy)policy);
+        }
+        for (ResizableShardReaderPolicy policy : consumerPolicies) {
+            policy.removeShards(removed);
+        }
+        if (!consumerPolicies.isEmpty()) {
+            for (MessageQueueShard shard : added) {
+                consumerPolicies.get(shard.getShard() % consumerPolicies.size()).addShards(Lists.newArrayList(shard));
+            }
+        }
+        
+        if (leaseManager != null) 
+            leaseManager.setShardCount(shardReaderPolicy.listShards().size());
+        
+        LOG.info("Applied shard map version " + settings.getShardMapVersion() + " for queue '" + settings.getQueueName() 
+                + "' shardCount=" + settings.getShardCount() + " readShardCount=" + settings.getReadShardCount());
+    }
+    
+    /**
+     * Lock the queue's metadata row using the same protocol as for locking a shard
+     * @return The lock column, which must be passed to unlockQueueMetadata
+     * @throws BusyLockException
+     */
+    private MessageQueueEntry lockQueueMetadata() throws MessageQueueException, BusyLockException {
+        MessageQueueEntry lockColumn = MessageQueueEntry.newLockEntry(MessageQueueEntryState.None);
+        long curTimeMicros = TimeUUIDUtils.getMicrosTimeFromUUID(lockColumn.getTimestamp());
+        
+        try {
+            MutationBatch m = keyspace.prepareMutationBatch().setConsistencyLevel(consistencyLevel);
+            m.withRow(queueColumnFamily, settings.getQueueName())
+             .putColumn(lockColumn, curTimeMicros + lockTimeout, lockTtl);
+            m.execute();
+            
+            ColumnList<MessageQueueEntry> result = keyspace.prepareQuery(queueColumnFamily)
+                    .setConsistencyLevel(consistencyLevel)
+                    .getKey(settings.getQueueName())
+                    .withColumnRange(entrySerializer.buildRange()
+                            .greaterThanEquals((byte)MessageQueueEntryType.Lock.ordinal())
+                            .lessThanEquals((byte)MessageQueueEntryType.Lock.ordinal())
+                            .build())
+                    .execute()
+                    .getResult();
+            
+            // The lock is ours if it is the first lock that has not expired
+            for (Column<MessageQueueEntry> column : result) {
+                if (column.getLongValue() < curTimeMicros)
+                    continue;
+                
+                if (!column.getName().getTimestamp().equals(lockColumn.getTimestamp())) {
+                    unlockQueueMetadata(lockColumn);
+                    stats.incLockContentionCount();
+                    throw new BusyLockException("Queue metadata is locked");
+                }
+                break;
+            }
+            return lockColumn;
+        }
+        catch (ConnectionException e) {
+            throw new MessageQueueException("Error locking queue metadata", e);
+        }
+    }
+    
+    private void unlockQueueMetadata(MessageQueueEntry lockColumn) throws MessageQueueException {
+        try {
+            keyspace.prepareColumnMutation(queueColumnFamily, settings.getQueueName(), lockColumn)
+                .setConsistencyLevel(consistencyLevel)
+                .deleteColumn()
+                .execute();
+        } catch (ConnectionException e) {
+            throw new MessageQueueException("Error unlocking queue metadata", e);
+        }
     }
 
     /**
@@ -341,7 +1004,16 @@ public class ShardedDistributedMessageQueue implements MessageQueue {
      * @return
      */
     protected String getShardKey(Message message) {
-        return getShardKey(message.getTokenTime(), this.modShardPolicy.getMessageShard(message, settings));
+        return getShardKey(message.getTokenTime(), this.modShardPolicy.getMessageShard(message, settings), getLane(message));
+    }
+    
+    /**
+     * Return the priority lane for this message
+     * @param message
+     * @return
+     */
+    private int getLane(Message message) {
+        return Math.max(0, Math.min(message.getPriority(), settings.getLaneCount() - 1));
     }
     
     /**
@@ -349,13 +1021,13 @@ public class ShardedDistributedMessageQueue implements MessageQueue {
      * @param message
      * @return
      */
-    private String getShardKey(long messageTime, int modShard) {
-        long timePartition;
+    private String getShardKey(long messageTime, int modShard, int lane) {
+        int timePartition;
         if (settings.getPartitionDuration() != null)
-            timePartition = (messageTime / settings.getPartitionDuration()) % settings.getPartitionCount();
+            timePartition = (int)((messageTime / settings.getPartitionDuration()) % settings.getPartitionCount());
         else 
             timePartition = 0;
-        return settings.getQueueName() + ":" + timePartition + ":" + modShard;
+        return MessageQueueShard.getShardName(settings.getQueueName(), lane, timePartition, modShard);
     }
     
     private String getCompositeKey(String name, String key) {
@@ -411,10 +1083,8 @@ public class ShardedDistributedMessageQueue implements MessageQueue {
     public Map<String, Integer> getShardCounts() throws MessageQueueException {
         try {
             List<String> keys = Lists.newArrayList();
-            for (int i = 0; i < settings.getPartitionCount(); i++) {
-                for (int j = 0; j < settings.getShardCount(); j++) {
-                    keys.add(settings.getQueueName() + ":" + i + ":" + j);
-                }
+            for (MessageQueueShard shard : MessageQueueShard.newShards(settings, 0, settings.getReadShardCount())) {
+                keys.add(shard.getName());
             }
             
             Map<String, Integer> result = Maps.newTreeMap();
@@ -478,13 +1148,12 @@ public class ShardedDistributedMessageQueue implements MessageQueue {
                         .getColumn(entry)
                     .execute().getResult();
             try {
-                ByteArrayInputStream bais = new ByteArrayInputStream(column.getByteArrayValue());
-                return mapper.readValue(bais, Message.class);
+                return messageCodec.decode(column.getByteArrayValue());
             } catch (Exception e) {
                 LOG.warn("Error parsing message", e);
                 // Error parsing the message so we pass it on to the invalid message handler.
                 try {
-                    return invalidMessageHandler.apply(column.getStringValue());
+                    return invalidMessageHandler.apply(column.getByteArrayValue());
                 }
                 catch (Exception e2) {
                     LOG.warn("Error handling invalid message message", e2);
@@ -733,13 +1402,7 @@ public class ShardedDistributedMessageQueue implements MessageQueue {
     @Override
     public void createQueue() throws MessageQueueException {
         try {
-            // Convert the message object to JSON
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            mapper.writeValue(baos, settings);
-            baos.flush();
-            keyspace.prepareColumnMutation(queueColumnFamily, settings.getQueueName(), MessageQueueEntry.newMetadataEntry())
-                    .putValue(baos.toByteArray(), null)
-                    .execute();
+            writeQueueSettings(settings);
         } catch (ConnectionException e) {
             throw new MessageQueueException("Failed to create column family for " + queueColumnFamily.getName(), e);
         } catch (Exception e) {
@@ -749,6 +1412,34 @@ public class ShardedDistributedMessageQueue implements MessageQueue {
 
     @Override
     public MessageConsumer createConsumer() {
+        return createConsumer(shardReaderPolicy);
+    }
+    
+    /**
+     * Create a consumer that reads the specified shards using its own time partitioned
+     * reader policy.  Shard stats are shared with the queue's reader policy.
+     */
+    @Override
+    public MessageConsumer createConsumer(Collection<String> shardNames) {
+        Set<String> names = Sets.newHashSet(shardNames);
+        List<MessageQueueShard> shards = Lists.newArrayList();
+        for (MessageQueueShard shard : shardReaderPolicy.listShards()) {
+            if (names.contains(shard.getName()))
+                shards.add(shard);
+        }
+        
+        ShardReaderPolicy policy = newShardReaderPolicy(shards);
+        consumerShardReaderPolicies.add(policy);
+        return createConsumer(policy);
+    }
+    
+    private ShardReaderPolicy newShardReaderPolicy(Collection<MessageQueueShard> shards) {
+        if (settings.getLaneCount() > 1)
+            return new WeightedLaneShardReaderPolicy(settings, shards, laneWeights);
+        return new TimePartitionedShardReaderPolicy(settings, shards);
+    }
+    
+    private MessageConsumer createConsumer(final ShardReaderPolicy shardReaderPolicy) {
         return new MessageConsumer() {
             @Override
             public List<MessageContext> readMessages(int itemsToPop) throws MessageQueueException, BusyLockException, InterruptedException {
@@ -764,15 +1455,21 @@ public class ShardedDistributedMessageQueue implements MessageQueue {
                 // Loop while trying to get messages.
                 // TODO: Make it possible to cancel this loop
                 // TODO: Read full itemsToPop instead of just stopping when we get the first successful set
-                List<MessageContext> messages = null;
                 while (true) {
+                    // The reader policy blocks until a shard is ready to be read (or the poll interval 
+                    // elapses) so there is no need to sleep between reads here.  Shards that came up empty
+                    // are backed off by the policy.
                     MessageQueueShard partition = shardReaderPolicy.nextShard();
                     if (partition != null) {
+                        List<MessageContext> messages = null;
                         try {
                             messages = readAndReturnShard(partition, itemsToPop);
                             if (messages != null && !messages.isEmpty()) 
                                 return messages;
                         }
+                        catch (BusyLockException e) {
+                            // Another consumer is reading this shard so just move on to the next one
+                        }
                         finally {
                             shardReaderPolicy.releaseShard(partition, messages == null ? 0 : messages.size());
                         }
@@ -781,7 +1478,8 @@ public class ShardedDistributedMessageQueue implements MessageQueue {
                     if (timeoutTime != 0 && System.currentTimeMillis() > timeoutTime) 
                         return Lists.newLinkedList();
                     
-                    Thread.sleep(settings.getPollInterval());
+                    if (Thread.interrupted())
+                        throw new InterruptedException();
                 }
             }
             
@@ -793,6 +1491,18 @@ public class ShardedDistributedMessageQueue implements MessageQueue {
             private List<MessageContext> readAndReturnShard(MessageQueueShard shard, int itemsToPop) throws MessageQueueException, BusyLockException, InterruptedException {
                 List<MessageContext>   messages = null;
                 try {
+                    // Skip shards without due messages
+                    if (timingWheel != null) {
+                        try {
+                            wakeShards(timingWheel.refreshIfNeeded());
+                        }
+                        catch (MessageQueueException e) {
+                            LOG.warn("Error refreshing timing wheel", e);
+                        }
+                        if (!timingWheel.isDue(shard.getName())) 
+                            return null;
+                    }
+                    
                     // Optimization to check without locking if the shard was previously empty
                     if (shard.getLastReadCount() == 0) {
                         if (!hasMessages(shard.getName())) {
@@ -800,7 +1510,13 @@ public class ShardedDistributedMessageQueue implements MessageQueue {
                         }
                     }
                     
-                    return readMessagesFromShard(shard.getName(), itemsToPop);
+                    // Skip shards that are leased by other queue instances
+                    if (leaseManager != null && !leaseManager.acquire(shard.getName())) {
+                        return null;
+                    }
+                    
+                    messages = readMessagesFromShard(shard.getName(), itemsToPop);
+                    return messages;
                 }
                 finally {
                     if (messages == null || messages.isEmpty()) 
@@ -810,7 +1526,11 @@ public class ShardedDistributedMessageQueue implements MessageQueue {
             
             @Override
             public List<MessageContext> readMessagesFromShard(String shardName, int itemsToPop) throws MessageQueueException, BusyLockException {
-                List<MessageContext> entries = Lists.newArrayList();
+                // No need to lock a shard that we have leased
+                if (leaseManager != null && leaseManager.isOwned(shardName)) {
+                    return readMessagesFromShard(shardName, itemsToPop, null, 0);
+                }
+                
                 MutationBatch m              = null;
                 MessageQueueEntry lockColumn = null;
                 ColumnListMutation<MessageQueueEntry> rowMutation = null;
@@ -820,6 +1540,8 @@ public class ShardedDistributedMessageQueue implements MessageQueue {
                 // Try locking first 
                 try {
                     // 1. Write the lock column
+                    // The lock value is the lock time in milliseconds plus the timeout.  This format is shared
+                    // with all queue versions and with ShardLeaseManager and must not change.
                     lockColumn = MessageQueueEntry.newLockEntry(MessageQueueEntryState.None);
                     long curTimeMicros = TimeUUIDUtils.getTimeFromUUID(lockColumn.getTimestamp());
                     m = keyspace.prepareMutationBatch().setConsistencyLevel(consistencyLevel);
@@ -893,29 +1615,70 @@ public class ShardedDistributedMessageQueue implements MessageQueue {
                     }
                 }
                 
-                long curTimeMicros = TimeUUIDUtils.getMicrosTimeFromUUID(lockColumn.getTimestamp());
+                return readMessagesFromShard(shardName, itemsToPop, lockColumn, lockColumnCount);
+            }
+            
+            /**
+             * Read and remove messages from a shard that was either locked using lockColumn or,
+             * if lockColumn is null, is leased by this queue instance.
+             */
+            private List<MessageContext> readMessagesFromShard(String shardName, int itemsToPop, MessageQueueEntry lockColumn, int lockColumnCount) throws MessageQueueException, BusyLockException {
+                List<MessageContext> entries = Lists.newArrayList();
+                UUID readUntil     = (lockColumn != null) ? lockColumn.getTimestamp() : TimeUUIDUtils.getUniqueTimeUUIDinMicros();
+                long curTimeMicros = TimeUUIDUtils.getMicrosTimeFromUUID(readUntil);
                 
-                m = keyspace.prepareMutationBatch().setConsistencyLevel(consistencyLevel);
+                MutationBatch m = keyspace.prepareMutationBatch().setConsistencyLevel(consistencyLevel);
                 
                 // First, release the lock column
-                rowMutation = m.withRow(queueColumnFamily, shardName);
-                rowMutation.deleteColumn(lockColumn);
+                ColumnListMutation<MessageQueueEntry> rowMutation = m.withRow(queueColumnFamily, shardName);
+                if (lockColumn != null)
+                    rowMutation.deleteColumn(lockColumn);
                 
                 // 2. Read back lock columns and entries
                 try {
-                    ColumnList<MessageQueueEntry> result = keyspace.prepareQuery(queueColumnFamily)
-                            .setConsistencyLevel(consistencyLevel)
-                            .getKey(shardName)
-                            .withColumnRange(new RangeBuilder()
+                    RangeBuilder range = new RangeBuilder()
                                 .setLimit(itemsToPop + lockColumnCount + 1)   // Read extra messages because of the lock column
                                 .setEnd(entrySerializer
                                         .makeEndpoint((byte)MessageQueueEntryType.Message.ordinal(), Equality.EQUAL)
                                         .append((byte)0, Equality.EQUAL)
-                                        .append(lockColumn.getTimestamp(), Equality.LESS_THAN_EQUALS).toBytes())
-                                .build())
+                                        .append(readUntil, Equality.LESS_THAN_EQUALS).toBytes());
+                    // Lock columns are irrelevant when reading a leased shard
+                    if (lockColumn == null) {
+                        range.setStart(entrySerializer
+                                        .makeEndpoint((byte)MessageQueueEntryType.Message.ordinal(), Equality.EQUAL)
+                                        .toBytes());
+                    }
+                    
+                    ColumnList<MessageQueueEntry> result = keyspace.prepareQuery(queueColumnFamily)
+                            .setConsistencyLevel(consistencyLevel)
+                            .getKey(shardName)
+                            .withColumnRange(range.build())
                         .execute()
                             .getResult();
                     
+                    // Parse the messages that will be popped so that the key index rows of all messages 
+                    // with triggers can be fetched in one call instead of one call per message
+                    Map<String, Message> popped = Maps.newHashMap();
+                    Set<String> metadataKeys = Sets.newHashSet();
+                    int itemsToParse = itemsToPop;
+                    for (Column<MessageQueueEntry> column : result) {
+                        if (itemsToParse == 0) {
+                            break;
+                        }
+                        
+                        MessageQueueEntry entry = column.getName();
+                        if (entry.getType() == MessageQueueEntryType.Message) {
+                            itemsToParse--;
+                            Message message = extractMessageFromColumn(column);
+                            if (message != null) {
+                                popped.put(entry.getMessageId(), message);
+                                if (message.hasTrigger() || (optimisticUniqueKeys && message.hasUniqueKey())) 
+                                    metadataKeys.add(getCompositeKey(settings.getQueueName(), message.getKey()));
+                            }
+                        }
+                    }
+                    Map<String, ColumnList<MessageMetadataEntry>> keyMetadata = readKeyMetadata(metadataKeys);
+                    
                     for (Column<MessageQueueEntry> column : result) {
                         if (itemsToPop == 0) {
                             break;
@@ -926,7 +1689,7 @@ public class ShardedDistributedMessageQueue implements MessageQueue {
                             case Lock: 
                                 // TODO: Track number of locks read and make sure we don't exceed itemsToPop
                                 // We have the lock
-                                if (entry.getState() == MessageQueueEntryState.Acquired) {
+                                if (entry.getState() == MessageQueueEntryState.Acquired && lockColumn != null) {
                                     if (!entry.getTimestamp().equals(lockColumn.getTimestamp())) {
                                         throw new BusyLockException("Someone else snuck in");
                                     }
@@ -942,34 +1705,35 @@ public class ShardedDistributedMessageQueue implements MessageQueue {
                                     
                                     rowMutation.deleteColumn(entry);
                                     
-                                    // Next, parse the message metadata and add a timeout entry
-                                    final Message message = extractMessageFromColumn(column);
+                                    // Next, get the parsed message metadata and add a timeout entry
+                                    final Message message = popped.get(entry.getMessageId());
                                     
                                     // Update the message state
                                     if (message != null) {
                                         MessageContext context = new MessageContext();
                                         context.setMessage(message);
                                         
+                                        // Discard messages that lost the race for an optimistic unique key
+                                        if (optimisticUniqueKeys && message.hasUniqueKey()) {
+                                            String groupRowKey = getCompositeKey(settings.getQueueName(), message.getKey());
+                                            if (!isUniqueKeyOwner(keyMetadata.get(groupRowKey), groupRowKey, messageId, m)) {
+                                                throw new DuplicateMessageException("Duplicate unique key for " + messageId);
+                                            }
+                                        }
+                                        
                                         // Message has a trigger so we need to figure out if it is an 
                                         // unfinished repeating trigger and re-add it.
                                         if (message.hasTrigger()) {
                                                     // Read back all messageIds associated with this key and check to see if we have duplicates.
                                             String groupRowKey = getCompositeKey(settings.getQueueName(), message.getKey());
-                                            try {
-                                                // Use consistency level
-                                                ColumnList<MessageMetadataEntry> columns = keyspace.prepareQuery(keyIndexColumnFamily)
-                                                    .getRow(groupRowKey)
-                                                    .withColumnRange(metadataSerializer.buildRange()
-                                                        .greaterThanEquals((byte)MessageMetadataEntryType.MessageId.ordinal())
-                                                        .lessThanEquals((byte)MessageMetadataEntryType.MessageId.ordinal())
-                                                        .build()
-                                                    )
-                                                    .execute()
-                                                    .getResult();
-                                                
+                                            ColumnList<MessageMetadataEntry> columns = keyMetadata.get(groupRowKey);
+                                            if (columns != null) {
                                                 MessageMetadataEntry mostRecentMessageMetadata = null;
                                                 long mostRecentTriggerTime = 0;
                                                 for (Column<MessageMetadataEntry> currMessageEntry : columns) {
+                                                    if (currMessageEntry.getName().getMetadataType() != MessageMetadataEntryType.MessageId)
+                                                        continue;
+                                                    
                                                     MessageQueueEntry pendingMessageEntry = MessageQueueEntry.fromMetadata(currMessageEntry.getName());
                                                     if (currMessageEntry.getTtl() == 0) {
                                                         long currMessageTriggerTime = pendingMessageEntry.getTimestamp(TimeUnit.MICROSECONDS);
@@ -1005,10 +1769,7 @@ public class ShardedDistributedMessageQueue implements MessageQueue {
                                                         throw new DuplicateMessageException("Duplicate trigger for " + messageId);
                                                     }
                                                 }
-                                            } catch (NotFoundException e) {
-                                            } catch (ConnectionException e) {
-                                                throw new MessageQueueException("Error fetching row " + groupRowKey, e);
-                                            }    
+                                            }
                                             
                                             // Update the trigger
                                             final Message nextMessage;
@@ -1058,7 +1819,10 @@ public class ShardedDistributedMessageQueue implements MessageQueue {
                                             message.setRandom(timeoutEntry.getRandom());
                                             
                                             m.withRow(queueColumnFamily, getShardKey(message))
-                                             .putColumn(timeoutEntry, column.getStringValue(), settings.getRetentionTimeout());
+                                             .putColumn(timeoutEntry, column.getByteArrayValue(), settings.getRetentionTimeout());
+                                            
+                                            if (timingWheel != null) 
+                                                timingWheel.fillMarkerMutation(m, getShardKey(message), timeoutEntry.getTimestamp(TimeUnit.MICROSECONDS));
                                             
                                             MessageMetadataEntry messageIdEntry = MessageMetadataEntry.newMessageId(getCompositeKey(getShardKey(message), timeoutEntry.getMessageId()));
                                             
@@ -1078,6 +1842,10 @@ public class ShardedDistributedMessageQueue implements MessageQueue {
                                         switch (entry.getState()) {
                                         case Waiting:
                                             stats.incProcessCount();
+                                            if (depthStats != null) {
+                                                depthStats.recordConsumeLag(TimeUnit.MILLISECONDS.convert(
+                                                        curTimeMicros - entry.getTimestamp(TimeUnit.MICROSECONDS), TimeUnit.MICROSECONDS));
+                                            }
                                             break;
                                         case Busy:
                                             stats.incReprocessCount();
@@ -1108,6 +1876,9 @@ public class ShardedDistributedMessageQueue implements MessageQueue {
                         }
                     }
                     
+                    if (timingWheel != null) 
+                        timingWheel.fillShardReadMutation(m, shardName, curTimeMicros, itemsToPop > 0);
+                    
                     return entries;
                 }
                 catch (BusyLockException e) {
@@ -1163,14 +1934,23 @@ public class ShardedDistributedMessageQueue implements MessageQueue {
                 if (message.getToken() != null) {
                     MessageQueueEntry entry = MessageQueueEntry.newBusyEntry(message);
                     
+                    // The timeout entry was written to the shard in the ack message id which may differ from
+                    // the message's current shard if the queue was resharded since
+                    String shardKey = getShardKey(message);
+                    if (context.getAckMessageId() != null) {
+                        int index = context.getAckMessageId().indexOf(COMPOSITE_KEY_DELIMITER);
+                        if (index > 0)
+                            shardKey = context.getAckMessageId().substring(0, index);
+                    }
+                    
                     // Remove timeout entry from the queue
-                    mb.withRow(queueColumnFamily, getShardKey(message))
+                    mb.withRow(queueColumnFamily, shardKey)
                       .deleteColumn(entry);
                     
                     // Remove entry lookup from the key, if one exists
                     if (message.hasKey()) {
                         mb.withRow(keyIndexColumnFamily, getCompositeKey(settings.getQueueName(), message.getKey()))
-                            .putEmptyColumn(MessageMetadataEntry.newMessageId(getCompositeKey(getShardKey(message), entry.getMessageId())), metadataDeleteTTL);
+                            .putEmptyColumn(MessageMetadataEntry.newMessageId(getCompositeKey(shardKey, entry.getMessageId())), metadataDeleteTTL);
                         
                         if (message.isKeepHistory()) {
                             MessageHistory history = context.getHistory();
@@ -1240,55 +2020,30 @@ public class ShardedDistributedMessageQueue implements MessageQueue {
                 MutationBatch mb = keyspace.prepareMutationBatch().setConsistencyLevel(consistencyLevel);
                 MessageMetadataEntry lockColumn = MessageMetadataEntry.newUnique();
                 
-                // Get list of keys that must be unique and prepare the mutation for phase 1
-                for (Message message : messages) {
-                    if (message.hasUniqueKey()) {
-                        String groupKey = getCompositeKey(settings.getQueueName(), message.getKey());
-                        uniqueKeys.put(groupKey, message);
-                        mb.withRow(keyIndexColumnFamily, groupKey)
-                            .putEmptyColumn(lockColumn, (Integer)lockTtl);
+                // Get list of keys that must be unique
+                if (!optimisticUniqueKeys) {
+                    for (Message message : messages) {
+                        if (message.hasUniqueKey()) {
+                            uniqueKeys.put(getCompositeKey(settings.getQueueName(), message.getKey()), message);
+                        }
                     }
                 }
 
                 // We have some keys that need to be unique
                 if (!uniqueKeys.isEmpty()) {
-                    // Submit phase 1: Create a unique column for ALL of the unique keys
-                    try {
-                        mb.execute();
-                    } catch (ConnectionException e) {
-                        throw new MessageQueueException("Failed to check keys for uniqueness (1): " + uniqueKeys, e);
-                    }
-                    
-                    // Phase 2: Read back ALL the lock columms
-                    mb = keyspace.prepareMutationBatch().setConsistencyLevel(consistencyLevel);
-                    Rows<String, MessageMetadataEntry> result;
-                    try {
-                        result = keyspace.prepareQuery(keyIndexColumnFamily)
-                            .setConsistencyLevel(consistencyLevel)
-                            .getRowSlice(uniqueKeys.keySet())
-                            .withColumnRange(metadataSerializer.buildRange()
-                                    .greaterThanEquals((byte)MessageMetadataEntryType.Unique.ordinal())
-                                    .lessThanEquals((byte)MessageMetadataEntryType.Unique.ordinal())
-                                    .build())
-                            .execute()
-                            .getResult();
-                    } catch (ConnectionException e) {
-                        throw new MessageQueueException("Failed to check keys for uniqueness (2): " + uniqueKeys, e);
-                    }
+                    Set<String> takenKeys = checkUniqueKeys(uniqueKeys.keySet(), lockColumn);
                     
-                    for (Row<String, MessageMetadataEntry> row : result) {
+                    for (Entry<String, Message> entry : uniqueKeys.entrySet()) {
                         // This key is already taken, roll back the check
-                        if (row.getColumns().size() != 1) {
-                            String messageKey = splitCompositeKey(row.getKey())[1];
-                            
-                            notUniqueKeys.add(messageKey);
-                            notUniqueMessages.add(uniqueKeys.get(messageKey));
-                            mb.withRow(keyIndexColumnFamily, row.getKey())
+                        if (takenKeys.contains(entry.getKey())) {
+                            notUniqueKeys.add(entry.getValue().getKey());
+                            notUniqueMessages.add(entry.getValue());
+                            mb.withRow(keyIndexColumnFamily, entry.getKey())
                                 .deleteColumn(lockColumn);
                         }
                         // This key is now unique
                         else {
-                            mb.withRow(keyIndexColumnFamily, row.getKey())
+                            mb.withRow(keyIndexColumnFamily, entry.getKey())
                                 .putEmptyColumn(lockColumn);
                         }
                     }
@@ -1302,6 +2057,12 @@ public class ShardedDistributedMessageQueue implements MessageQueue {
                     
                     String messageId = fillMessageMutation(mb, message);
                     success.put(messageId, message);
+                    
+                    // Claim the key together with the message.  Duplicates are discarded by the consumer
+                    if (optimisticUniqueKeys && message.hasUniqueKey()) {
+                        mb.withRow(keyIndexColumnFamily, getCompositeKey(settings.getQueueName(), message.getKey()))
+                            .putColumn(MessageMetadataEntry.newUnique(), messageId, null);
+                    }
                 }
                 
                 try {
@@ -1310,11 +2071,44 @@ public class ShardedDistributedMessageQueue implements MessageQueue {
                     throw new MessageQueueException("Failed to insert messages into queue.", e);
                 }
                 
+                if (localWakeup) 
+                    wakeShards(success);
+                
                 return new SendMessageResponse(success, notUniqueMessages);
             }
         };
     }
     
+    /**
+     * Let the shard reader policy know about shards that just received messages that
+     * are ready to be consumed so that local consumers don't wait out their poll backoff.
+     * @param messages Map of message id to message
+     */
+    private void wakeShards(Map<String, Message> messages) {
+        long nowMicros = TimeUnit.MICROSECONDS.convert(System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        Set<String> shards = Sets.newHashSet();
+        for (Entry<String, Message> entry : messages.entrySet()) {
+            if (entry.getValue().getTokenTime() <= nowMicros) 
+                shards.add(StringUtils.substringBefore(entry.getKey(), Character.toString(COMPOSITE_KEY_DELIMITER)));
+        }
+        
+        wakeShards(shards);
+    }
+    
+    private void wakeShards(Collection<String> shards) {
+        for (String shard : shards) {
+            wakeShard(shardReaderPolicy, shard);
+            for (ShardReaderPolicy policy : consumerShardReaderPolicies) {
+                wakeShard(policy, shard);
+            }
+        }
+    }
+    
+    private static void wakeShard(ShardReaderPolicy policy, String shardName) {
+        if (policy instanceof WakeableShardReaderPolicy) 
+            ((WakeableShardReaderPolicy)policy).wakeShard(shardName);
+    }
+    
     private String fillMessageMutation(MutationBatch mb, Message message) throws MessageQueueException {
         // Get the execution time from the message or set to current time so it runs immediately
         long curTimeMicros;
@@ -1335,11 +2129,10 @@ public class ShardedDistributedMessageQueue implements MessageQueue {
                 message.getToken(), 
                 MessageQueueEntryState.Waiting);
 
-        // Convert the message object to JSON
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        // Serialize the message
+        byte[] data;
         try {
-            mapper.writeValue(baos, message);
-            baos.flush();
+            data = messageCodec.encode(message);
         } catch (Exception e) {
             throw new MessageQueueException("Failed to serialize message data: " + message, e);
         }
@@ -1347,7 +2140,10 @@ public class ShardedDistributedMessageQueue implements MessageQueue {
         // Write the queue entry  
         String shardKey = getShardKey(message);
         mb.withRow(queueColumnFamily, shardKey)
-          .putColumn(entry, new String(baos.toByteArray()), (Integer)settings.getRetentionTimeout());
+          .putColumn(entry, data, (Integer)settings.getRetentionTimeout());
+        
+        if (timingWheel != null) 
+            timingWheel.fillMarkerMutation(mb, shardKey, curTimeMicros);
             
         // Write the lookup from queue key to queue entry
         if (message.hasKey()) {
@@ -1463,12 +2259,11 @@ public class ShardedDistributedMessageQueue implements MessageQueue {
         // Next, parse the message metadata and add a timeout entry
         Message message = null;
         try {
-            ByteArrayInputStream bais = new ByteArrayInputStream(column.getByteArrayValue());
-            message = mapper.readValue(bais, Message.class);
+            message = messageCodec.decode(column.getByteArrayValue());
         } catch (Exception e) {
             LOG.warn("Error processing message ", e);
             try {
-                message = invalidMessageHandler.apply(column.getStringValue());
+                message = invalidMessageHandler.apply(column.getByteArrayValue());
             }
             catch (Exception e2) {
                 LOG.warn("Error processing invalid message", e2);
@@ -1477,6 +2272,129 @@ public class ShardedDistributedMessageQueue implements MessageQueue {
         return message;
     }
 
+    /**
+     * Write the lock column to the key index row of every key in a single batch and read back the
+     * Unique columns of all rows with a single multiget, regardless of the number of keys.
+     * 
+     * @param groupRowKeys
+     * @param lockColumn
+     * @return Keys that are already taken
+     */
+    private Set<String> checkUniqueKeys(Collection<String> groupRowKeys, MessageMetadataEntry lockColumn) throws MessageQueueException {
+        // Phase 1: Create a unique column for ALL of the unique keys
+        MutationBatch mb = keyspace.prepareMutationBatch().setConsistencyLevel(consistencyLevel);
+        for (String groupRowKey : groupRowKeys) {
+            mb.withRow(keyIndexColumnFamily, groupRowKey)
+                .putEmptyColumn(lockColumn, (Integer)lockTtl);
+        }
+        
+        try {
+            mb.execute();
+        } catch (ConnectionException e) {
+            throw new MessageQueueException("Failed to check keys for uniqueness (1): " + groupRowKeys, e);
+        }
+        
+        // Phase 2: Read back ALL the lock columns
+        Rows<String, MessageMetadataEntry> result;
+        try {
+            result = keyspace.prepareQuery(keyIndexColumnFamily)
+                .setConsistencyLevel(consistencyLevel)
+                .getRowSlice(groupRowKeys)
+                .withColumnRange(metadataSerializer.buildRange()
+                        .greaterThanEquals((byte)MessageMetadataEntryType.Unique.ordinal())
+                        .lessThanEquals((byte)MessageMetadataEntryType.Unique.ordinal())
+                        .build())
+                .execute()
+                .getResult();
+        } catch (ConnectionException e) {
+            throw new MessageQueueException("Failed to check keys for uniqueness (2): " + groupRowKeys, e);
+        }
+        
+        Set<String> takenKeys = Sets.newHashSet();
+        for (Row<String, MessageMetadataEntry> row : result) {
+            if (row.getColumns().size() != 1) 
+                takenKeys.add(row.getKey());
+        }
+        return takenKeys;
+    }
+    
+    /**
+     * Determine whether a message written with an optimistic unique key owns the key.  The owner is the
+     * message whose Unique column was written first.  Messages written after the key was checked 
+     * pessimistically have no Unique column of their own.  The Unique column and key index entry of a message
+     * that does not own the key are removed using the mutation batch.
+     * 
+     * @param columns   Unique and MessageId columns of the key index row
+     * @param groupRowKey
+     * @param messageId
+     * @param mb
+     */
+    private boolean isUniqueKeyOwner(ColumnList<MessageMetadataEntry> columns, String groupRowKey, String messageId, MutationBatch mb) {
+        if (columns == null)
+            return true;
+        
+        Column<MessageMetadataEntry> first = null;
+        Column<MessageMetadataEntry> mine  = null;
+        for (Column<MessageMetadataEntry> column : columns) {
+            if (column.getName().getMetadataType() != MessageMetadataEntryType.Unique)
+                continue;
+            
+            if (first == null 
+                || column.getTimestamp() < first.getTimestamp()
+                || (column.getTimestamp() == first.getTimestamp() && column.getName().getName().compareTo(first.getName().getName()) < 0)) {
+                first = column;
+            }
+            
+            if (messageId.equals(column.getStringValue())) 
+                mine = column;
+        }
+        
+        if (first == null || first == mine || (mine == null && StringUtils.isEmpty(first.getStringValue())))
+            return true;
+        
+        if (mine != null) {
+            mb.withRow(keyIndexColumnFamily, groupRowKey)
+                .deleteColumn(mine.getName());
+        }
+        mb.withRow(keyIndexColumnFamily, groupRowKey)
+            .putEmptyColumn(MessageMetadataEntry.newMessageId(messageId), metadataDeleteTTL);
+        return false;
+    }
+    
+    /**
+     * Read the MessageId columns (and Unique columns if optimistic unique keys are enabled)
+     * of multiple key index rows in one call 
+     * @param groupRowKeys
+     */
+    private Map<String, ColumnList<MessageMetadataEntry>> readKeyMetadata(Collection<String> groupRowKeys) throws MessageQueueException {
+        Map<String, ColumnList<MessageMetadataEntry>> result = Maps.newHashMap();
+        if (groupRowKeys.isEmpty())
+            return result;
+        
+        try {
+            Rows<String, MessageMetadataEntry> rows = keyspace.prepareQuery(keyIndexColumnFamily)
+                .setConsistencyLevel(consistencyLevel)
+                .getRowSlice(groupRowKeys)
+                .withColumnRange(metadataSerializer.buildRange()
+                    .greaterThanEquals((byte)(optimisticUniqueKeys ? MessageMetadataEntryType.Unique : MessageMetadataEntryType.MessageId).ordinal())
+                    .lessThanEquals((byte)MessageMetadataEntryType.MessageId.ordinal())
+                    .build()
+                )
+                .execute()
+                .getResult();
+            
+            for (Row<String, MessageMetadataEntry> row : rows) {
+                if (!row.getColumns().isEmpty())
+                    result.put(row.getKey(), row.getColumns());
+            }
+            return result;
+        } catch (NotFoundException e) {
+            return result;
+        } catch (ConnectionException e) {
+            throw new MessageQueueException("Error fetching rows " + groupRowKeys, e);
+        }
+    }
+
     /**
      * Fast check to see if a shard has messages to process
      * @param shardName
@@ -1515,6 +2433,44 @@ public class ShardedDistributedMessageQueue implements MessageQueue {
         return shardReaderPolicy.getShardStats();
     }
     
+    /**
+     * @return Aggregate stats of the shards of each priority lane
+     */
+    public Map<Integer, MessageQueueLaneStats> getLaneStats() {
+        Map<Integer, List<MessageQueueShard>> lanes = Maps.newTreeMap();
+        for (MessageQueueShard shard : shardReaderPolicy.listShards()) {
+            List<MessageQueueShard> shards = lanes.get(shard.getLane());
+            if (shards == null) {
+                shards = Lists.newArrayList();
+                lanes.put(shard.getLane(), shards);
+            }
+            shards.add(shard);
+        }
+        
+        Map<Integer, MessageQueueLaneStats> stats = Maps.newTreeMap();
+        for (Entry<Integer, List<MessageQueueShard>> entry : lanes.entrySet()) {
+            stats.put(entry.getKey(), new MessageQueueLaneStats(entry.getKey(), entry.getValue()));
+        }
+        return stats;
+    }
+    
+    /**
+     * Release all shard leases held by this queue instance so that they may be
+     * picked up immediately by other instances.  Call this when shutting down
+     * consumers of a queue built with Builder.withShardLeases.
+     */
+    public void releaseShardLeases() {
+        if (leaseManager != null)
+            leaseManager.releaseAll();
+    }
+    
+    /**
+     * @return Lease manager or null if shard leases are not used
+     */
+    public ShardLeaseManager getShardLeaseManager() {
+        return this.leaseManager;
+    }
+    
     public ColumnFamily<String, MessageQueueEntry>     getQueueColumnFamily() {
         return this.queueColumnFamily;
     }
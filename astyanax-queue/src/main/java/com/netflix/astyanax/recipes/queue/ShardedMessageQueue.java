@@ -0,0 +1,19 @@
+package com.netflix.astyanax.recipes.queue;
+
+import java.util.Collection;
+
+/**
+ * Message queue whose consumers can be restricted to a subset of the queue's shards.
+ * The dispatcher only supports shard affinity for queues that implement this interface.
+ */
+public interface ShardedMessageQueue extends MessageQueue {
+    /**
+     * Create a consumer that only reads from the specified shards.  Use this to give 
+     * each consumer thread affinity to a subset of the shards.  Shard names are the keys 
+     * of getShardStats().
+     * 
+     * @param shardNames
+     * @return
+     */
+    MessageConsumer createConsumer(Collection<String> shardNames);
+}
@@ -0,0 +1,325 @@
+package com.netflix.astyanax.recipes.queue;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.netflix.astyanax.Keyspace;
+import com.netflix.astyanax.MutationBatch;
+import com.netflix.astyanax.connectionpool.exceptions.ConnectionException;
+import com.netflix.astyanax.connectionpool.exceptions.NotFoundException;
+import com.netflix.astyanax.model.ByteBufferRange;
+import com.netflix.astyanax.model.Column;
+import com.netflix.astyanax.model.ColumnFamily;
+import com.netflix.astyanax.model.ColumnList;
+import com.netflix.astyanax.model.ConsistencyLevel;
+import com.netflix.astyanax.model.Row;
+import com.netflix.astyanax.query.RowQuery;
+import com.netflix.astyanax.serializers.AnnotatedCompositeSerializer;
+
+/**
+ * Index of the time slots in which the messages of each shard become due, used by consumers to
+ * only read shards that have due messages.
+ *
+ * Time is divided into slots of a fixed duration and consecutive slots are grouped into buckets of
+ * SLOTS_PER_BUCKET slots.  Whenever a message is written to a shard a Slot marker column named
+ * <slot>:<shard> is written to the wheel row of the slot's bucket in the key index.  Consumers
+ * periodically read the markers of all slots up to the current slot with a multiget of the bucket
+ * rows, paging through rows with many markers, so that markers of future slots, no matter how many
+ * messages they hold, are never read.  A shard without a due marker is skipped.  Markers are removed
+ * once the shard was read up to at least one slot past the end of the marker's slot without finding
+ * more messages.
+ *
+ * Each consumer keeps track of the oldest bucket that still holds markers.  Once all markers of a
+ * past bucket were removed the bucket row is deleted as a whole and never read again, so the
+ * tombstones of the removed markers don't slow down later reads.  On startup a consumer looks back
+ * up to the retention timeout, or LOOKBACK_BUCKETS buckets if the queue has no retention timeout,
+ * and at most MAX_LOOKBACK_BUCKETS buckets.  As a safety net, for example against clock skew between
+ * producers and consumers or markers older than the look back, every shard is still read at least
+ * once per slot.
+ */
+public class TimingWheel {
+    private static final Logger LOG = LoggerFactory.getLogger(TimingWheel.class);
+
+    public static final String WHEEL_ROW_SUFFIX     = ":wheel";
+    public static final int    SLOTS_PER_BUCKET     = 60;
+    public static final int    LOOKBACK_BUCKETS     = 60;
+    public static final int    MAX_LOOKBACK_BUCKETS = 1000;
+    public static final int    BUCKETS_PER_READ     = 100;
+    public static final int    MARKER_PAGE_SIZE     = 1000;
+
+    private final static AnnotatedCompositeSerializer<MessageMetadataEntry>   metadataSerializer
+        = new AnnotatedCompositeSerializer<MessageMetadataEntry>(MessageMetadataEntry.class);
+
+    private final Keyspace                                  keyspace;
+    private final ColumnFamily<String, MessageMetadataEntry> keyIndexColumnFamily;
+    private final ConsistencyLevel                          consistencyLevel;
+    private final MessageQueueSettings                      settings;
+    private final long                                      slotDuration;
+    private final AtomicLong                                nextRefresh = new AtomicLong();
+    private Long                                            firstBucket;
+    private final ConcurrentMap<String, Long>               lastRead    = Maps.newConcurrentMap();
+    private volatile Map<String, List<MessageMetadataEntry>> dueMarkers = Collections.emptyMap();
+
+    public TimingWheel(Keyspace keyspace, ColumnFamily<String, MessageMetadataEntry> keyIndexColumnFamily,
+            ConsistencyLevel consistencyLevel, MessageQueueSettings settings) {
+        this.keyspace             = keyspace;
+        this.keyIndexColumnFamily = keyIndexColumnFamily;
+        this.consistencyLevel     = consistencyLevel;
+        this.settings             = settings;
+        this.slotDuration         = settings.getTimingWheelSlotDuration();
+    }
+
+    /**
+     * @param timeMillis
+     * @return Slot containing the specified time
+     */
+    public long getSlot(long timeMillis) {
+        return timeMillis / slotDuration;
+    }
+
+    /**
+     * @param slot
+     * @return Bucket containing the specified slot
+     */
+    public long getBucket(long slot) {
+        return slot / SLOTS_PER_BUCKET;
+    }
+
+    /**
+     * @param bucket
+     * @return Key of the wheel row holding the markers of the bucket's slots
+     */
+    public String getBucketKey(long bucket) {
+        return settings.getQueueName() + WHEEL_ROW_SUFFIX + ":" + bucket;
+    }
+
+    /**
+     * @return Oldest bucket read by the next refresh or null if not refreshed yet
+     */
+    synchronized Long getFirstBucket() {
+        return firstBucket;
+    }
+
+    private static long getMarkerSlot(MessageMetadataEntry marker) {
+        return Long.parseLong(StringUtils.substringBefore(marker.getName(), ":"));
+    }
+
+    private static String getMarkerName(long slot, String shardName) {
+        return StringUtils.leftPad(Long.toString(slot), 19, '0') + ":" + shardName;
+    }
+
+    /**
+     * Add the marker for a message that becomes due at the specified time.  Messages that are
+     * already due are marked in the current slot since past buckets may no longer be read.
+     * @param mb
+     * @param shardName
+     * @param dueMicros
+     */
+    public void fillMarkerMutation(MutationBatch mb, String shardName, long dueMicros) {
+        long slot = Math.max(getSlot(TimeUnit.MILLISECONDS.convert(dueMicros, TimeUnit.MICROSECONDS)),
+                             getSlot(System.currentTimeMillis()));
+        fillSlotMarkerMutation(mb, shardName, slot);
+    }
+
+    void fillSlotMarkerMutation(MutationBatch mb, String shardName, long slot) {
+        mb.withRow(keyIndexColumnFamily, getBucketKey(getBucket(slot)))
+          .putEmptyColumn(MessageMetadataEntry.newSlot(getMarkerName(slot, shardName)), settings.getRetentionTimeout());
+    }
+
+    /**
+     * Record a read of the shard and, if the read found no more due messages, remove the
+     * shard's markers of slots that ended at least one slot before the read time.
+     *
+     * @param mb
+     * @param shardName
+     * @param readUntilMicros   Time up to which messages were read
+     * @param drained           True if the read returned fewer messages than requested
+     */
+    public void fillShardReadMutation(MutationBatch mb, String shardName, long readUntilMicros, boolean drained) {
+        long readUntil = TimeUnit.MILLISECONDS.convert(readUntilMicros, TimeUnit.MICROSECONDS);
+        lastRead.put(shardName, readUntil);
+
+        if (!drained)
+            return;
+
+        List<MessageMetadataEntry> markers = dueMarkers.get(shardName);
+        if (markers == null)
+            return;
+
+        long lastSlot = getSlot(readUntil) - 2;
+        for (MessageMetadataEntry marker : markers) {
+            long slot = getMarkerSlot(marker);
+            if (slot <= lastSlot) {
+                mb.withRow(keyIndexColumnFamily, getBucketKey(getBucket(slot)))
+                  .deleteColumn(marker);
+            }
+        }
+    }
+
+    /**
+     * @param shardName
+     * @return True if the shard may have due messages and should be read
+     */
+    public boolean isDue(String shardName) {
+        if (dueMarkers.containsKey(shardName))
+            return true;
+
+        Long last = lastRead.get(shardName);
+        return last == null || System.currentTimeMillis() - last >= slotDuration;
+    }
+
+    /**
+     * Reload the due markers if the poll interval elapsed since the last refresh.  Only one
+     * thread performs the refresh while all other callers return immediately.
+     * @return Shards that became due since the last refresh
+     * @throws MessageQueueException
+     */
+    public Collection<String> refreshIfNeeded() throws MessageQueueException {
+        long now  = System.currentTimeMillis();
+        long next = nextRefresh.get();
+        if (now < next || !nextRefresh.compareAndSet(next, now + settings.getPollInterval()))
+            return Collections.emptyList();
+        return refresh();
+    }
+
+    /**
+     * Read the markers of all slots up to the current slot and drop the rows of past buckets
+     * that no longer hold any markers
+     * @return Shards that became due since the last refresh
+     * @throws MessageQueueException
+     */
+    public synchronized Collection<String> refresh() throws MessageQueueException {
+        long now         = System.currentTimeMillis();
+        long nextSlot    = getSlot(now) + 1;
+        long lastBucket  = getBucket(nextSlot - 1);
+        if (firstBucket == null)
+            firstBucket = lastBucket - getLookbackBuckets();
+
+        Map<String, List<MessageMetadataEntry>> markers = Maps.newHashMap();
+        long oldestMarkerBucket = lastBucket;
+        try {
+            for (long bucket = firstBucket; bucket <= lastBucket; bucket += BUCKETS_PER_READ) {
+                List<String> keys = Lists.newArrayList();
+                for (long i = bucket; i <= lastBucket && i < bucket + BUCKETS_PER_READ; i++)
+                    keys.add(getBucketKey(i));
+
+                Iterator<Row<String, MessageMetadataEntry>> rows = keyspace.prepareQuery(keyIndexColumnFamily)
+                        .setConsistencyLevel(consistencyLevel)
+                        .getKeySlice(keys)
+                        .withColumnRange(getMarkerRange(nextSlot))
+                        .execute()
+                        .getResult()
+                        .iterator();
+
+                while (rows.hasNext()) {
+                    Row<String, MessageMetadataEntry> row = rows.next();
+                    ColumnList<MessageMetadataEntry> columns = row.getColumns();
+                    if (columns.isEmpty())
+                        continue;
+
+                    oldestMarkerBucket = Math.min(oldestMarkerBucket, getBucket(getMarkerSlot(columns.getColumnByIndex(0).getName())));
+                    if (columns.size() < MARKER_PAGE_SIZE) {
+                        addMarkers(markers, columns);
+                    }
+                    else {
+                        readAllMarkers(markers, row.getKey(), nextSlot);
+                    }
+                }
+            }
+        }
+        catch (NotFoundException e) {
+        }
+        catch (ConnectionException e) {
+            throw new MessageQueueException("Error reading timing wheel for queue " + settings.getQueueName(), e);
+        }
+
+        // Markers may still be written to the current and previous slot
+        long newFirstBucket = Math.min(oldestMarkerBucket, getBucket(Math.max(0, nextSlot - 3)));
+        if (newFirstBucket > firstBucket) {
+            dropBuckets(firstBucket, newFirstBucket);
+            firstBucket = newFirstBucket;
+        }
+
+        Collection<String> newlyDue = Sets.newHashSet();
+        for (Entry<String, List<MessageMetadataEntry>> entry : markers.entrySet()) {
+            if (!dueMarkers.containsKey(entry.getKey()))
+                newlyDue.add(entry.getKey());
+        }
+
+        dueMarkers = markers;
+        return newlyDue;
+    }
+
+    private long getLookbackBuckets() {
+        if (settings.getRetentionTimeout() == null)
+            return LOOKBACK_BUCKETS;
+        long retention = TimeUnit.MILLISECONDS.convert(settings.getRetentionTimeout(), TimeUnit.SECONDS);
+        return Math.min(MAX_LOOKBACK_BUCKETS, retention / (slotDuration * SLOTS_PER_BUCKET) + 1);
+    }
+
+    private ByteBufferRange getMarkerRange(long nextSlot) {
+        return metadataSerializer.buildRange()
+                .withPrefix((byte)MessageMetadataEntryType.Slot.ordinal())
+                .lessThan(getMarkerName(nextSlot, ""))
+                .limit(MARKER_PAGE_SIZE)
+                .build();
+    }
+
+    /**
+     * Page through a bucket row with more markers than fit into a single read
+     */
+    private void readAllMarkers(Map<String, List<MessageMetadataEntry>> markers, String rowKey, long nextSlot) throws ConnectionException {
+        RowQuery<String, MessageMetadataEntry> query = keyspace.prepareQuery(keyIndexColumnFamily)
+                .setConsistencyLevel(consistencyLevel)
+                .getKey(rowKey)
+                .withColumnRange(getMarkerRange(nextSlot))
+                .autoPaginate(true);
+
+        ColumnList<MessageMetadataEntry> columns;
+        while (!(columns = query.execute().getResult()).isEmpty()) {
+            addMarkers(markers, columns);
+        }
+    }
+
+    private static void addMarkers(Map<String, List<MessageMetadataEntry>> markers, ColumnList<MessageMetadataEntry> columns) {
+        for (Column<MessageMetadataEntry> column : columns) {
+            String shardName = StringUtils.substringAfter(column.getName().getName(), ":");
+            List<MessageMetadataEntry> shardMarkers = markers.get(shardName);
+            if (shardMarkers == null) {
+                shardMarkers = Lists.newArrayList();
+                markers.put(shardName, shardMarkers);
+            }
+            shardMarkers.add(column.getName());
+        }
+    }
+
+    /**
+     * Delete the rows of buckets that no longer hold any markers.  Failing to do so only leaves
+     * the tombstones of the removed markers until compaction since the rows are not read again.
+     */
+    private void dropBuckets(long fromBucket, long toBucket) {
+        MutationBatch mb = keyspace.prepareMutationBatch().setConsistencyLevel(consistencyLevel);
+        for (long bucket = fromBucket; bucket < toBucket; bucket++)
+            mb.withRow(keyIndexColumnFamily, getBucketKey(bucket)).delete();
+        try {
+            mb.execute();
+        }
+        catch (ConnectionException e) {
+            LOG.warn("Error dropping timing wheel buckets of queue " + settings.getQueueName(), e);
+        }
+    }
+}
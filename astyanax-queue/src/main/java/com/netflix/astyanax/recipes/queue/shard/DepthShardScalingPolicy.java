@@ -0,0 +1,74 @@
+package com.netflix.astyanax.recipes.queue.shard;
+
+import java.util.Map;
+
+import com.google.common.base.Preconditions;
+import com.netflix.astyanax.recipes.queue.MessageQueueSettings;
+
+/**
+ * Scale the number of shards so that each shard holds roughly a target number of 
+ * messages.  The shard count is doubled when consumers contend for shard locks more 
+ * often than the max contention rate.  To avoid flapping the queue is only shrunk once 
+ * the messages fit into half the current number of shards.
+ */
+public class DepthShardScalingPolicy implements ShardScalingPolicy {
+    public static final int    DEFAULT_MIN_SHARD_COUNT      = 1;
+    public static final int    DEFAULT_MAX_SHARD_COUNT      = 64;
+    public static final int    DEFAULT_TARGET_SHARD_DEPTH   = 10000;
+    public static final double DEFAULT_MAX_CONTENTION_RATE  = 10.0;
+    
+    private final int    minShardCount;
+    private final int    maxShardCount;
+    private final int    targetShardDepth;
+    private final double maxContentionRate;
+    
+    public DepthShardScalingPolicy() {
+        this(DEFAULT_MIN_SHARD_COUNT, DEFAULT_MAX_SHARD_COUNT, DEFAULT_TARGET_SHARD_DEPTH, DEFAULT_MAX_CONTENTION_RATE);
+    }
+    
+    /**
+     * @param minShardCount     Minimum number of shards
+     * @param maxShardCount     Maximum number of shards
+     * @param targetShardDepth  Number of messages per shard
+     * @param maxContentionRate Lock contentions per second after which the number of shards is doubled
+     */
+    public DepthShardScalingPolicy(int minShardCount, int maxShardCount, int targetShardDepth, double maxContentionRate) {
+        Preconditions.checkArgument(minShardCount > 0 && minShardCount <= maxShardCount, "Must have 0 < minShardCount <= maxShardCount");
+        Preconditions.checkArgument(targetShardDepth > 0, "targetShardDepth must be > 0");
+        
+        this.minShardCount     = minShardCount;
+        this.maxShardCount     = maxShardCount;
+        this.targetShardDepth  = targetShardDepth;
+        this.maxContentionRate = maxContentionRate;
+    }
+    
+    @Override
+    public int getShardCount(MessageQueueSettings settings, Map<String, Integer> shardDepths, long lockContentionCount, long interval) {
+        int current = settings.getShardCount();
+        
+        // Depth is per time partition since only one partition is active at a time
+        long depth = 0;
+        for (Integer count : shardDepths.values()) {
+            depth += count;
+        }
+        depth = depth / Math.max(1, settings.getPartitionCount());
+        
+        int desired = (int)Math.min(maxShardCount, (depth + targetShardDepth - 1) / targetShardDepth);
+        
+        if (interval > 0 && lockContentionCount * 1000.0 / interval > maxContentionRate) {
+            desired = Math.max(desired, current * 2);
+        }
+        
+        if (desired > current) {
+            return clamp(desired);
+        }
+        else if (desired <= current / 2) {
+            return clamp(Math.max(desired, current / 2));
+        }
+        return clamp(current);
+    }
+    
+    private int clamp(int shardCount) {
+        return Math.max(minShardCount, Math.min(maxShardCount, shardCount));
+    }
+}
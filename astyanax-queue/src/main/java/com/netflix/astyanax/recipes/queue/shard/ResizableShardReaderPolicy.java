@@ -0,0 +1,24 @@
+package com.netflix.astyanax.recipes.queue.shard;
+
+import java.util.Collection;
+
+import com.netflix.astyanax.recipes.queue.MessageQueueShard;
+
+/**
+ * Shard reader policy whose set of shards can change when the queue is resharded.
+ * A queue whose ShardReaderPolicy does not implement this interface keeps reading
+ * the shards it was created with.
+ */
+public interface ResizableShardReaderPolicy extends ShardReaderPolicy {
+    /**
+     * Start reading from shards that were added when the queue was resharded
+     * @param shards
+     */
+    void addShards(Collection<MessageQueueShard> shards);
+    
+    /**
+     * Stop reading from shards that were drained after the queue was resharded
+     * @param shardNames
+     */
+    void removeShards(Collection<String> shardNames);
+}
@@ -15,8 +15,9 @@ import com.netflix.astyanax.recipes.queue.MessageQueueShardStats;
 public interface ShardReaderPolicy {
     /**
      * Acquire the next shard to be processed.  Must call releaseShard when done reading
-     * from the shard
-     * @return
+     * from the shard.  May block for up to the poll interval waiting for a shard to become 
+     * ready for reading.
+     * @return Next shard or null if no shard was ready
      * @throws InterruptedException 
      */
     MessageQueueShard nextShard() throws InterruptedException;
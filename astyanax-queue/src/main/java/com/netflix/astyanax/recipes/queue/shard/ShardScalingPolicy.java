@@ -0,0 +1,22 @@
+package com.netflix.astyanax.recipes.queue.shard;
+
+import java.util.Map;
+
+import com.netflix.astyanax.recipes.queue.MessageQueueSettings;
+
+/**
+ * Policy for growing and shrinking the number of mod shards of a queue at runtime.
+ * The policy is evaluated periodically by the queue when refreshing its shard map.
+ */
+public interface ShardScalingPolicy {
+    /**
+     * Return the number of mod shards the queue should have. 
+     * 
+     * @param settings              Current queue settings
+     * @param shardDepths           Number of messages in each shard of the queue, keyed by shard name
+     * @param lockContentionCount   Number of times a consumer failed to lock a shard since the last evaluation
+     * @param interval              Time in milliseconds since the last evaluation
+     * @return New shard count or settings.getShardCount() to leave the queue unchanged
+     */
+    int getShardCount(MessageQueueSettings settings, Map<String, Integer> shardDepths, long lockContentionCount, long interval);
+}
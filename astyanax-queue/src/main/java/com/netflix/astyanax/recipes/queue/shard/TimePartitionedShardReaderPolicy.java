@@ -4,6 +4,10 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
@@ -14,47 +18,124 @@ import com.netflix.astyanax.recipes.queue.MessageQueueShard;
 import com.netflix.astyanax.recipes.queue.MessageQueueSettings;
 import com.netflix.astyanax.recipes.queue.MessageQueueShardStats;
 
-public class TimePartitionedShardReaderPolicy implements ShardReaderPolicy {
-    private static final String SEPARATOR = ":";
-    
+/**
+ * Shard reader policy that focuses on the shards of the current time partition.
+ *
+ * Shards of the current time partition that come up empty are not read again until
+ * a backoff period has elapsed.  The backoff starts at the poll interval and doubles for
+ * each consecutive empty read up to the max poll interval.  A shard is made available
+ * again immediately when a producer in this process writes to it (see wakeShard).
+ *
+ * Shards may be added and removed at runtime when the queue is resharded.
+ */
+public class TimePartitionedShardReaderPolicy implements WakeableShardReaderPolicy, ResizableShardReaderPolicy {
+    /**
+     * Shard that is waiting for its backoff period to expire
+     */
+    private static class ShardBackoff implements Delayed {
+        private final MessageQueueShard shard;
+        private final long              readTime;
+
+        ShardBackoff(MessageQueueShard shard, long readTime) {
+            this.shard    = shard;
+            this.readTime = readTime;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(readTime - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            long other = ((ShardBackoff)o).readTime;
+            return readTime < other ? -1 : (readTime > other ? 1 : 0);
+        }
+    }
+
     private final MessageQueueSettings          settings;
     private final List<MessageQueueShard>       shards;
-    private final Map<String, MessageQueueShardStats> shardStats;
+    private final ConcurrentMap<String, MessageQueueShardStats> shardStats;
+    private final ConcurrentMap<String, MessageQueueShard>      shardsByName;
     private final LinkedBlockingQueue<MessageQueueShard> workQueue = Queues.newLinkedBlockingQueue();
     private final LinkedBlockingQueue<MessageQueueShard> idleQueue = Queues.newLinkedBlockingQueue();
+    private final DelayQueue<ShardBackoff>               backoffQueue = new DelayQueue<ShardBackoff>();
+    private final ConcurrentMap<String, ShardBackoff>    backoffs  = Maps.newConcurrentMap();
 
-    private int currentTimePartition = -1;
+    private volatile int currentTimePartition = -1;
 
     public TimePartitionedShardReaderPolicy(MessageQueueSettings settings) {
+        this(settings, MessageQueueShard.newShards(settings, 0, settings.getReadShardCount()));
+    }
+
+    /**
+     * Create a policy that only reads from a subset of the queue's shards
+     * @param settings
+     * @param shards
+     */
+    public TimePartitionedShardReaderPolicy(MessageQueueSettings settings, Collection<MessageQueueShard> shards) {
         this.settings = settings;
+        this.shards       = new CopyOnWriteArrayList<MessageQueueShard>();
+        this.shardStats   = Maps.newConcurrentMap();
+        this.shardsByName = Maps.newConcurrentMap();
         
-        shards = Lists.newArrayListWithCapacity(settings.getPartitionCount() * settings.getShardCount());
-        for (int i = 0; i < settings.getPartitionCount(); i++) {
-            for (int j = 0; j < settings.getShardCount(); j++) {
-                shards.add(new MessageQueueShard(settings.getQueueName() + SEPARATOR + i + SEPARATOR + j, i, j));
-            }
-        }
-        
+        addShards(shards);
+    }
+    
+    @Override
+    public void addShards(Collection<MessageQueueShard> shards) {
         List<MessageQueueShard> queues = Lists.newArrayList();
-        shardStats = Maps.newHashMapWithExpectedSize(shards.size());
         for (MessageQueueShard shard : shards) {
-            queues.add(shard);
-            shardStats.put(shard.getName(),  shard);
+            if (shardsByName.putIfAbsent(shard.getName(), shard) == null) {
+                queues.add(shard);
+                shardStats.put(shard.getName(),  shard);
+            }
         }
         
+        this.shards.addAll(queues);
         Collections.shuffle(queues);
         workQueue.addAll(queues);
     }
+    
+    @Override
+    public void removeShards(Collection<String> shardNames) {
+        for (String shardName : shardNames) {
+            MessageQueueShard shard = shardsByName.remove(shardName);
+            if (shard == null)
+                continue;
+            
+            shardStats.remove(shardName);
+            shards.remove(shard);
+            workQueue.remove(shard);
+            idleQueue.remove(shard);
+            
+            ShardBackoff backoff = backoffs.remove(shardName);
+            if (backoff != null)
+                backoffQueue.remove(backoff);
+        }
+    }
 
     private int getCurrentPartitionIndex() {
-        if (settings.getPartitionCount() <= 1) 
+        if (settings.getPartitionCount() <= 1)
             return 0;
         return    (int) ((TimeUnit.MICROSECONDS.convert(System.currentTimeMillis(), TimeUnit.MILLISECONDS)
                         / settings.getPartitionDuration())%settings.getPartitionCount());
     }
-    
+
     @Override
     public MessageQueueShard nextShard() throws InterruptedException {
+        return nextShard(settings.getPollInterval(), TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Acquire the next shard to be processed, waiting up to the specified time for a
+     * shard to become ready
+     * @param timeout
+     * @param units
+     * @return Next shard or null if no shard was ready
+     * @throws InterruptedException
+     */
+    public MessageQueueShard nextShard(long timeout, TimeUnit units) throws InterruptedException {
         // We transitioned to a new time partition
         int timePartition = getCurrentPartitionIndex();
         if (timePartition != currentTimePartition) {
@@ -62,7 +143,7 @@ public class TimePartitionedShardReaderPolicy implements ShardReaderPolicy {
                 // Double check
                 if (timePartition != currentTimePartition) {
                     currentTimePartition = timePartition;
-                    
+
                     // Drain the idle queue and transfer all shards from the
                     // current partition to the work queue
                     List<MessageQueueShard> temp = Lists.newArrayListWithCapacity(idleQueue.size());
@@ -78,23 +159,89 @@ public class TimePartitionedShardReaderPolicy implements ShardReaderPolicy {
                 }
             }
         }
-        
-        return workQueue.poll(settings.getPollInterval(), TimeUnit.MILLISECONDS);
+
+        // Return shards whose backoff expired to the work queue
+        List<ShardBackoff> expired = Lists.newArrayList();
+        backoffQueue.drainTo(expired);
+        for (ShardBackoff backoff : expired) {
+            backoffs.remove(backoff.shard.getName(), backoff);
+            if (shardsByName.containsKey(backoff.shard.getName()))
+                workQueue.add(backoff.shard);
+        }
+
+        // Don't wait past the time the next shard's backoff expires
+        long wait = TimeUnit.MILLISECONDS.convert(timeout, units);
+        ShardBackoff next = backoffQueue.peek();
+        if (next != null && wait > 0)
+            wait = Math.max(1, Math.min(wait, next.getDelay(TimeUnit.MILLISECONDS)));
+
+        return workQueue.poll(wait, TimeUnit.MILLISECONDS);
     }
 
     @Override
     public void releaseShard(MessageQueueShard shard, int messagesRead) {
+        shard.setLastCount(messagesRead);
+        
+        // Shard was removed while it was being read
+        if (!shardsByName.containsKey(shard.getName()))
+            return;
+
         // Shard is not in the current partition and we did't final any messages so let's just put in the
         // idle queue.  It'll be added back later when in this shard's time partition.
         // May want to randomly check an idle queue when there is nothing in the working queue
         if (shard.getPartition() != currentTimePartition && messagesRead == 0) {
             idleQueue.add(shard);
         }
+        // Shard was empty so back off from reading it again.  The backoff is registered under the same 
+        // lock as wakeShard so that a wakeup can't miss a backoff that is only partially registered.
+        else if (messagesRead == 0) {
+            ShardBackoff backoff = new ShardBackoff(shard, System.currentTimeMillis() + getBackoff(shard.getEmptyReadCount()));
+            synchronized (backoffs) {
+                backoffs.put(shard.getName(), backoff);
+                backoffQueue.add(backoff);
+            }
+        }
         else {
             workQueue.add(shard);
         }
     }
 
+    @Override
+    public void wakeShard(String shardName) {
+        MessageQueueShard shard = shardsByName.get(shardName);
+        if (shard == null)
+            return;
+
+        shard.resetEmptyReadCount();
+        
+        // Whoever removes the backoff from the queue owns putting the shard back in the work queue
+        synchronized (backoffs) {
+            ShardBackoff backoff = backoffs.get(shardName);
+            if (backoff == null || !backoffQueue.remove(backoff)) 
+                return;
+            backoffs.remove(shardName, backoff);
+        }
+        workQueue.add(shard);
+    }
+
+    /**
+     * Time in milliseconds at which a shard that is backing off will be read again
+     * @param shardName
+     * @return Read time or null if the shard is not backing off
+     */
+    Long getBackoffReadTime(String shardName) {
+        ShardBackoff backoff = backoffs.get(shardName);
+        return backoff == null ? null : backoff.readTime;
+    }
+
+    private long getBackoff(int emptyReadCount) {
+        long backoff = settings.getPollInterval();
+        for (int i = 1; i < emptyReadCount && backoff < settings.getMaxPollInterval(); i++) {
+            backoff *= 2;
+        }
+        return Math.min(backoff, Math.max(settings.getPollInterval(), settings.getMaxPollInterval()));
+    }
+
     @Override
     public Collection<MessageQueueShard> listShards() {
         return Collections.unmodifiableList(shards);
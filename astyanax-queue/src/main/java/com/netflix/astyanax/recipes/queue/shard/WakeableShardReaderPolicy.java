@@ -0,0 +1,15 @@
+package com.netflix.astyanax.recipes.queue.shard;
+
+/**
+ * Shard reader policy that can be told when a shard just received messages.  The queue 
+ * only wakes up shards if its ShardReaderPolicy implements this interface.
+ */
+public interface WakeableShardReaderPolicy extends ShardReaderPolicy {
+    /**
+     * Notification that messages that are ready to be consumed were just written
+     * to a shard.  The policy should make the shard available for reading right away
+     * if it is currently backing off from reading it.
+     * @param shardName
+     */
+    void wakeShard(String shardName);
+}
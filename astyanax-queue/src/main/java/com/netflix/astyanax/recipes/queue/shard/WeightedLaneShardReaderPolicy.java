@@ -0,0 +1,159 @@
+package com.netflix.astyanax.recipes.queue.shard;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.netflix.astyanax.recipes.queue.MessageQueueSettings;
+import com.netflix.astyanax.recipes.queue.MessageQueueShard;
+import com.netflix.astyanax.recipes.queue.MessageQueueShardStats;
+
+/**
+ * Shard reader policy for queues with priority lanes.  Each lane's shards are scheduled by
+ * their own TimePartitionedShardReaderPolicy and lanes are picked using smooth weighted round 
+ * robin so that higher priority lanes are read more often while lower priority lanes still get 
+ * their share of reads.  When the chosen lane has no shard ready the remaining lanes are tried
+ * in weighted order so that an idle lane does not hold back the others.
+ * 
+ * By default lane i has weight 2^(laneCount - 1 - i) so that lane 0 gets half of the reads.
+ */
+public class WeightedLaneShardReaderPolicy implements WakeableShardReaderPolicy, ResizableShardReaderPolicy {
+    private final MessageQueueSettings                     settings;
+    private final List<TimePartitionedShardReaderPolicy>   lanes = Lists.newArrayList();
+    private final int[]                                    weights;
+    private final int[]                                    current;
+    private final int                                      totalWeight;
+    
+    public WeightedLaneShardReaderPolicy(MessageQueueSettings settings) {
+        this(settings, MessageQueueShard.newShards(settings, 0, settings.getReadShardCount()), null);
+    }
+    
+    /**
+     * @param settings
+     * @param shards  Shards to read from
+     * @param weights Weight of each lane or null for the default weights
+     */
+    public WeightedLaneShardReaderPolicy(MessageQueueSettings settings, Collection<MessageQueueShard> shards, int[] weights) {
+        int laneCount = settings.getLaneCount();
+        if (weights == null) {
+            weights = new int[laneCount];
+            for (int i = 0; i < laneCount; i++) {
+                weights[i] = 1 << Math.min(30, laneCount - 1 - i);
+            }
+        }
+        Preconditions.checkArgument(weights.length == laneCount, "Must specify one weight per lane");
+        
+        this.settings = settings;
+        this.weights  = Arrays.copyOf(weights, weights.length);
+        this.current  = new int[laneCount];
+        
+        int total = 0;
+        for (int i = 0; i < laneCount; i++) {
+            Preconditions.checkArgument(weights[i] > 0, "Lane weights must be > 0");
+            total += weights[i];
+            lanes.add(new TimePartitionedShardReaderPolicy(settings, Collections.<MessageQueueShard>emptyList()));
+        }
+        this.totalWeight = total;
+        
+        addShards(shards);
+    }
+    
+    /**
+     * Return the order in which lanes should be tried for the next read
+     */
+    private synchronized Integer[] nextLaneOrder() {
+        for (int i = 0; i < current.length; i++) {
+            current[i] += weights[i];
+        }
+        
+        Integer[] order = new Integer[current.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return current[o2] - current[o1];
+            }
+        });
+        
+        current[order[0]] -= totalWeight;
+        return order;
+    }
+    
+    @Override
+    public MessageQueueShard nextShard() throws InterruptedException {
+        Integer[] order = nextLaneOrder();
+        
+        // First try all lanes without waiting
+        for (Integer lane : order) {
+            MessageQueueShard shard = lanes.get(lane).nextShard(0, TimeUnit.MILLISECONDS);
+            if (shard != null) 
+                return shard;
+        }
+        
+        // Then split the poll interval between the lanes
+        long wait = Math.max(1, settings.getPollInterval() / order.length);
+        for (Integer lane : order) {
+            MessageQueueShard shard = lanes.get(lane).nextShard(wait, TimeUnit.MILLISECONDS);
+            if (shard != null) 
+                return shard;
+        }
+        return null;
+    }
+
+    @Override
+    public void releaseShard(MessageQueueShard shard, int messagesRead) {
+        getLane(shard).releaseShard(shard, messagesRead);
+    }
+
+    @Override
+    public void wakeShard(String shardName) {
+        for (TimePartitionedShardReaderPolicy lane : lanes) {
+            lane.wakeShard(shardName);
+        }
+    }
+
+    @Override
+    public void addShards(Collection<MessageQueueShard> shards) {
+        for (MessageQueueShard shard : shards) {
+            getLane(shard).addShards(Collections.singletonList(shard));
+        }
+    }
+
+    @Override
+    public void removeShards(Collection<String> shardNames) {
+        for (TimePartitionedShardReaderPolicy lane : lanes) {
+            lane.removeShards(shardNames);
+        }
+    }
+
+    @Override
+    public Collection<MessageQueueShard> listShards() {
+        List<MessageQueueShard> shards = Lists.newArrayList();
+        for (TimePartitionedShardReaderPolicy lane : lanes) {
+            shards.addAll(lane.listShards());
+        }
+        return Collections.unmodifiableList(shards);
+    }
+
+    @Override
+    public Map<String, MessageQueueShardStats> getShardStats() {
+        Map<String, MessageQueueShardStats> stats = Maps.newHashMap();
+        for (TimePartitionedShardReaderPolicy lane : lanes) {
+            stats.putAll(lane.getShardStats());
+        }
+        return stats;
+    }
+    
+    private TimePartitionedShardReaderPolicy getLane(MessageQueueShard shard) {
+        return lanes.get(Math.min(shard.getLane(), lanes.size() - 1));
+    }
+}
@@ -0,0 +1,105 @@
+package com.netflix.astyanax.recipes.queue;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.apache.commons.lang.StringUtils;
+import org.junit.Test;
+
+import com.google.common.collect.Maps;
+import com.netflix.astyanax.recipes.queue.triggers.RepeatingTrigger;
+import com.netflix.astyanax.util.TimeUUIDUtils;
+
+public class BinaryMessageCodecTest {
+    private Message newMessage() {
+        Map<String, Object> map = Maps.newHashMap();
+        map.put("a", 1.5);
+        return new Message()
+            .setUniqueKey("key-1")
+            .setTaskClass("com.example.Task")
+            .setTimeout(30, TimeUnit.SECONDS)
+            .setTrigger(new RepeatingTrigger.Builder()
+                .withInterval(5, TimeUnit.SECONDS)
+                .withRepeatCount(10)
+                .build())
+            .setToken(TimeUUIDUtils.getUniqueTimeUUIDinMicros())
+            .setRandom(TimeUUIDUtils.getUniqueTimeUUIDinMicros())
+            .addParameter("string", "value")
+            .addParameter("long",   Long.MAX_VALUE)
+            .addParameter("int",    7)
+            .addParameter("map",    map)
+            .addParameter("list",   Arrays.<Object>asList("x", null, true));
+    }
+
+    private void assertMessageEquals(Message expected, Message actual) {
+        Assert.assertEquals(expected.getToken(),     actual.getToken());
+        Assert.assertEquals(expected.getRandom(),    actual.getRandom());
+        Assert.assertEquals(expected.getKey(),       actual.getKey());
+        Assert.assertEquals(expected.getTaskClass(), actual.getTaskClass());
+        Assert.assertEquals(expected.getTimeout(),   actual.getTimeout());
+        Assert.assertEquals(expected.getPriority(),  actual.getPriority());
+        Assert.assertEquals(expected.getTrigger().getTriggerTime(), actual.getTrigger().getTriggerTime());
+        Assert.assertEquals(expected.getTrigger().getClass(),       actual.getTrigger().getClass());
+        Assert.assertEquals(
+                ((RepeatingTrigger)expected.getTrigger()).getRepeatCount(),
+                ((RepeatingTrigger)actual.getTrigger()).getRepeatCount());
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Message message = newMessage();
+        MessageCodec codec = new BinaryMessageCodec();
+
+        byte[] data = codec.encode(message);
+        Message decoded = codec.decode(data);
+
+        assertMessageEquals(message, decoded);
+        Assert.assertTrue(decoded.hasUniqueKey());
+        Map<String, Object> parameters = decoded.getParameters();
+        Assert.assertEquals(Long.MAX_VALUE, parameters.get("long"));
+        Assert.assertEquals(7,              parameters.get("int"));
+        Assert.assertEquals(1.5,            ((Map<?, ?>)parameters.get("map")).get("a"));
+        Assert.assertEquals(Arrays.<Object>asList("x", null, true), parameters.get("list"));
+
+        Assert.assertTrue(data.length < new JsonMessageCodec().encode(message).length);
+    }
+
+    @Test
+    public void testReadsJson() throws Exception {
+        Message message = newMessage();
+
+        byte[] json = new JsonMessageCodec().encode(message);
+        assertMessageEquals(message, new BinaryMessageCodec().decode(json));
+
+        byte[] binary = new BinaryMessageCodec().encode(message);
+        assertMessageEquals(message, new JsonMessageCodec().decode(binary));
+    }
+
+    @Test
+    public void testJsonUniqueKey() throws Exception {
+        MessageCodec codec = new JsonMessageCodec();
+        Assert.assertTrue(codec.decode(codec.encode(newMessage())).hasUniqueKey());
+
+        // Messages without a unique key stay readable by instances that don't know the flag
+        byte[] json = codec.encode(new Message().setKey("key-2"));
+        Assert.assertFalse(new String(json, "UTF-8").contains("hasUniqueKey"));
+        Assert.assertFalse(codec.decode(json).hasUniqueKey());
+    }
+
+    @Test
+    public void testCompression() throws Exception {
+        Message message = newMessage().addParameter("body", StringUtils.repeat("abcdefgh", 1000));
+        MessageCodec codec = new BinaryMessageCodec(1024);
+
+        byte[] data = codec.encode(message);
+        Assert.assertEquals(BinaryMessageCodec.FLAG_SNAPPY, data[2]);
+        Assert.assertTrue(data.length < 1024);
+
+        Message decoded = codec.decode(data);
+        assertMessageEquals(message, decoded);
+        Assert.assertEquals(message.getParameters().get("body"), decoded.getParameters().get("body"));
+    }
+}
@@ -0,0 +1,40 @@
+package com.netflix.astyanax.recipes.queue;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class CountingQueueStatsTest {
+    @Test
+    public void testConsumeLagPercentiles() {
+        CountingQueueStats stats = new CountingQueueStats();
+        Assert.assertEquals(0, stats.getConsumeLagPercentile(99));
+        
+        for (int i = 0; i < 90; i++) {
+            stats.recordConsumeLag(0);
+        }
+        for (int i = 0; i < 9; i++) {
+            stats.recordConsumeLag(100);
+        }
+        stats.recordConsumeLag(5000);
+        
+        long[] histogram = stats.getConsumeLagHistogram();
+        Assert.assertEquals(90, histogram[0]);
+        Assert.assertEquals(9,  histogram[7]);     // [64, 128)
+        Assert.assertEquals(1,  histogram[13]);    // [4096, 8192)
+        
+        Assert.assertEquals(1,    stats.getConsumeLagPercentile(50));
+        Assert.assertEquals(128,  stats.getConsumeLagPercentile(99));
+        Assert.assertEquals(8192, stats.getConsumeLagPercentile(100));
+    }
+    
+    @Test
+    public void testDepthSample() {
+        CountingQueueStats stats = new CountingQueueStats();
+        Assert.assertEquals(-1, stats.getDepthEstimate());
+        
+        stats.setDepthSample(42, 1000);
+        Assert.assertEquals(42,   stats.getDepthEstimate());
+        Assert.assertEquals(1000, stats.getOldestMessageAge());
+    }
+}
@@ -0,0 +1,45 @@
+package com.netflix.astyanax.recipes.queue;
+
+import junit.framework.Assert;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+public class MessageQueueSettingsTest {
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    public void testDefaultsNotWritten() throws Exception {
+        MessageQueueSettings settings = new MessageQueueSettings();
+        settings.setQueueName("SettingsQueue");
+        settings.setShardCount(4);
+
+        // Only properties known to instances from before the newer settings were added
+        JsonNode node = mapper.readTree(mapper.writeValueAsString(settings));
+        Assert.assertEquals(Sets.newHashSet("queueName", "shardCount"), Sets.newHashSet(Lists.newArrayList(node.getFieldNames())));
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        MessageQueueSettings settings = new MessageQueueSettings();
+        settings.setShardCount(4);
+        settings.setReadShardCount(8);
+        settings.setShardMapVersion(3);
+        settings.setMessageCodec(MessageCodecType.BINARY);
+
+        MessageQueueSettings read = mapper.readValue(mapper.writeValueAsString(settings), MessageQueueSettings.class);
+        Assert.assertEquals(4, read.getShardCount());
+        Assert.assertEquals(8, read.getReadShardCount());
+        Assert.assertEquals(3, read.getShardMapVersion());
+        Assert.assertEquals(MessageCodecType.BINARY, read.getMessageCodec());
+
+        // The read shard count is dropped once the removed shards are drained
+        settings.setReadShardCount(4);
+        JsonNode node = mapper.readTree(mapper.writeValueAsString(settings));
+        Assert.assertFalse(node.has("readShardCount"));
+    }
+}
@@ -0,0 +1,184 @@
+package com.netflix.astyanax.recipes.queue;
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.netflix.astyanax.AstyanaxContext;
+import com.netflix.astyanax.Keyspace;
+import com.netflix.astyanax.connectionpool.NodeDiscoveryType;
+import com.netflix.astyanax.connectionpool.impl.ConnectionPoolConfigurationImpl;
+import com.netflix.astyanax.connectionpool.impl.ConnectionPoolType;
+import com.netflix.astyanax.connectionpool.impl.CountingConnectionPoolMonitor;
+import com.netflix.astyanax.impl.AstyanaxConfigurationImpl;
+import com.netflix.astyanax.model.Column;
+import com.netflix.astyanax.model.ColumnFamily;
+import com.netflix.astyanax.model.ConsistencyLevel;
+import com.netflix.astyanax.serializers.AnnotatedCompositeSerializer;
+import com.netflix.astyanax.serializers.StringSerializer;
+import com.netflix.astyanax.thrift.ThriftFamilyFactory;
+import com.netflix.astyanax.util.SingletonEmbeddedCassandra;
+import com.netflix.astyanax.util.TimeUUIDUtils;
+
+public class ShardLeaseManagerTest {
+    private static Keyspace                  keyspace;
+    private static AstyanaxContext<Keyspace> keyspaceContext;
+
+    private static final String TEST_CLUSTER_NAME  = "cass_sandbox";
+    private static final String TEST_KEYSPACE_NAME = "ShardLeaseManagerTest";
+    private static final String CF_NAME            = "LeaseQueue";
+    private static final String SEEDS              = "localhost:9160";
+    private static final long   CASSANDRA_WAIT_TIME = 3000;
+    private static final long   LOCK_TIMEOUT       = TimeUnit.MICROSECONDS.convert(30, TimeUnit.SECONDS);
+    private static final long   LEASE_DURATION     = TimeUnit.MICROSECONDS.convert(10, TimeUnit.SECONDS);
+    private static final ConsistencyLevel CONSISTENCY_LEVEL = ConsistencyLevel.CL_ONE;
+
+    private static final ColumnFamily<String, MessageQueueEntry> CF_QUEUE = ColumnFamily.newColumnFamily(
+            CF_NAME + ShardedDistributedMessageQueue.DEFAULT_QUEUE_SUFFIX,
+            StringSerializer.get(),
+            new AnnotatedCompositeSerializer<MessageQueueEntry>(MessageQueueEntry.class));
+    private static final ColumnFamily<String, MessageMetadataEntry> CF_METADATA = ColumnFamily.newColumnFamily(
+            CF_NAME + ShardedDistributedMessageQueue.DEFAULT_METADATA_SUFFIX,
+            StringSerializer.get(),
+            new AnnotatedCompositeSerializer<MessageMetadataEntry>(MessageMetadataEntry.class));
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        SingletonEmbeddedCassandra.getInstance();
+
+        Thread.sleep(CASSANDRA_WAIT_TIME);
+
+        keyspaceContext = new AstyanaxContext.Builder()
+                .forCluster(TEST_CLUSTER_NAME)
+                .forKeyspace(TEST_KEYSPACE_NAME)
+                .withAstyanaxConfiguration(
+                        new AstyanaxConfigurationImpl()
+                                .setDiscoveryType(NodeDiscoveryType.RING_DESCRIBE)
+                                .setConnectionPoolType(ConnectionPoolType.TOKEN_AWARE)
+                                .setDiscoveryDelayInSeconds(60000))
+                .withConnectionPoolConfiguration(
+                        new ConnectionPoolConfigurationImpl(TEST_CLUSTER_NAME
+                                + "_" + TEST_KEYSPACE_NAME)
+                                .setSocketTimeout(30000)
+                                .setMaxTimeoutWhenExhausted(2000)
+                                .setMaxConnsPerHost(10)
+                                .setInitConnsPerHost(2)
+                                .setSeeds(SEEDS))
+                .withConnectionPoolMonitor(new CountingConnectionPoolMonitor())
+                .buildKeyspace(ThriftFamilyFactory.getInstance());
+
+        keyspaceContext.start();
+
+        keyspace = keyspaceContext.getEntity();
+
+        try {
+            keyspace.dropKeyspace();
+        }
+        catch (Exception e) {
+        }
+
+        keyspace.createKeyspace(ImmutableMap.<String, Object>builder()
+                .put("strategy_options", ImmutableMap.<String, Object>builder()
+                        .put("replication_factor", "1")
+                        .build())
+                .put("strategy_class",     "SimpleStrategy")
+                .build()
+                );
+
+        new ShardedDistributedMessageQueue.Builder()
+            .withColumnFamily(CF_NAME)
+            .withQueueName("LeaseQueue")
+            .withKeyspace(keyspace)
+            .withConsistencyLevel(CONSISTENCY_LEVEL)
+            .build()
+            .createStorage();
+    }
+
+    @AfterClass
+    public static void teardown() throws Exception {
+        if (keyspaceContext != null)
+            keyspaceContext.shutdown();
+
+        Thread.sleep(CASSANDRA_WAIT_TIME);
+    }
+
+    private ShardLeaseManager newLeaseManager(String queueName) {
+        return new ShardLeaseManager(keyspace, CF_QUEUE, CF_METADATA, CONSISTENCY_LEVEL, queueName, 1, LEASE_DURATION, new CountingQueueStats());
+    }
+
+    /**
+     * Write a lock column the way a consumer does when it locks a shard for a single read
+     */
+    private MessageQueueEntry writeReadLock(String shardName, long expirationOffset) throws Exception {
+        MessageQueueEntry lockColumn = MessageQueueEntry.newLockEntry(MessageQueueEntryState.None);
+        long curTimeMillis = TimeUUIDUtils.getTimeFromUUID(lockColumn.getTimestamp());
+        lockColumn = MessageQueueEntry.newLockEntry(lockColumn.getTimestamp(), MessageQueueEntryState.Acquired);
+        keyspace.prepareColumnMutation(CF_QUEUE, shardName, lockColumn)
+            .putValue(curTimeMillis + expirationOffset, 60)
+            .execute();
+        return lockColumn;
+    }
+
+    private boolean hasLock(String shardName, MessageQueueEntry lock) throws Exception {
+        for (Column<MessageQueueEntry> column : keyspace.prepareQuery(CF_QUEUE).getKey(shardName).execute().getResult()) {
+            MessageQueueEntry entry = column.getName();
+            if (entry.getType() == MessageQueueEntryType.Lock
+                    && entry.getState() == lock.getState()
+                    && entry.getTimestamp().equals(lock.getTimestamp()))
+                return true;
+        }
+        return false;
+    }
+
+    @Test
+    public void testLiveReadLockBlocksLease() throws Exception {
+        String shardName = "LiveLockQueue:0:0";
+        MessageQueueEntry readLock = writeReadLock(shardName, LOCK_TIMEOUT);
+
+        ShardLeaseManager leaseManager = newLeaseManager("LiveLockQueue");
+        Assert.assertFalse(leaseManager.acquire(shardName));
+        Assert.assertFalse(leaseManager.isOwned(shardName));
+
+        // The consumer still holds its lock
+        Assert.assertTrue(hasLock(shardName, readLock));
+        leaseManager.releaseAll();
+    }
+
+    @Test
+    public void testExpiredReadLockIsReclaimed() throws Exception {
+        String shardName = "ExpiredLockQueue:0:0";
+        MessageQueueEntry readLock = writeReadLock(shardName, -LOCK_TIMEOUT);
+
+        ShardLeaseManager leaseManager = newLeaseManager("ExpiredLockQueue");
+        Assert.assertTrue(leaseManager.acquire(shardName));
+        Assert.assertTrue(leaseManager.isOwned(shardName));
+        Assert.assertFalse(hasLock(shardName, readLock));
+
+        leaseManager.releaseAll();
+        Assert.assertFalse(leaseManager.isOwned(shardName));
+    }
+
+    @Test
+    public void testLockValueFormat() throws Exception {
+        MessageQueueEntry lockColumn = MessageQueueEntry.newLockEntry(MessageQueueEntryState.None);
+        long lockTimeMicros = TimeUUIDUtils.getMicrosTimeFromUUID(lockColumn.getTimestamp());
+        long lockTimeMillis = TimeUUIDUtils.getTimeFromUUID(lockColumn.getTimestamp());
+
+        // A lock written by a consumer locking the shard for a single read
+        Assert.assertEquals(lockTimeMicros + LOCK_TIMEOUT,
+                ShardLeaseManager.decodeExpiration(lockColumn.getTimestamp(), lockTimeMillis + LOCK_TIMEOUT));
+
+        // A lease is written in the same format
+        Assert.assertEquals(lockTimeMillis + LEASE_DURATION,
+                ShardLeaseManager.encodeExpiration(lockColumn.getTimestamp(), lockTimeMicros + LEASE_DURATION));
+
+        long expiration = lockTimeMicros + 3 * LEASE_DURATION;
+        Assert.assertEquals(expiration, ShardLeaseManager.decodeExpiration(lockColumn.getTimestamp(),
+                ShardLeaseManager.encodeExpiration(lockColumn.getTimestamp(), expiration)));
+    }
+}
@@ -0,0 +1,201 @@
+package com.netflix.astyanax.recipes.queue;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.netflix.astyanax.AstyanaxContext;
+import com.netflix.astyanax.Keyspace;
+import com.netflix.astyanax.MutationBatch;
+import com.netflix.astyanax.connectionpool.NodeDiscoveryType;
+import com.netflix.astyanax.connectionpool.impl.ConnectionPoolConfigurationImpl;
+import com.netflix.astyanax.connectionpool.impl.ConnectionPoolType;
+import com.netflix.astyanax.connectionpool.impl.CountingConnectionPoolMonitor;
+import com.netflix.astyanax.impl.AstyanaxConfigurationImpl;
+import com.netflix.astyanax.model.ColumnFamily;
+import com.netflix.astyanax.model.ConsistencyLevel;
+import com.netflix.astyanax.serializers.AnnotatedCompositeSerializer;
+import com.netflix.astyanax.serializers.StringSerializer;
+import com.netflix.astyanax.thrift.ThriftFamilyFactory;
+import com.netflix.astyanax.util.SingletonEmbeddedCassandra;
+
+public class TimingWheelTest {
+    private static Keyspace                  keyspace;
+    private static AstyanaxContext<Keyspace> keyspaceContext;
+
+    private static final String TEST_CLUSTER_NAME  = "cass_sandbox";
+    private static final String TEST_KEYSPACE_NAME = "TimingWheelTest";
+    private static final String CF_NAME            = "WheelQueue";
+    private static final String SEEDS              = "localhost:9160";
+    private static final long   CASSANDRA_WAIT_TIME = 3000;
+    private static final long   SLOT_DURATION      = TimeUnit.MILLISECONDS.convert(1, TimeUnit.SECONDS);
+    private static final ConsistencyLevel CONSISTENCY_LEVEL = ConsistencyLevel.CL_ONE;
+
+    private static final ColumnFamily<String, MessageMetadataEntry> CF_METADATA = ColumnFamily.newColumnFamily(
+            CF_NAME + ShardedDistributedMessageQueue.DEFAULT_METADATA_SUFFIX,
+            StringSerializer.get(),
+            new AnnotatedCompositeSerializer<MessageMetadataEntry>(MessageMetadataEntry.class));
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        SingletonEmbeddedCassandra.getInstance();
+
+        Thread.sleep(CASSANDRA_WAIT_TIME);
+
+        keyspaceContext = new AstyanaxContext.Builder()
+                .forCluster(TEST_CLUSTER_NAME)
+                .forKeyspace(TEST_KEYSPACE_NAME)
+                .withAstyanaxConfiguration(
+                        new AstyanaxConfigurationImpl()
+                                .setDiscoveryType(NodeDiscoveryType.RING_DESCRIBE)
+                                .setConnectionPoolType(ConnectionPoolType.TOKEN_AWARE)
+                                .setDiscoveryDelayInSeconds(60000))
+                .withConnectionPoolConfiguration(
+                        new ConnectionPoolConfigurationImpl(TEST_CLUSTER_NAME
+                                + "_" + TEST_KEYSPACE_NAME)
+                                .setSocketTimeout(30000)
+                                .setMaxTimeoutWhenExhausted(2000)
+                                .setMaxConnsPerHost(10)
+                                .setInitConnsPerHost(2)
+                                .setSeeds(SEEDS))
+                .withConnectionPoolMonitor(new CountingConnectionPoolMonitor())
+                .buildKeyspace(ThriftFamilyFactory.getInstance());
+
+        keyspaceContext.start();
+
+        keyspace = keyspaceContext.getEntity();
+
+        try {
+            keyspace.dropKeyspace();
+        }
+        catch (Exception e) {
+        }
+
+        keyspace.createKeyspace(ImmutableMap.<String, Object>builder()
+                .put("strategy_options", ImmutableMap.<String, Object>builder()
+                        .put("replication_factor", "1")
+                        .build())
+                .put("strategy_class",     "SimpleStrategy")
+                .build()
+                );
+
+        new ShardedDistributedMessageQueue.Builder()
+            .withColumnFamily(CF_NAME)
+            .withQueueName("WheelQueue")
+            .withKeyspace(keyspace)
+            .withConsistencyLevel(CONSISTENCY_LEVEL)
+            .build()
+            .createStorage();
+    }
+
+    @AfterClass
+    public static void teardown() throws Exception {
+        if (keyspaceContext != null)
+            keyspaceContext.shutdown();
+
+        Thread.sleep(CASSANDRA_WAIT_TIME);
+    }
+
+    private TimingWheel newTimingWheel(String queueName) {
+        MessageQueueSettings settings = new MessageQueueSettings();
+        settings.setQueueName(queueName);
+        settings.setTimingWheelSlotDuration(SLOT_DURATION);
+        return new TimingWheel(keyspace, CF_METADATA, CONSISTENCY_LEVEL, settings);
+    }
+
+    private long getCurrentSlot(TimingWheel wheel) {
+        return wheel.getSlot(System.currentTimeMillis());
+    }
+
+    private int getBucketSize(TimingWheel wheel, long bucket) throws Exception {
+        return keyspace.prepareQuery(CF_METADATA).getKey(wheel.getBucketKey(bucket)).getCount().execute().getResult();
+    }
+
+    @Test
+    public void testOnlyDueMarkersAreRead() throws Exception {
+        TimingWheel wheel = newTimingWheel("DueQueue");
+        long slot = getCurrentSlot(wheel);
+
+        MutationBatch mb = keyspace.prepareMutationBatch();
+        wheel.fillSlotMarkerMutation(mb, "DueQueue:0:0", slot - 10 * TimingWheel.SLOTS_PER_BUCKET);
+        wheel.fillSlotMarkerMutation(mb, "DueQueue:1:0", slot);
+        wheel.fillSlotMarkerMutation(mb, "DueQueue:2:0", slot + 10 * TimingWheel.SLOTS_PER_BUCKET);
+        mb.execute();
+
+        Collection<String> due = wheel.refresh();
+        Assert.assertEquals(ImmutableSet.of("DueQueue:0:0", "DueQueue:1:0"), ImmutableSet.copyOf(due));
+
+        // Buckets before the oldest marker are no longer read
+        Assert.assertEquals(wheel.getBucket(slot) - 10, (long)wheel.getFirstBucket());
+
+        // Nothing became due since the last refresh
+        Assert.assertTrue(wheel.refresh().isEmpty());
+    }
+
+    @Test
+    public void testDrainedBucketIsDropped() throws Exception {
+        TimingWheel wheel = newTimingWheel("DrainQueue");
+        String shardName = "DrainQueue:0:0";
+        long oldBucket = wheel.getBucket(getCurrentSlot(wheel)) - 5;
+
+        MutationBatch mb = keyspace.prepareMutationBatch();
+        wheel.fillSlotMarkerMutation(mb, shardName, oldBucket * TimingWheel.SLOTS_PER_BUCKET);
+        mb.execute();
+
+        Assert.assertEquals(ImmutableSet.of(shardName), ImmutableSet.copyOf(wheel.refresh()));
+        Assert.assertEquals(oldBucket, (long)wheel.getFirstBucket());
+        Assert.assertTrue(wheel.isDue(shardName));
+
+        mb = keyspace.prepareMutationBatch();
+        wheel.fillShardReadMutation(mb, shardName, TimeUnit.MICROSECONDS.convert(System.currentTimeMillis(), TimeUnit.MILLISECONDS), true);
+        mb.execute();
+
+        Assert.assertTrue(wheel.refresh().isEmpty());
+        Assert.assertFalse(wheel.isDue(shardName));
+        Assert.assertTrue(wheel.getFirstBucket() > oldBucket);
+        Assert.assertEquals(0, getBucketSize(wheel, oldBucket));
+    }
+
+    @Test
+    public void testUndrainedMarkersAreKept() throws Exception {
+        TimingWheel wheel = newTimingWheel("BacklogQueue");
+        String shardName = "BacklogQueue:0:0";
+        long oldBucket = wheel.getBucket(getCurrentSlot(wheel)) - 5;
+
+        MutationBatch mb = keyspace.prepareMutationBatch();
+        wheel.fillSlotMarkerMutation(mb, shardName, oldBucket * TimingWheel.SLOTS_PER_BUCKET);
+        mb.execute();
+        wheel.refresh();
+
+        // The read returned as many messages as requested so the shard may have more
+        mb = keyspace.prepareMutationBatch();
+        wheel.fillShardReadMutation(mb, shardName, TimeUnit.MICROSECONDS.convert(System.currentTimeMillis(), TimeUnit.MILLISECONDS), false);
+        Assert.assertTrue(mb.isEmpty());
+
+        wheel.refresh();
+        Assert.assertTrue(wheel.isDue(shardName));
+        Assert.assertEquals(oldBucket, (long)wheel.getFirstBucket());
+        Assert.assertEquals(1, getBucketSize(wheel, oldBucket));
+    }
+
+    @Test
+    public void testRefreshPagesThroughFullBuckets() throws Exception {
+        TimingWheel wheel = newTimingWheel("PagedQueue");
+        long slot  = getCurrentSlot(wheel) - 1;
+        int  count = TimingWheel.MARKER_PAGE_SIZE * 2 + 500;
+
+        MutationBatch mb = keyspace.prepareMutationBatch();
+        for (int i = 0; i < count; i++)
+            wheel.fillSlotMarkerMutation(mb, "PagedQueue:" + i + ":0", slot);
+        mb.execute();
+
+        Assert.assertEquals(count, wheel.refresh().size());
+    }
+}
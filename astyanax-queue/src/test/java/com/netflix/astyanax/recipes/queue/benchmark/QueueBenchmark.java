@@ -0,0 +1,313 @@
+package com.netflix.astyanax.recipes.queue.benchmark;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.lang.RandomStringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.netflix.astyanax.Keyspace;
+import com.netflix.astyanax.connectionpool.impl.CountingConnectionPoolMonitor;
+import com.netflix.astyanax.model.ConsistencyLevel;
+import com.netflix.astyanax.recipes.queue.CountingQueueStats;
+import com.netflix.astyanax.recipes.queue.Message;
+import com.netflix.astyanax.recipes.queue.MessageContext;
+import com.netflix.astyanax.recipes.queue.MessageProducer;
+import com.netflix.astyanax.recipes.queue.MessageQueueDispatcher;
+import com.netflix.astyanax.recipes.queue.ShardedDistributedMessageQueue;
+import com.netflix.astyanax.recipes.queue.triggers.RunOnceTrigger;
+
+/**
+ * Benchmark that drives a configurable load through a ShardedDistributedMessageQueue using 
+ * producer threads and a MessageQueueDispatcher and reports throughput, end to end latency,
+ * lock contention and the number of Cassandra round trips per message.
+ * 
+ * End to end latency is measured from the time a message becomes due, which is the send time
+ * for immediate messages and the trigger time for delayed messages, to the time the dispatcher
+ * hands it to the callback.  Round trips are only counted when a CountingConnectionPoolMonitor
+ * is provided and is the monitor of the keyspace's connection pool.
+ * 
+ * See QueueBenchmarkMain to run the benchmark from the command line.
+ */
+public class QueueBenchmark {
+    private static final Logger LOG = LoggerFactory.getLogger(QueueBenchmark.class);
+    
+    public static final String DUE_TIME_PARAMETER = "due";
+    public static final String BODY_PARAMETER     = "body";
+    
+    public static class Builder {
+        private QueueBenchmark benchmark = new QueueBenchmark();
+        
+        public Builder withKeyspace(Keyspace keyspace) {
+            benchmark.keyspace = keyspace;
+            return this;
+        }
+        
+        /**
+         * Monitor of the keyspace's connection pool, used to count round trips
+         * @param monitor
+         */
+        public Builder withConnectionPoolMonitor(CountingConnectionPoolMonitor monitor) {
+            benchmark.monitor = monitor;
+            return this;
+        }
+        
+        public Builder withColumnFamily(String columnFamilyName) {
+            benchmark.columnFamilyName = columnFamilyName;
+            return this;
+        }
+        
+        public Builder withQueueName(String queueName) {
+            benchmark.queueName = queueName;
+            return this;
+        }
+        
+        public Builder withConsistencyLevel(ConsistencyLevel consistencyLevel) {
+            benchmark.consistencyLevel = consistencyLevel;
+            return this;
+        }
+        
+        public Builder withShardCount(int shardCount) {
+            benchmark.shardCount = shardCount;
+            return this;
+        }
+        
+        public Builder withMessageCount(int messageCount) {
+            benchmark.messageCount = messageCount;
+            return this;
+        }
+        
+        /**
+         * Size of each message's body in characters
+         * @param messageSize
+         */
+        public Builder withMessageSize(int messageSize) {
+            benchmark.messageSize = messageSize;
+            return this;
+        }
+        
+        public Builder withProducerCount(int producerCount) {
+            benchmark.producerCount = producerCount;
+            return this;
+        }
+        
+        /**
+         * Number of messages sent by each producer call
+         * @param producerBatchSize
+         */
+        public Builder withProducerBatchSize(int producerBatchSize) {
+            benchmark.producerBatchSize = producerBatchSize;
+            return this;
+        }
+        
+        public Builder withConsumerCount(int consumerCount) {
+            benchmark.consumerCount = consumerCount;
+            return this;
+        }
+        
+        public Builder withProcessorThreadCount(int processorThreadCount) {
+            benchmark.processorThreadCount = processorThreadCount;
+            return this;
+        }
+        
+        public Builder withConsumerBatchSize(int consumerBatchSize) {
+            benchmark.consumerBatchSize = consumerBatchSize;
+            return this;
+        }
+        
+        /**
+         * Fraction of the messages that are sent with a delayed trigger
+         * @param triggerRatio  Value between 0 and 1
+         * @param delay         Delay of the triggered messages
+         * @param units
+         */
+        public Builder withTriggerRatio(double triggerRatio, long delay, TimeUnit units) {
+            benchmark.triggerRatio = triggerRatio;
+            benchmark.triggerDelay = TimeUnit.MILLISECONDS.convert(delay, units);
+            return this;
+        }
+        
+        /**
+         * Maximum time to wait for all messages to be consumed
+         * @param timeout
+         * @param units
+         */
+        public Builder withTimeout(long timeout, TimeUnit units) {
+            benchmark.timeout = TimeUnit.MILLISECONDS.convert(timeout, units);
+            return this;
+        }
+        
+        public QueueBenchmark build() {
+            Preconditions.checkNotNull(benchmark.keyspace, "Must specify keyspace");
+            Preconditions.checkArgument(benchmark.triggerRatio >= 0 && benchmark.triggerRatio <= 1, "Trigger ratio must be between 0 and 1");
+            Preconditions.checkArgument(benchmark.consumerCount <= benchmark.processorThreadCount, "consumerCount must be <= processorThreadCount");
+            return benchmark;
+        }
+    }
+    
+    private Keyspace                      keyspace;
+    private CountingConnectionPoolMonitor monitor;
+    private String                        columnFamilyName     = "QueueBenchmark";
+    private String                        queueName            = "Benchmark";
+    private ConsistencyLevel              consistencyLevel     = ConsistencyLevel.CL_ONE;
+    private int                           shardCount           = 4;
+    private int                           messageCount         = 10000;
+    private int                           messageSize          = 100;
+    private int                           producerCount        = 4;
+    private int                           producerBatchSize    = 10;
+    private int                           consumerCount        = 2;
+    private int                           processorThreadCount = 8;
+    private int                           consumerBatchSize    = 100;
+    private double                        triggerRatio         = 0;
+    private long                          triggerDelay         = 1000;
+    private long                          timeout              = TimeUnit.MILLISECONDS.convert(5, TimeUnit.MINUTES);
+    
+    private QueueBenchmark() {
+    }
+    
+    /**
+     * Create the queue, delete messages left over by an earlier run, run the benchmark and 
+     * finally delete the messages that were not consumed
+     * @return Results of the run
+     * @throws Exception
+     */
+    public QueueBenchmarkReport run() throws Exception {
+        final CountingQueueStats stats = new CountingQueueStats();
+        final ShardedDistributedMessageQueue queue = new ShardedDistributedMessageQueue.Builder()
+            .withColumnFamily(columnFamilyName)
+            .withQueueName(queueName)
+            .withKeyspace(keyspace)
+            .withConsistencyLevel(consistencyLevel)
+            .withStats(stats)
+            .withShardCount(shardCount)
+            .withPollInterval(100L, TimeUnit.MILLISECONDS)
+            .build();
+        
+        try {
+            queue.createStorage();
+        }
+        catch (Exception e) {
+            LOG.info("Storage already exists: " + e.getMessage());
+        }
+        queue.createQueue();
+        queue.clearMessages();
+        
+        try {
+            final long[]          latencies = new long[messageCount];
+            final AtomicInteger   consumed  = new AtomicInteger();
+            final CountDownLatch  done      = new CountDownLatch(messageCount);
+            final AtomicLong      lastConsumeTime = new AtomicLong();
+        
+            MessageQueueDispatcher dispatcher = new MessageQueueDispatcher.Builder()
+                .withMessageQueue(queue)
+                .withConsumerCount(consumerCount)
+                .withProcessorThreadCount(processorThreadCount)
+                .withBatchSize(consumerBatchSize)
+                .withCallback(new Function<MessageContext, Boolean>() {
+                    @Override
+                    public Boolean apply(MessageContext context) {
+                        long now = System.currentTimeMillis();
+                        Object due = context.getMessage().getParameters().get(DUE_TIME_PARAMETER);
+                        int index = consumed.getAndIncrement();
+                        if (index < latencies.length) {
+                            latencies[index] = due == null ? 0 : Math.max(0, now - ((Number)due).longValue());
+                            lastConsumeTime.set(now);
+                            done.countDown();
+                        }
+                        return true;
+                    }
+                })
+                .build();
+        
+            long startOperations = getOperationCount();
+            long startContention = stats.getLockCountentionCount();
+        
+            long startTime = System.currentTimeMillis();
+            dispatcher.start();
+        
+            // Produce all messages
+            final AtomicReference<Exception> producerError = new AtomicReference<Exception>();
+            final ExecutorService producers = Executors.newFixedThreadPool(producerCount, 
+                    new ThreadFactoryBuilder().setNameFormat("QueueBenchmark-producer-%d").setDaemon(true).build());
+            final String body = RandomStringUtils.randomAlphanumeric(messageSize);
+            for (int i = 0; i < producerCount; i++) {
+                final int count = messageCount / producerCount + (i < messageCount % producerCount ? 1 : 0);
+                producers.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            MessageProducer producer = queue.createProducer();
+                            for (int sent = 0; sent < count; ) {
+                                List<Message> messages = Lists.newArrayList();
+                                for (int j = 0; j < producerBatchSize && sent < count; j++, sent++) {
+                                    messages.add(newMessage(body));
+                                }
+                                producer.sendMessages(messages);
+                            }
+                        }
+                        catch (Exception e) {
+                            LOG.error("Error producing messages", e);
+                            producerError.compareAndSet(null, e);
+                        }
+                    }
+                });
+            }
+            producers.shutdown();
+            producers.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+            long produceTime = System.currentTimeMillis() - startTime;
+        
+            if (producerError.get() != null) {
+                dispatcher.stop();
+                throw producerError.get();
+            }
+        
+            boolean completed = done.await(Math.max(0, timeout - produceTime), TimeUnit.MILLISECONDS);
+            long consumeTime = (completed ? lastConsumeTime.get() : System.currentTimeMillis()) - startTime;
+            dispatcher.stop();
+        
+            int processed = Math.min(consumed.get(), messageCount);
+            long[] sorted = Arrays.copyOf(latencies, processed);
+            Arrays.sort(sorted);
+        
+            return new QueueBenchmarkReport(
+                    messageCount, 
+                    processed,
+                    produceTime, 
+                    consumeTime,
+                    sorted,
+                    stats.getLockCountentionCount() - startContention,
+                    monitor == null ? -1 : getOperationCount() - startOperations);
+        }
+        finally {
+            queue.clearMessages();
+        }
+    }
+    
+    private Message newMessage(String body) {
+        Message message = new Message().addParameter(BODY_PARAMETER, body);
+        long due = System.currentTimeMillis();
+        if (triggerRatio > 0 && Math.random() < triggerRatio) {
+            message.setTrigger(new RunOnceTrigger.Builder().withDelay(triggerDelay, TimeUnit.MILLISECONDS).build());
+            due += triggerDelay;
+        }
+        return message.addParameter(DUE_TIME_PARAMETER, due);
+    }
+    
+    private long getOperationCount() {
+        if (monitor == null)
+            return 0;
+        return monitor.getOperationSuccessCount() + monitor.getOperationFailureCount();
+    }
+}
@@ -0,0 +1,99 @@
+package com.netflix.astyanax.recipes.queue.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.ImmutableMap;
+import com.netflix.astyanax.AstyanaxContext;
+import com.netflix.astyanax.Keyspace;
+import com.netflix.astyanax.connectionpool.NodeDiscoveryType;
+import com.netflix.astyanax.connectionpool.impl.ConnectionPoolConfigurationImpl;
+import com.netflix.astyanax.connectionpool.impl.CountingConnectionPoolMonitor;
+import com.netflix.astyanax.impl.AstyanaxConfigurationImpl;
+import com.netflix.astyanax.thrift.ThriftFamilyFactory;
+import com.netflix.astyanax.util.SingletonEmbeddedCassandra;
+
+/**
+ * Run a QueueBenchmark against an embedded Cassandra or, when the 'seeds' system property
+ * is set, against an existing cluster.  The benchmark is configured with system properties:
+ * 
+ *  seeds               Seeds of an existing cluster (default: start an embedded Cassandra)
+ *  keyspace            Keyspace, created if it does not exist (default: QueueBenchmark)
+ *  messages            Number of messages (default: 10000)
+ *  messageSize         Size of the message body (default: 100)
+ *  producers           Number of producer threads (default: 4)
+ *  producerBatchSize   Messages per send (default: 10)
+ *  consumers           Number of dispatcher consumers (default: 2)
+ *  processors          Number of dispatcher processor threads (default: 8)
+ *  consumerBatchSize   Messages per read (default: 100)
+ *  shards              Number of shards (default: 4)
+ *  triggerRatio        Fraction of messages sent with a delayed trigger (default: 0)
+ *  triggerDelay        Delay of triggered messages in milliseconds (default: 1000)
+ */
+public class QueueBenchmarkMain {
+    private static final String CLUSTER_NAME = "cass_sandbox";
+    private static final String LOCAL_SEEDS  = "localhost:9160";
+    
+    public static void main(String[] args) throws Exception {
+        String seeds = System.getProperty("seeds");
+        if (seeds == null) {
+            SingletonEmbeddedCassandra.getInstance();
+            seeds = LOCAL_SEEDS;
+        }
+        
+        String keyspaceName = System.getProperty("keyspace", "QueueBenchmark");
+        CountingConnectionPoolMonitor monitor = new CountingConnectionPoolMonitor();
+        AstyanaxContext<Keyspace> context = new AstyanaxContext.Builder()
+                .forCluster(CLUSTER_NAME)
+                .forKeyspace(keyspaceName)
+                .withAstyanaxConfiguration(
+                        new AstyanaxConfigurationImpl()
+                                .setDiscoveryType(NodeDiscoveryType.NONE))
+                .withConnectionPoolConfiguration(
+                        new ConnectionPoolConfigurationImpl(CLUSTER_NAME + "_" + keyspaceName)
+                                .setSocketTimeout(30000)
+                                .setMaxTimeoutWhenExhausted(2000)
+                                .setMaxConnsPerHost(Integer.getInteger("connections", 50))
+                                .setSeeds(seeds))
+                .withConnectionPoolMonitor(monitor)
+                .buildKeyspace(ThriftFamilyFactory.getInstance());
+        context.start();
+        
+        try {
+            Keyspace keyspace = context.getEntity();
+            try {
+                keyspace.describeKeyspace();
+            }
+            catch (Exception e) {
+                keyspace.createKeyspace(ImmutableMap.<String, Object>builder()
+                        .put("strategy_options", ImmutableMap.<String, Object>builder()
+                                .put("replication_factor", "1")
+                                .build())
+                        .put("strategy_class",     "SimpleStrategy")
+                        .build());
+            }
+            
+            QueueBenchmarkReport report = new QueueBenchmark.Builder()
+                .withKeyspace(keyspace)
+                .withConnectionPoolMonitor(monitor)
+                .withMessageCount(Integer.getInteger("messages", 10000))
+                .withMessageSize(Integer.getInteger("messageSize", 100))
+                .withProducerCount(Integer.getInteger("producers", 4))
+                .withProducerBatchSize(Integer.getInteger("producerBatchSize", 10))
+                .withConsumerCount(Integer.getInteger("consumers", 2))
+                .withProcessorThreadCount(Integer.getInteger("processors", 8))
+                .withConsumerBatchSize(Integer.getInteger("consumerBatchSize", 100))
+                .withShardCount(Integer.getInteger("shards", 4))
+                .withTriggerRatio(
+                        Double.parseDouble(System.getProperty("triggerRatio", "0")), 
+                        Long.getLong("triggerDelay", 1000), TimeUnit.MILLISECONDS)
+                .build()
+                .run();
+            
+            System.out.println(report);
+        }
+        finally {
+            context.shutdown();
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,101 @@
+package com.netflix.astyanax.recipes.queue.benchmark;
+
+/**
+ * Results of a QueueBenchmark run
+ */
+public class QueueBenchmarkReport {
+    private final int    messageCount;
+    private final int    consumedCount;
+    private final long   produceTime;
+    private final long   consumeTime;
+    private final long[] latencies;
+    private final long   lockContentionCount;
+    private final long   operationCount;
+    
+    /**
+     * @param messageCount          Number of messages sent
+     * @param consumedCount         Number of messages consumed
+     * @param produceTime           Time in milliseconds to send all messages
+     * @param consumeTime           Time in milliseconds until the last message was consumed 
+     * @param latencies             Sorted end to end latencies of the consumed messages
+     * @param lockContentionCount   Number of times a consumer failed to lock a shard
+     * @param operationCount        Number of Cassandra operations or -1 if not counted
+     */
+    public QueueBenchmarkReport(int messageCount, int consumedCount, long produceTime, long consumeTime, 
+            long[] latencies, long lockContentionCount, long operationCount) {
+        this.messageCount        = messageCount;
+        this.consumedCount       = consumedCount;
+        this.produceTime         = produceTime;
+        this.consumeTime         = consumeTime;
+        this.latencies           = latencies;
+        this.lockContentionCount = lockContentionCount;
+        this.operationCount      = operationCount;
+    }
+    
+    public int getMessageCount() {
+        return messageCount;
+    }
+    
+    public int getConsumedCount() {
+        return consumedCount;
+    }
+    
+    /**
+     * @return Messages sent per second
+     */
+    public double getEnqueueRate() {
+        return rate(messageCount, produceTime);
+    }
+    
+    /**
+     * @return Messages consumed per second
+     */
+    public double getDequeueRate() {
+        return rate(consumedCount, consumeTime);
+    }
+    
+    /**
+     * @param percentile    Value between 0 and 100
+     * @return End to end latency in milliseconds at the specified percentile 
+     */
+    public long getLatencyPercentile(double percentile) {
+        if (latencies.length == 0)
+            return 0;
+        int index = (int)Math.ceil(percentile / 100 * latencies.length) - 1;
+        return latencies[Math.max(0, Math.min(index, latencies.length - 1))];
+    }
+    
+    public long getLockContentionCount() {
+        return lockContentionCount;
+    }
+    
+    /**
+     * @return Lock contention events per second of consume time
+     */
+    public double getLockContentionRate() {
+        return rate(lockContentionCount, consumeTime);
+    }
+    
+    /**
+     * @return Average number of Cassandra round trips per consumed message, or -1 if 
+     *          round trips were not counted
+     */
+    public double getRoundTripsPerMessage() {
+        if (operationCount < 0 || consumedCount == 0)
+            return -1;
+        return (double)operationCount / consumedCount;
+    }
+    
+    private static double rate(long count, long millis) {
+        return millis <= 0 ? 0 : count * 1000.0 / millis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("QueueBenchmarkReport [messages=%d, consumed=%d, enqueue=%.1f/s, dequeue=%.1f/s, " 
+                + "latency p50=%dms p90=%dms p99=%dms max=%dms, lockContention=%d (%.2f/s), roundTripsPerMessage=%.2f]",
+                messageCount, consumedCount, getEnqueueRate(), getDequeueRate(), 
+                getLatencyPercentile(50), getLatencyPercentile(90), getLatencyPercentile(99), getLatencyPercentile(100),
+                lockContentionCount, getLockContentionRate(), getRoundTripsPerMessage());
+    }
+}
@@ -0,0 +1,48 @@
+package com.netflix.astyanax.recipes.queue.shard;
+
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.google.common.collect.Maps;
+import com.netflix.astyanax.recipes.queue.MessageQueueSettings;
+
+public class DepthShardScalingPolicyTest {
+    private MessageQueueSettings newSettings(int shardCount) {
+        MessageQueueSettings settings = new MessageQueueSettings();
+        settings.setShardCount(shardCount);
+        return settings;
+    }
+    
+    private Map<String, Integer> newDepths(int shardCount, int depth) {
+        Map<String, Integer> depths = Maps.newHashMap();
+        for (int i = 0; i < shardCount; i++) {
+            depths.put("Queue:0:" + i, depth);
+        }
+        return depths;
+    }
+    
+    @Test
+    public void testScaleOnDepth() {
+        ShardScalingPolicy policy = new DepthShardScalingPolicy(1, 16, 100, 10.0);
+        
+        Assert.assertEquals(4,  policy.getShardCount(newSettings(2), newDepths(2, 200), 0, 1000));
+        Assert.assertEquals(16, policy.getShardCount(newSettings(2), newDepths(2, 100000), 0, 1000));
+        
+        // Only shrink once the messages fit into half the shards
+        Assert.assertEquals(4,  policy.getShardCount(newSettings(4), newDepths(4, 60), 0, 1000));
+        Assert.assertEquals(2,  policy.getShardCount(newSettings(4), newDepths(4, 10), 0, 1000));
+        Assert.assertEquals(1,  policy.getShardCount(newSettings(1), newDepths(1, 0), 0, 1000));
+    }
+    
+    @Test
+    public void testScaleOnContention() {
+        ShardScalingPolicy policy = new DepthShardScalingPolicy(1, 16, 100, 10.0);
+        
+        Assert.assertEquals(4,  policy.getShardCount(newSettings(4), newDepths(4, 100), 10, 1000));
+        Assert.assertEquals(8,  policy.getShardCount(newSettings(4), newDepths(4, 100), 11, 1000));
+        Assert.assertEquals(16, policy.getShardCount(newSettings(16), newDepths(16, 100), 1000, 1000));
+    }
+}
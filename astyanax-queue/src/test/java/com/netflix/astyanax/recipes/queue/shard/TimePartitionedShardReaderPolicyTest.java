@@ -0,0 +1,78 @@
+package com.netflix.astyanax.recipes.queue.shard;
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.netflix.astyanax.recipes.queue.MessageQueueSettings;
+import com.netflix.astyanax.recipes.queue.MessageQueueShard;
+
+public class TimePartitionedShardReaderPolicyTest {
+    private MessageQueueSettings newSettings() {
+        MessageQueueSettings settings = new MessageQueueSettings();
+        settings.setShardCount(1);
+        settings.setPollInterval(50);
+        settings.setMaxPollInterval(TimeUnit.MILLISECONDS.convert(10, TimeUnit.SECONDS));
+        return settings;
+    }
+
+    private MessageQueueShard awaitShard(ShardReaderPolicy policy) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        MessageQueueShard shard;
+        while (null == (shard = policy.nextShard())) {
+            Assert.assertTrue(System.currentTimeMillis() - start < 1000);
+        }
+        return shard;
+    }
+
+    @Test
+    public void testEmptyShardBacksOff() throws Exception {
+        TimePartitionedShardReaderPolicy policy = new TimePartitionedShardReaderPolicy(newSettings());
+
+        MessageQueueShard shard = awaitShard(policy);
+
+        // First empty read backs off for the poll interval, the second for twice that
+        assertBackoff(policy, shard, 50);
+        Assert.assertSame(shard, awaitShard(policy));
+        Assert.assertNull(policy.getBackoffReadTime(shard.getName()));
+
+        assertBackoff(policy, shard, 100);
+        Assert.assertEquals(2, shard.getEmptyReadCount());
+        Assert.assertSame(shard, awaitShard(policy));
+    }
+
+    /**
+     * Release the shard after an empty read and check that it is scheduled to be read
+     * again after the expected backoff
+     */
+    private void assertBackoff(TimePartitionedShardReaderPolicy policy, MessageQueueShard shard, long expectedBackoff) {
+        long before = System.currentTimeMillis();
+        policy.releaseShard(shard, 0);
+        long after = System.currentTimeMillis();
+
+        Long readTime = policy.getBackoffReadTime(shard.getName());
+        Assert.assertNotNull(readTime);
+        Assert.assertTrue(readTime >= before + expectedBackoff);
+        Assert.assertTrue(readTime <= after + expectedBackoff);
+    }
+
+    @Test
+    public void testWakeShard() throws Exception {
+        TimePartitionedShardReaderPolicy policy = new TimePartitionedShardReaderPolicy(newSettings());
+
+        MessageQueueShard shard = policy.nextShard();
+        for (int i = 0; i < 10; i++) {
+            policy.releaseShard(shard, 0);
+            policy.wakeShard(shard.getName());
+            Assert.assertSame(shard, policy.nextShard());
+            Assert.assertEquals(0, shard.getEmptyReadCount());
+        }
+
+        // Shards that returned messages are read again without delay
+        policy.releaseShard(shard, 5);
+        Assert.assertSame(shard, policy.nextShard());
+        Assert.assertEquals(5, shard.getLastReadCount());
+    }
+}
@@ -0,0 +1,60 @@
+package com.netflix.astyanax.recipes.queue.shard;
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.netflix.astyanax.recipes.queue.MessageQueueSettings;
+import com.netflix.astyanax.recipes.queue.MessageQueueShard;
+
+public class WeightedLaneShardReaderPolicyTest {
+    private MessageQueueSettings newSettings() {
+        MessageQueueSettings settings = new MessageQueueSettings();
+        settings.setQueueName("test");
+        settings.setShardCount(1);
+        settings.setPartitionCount(1);
+        settings.setLaneCount(2);
+        settings.setPollInterval(50);
+        settings.setMaxPollInterval(TimeUnit.MILLISECONDS.convert(10, TimeUnit.SECONDS));
+        return settings;
+    }
+
+    @Test
+    public void testWeightedLanes() throws Exception {
+        WeightedLaneShardReaderPolicy policy = new WeightedLaneShardReaderPolicy(newSettings(),
+                MessageQueueShard.newShards(newSettings(), 0, 1), new int[]{3, 1});
+        Assert.assertEquals(2, policy.listShards().size());
+
+        // Both lanes always have messages so reads are split by weight
+        int[] reads = new int[2];
+        for (int i = 0; i < 40; i++) {
+            MessageQueueShard shard = policy.nextShard();
+            Assert.assertNotNull(shard);
+            reads[shard.getLane()]++;
+            policy.releaseShard(shard, 1);
+        }
+        Assert.assertEquals(30, reads[0]);
+        Assert.assertEquals(10, reads[1]);
+    }
+
+    @Test
+    public void testIdleLaneDoesNotBlock() throws Exception {
+        WeightedLaneShardReaderPolicy policy = new WeightedLaneShardReaderPolicy(newSettings());
+
+        MessageQueueShard high = policy.nextShard();
+        MessageQueueShard low  = policy.nextShard();
+        Assert.assertEquals(0, high.getLane());
+        Assert.assertEquals(1, low.getLane());
+        Assert.assertEquals("test:0:0:1", low.getName());
+
+        // The high priority lane is empty and backing off so the low priority lane is read
+        policy.releaseShard(high, 0);
+        for (int i = 0; i < 5; i++) {
+            policy.releaseShard(low, 1);
+            low = policy.nextShard();
+            Assert.assertEquals(1, low.getLane());
+        }
+    }
+}
@@ -3,9 +3,12 @@ package com.netflix.astyanax.thrift;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -41,6 +44,8 @@ import com.netflix.astyanax.recipes.queue.MessageProducer;
 import com.netflix.astyanax.recipes.queue.MessageQueue;
 import com.netflix.astyanax.recipes.queue.MessageQueueDispatcher;
 import com.netflix.astyanax.recipes.queue.MessageQueueException;
+import com.netflix.astyanax.recipes.queue.MessageQueueShardDepthStats;
+import com.netflix.astyanax.recipes.queue.MessageQueueShardStats;
 import com.netflix.astyanax.recipes.queue.SendMessageResponse;
 import com.netflix.astyanax.recipes.queue.ShardedDistributedMessageQueue;
 import com.netflix.astyanax.recipes.queue.triggers.RepeatingTrigger;
@@ -275,6 +280,152 @@ public class QueueTest {
         }
     }
     
+    @Test
+    public void testUniqueKeyRace() throws Exception {
+        final ShardedDistributedMessageQueue queue = new ShardedDistributedMessageQueue.Builder()
+            .withColumnFamily(SCHEDULER_NAME_CF_NAME)
+            .withQueueName("UniqueKeyRaceQueue")
+            .withKeyspace(keyspace)
+            .withConsistencyLevel(CONSISTENCY_LEVEL)
+            .withShardCount(1)
+            .withPollInterval(100L,  TimeUnit.MILLISECONDS)
+            .build();
+        queue.createQueue();
+        
+        // All producers try to claim the same key at the same time.  At most one may win.
+        List<Boolean> results = sendConcurrently(queue, "RaceKey", 8);
+        int sent = 0;
+        for (Boolean result : results) {
+            if (result)
+                sent++;
+        }
+        Assert.assertTrue("Sent " + sent, sent <= 1);
+        Assert.assertEquals(sent, queue.getMessageCount());
+        
+        // The key stays taken once it was claimed
+        if (sent == 1) {
+            try {
+                queue.createProducer().sendMessage(new Message().setUniqueKey("RaceKey"));
+                Assert.fail();
+            }
+            catch (KeyExistsException e) {
+            }
+        }
+    }
+    
+    @Test
+    public void testOptimisticUniqueKeyRace() throws Exception {
+        final ShardedDistributedMessageQueue queue = new ShardedDistributedMessageQueue.Builder()
+            .withColumnFamily(SCHEDULER_NAME_CF_NAME)
+            .withQueueName("OptimisticUniqueKeyRaceQueue")
+            .withKeyspace(keyspace)
+            .withConsistencyLevel(CONSISTENCY_LEVEL)
+            .withShardCount(1)
+            .withOptimisticUniqueKeys(true)
+            .withPollInterval(100L,  TimeUnit.MILLISECONDS)
+            .build();
+        queue.createQueue();
+        
+        // Every send succeeds but only the message that claimed the key first is delivered
+        List<Boolean> results = sendConcurrently(queue, "OptimisticRaceKey", 8);
+        for (Boolean result : results) {
+            Assert.assertTrue(result);
+        }
+        
+        MessageConsumer consumer = queue.createConsumer();
+        List<MessageContext> delivered = Lists.newArrayList();
+        while (true) {
+            List<MessageContext> messages = consumer.readMessages(10, 1, TimeUnit.SECONDS);
+            if (messages.isEmpty())
+                break;
+            delivered.addAll(messages);
+            consumer.ackMessages(messages);
+        }
+        
+        Assert.assertEquals(1, delivered.size());
+        Assert.assertEquals("OptimisticRaceKey", delivered.get(0).getMessage().getKey());
+        Assert.assertEquals(0, queue.getMessageCount());
+    }
+    
+    @Test
+    public void testDepthSampling() throws Exception {
+        final CountingQueueStats stats = new CountingQueueStats();
+        final ShardedDistributedMessageQueue queue = new ShardedDistributedMessageQueue.Builder()
+            .withColumnFamily(SCHEDULER_NAME_CF_NAME)
+            .withQueueName("DepthSamplingQueue")
+            .withKeyspace(keyspace)
+            .withConsistencyLevel(CONSISTENCY_LEVEL)
+            .withStats(stats)
+            .withShardCount(4)
+            .withDepthSampling(1, TimeUnit.HOURS, 3)
+            .build();
+        queue.createQueue();
+        
+        MessageProducer producer = queue.createProducer();
+        for (int i = 0; i < 20; i++) {
+            producer.sendMessage(new Message());
+        }
+        
+        // Each sample only covers the next 3 shards
+        int shardCount = queue.getShardStats().size();
+        queue.sampleDepth();
+        Assert.assertEquals(Math.min(3, shardCount), getSampledShardCount(queue));
+        
+        for (int i = 0; i < shardCount; i += 3) {
+            queue.sampleDepth();
+        }
+        Assert.assertEquals(shardCount, getSampledShardCount(queue));
+        Assert.assertEquals(20, stats.getDepthEstimate());
+        Assert.assertEquals(20, queue.getMessageCount());
+    }
+    
+    private int getSampledShardCount(ShardedDistributedMessageQueue queue) {
+        int count = 0;
+        for (MessageQueueShardStats shard : queue.getShardStats().values()) {
+            if (((MessageQueueShardDepthStats)shard).getDepth() >= 0)
+                count++;
+        }
+        return count;
+    }
+    
+    /**
+     * Send a message with the same unique key from several threads at once
+     * @return Whether each send succeeded
+     */
+    private List<Boolean> sendConcurrently(final ShardedDistributedMessageQueue queue, final String key, int threadCount) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            List<Future<Boolean>> futures = Lists.newArrayList();
+            for (int i = 0; i < threadCount; i++) {
+                futures.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        MessageProducer producer = queue.createProducer();
+                        start.await();
+                        try {
+                            producer.sendMessage(new Message().setUniqueKey(key));
+                            return true;
+                        }
+                        catch (KeyExistsException e) {
+                            return false;
+                        }
+                    }
+                }));
+            }
+            start.countDown();
+            
+            List<Boolean> results = Lists.newArrayList();
+            for (Future<Boolean> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+    
     @Test
     public void testQueue() throws Exception {
         final CountingQueueStats stats = new CountingQueueStats();
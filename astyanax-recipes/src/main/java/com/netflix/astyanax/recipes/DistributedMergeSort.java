@@ -1,5 +1,451 @@
 package com.netflix.astyanax.recipes;
 
-public class DistributedMergeSort {
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Ordering;
+import com.google.common.collect.PeekingIterator;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.netflix.astyanax.Keyspace;
+import com.netflix.astyanax.model.Column;
+import com.netflix.astyanax.model.ColumnFamily;
+import com.netflix.astyanax.model.ColumnList;
+import com.netflix.astyanax.model.ConsistencyLevel;
+import com.netflix.astyanax.retry.RetryPolicy;
+import com.netflix.astyanax.retry.RunOnce;
+
+/**
+ * Reads a set of sharded rows whose columns are sorted and returns all the columns as a
+ * single globally ordered lazy iterator.
+ *
+ * CF:  SHARD_1  C1 C4 C5 ...
+ *      SHARD_2  C2 C3 C6 ...
+ *
+ * All shards are paginated in parallel.  Each shard keeps up to readAhead pages buffered
+ * or in flight so that the next page is usually available by the time it is needed.  The
+ * columns are merged using a heap of the shard cursors, so memory use is bounded by
+ * shardCount * readAhead * pageSize columns no matter how many columns are read.
+ *
+ * Shard keys are typically built with Shards.StringShardBuilder.  Column names are
+ * compared using the natural ordering of C unless a comparator is provided.  The
+ * comparator must be consistent with the column family comparator (for example the
+ * natural ordering of UUID is NOT the TimeUUIDType ordering).
+ *
+ * <pre>
+ * for (Column&lt;UUID&gt; column : DistributedMergeSort.newQuery(keyspace, CF_EVENTS)
+ *         .withShards(Shards.newStringShardBuilder().setPrefix("events_").setShardCount(16).build())
+ *         .withComparator(timeUUIDComparator)
+ *         .withLimit(1000)) {
+ *     ...
+ * }
+ * </pre>
+ *
+ * @param <K>   Shard key type
+ * @param <C>   Column name type
+ */
+public class DistributedMergeSort<K, C> implements Iterable<Column<C>> {
+    private static final int DEFAULT_PAGE_SIZE    = 100;
+    private static final int DEFAULT_READ_AHEAD   = 2;
+    private static final int DEFAULT_THREAD_COUNT = 10;
+
+    private static ExecutorService defaultExecutor;
+
+    /**
+     * @return Executor on which shard pages are read unless one was set with useExecutor
+     */
+    public static synchronized ExecutorService getDefaultExecutor() {
+        if (defaultExecutor == null) {
+            defaultExecutor = Executors.newFixedThreadPool(DEFAULT_THREAD_COUNT,
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("DistributedMergeSort-%d").build());
+        }
+        return defaultExecutor;
+    }
+
+    public static <K, C> DistributedMergeSort<K, C> newQuery(Keyspace ks, ColumnFamily<K, C> cf) {
+        return new DistributedMergeSort<K, C>(ks, cf);
+    }
+
+    private final Keyspace ks;
+    private final ColumnFamily<K, C> cf;
+    private Collection<K> shardKeys;
+    private ExecutorService executor;
+    private Comparator<C> comparator;
+    private C startColumn;
+    private C endColumn;
+    private boolean reversed = false;
+    private int pageSize = DEFAULT_PAGE_SIZE;
+    private int readAhead = DEFAULT_READ_AHEAD;
+    private int offset = 0;
+    private int limit = Integer.MAX_VALUE;
+    private ConsistencyLevel consistencyLevel = ConsistencyLevel.CL_ONE;
+    private RetryPolicy retry = RunOnce.get();
+
+    public DistributedMergeSort(Keyspace ks, ColumnFamily<K, C> cf) {
+        this.ks = ks;
+        this.cf = cf;
+    }
+
+    public DistributedMergeSort<K, C> withShards(Collection<K> shardKeys) {
+        this.shardKeys = shardKeys;
+        return this;
+    }
+
+    /**
+     * Executor used to fetch pages.  When not provided the shared getDefaultExecutor() is
+     * used.  An iterator that is abandoned before the end only leaves the fetches already
+     * scheduled (at most readAhead pages per shard) to complete.
+     * @param executor
+     * @return
+     */
+    public DistributedMergeSort<K, C> useExecutor(ExecutorService executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    public DistributedMergeSort<K, C> useRetryPolicy(RetryPolicy retry) {
+        this.retry = retry;
+        return this;
+    }
+
+    public DistributedMergeSort<K, C> withConsistencyLevel(ConsistencyLevel consistencyLevel) {
+        this.consistencyLevel = consistencyLevel;
+        return this;
+    }
+
+    public DistributedMergeSort<K, C> withComparator(Comparator<C> comparator) {
+        this.comparator = comparator;
+        return this;
+    }
+
+    /**
+     * Only return columns within this range.  Either end may be null.
+     * @param startColumn
+     * @param endColumn
+     * @return
+     */
+    public DistributedMergeSort<K, C> withColumnRange(C startColumn, C endColumn) {
+        this.startColumn = startColumn;
+        this.endColumn   = endColumn;
+        return this;
+    }
+
+    /**
+     * Merge in descending order.  startColumn should then be greater than endColumn
+     * @param reversed
+     * @return
+     */
+    public DistributedMergeSort<K, C> withReversed(boolean reversed) {
+        this.reversed = reversed;
+        return this;
+    }
+
+    /**
+     * Number of columns read from a shard per query
+     * @param pageSize
+     * @return
+     */
+    public DistributedMergeSort<K, C> withPageSize(int pageSize) {
+        Preconditions.checkArgument(pageSize >= 2, "Page size must be >= 2");
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    /**
+     * Maximum number of pages buffered or in flight per shard
+     * @param readAhead
+     * @return
+     */
+    public DistributedMergeSort<K, C> withReadAhead(int readAhead) {
+        Preconditions.checkArgument(readAhead >= 1, "Read ahead must be >= 1");
+        this.readAhead = readAhead;
+        return this;
+    }
+
+    /**
+     * Number of columns to skip from the start of the merged result
+     * @param offset
+     * @return
+     */
+    public DistributedMergeSort<K, C> withOffset(int offset) {
+        this.offset = offset;
+        return this;
+    }
+
+    /**
+     * Maximum number of columns to return
+     * @param limit
+     * @return
+     */
+    public DistributedMergeSort<K, C> withLimit(int limit) {
+        this.limit = limit;
+        return this;
+    }
+
+    /**
+     * Start reading all shards and return the merged iterator.
+     */
+    @Override
+    public Iterator<Column<C>> iterator() {
+        Preconditions.checkNotNull(shardKeys, "Shard keys must be specified");
+
+        ExecutorService executor = this.executor == null ? getDefaultExecutor() : this.executor;
+
+        List<PeekingIterator<Column<C>>> cursors = Lists.newArrayListWithCapacity(shardKeys.size());
+        for (K shard : shardKeys) {
+            cursors.add(new ShardCursor(shard, executor));
+        }
+
+        Ordering<C> nameOrdering = comparator == null ? DistributedMergeSort.<C>naturalOrdering() : Ordering.from(comparator);
+        if (reversed)
+            nameOrdering = nameOrdering.reverse();
+        final Ordering<C> ordering = nameOrdering;
+
+        Iterator<Column<C>> merged = new MergeIterator<Column<C>>(cursors, new Comparator<Column<C>>() {
+            @Override
+            public int compare(Column<C> o1, Column<C> o2) {
+                return ordering.compare(o1.getName(), o2.getName());
+            }
+        });
+
+        if (offset > 0)
+            Iterators.advance(merged, offset);
+        if (limit != Integer.MAX_VALUE)
+            merged = Iterators.limit(merged, limit);
+        return merged;
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static <C> Ordering<C> naturalOrdering() {
+        return (Ordering<C>) (Ordering) Ordering.natural();
+    }
+
+    /**
+     * K-way merge of sorted iterators using a heap keyed by each iterator's next element.
+     *
+     * The next element of an iterator is fetched before the iterator is offered to the heap
+     * so that the heap comparator never reads from an iterator.  An iterator whose element
+     * was just returned is only advanced on the following call, so a failure to read it is
+     * thrown from that call (and every call after it) without losing the returned element
+     * or leaving the heap partially ordered.
+     *
+     * @param <T>
+     */
+    static class MergeIterator<T> implements Iterator<T> {
+        private static class Head<T> {
+            final T                  value;
+            final PeekingIterator<T> iter;
+
+            Head(T value, PeekingIterator<T> iter) {
+                this.value = value;
+                this.iter  = iter;
+            }
+        }
+
+        private final PriorityQueue<Head<T>> heap;
+        private final Deque<PeekingIterator<T>> pending;
+
+        MergeIterator(List<PeekingIterator<T>> iterators, final Comparator<T> comparator) {
+            this.heap = new PriorityQueue<Head<T>>(Math.max(1, iterators.size()), new Comparator<Head<T>>() {
+                @Override
+                public int compare(Head<T> o1, Head<T> o2) {
+                    return comparator.compare(o1.value, o2.value);
+                }
+            });
+            this.pending = new ArrayDeque<PeekingIterator<T>>(iterators);
+        }
+
+        /**
+         * Fetch the next element of each iterator that is not in the heap and offer it
+         */
+        private void fill() {
+            while (!pending.isEmpty()) {
+                PeekingIterator<T> iter = pending.peek();
+                if (iter.hasNext())
+                    heap.add(new Head<T>(iter.peek(), iter));
+                pending.poll();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            fill();
+            return !heap.isEmpty();
+        }
+
+        @Override
+        public T next() {
+            fill();
+            Head<T> head = heap.poll();
+            if (head == null)
+                throw new NoSuchElementException();
+            head.iter.next();
+            pending.add(head.iter);
+            return head.value;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Iterates the columns of a single shard.  Pages are fetched asynchronously with up to
+     * readAhead pages buffered or in flight.  Since each page starts at the last column of
+     * the previous page the fetches for a shard are chained one after the other.
+     */
+    private class ShardCursor implements PeekingIterator<Column<C>> {
+        private final K shard;
+        private final ExecutorService executor;
+        private final Deque<List<Column<C>>> pages = new ArrayDeque<List<Column<C>>>();
+        private Iterator<Column<C>> current = Iterators.emptyIterator();
+        private Column<C> head;
+        private C lastColumn;
+        private ByteBuffer lastRawColumn;
+        private boolean fetching = false;
+        private boolean exhausted = false;
+        private boolean firstPage = true;
+        private RuntimeException error;
+
+        ShardCursor(K shard, ExecutorService executor) {
+            this.shard    = shard;
+            this.executor = executor;
+            synchronized (this) {
+                scheduleFetch();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (head != null)
+                return true;
+            head = advance();
+            return head != null;
+        }
+
+        @Override
+        public Column<C> peek() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return head;
+        }
+
+        @Override
+        public Column<C> next() {
+            Column<C> next = peek();
+            head = null;
+            return next;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private Column<C> advance() {
+            while (true) {
+                if (current.hasNext())
+                    return current.next();
+
+                synchronized (this) {
+                    while (pages.isEmpty()) {
+                        if (error != null)
+                            throw error;
+                        if (!fetching && exhausted)
+                            return null;
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new RuntimeException("Interrupted reading shard " + shard, e);
+                        }
+                    }
+                    current = pages.poll().iterator();
+                    scheduleFetch();
+                }
+            }
+        }
+
+        /**
+         * Must be called while holding the lock
+         */
+        private void scheduleFetch() {
+            if (fetching || exhausted || pages.size() >= readAhead)
+                return;
+            fetching = true;
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        List<Column<C>> page = fetchPage();
+                        synchronized (ShardCursor.this) {
+                            fetching = false;
+                            if (!page.isEmpty())
+                                pages.add(page);
+                            scheduleFetch();
+                            ShardCursor.this.notifyAll();
+                        }
+                    }
+                    catch (RuntimeException e) {
+                        synchronized (ShardCursor.this) {
+                            fetching = false;
+                            error = e;
+                            ShardCursor.this.notifyAll();
+                        }
+                    }
+                }
+            });
+        }
+
+        /**
+         * Called from the executor only while fetching is set, so only one fetch is active
+         * for the shard and lastColumn/firstPage need no further synchronization
+         */
+        private List<Column<C>> fetchPage() {
+            ColumnList<C> result;
+            try {
+                C start = firstPage ? startColumn : lastColumn;
+                int count = firstPage ? pageSize : pageSize + 1;
+                result = ks.prepareQuery(cf)
+                        .setConsistencyLevel(consistencyLevel)
+                        .withRetryPolicy(retry)
+                        .getKey(shard)
+                        .withColumnRange(start, endColumn, reversed, count)
+                        .execute().getResult();
+            }
+            catch (Exception e) {
+                throw new RuntimeException("Failed to read shard " + shard, e);
+            }
+
+            if (result.size() < (firstPage ? pageSize : pageSize + 1))
+                exhausted = true;
+
+            List<Column<C>> columns = Lists.newArrayList(result);
+
+            // The first column of subsequent pages repeats the last column of the previous page
+            if (!firstPage && !columns.isEmpty() && columns.get(0).getRawName().equals(lastRawColumn))
+                columns = columns.subList(1, columns.size());
+
+            if (!result.isEmpty()) {
+                Column<C> last = result.getColumnByIndex(result.size() - 1);
+                lastColumn    = last.getName();
+                lastRawColumn = last.getRawName();
+            }
+
+            firstPage = false;
+            return columns;
+        }
+    }
 }
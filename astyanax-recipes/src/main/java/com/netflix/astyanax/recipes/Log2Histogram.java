@@ -0,0 +1,58 @@
+package com.netflix.astyanax.recipes;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread safe histogram with power of two buckets.  Bucket i counts the values below 2^i that
+ * are at least 2^(i-1), and the last bucket also counts all values beyond its bound.  Used by
+ * the stats implementations to track latencies without locking.
+ */
+public class Log2Histogram {
+    private final AtomicLongArray buckets;
+
+    /**
+     * @param bucketCount Number of buckets, so that values below 2^(bucketCount-1) are kept apart
+     */
+    public Log2Histogram(int bucketCount) {
+        this.buckets = new AtomicLongArray(bucketCount);
+    }
+
+    public void record(long value) {
+        int bucket = value <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(value);
+        buckets.incrementAndGet(Math.min(bucket, buckets.length() - 1));
+    }
+
+    /**
+     * @return Count of each bucket
+     */
+    public long[] getCounts() {
+        long[] histogram = new long[buckets.length()];
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = buckets.get(i);
+        }
+        return histogram;
+    }
+
+    /**
+     * @param percentile
+     * @return Upper bound of the bucket containing the percentile or 0 if nothing was recorded
+     */
+    public long getPercentile(double percentile) {
+        long[] histogram = getCounts();
+        long total = 0;
+        for (long count : histogram) {
+            total += count;
+        }
+        if (total == 0)
+            return 0;
+
+        long threshold = (long)Math.ceil(total * percentile / 100.0);
+        long count = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            count += histogram[i];
+            if (count >= threshold)
+                return 1L << i;
+        }
+        return 1L << (histogram.length - 1);
+    }
+}
@@ -2,49 +2,92 @@ package com.netflix.astyanax.recipes;
 
 import java.nio.ByteBuffer;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.netflix.astyanax.Keyspace;
 import com.netflix.astyanax.Serializer;
-import com.netflix.astyanax.connectionpool.OperationResult;
+import com.netflix.astyanax.connectionpool.ConnectionPool;
+import com.netflix.astyanax.connectionpool.Host;
 import com.netflix.astyanax.connectionpool.exceptions.ConnectionException;
 import com.netflix.astyanax.model.Column;
 import com.netflix.astyanax.model.ColumnFamily;
 import com.netflix.astyanax.model.ColumnList;
 import com.netflix.astyanax.model.ColumnSlice;
-import com.netflix.astyanax.model.CompositeParser;
+import com.netflix.astyanax.model.Composite;
 import com.netflix.astyanax.model.Composites;
 import com.netflix.astyanax.model.ConsistencyLevel;
 import com.netflix.astyanax.model.Row;
 import com.netflix.astyanax.model.Rows;
+import com.netflix.astyanax.partitioner.Partitioner;
 import com.netflix.astyanax.retry.RetryPolicy;
 import com.netflix.astyanax.retry.RunOnce;
+import com.netflix.astyanax.serializers.BigIntegerSerializer;
 import com.netflix.astyanax.serializers.ByteBufferSerializer;
+import com.netflix.astyanax.serializers.ComparatorType;
 import com.netflix.astyanax.util.RangeBuilder;
 
 /**
  * Performs a search on a reverse index and fetches all the matching rows
- * 
+ *
  * CFData:K C=V1 C=V2
- * 
+ *
  * CFIndex: V1:K
- * 
+ *
  * <h3>Data and Index column family</h3> The CFData column family has key of
  * type K and fields or columns of type C. Each column may have a different
  * value type. The CFIndex column family is a sorted index by one of the value
  * types V. The column names in the reverse index are a composite of the value
  * type V and the CFData rowkey type K (V:K).
- * 
+ *
+ * <h3>Execution</h3>
+ * 1. All index shards are paginated concurrently.  Each shard keeps up to withReadAhead()
+ *      pages buffered so that the next page is being read while the current one is processed.
+ * 2. Keys found in more than one shard, or more than once in a shard, are only fetched once
+ *      as long as they are among the last withMaxDedupKeys() keys that were fetched.  This
+ *      bounds the memory used by a query over a large index, at the cost of passing a row to
+ *      the callback again when its key shows up after it was evicted, such as when the index
+ *      has stale entries of the row with values that are far apart.
+ * 3. Keys are grouped by the token range that owns them and fetched with one multiget of up
+ *      to setShardBlockSize() keys per range.  Each multiget is pinned to an active replica of
+ *      its range, and retried once through the connection pool if that replica fails.
+ * 4. Data rows that were requested but not yet passed to the callback are bounded by a
+ *      memory budget (see withMemoryBudget) which is charged using the observed average row
+ *      size.  Reading the index pauses while the budget is exhausted.
+ * 5. By default rows are passed to the forEach callback from the executor threads in no
+ *      particular order.  With withOrderedResults(true) the shards are merged by index value
+ *      and rows are passed to the callback, in index order, from the thread calling execute().
+ *      Serialized values are compared the way the index column family compares its first
+ *      component, as given by the comparator type of the value serializer (for example by
+ *      time for TimeUUIDType and as signed numbers for LongType).  Other types, including 
+ *      BytesType, UTF8Type and AsciiType, are compared as unsigned bytes.
+ * 6. The first failure to read an index shard or data rows, or of a callback, stops the
+ *      query and is thrown from execute() once the reads in flight completed.
+ *
  * @author elandau
- * 
+ *
  * @param <K>
  *            Key type for data table
  * @param <C>
@@ -53,6 +96,25 @@ import com.netflix.astyanax.util.RangeBuilder;
  *            Value type being indexed
  */
 public class ReverseIndexQuery<K, C, V> {
+    public static final int  DEFAULT_THREAD_COUNT   = Integer.getInteger("astyanax.reverseindex.threads", 16);
+    public static final int  DEFAULT_READ_AHEAD     = 2;
+    public static final long DEFAULT_MEMORY_BUDGET  = 64 * 1024 * 1024;
+    public static final int  DEFAULT_MAX_DEDUP_KEYS = 100000;
+
+    private static final long INITIAL_ROW_SIZE = 1024;
+
+    private static ExecutorService defaultExecutor;
+
+    /**
+     * @return Executor on which index shards and data rows are read unless one was set with useExecutor
+     */
+    public static synchronized ExecutorService getDefaultExecutor() {
+        if (defaultExecutor == null) {
+            defaultExecutor = Executors.newFixedThreadPool(DEFAULT_THREAD_COUNT,
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("ReverseIndexQuery-%d").build());
+        }
+        return defaultExecutor;
+    }
 
     public static <K, C, V> ReverseIndexQuery<K, C, V> newQuery(Keyspace ks, ColumnFamily<K, C> cf, String indexCf,
             Serializer<V> valSerializer) {
@@ -63,9 +125,34 @@ public class ReverseIndexQuery<K, C, V> {
         boolean handleEntry(K key, V value, ByteBuffer meta);
     }
 
+    /**
+     * Parsed column of an index shard
+     */
+    private class IndexEntry {
+        private final V          value;
+        private final ByteBuffer rawValue;
+        private final K          key;
+        private final ByteBuffer rawKey;
+        private final ByteBuffer meta;
+
+        IndexEntry(Column<ByteBuffer> column) {
+            // The components are parsed by position since the names of a static composite
+            // don't identify their types
+            Composite composite = new Composite();
+            composite.setSerializersByPosition(valSerializer, cfData.getKeySerializer());
+            composite.deserialize(column.getName());
+            this.value    = composite.get(0, valSerializer);
+            this.key      = composite.get(1, cfData.getKeySerializer());
+            this.rawValue = valSerializer.toByteBuffer(value);
+            this.rawKey   = cfData.getKeySerializer().toByteBuffer(key);
+            this.meta     = column.getByteBufferValue();
+        }
+    }
+
     private final Keyspace ks;
     private final ColumnFamily<K, C> cfData;
     private final Serializer<V> valSerializer;
+    private final Comparator<ByteBuffer> valComparator;
     private Collection<ByteBuffer> shardKeys;
     private final ColumnFamily<ByteBuffer, ByteBuffer> cfIndex;
     private ExecutorService executor;
@@ -74,18 +161,26 @@ public class ReverseIndexQuery<K, C, V> {
     private int keyLimit = 100;
     private int columnLimit = 1000;
     private int shardColumnLimit = 0;
-    private final AtomicLong pendingTasks = new AtomicLong();
+    private int readAhead = DEFAULT_READ_AHEAD;
+    private long memoryBudget = DEFAULT_MEMORY_BUDGET;
+    private int maxDedupKeys = DEFAULT_MAX_DEDUP_KEYS;
+    private boolean orderedResults = false;
     private Function<Row<K, C>, Void> callback;
     private IndexEntryCallback<K, V> indexCallback;
     private ConsistencyLevel consistencyLevel = ConsistencyLevel.CL_ONE;
     private RetryPolicy retry = RunOnce.get();
     private Collection<C> columnSlice;
-    private CountDownLatch latch = new CountDownLatch(1);
+
+    // Ring described by an earlier execution.  Only kept when the ring was described successfully.
+    private TokenRingLookup ring;
+    private Partitioner partitioner;
+    private ConnectionPool<?> pool;
 
     public ReverseIndexQuery(Keyspace ks, ColumnFamily<K, C> cfData, String indexCf, Serializer<V> valSerializer) {
         this.ks = ks;
         this.cfData = cfData;
         this.valSerializer = valSerializer;
+        this.valComparator = getValueComparator(valSerializer);
         this.startValue = null;
         this.endValue = null;
         this.cfIndex = ColumnFamily.newColumnFamily(indexCf, ByteBufferSerializer.get(), ByteBufferSerializer.get());
@@ -137,8 +232,8 @@ public class ReverseIndexQuery<K, C, V> {
     }
 
     /**
-     * Set the number shard keys to fetch for the first query
-     * 
+     * Set the max number of data rows to fetch with a single multiget
+     *
      * @param size
      * @return
      */
@@ -149,7 +244,7 @@ public class ReverseIndexQuery<K, C, V> {
 
     /**
      * Set the number columns to read from each shard when paginating.
-     * 
+     *
      * @param size
      * @return
      */
@@ -163,196 +258,722 @@ public class ReverseIndexQuery<K, C, V> {
         return this;
     }
 
-    public abstract class Task implements Runnable {
-        public Task() {
-            pendingTasks.incrementAndGet();
-            executor.submit(this);
+    /**
+     * Number of pages of each index shard to read ahead of the page being processed
+     * @param pages
+     * @return
+     */
+    public ReverseIndexQuery<K, C, V> withReadAhead(int pages) {
+        this.readAhead = Math.max(1, pages);
+        return this;
+    }
+
+    /**
+     * Approximate max number of bytes of data rows that have been requested but not yet passed
+     * to the callback
+     * @param bytes
+     * @return
+     */
+    public ReverseIndexQuery<K, C, V> withMemoryBudget(long bytes) {
+        this.memoryBudget = bytes;
+        return this;
+    }
+
+    /**
+     * Number of most recently fetched keys that are remembered to skip duplicate index entries.
+     * A key that shows up again after it was evicted is passed to the callback again.
+     * @param keys
+     * @return
+     */
+    public ReverseIndexQuery<K, C, V> withMaxDedupKeys(int keys) {
+        Preconditions.checkArgument(keys > 0, "Max dedup keys must be positive");
+        this.maxDedupKeys = keys;
+        return this;
+    }
+
+    /**
+     * Pass rows to the callback in index value order from the thread calling execute()
+     * @param ordered
+     * @return
+     */
+    public ReverseIndexQuery<K, C, V> withOrderedResults(boolean ordered) {
+        this.orderedResults = ordered;
+        return this;
+    }
+
+    /**
+     * Read the index and pass the matching rows to the callbacks
+     * @throws RuntimeException with the first failure to read the index or the data rows, or
+     *      the exception thrown by a callback
+     */
+    public void execute() {
+        new Execution().execute();
+    }
+
+    /**
+     * State of a single call to execute()
+     */
+    private class Execution {
+        private final ExecutorService            executor;
+        private final BlockingQueue<ShardReader> readyShards = new LinkedBlockingQueue<ShardReader>();
+        private final Queue<DataBatch>           dataBatches = Lists.newLinkedList();
+        private final AtomicLong                 rowSize     = new AtomicLong(INITIAL_ROW_SIZE);
+        private final AtomicReference<Exception> error       = new AtomicReference<Exception>();
+        private final Set<ByteBuffer>            fetchedKeys = newDedupSet(maxDedupKeys);
+        private final Map<Integer, List<K>>      pendingKeys = Maps.newTreeMap();
+        private final MemoryBudget               budget      = new MemoryBudget(memoryBudget);
+        private final TokenRingLookup            ring;
+        private final Partitioner                partitioner;
+        private final ConnectionPool<?>          pool;
+
+        Execution() {
+            this.executor = ReverseIndexQuery.this.executor != null ? ReverseIndexQuery.this.executor : getDefaultExecutor();
+            synchronized (ReverseIndexQuery.this) {
+                describeRing();
+                this.ring        = ReverseIndexQuery.this.ring;
+                this.partitioner = ReverseIndexQuery.this.partitioner;
+                this.pool        = ReverseIndexQuery.this.pool;
+            }
         }
 
-        @Override
-        public final void run() {
-            try {
-                internalRun();
+        /**
+         * Paginates a single index shard, keeping up to readAhead pages buffered
+         */
+        private class ShardReader {
+            private final ByteBuffer                   shard;
+            private final LinkedList<List<IndexEntry>> pages     = Lists.newLinkedList();
+            private ByteBuffer                         lastColumn;
+            private boolean                            fetching  = false;
+            private boolean                            exhausted = false;
+            private boolean                            finished  = false;  // Only accessed by the consuming thread
+
+            ShardReader(ByteBuffer shard) {
+                this.shard = shard;
             }
-            catch (Throwable t) {
+
+            /**
+             * Start reading the next page unless enough pages are already buffered or the
+             * query failed
+             */
+            synchronized void fill() {
+                if (exhausted || fetching || error.get() != null || pages.size() >= readAhead)
+                    return;
+
+                fetching = true;
+                executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        fetchPage();
+                    }
+                });
             }
 
-            if (pendingTasks.decrementAndGet() == 0)
-                latch.countDown();
+            private void fetchPage() {
+                List<IndexEntry> page = null;
+                boolean last = true;
+                try {
+                    RangeBuilder range = new RangeBuilder();
+                    int limit;
+                    // The end-of-component byte of the bounds makes them sort before the first and after
+                    // the last entry of their value so that both bounds are inclusive
+                    if (lastColumn == null) {
+                        if (startValue != null) {
+                            range.setStart(Composites.newCompositeBuilder().lessThanEquals().add(startValue, valSerializer)
+                                    .build());
+                        }
+                        limit = columnLimit;
+                    }
+                    else {
+                        // The range start is inclusive so the last column of the previous page is read again
+                        range.setStart(lastColumn);
+                        limit = (shardColumnLimit == 0 ? columnLimit : shardColumnLimit) + 1;
+                    }
+                    if (endValue != null) {
+                        range.setEnd(Composites.newCompositeBuilder().greaterThanEquals().add(endValue, valSerializer).build());
+                    }
+
+                    ColumnList<ByteBuffer> result = ks.prepareQuery(cfIndex).setConsistencyLevel(consistencyLevel).withRetryPolicy(retry)
+                            .getKey(shard).withColumnRange(range.setLimit(limit).build()).execute().getResult();
+
+                    page = Lists.newArrayListWithCapacity(result.size());
+                    for (Column<ByteBuffer> column : result) {
+                        if (lastColumn != null && column.getRawName().equals(lastColumn))
+                            continue;
+                        page.add(new IndexEntry(column));
+                    }
+                    if (!result.isEmpty())
+                        lastColumn = result.getColumnByIndex(result.size() - 1).getRawName();
+                    last = result.size() < limit;
+                }
+                catch (ConnectionException e) {
+                    error.compareAndSet(null, e);
+                }
+                catch (RuntimeException e) {
+                    error.compareAndSet(null, e);
+                }
+
+                synchronized (this) {
+                    if (page != null && !page.isEmpty())
+                        pages.add(page);
+                    fetching  = false;
+                    exhausted = last;
+                    fill();
+                    notifyAll();
+                }
+                if (!orderedResults)
+                    readyShards.add(this);
+            }
+
+            /**
+             * @return Next buffered page or null if none is buffered
+             */
+            synchronized List<IndexEntry> poll() {
+                List<IndexEntry> page = pages.poll();
+                fill();
+                return page;
+            }
+
+            /**
+             * @return Next page, waiting for it to be read, or null once the shard was read to the end
+             * @throws InterruptedException
+             */
+            synchronized List<IndexEntry> take() throws InterruptedException {
+                while (pages.isEmpty() && !isDone())
+                    wait();
+                return poll();
+            }
+
+            /**
+             * @return True once all buffered pages were consumed and no more pages will be read
+             */
+            synchronized boolean isDone() {
+                return pages.isEmpty() && !fetching && (exhausted || error.get() != null);
+            }
         }
 
-        protected abstract void internalRun();
-    }
+        /**
+         * Position of the ordered merge in one shard
+         */
+        private class MergeCursor {
+            private final ShardReader    reader;
+            private Iterator<IndexEntry> page = Collections.<IndexEntry>emptyList().iterator();
+            private IndexEntry           head;
 
-    public void execute() {
-        if (executor == null)
-            executor = Executors.newFixedThreadPool(5, new ThreadFactoryBuilder().setDaemon(true).build());
+            MergeCursor(ShardReader reader) {
+                this.reader = reader;
+            }
 
-        // Break up the shards into batches
-        List<ByteBuffer> batch = Lists.newArrayListWithCapacity(keyLimit);
-        for (ByteBuffer shard : shardKeys) {
-            batch.add(shard);
-            if (batch.size() == keyLimit) {
-                fetchFirstIndexBatch(batch);
-                batch = Lists.newArrayListWithCapacity(keyLimit);
+            /**
+             * @return False once the shard was read to the end
+             */
+            boolean advance() throws InterruptedException {
+                while (!page.hasNext()) {
+                    List<IndexEntry> next = reader.take();
+                    if (next == null)
+                        return false;
+                    page = next.iterator();
+                }
+                head = page.next();
+                return true;
             }
         }
-        if (!batch.isEmpty()) {
-            fetchFirstIndexBatch(batch);
+
+        /**
+         * Data rows requested with one or more token split multigets
+         */
+        private class DataBatch {
+            private final List<K>                  keys;
+            private final List<Future<Rows<K, C>>> parts    = Lists.newArrayList();
+            private final Map<K, Integer>          keyParts = Maps.newHashMap();
+            private final long                     reserved;
+
+            DataBatch(List<K> keys, long reserved) {
+                this.keys     = keys;
+                this.reserved = reserved;
+            }
         }
 
-        if (pendingTasks.get() > 0) {
+        void execute() {
+            List<ShardReader> readers = Lists.newArrayList();
+            for (ByteBuffer shard : shardKeys) {
+                ShardReader reader = new ShardReader(shard);
+                readers.add(reader);
+                reader.fill();
+            }
+
             try {
-                latch.await(1000, TimeUnit.MINUTES);
+                try {
+                    if (orderedResults)
+                        mergeShards(readers);
+                    else
+                        readShards(readers);
+
+                    if (error.get() == null) {
+                        for (Map.Entry<Integer, List<K>> keys : pendingKeys.entrySet()) {
+                            fetchDataBatch(keys.getKey(), keys.getValue());
+                        }
+                    }
+                }
+                catch (RuntimeException e) {
+                    error.compareAndSet(null, e);
+                }
+                pendingKeys.clear();
+
+                // Wait for the reads in flight even after a failure so that they don't outlive execute()
+                while (!dataBatches.isEmpty()) {
+                    completeDataBatch();
+                }
             }
             catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
             }
+
+            Exception e = error.get();
+            if (e instanceof RuntimeException)
+                throw (RuntimeException)e;
+            if (e != null)
+                throw new RuntimeException("Failed to query reverse index " + cfIndex.getName(), e);
         }
-    }
 
-    private void fetchFirstIndexBatch(final Collection<ByteBuffer> keys) {
-        new Task() {
-            @Override
-            protected void internalRun() {
-                // Get the first range in the index
-                RangeBuilder range = new RangeBuilder();
-                if (startValue != null) {
-                    range.setStart(Composites.newCompositeBuilder().greaterThanEquals().add(startValue, valSerializer)
-                            .build());
+        /**
+         * Process index pages in the order in which they are read
+         */
+        private void readShards(List<ShardReader> readers) throws InterruptedException {
+            int remaining = readers.size();
+            while (remaining > 0 && error.get() == null) {
+                ShardReader reader = readyShards.take();
+                List<IndexEntry> page = reader.poll();
+                if (page != null) {
+                    for (IndexEntry entry : page) {
+                        processEntry(entry);
+                    }
                 }
-                if (endValue != null) {
-                    range.setEnd(Composites.newCompositeBuilder().lessThanEquals().add(endValue, valSerializer).build());
+                if (!reader.finished && reader.isDone()) {
+                    reader.finished = true;
+                    remaining--;
                 }
+            }
+        }
 
-                // Read the index shards
-                OperationResult<Rows<ByteBuffer, ByteBuffer>> result = null;
-                try {
-                    result = ks.prepareQuery(cfIndex).setConsistencyLevel(consistencyLevel).withRetryPolicy(retry)
-                            .getKeySlice(keys).withColumnRange(range.setLimit(columnLimit).build()).execute();
+        /**
+         * Process index entries of all shards in index order
+         */
+        private void mergeShards(List<ShardReader> readers) throws InterruptedException {
+            PriorityQueue<MergeCursor> cursors = new PriorityQueue<MergeCursor>(Math.max(1, readers.size()), new Comparator<MergeCursor>() {
+                @Override
+                public int compare(MergeCursor o1, MergeCursor o2) {
+                    int result = compareValues(o1.head, o2.head);
+                    return result != 0 ? result : compareBytes(o1.head.rawKey, o2.head.rawKey);
                 }
-                catch (ConnectionException e) {
-                    e.printStackTrace();
+            });
+
+            for (ShardReader reader : readers) {
+                MergeCursor cursor = new MergeCursor(reader);
+                if (cursor.advance())
+                    cursors.add(cursor);
+            }
+
+            while (!cursors.isEmpty() && error.get() == null) {
+                MergeCursor cursor = cursors.poll();
+                processEntry(cursor.head);
+                if (cursor.advance())
+                    cursors.add(cursor);
+            }
+        }
+
+        private void processEntry(IndexEntry entry) throws InterruptedException {
+            if (indexCallback != null) {
+                if (!indexCallback.handleEntry(entry.key, entry.value, entry.meta)) {
                     return;
                 }
+            }
 
-                // Read the actual data rows in batches
-                List<K> batch = Lists.newArrayListWithCapacity(keyLimit);
-                for (Row<ByteBuffer, ByteBuffer> row : result.getResult()) {
-                    if (!row.getColumns().isEmpty()) {
-                        V lastValue = null;
-                        for (Column<ByteBuffer> column : row.getColumns()) {
-                            CompositeParser parser = Composites.newCompositeParser(column.getName());
-                            lastValue = parser.read(valSerializer);
-                            K key = parser.read(cfData.getKeySerializer());
-
-                            if (indexCallback != null) {
-                                if (!indexCallback.handleEntry(key, lastValue, column.getByteBufferValue())) {
-                                    continue;
-                                }
-                            }
+            if (callback == null || !fetchedKeys.add(entry.rawKey))
+                return;
+
+            // Ordered results are fetched in index order, otherwise keys are grouped by token range
+            int range = orderedResults ? 0 : getRangeIndex(entry.rawKey);
+            List<K> keys = pendingKeys.get(range);
+            if (keys == null) {
+                keys = Lists.newArrayListWithCapacity(keyLimit);
+                pendingKeys.put(range, keys);
+            }
+            keys.add(entry.key);
 
-                            if (callback != null) {
-                                batch.add(key);
+            if (keys.size() == keyLimit) {
+                pendingKeys.remove(range);
+                fetchDataBatch(range, keys);
+            }
+        }
 
-                                if (batch.size() == keyLimit) {
-                                    fetchDataBatch(batch);
-                                    batch = Lists.newArrayListWithCapacity(keyLimit);
-                                }
+        /**
+         * Start fetching the rows once the memory budget allows it.  For ordered results the oldest
+         * batches are passed to the callback while the budget is exhausted.
+         * @param range Token range of the keys, ignored for ordered results
+         * @param keys
+         */
+        private void fetchDataBatch(final int range, final List<K> keys) throws InterruptedException {
+            long reserved = keys.size() * rowSize.get();
+            if (orderedResults) {
+                while (!budget.tryAcquire(reserved))
+                    completeDataBatch();
+            }
+            else {
+                while (!dataBatches.isEmpty() && dataBatches.peek().parts.get(0).isDone())
+                    completeDataBatch();
+                budget.acquire(reserved);
+            }
+
+            final DataBatch batch = new DataBatch(keys, reserved);
+            if (orderedResults) {
+                // Split the batch by token range and pass the rows to the callback once all parts completed
+                Map<Integer, List<K>> ranges = Maps.newTreeMap();
+                for (K key : keys) {
+                    int keyRange = getRangeIndex(cfData.getKeySerializer().toByteBuffer(key));
+                    List<K> rangeKeys = ranges.get(keyRange);
+                    if (rangeKeys == null) {
+                        rangeKeys = Lists.newArrayList();
+                        ranges.put(keyRange, rangeKeys);
+                    }
+                    rangeKeys.add(key);
+                }
+                for (final Map.Entry<Integer, List<K>> rangeKeys : ranges.entrySet()) {
+                    for (K key : rangeKeys.getValue()) {
+                        batch.keyParts.put(key, batch.parts.size());
+                    }
+                    batch.parts.add(executor.submit(new Callable<Rows<K, C>>() {
+                        @Override
+                        public Rows<K, C> call() throws Exception {
+                            return readRows(rangeKeys.getKey(), rangeKeys.getValue());
+                        }
+                    }));
+                }
+            }
+            else {
+                // Rows are passed to the callback by the executor thread
+                batch.parts.add(executor.submit(new Callable<Rows<K, C>>() {
+                    @Override
+                    public Rows<K, C> call() throws Exception {
+                        try {
+                            for (Row<K, C> row : readRows(range, keys)) {
+                                callback.apply(row);
                             }
                         }
-
-                        if (row.getColumns().size() == columnLimit) {
-                            paginateIndexShard(row.getKey(), lastValue);
+                        finally {
+                            budget.release(batch.reserved);
                         }
+                        return null;
                     }
+                }));
+            }
+            dataBatches.add(batch);
+        }
+
+        /**
+         * Wait for the oldest batch to complete and, for ordered results, pass its rows to the
+         * callback unless the query already failed
+         */
+        private void completeDataBatch() throws InterruptedException {
+            DataBatch batch = dataBatches.poll();
+            try {
+                if (!orderedResults) {
+                    batch.parts.get(0).get();
+                    return;
                 }
-                if (!batch.isEmpty()) {
-                    fetchDataBatch(batch);
+
+                List<Rows<K, C>> rows = Lists.newArrayListWithCapacity(batch.parts.size());
+                for (Future<Rows<K, C>> part : batch.parts) {
+                    rows.add(part.get());
+                }
+                if (error.get() != null)
+                    return;
+                for (K key : batch.keys) {
+                    Row<K, C> row = rows.get(batch.keyParts.get(key)).getRow(key);
+                    if (row != null)
+                        callback.apply(row);
                 }
             }
-        };
+            catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                error.compareAndSet(null, cause instanceof Exception ? (Exception)cause : e);
+            }
+            catch (RuntimeException e) {
+                error.compareAndSet(null, e);
+            }
+            finally {
+                if (orderedResults)
+                    budget.release(batch.reserved);
+            }
+        }
+
+        /**
+         * Read the rows of a single token range from a replica of the range
+         */
+        private Rows<K, C> readRows(int range, Collection<K> keys) throws ConnectionException {
+            Host host = (partitioner == null) ? null : ring.getReplicaHost(range, pool);
+            Rows<K, C> rows;
+            try {
+                rows = queryRows(host, keys);
+            }
+            catch (ConnectionException e) {
+                if (host == null)
+                    throw e;
+                rows = queryRows(null, keys);
+            }
+
+            // Keep a moving average of the row size to charge the memory budget
+            long size  = 0;
+            int  count = 0;
+            for (Row<K, C> row : rows) {
+                for (Column<C> column : row.getColumns()) {
+                    size += column.getRawName().remaining() + column.getByteBufferValue().remaining();
+                }
+                count++;
+            }
+            if (count > 0) {
+                long current = rowSize.get();
+                rowSize.compareAndSet(current, Math.max(64, (current * 7 + size / count) / 8));
+            }
+            return rows;
+        }
+
+        private Rows<K, C> queryRows(Host host, Collection<K> keys) throws ConnectionException {
+            return ks.prepareQuery(cfData).withRetryPolicy(retry)
+                    .setConsistencyLevel(consistencyLevel).pinToHost(host).getKeySlice(keys)
+                    .withColumnSlice(new ColumnSlice<C>(columnSlice)).execute().getResult();
+        }
+
+        private int getRangeIndex(ByteBuffer rawKey) {
+            if (partitioner == null)
+                return 0;
+            return ring.getRangeIndex(partitioner.getTokenForKey(rawKey.duplicate()));
+        }
     }
 
-    private void paginateIndexShard(final ByteBuffer shard, final V value) {
-        new Task() {
-            @Override
-            protected void internalRun() {
-                V nextValue = value;
-                ColumnList<ByteBuffer> result = null;
-                List<K> batch = Lists.newArrayListWithCapacity(keyLimit);
-
-                int pageSize = shardColumnLimit;
-                if (pageSize == 0)
-                    pageSize = columnLimit;
-
-                do {
-                    // Get the first range in the index
-                    RangeBuilder range = new RangeBuilder().setStart(Composites.newCompositeBuilder()
-                            .greaterThanEquals().addBytes(valSerializer.getNext(valSerializer.toByteBuffer(nextValue)))
-                            .build());
-                    if (endValue != null) {
-                        range.setEnd(Composites.newCompositeBuilder().lessThanEquals().add(endValue, valSerializer)
-                                .build());
-                    }
+    /**
+     * Describe the ring unless an earlier execution described it.  When the ring can't be
+     * described keys aren't grouped by token range and the next execution tries again.
+     */
+    private synchronized void describeRing() {
+        if (partitioner != null)
+            return;
+        try {
+            partitioner = ks.getPartitioner();
+            pool        = ks.getConnectionPool();
+            ring        = new TokenRingLookup(ks.describeRing(true));
+        }
+        catch (Exception e) {
+            partitioner = null;
+            pool        = null;
+            ring        = null;
+        }
+    }
 
-                    // Read the index shards
-                    try {
-                        result = ks.prepareQuery(cfIndex).setConsistencyLevel(consistencyLevel).withRetryPolicy(retry)
-                                .getKey(shard).withColumnRange(range.setLimit(pageSize).build()).execute().getResult();
-                    }
-                    catch (ConnectionException e) {
-                        e.printStackTrace();
-                        return;
-                    }
+    private int compareValues(IndexEntry o1, IndexEntry o2) {
+        return valComparator.compare(o1.rawValue, o2.rawValue);
+    }
 
-                    // Read the actual data rows in batches
-                    for (Column<ByteBuffer> column : result) {
-                        CompositeParser parser = Composites.newCompositeParser(column.getName());
-                        nextValue = parser.read(valSerializer);
-                        K key = parser.read(cfData.getKeySerializer());
+    private static int compareBytes(ByteBuffer b1, ByteBuffer b2) {
+        return compareBytes(b1, b1.position(), b2, b2.position());
+    }
 
-                        if (indexCallback != null) {
-                            if (!indexCallback.handleEntry(key, nextValue, column.getByteBufferValue())) {
-                                continue;
-                            }
-                        }
+    /**
+     * Unsigned comparison of the bytes of b1 and b2 from the given positions to their limits
+     */
+    private static int compareBytes(ByteBuffer b1, int from1, ByteBuffer b2, int from2) {
+        int length1 = b1.limit() - from1;
+        int length2 = b2.limit() - from2;
+        int length  = Math.min(length1, length2);
+        for (int i = 0; i < length; i++) {
+            int result = (b1.get(from1 + i) & 0xFF) - (b2.get(from2 + i) & 0xFF);
+            if (result != 0)
+                return result;
+        }
+        return length1 - length2;
+    }
 
-                        if (callback != null) {
-                            batch.add(key);
+    private static final Comparator<ByteBuffer> UNSIGNED_BYTES = new Comparator<ByteBuffer>() {
+        @Override
+        public int compare(ByteBuffer b1, ByteBuffer b2) {
+            return compareBytes(b1, b2);
+        }
+    };
 
-                            if (batch.size() == keyLimit) {
-                                fetchDataBatch(batch);
-                                batch = Lists.newArrayListWithCapacity(keyLimit);
-                            }
-                        }
-                    }
-                } while (result != null && result.size() == pageSize);
+    /**
+     * Two's complement numbers of the same length (LongType, Int32Type, DateType)
+     */
+    private static final Comparator<ByteBuffer> SIGNED_FIXED_LENGTH = new Comparator<ByteBuffer>() {
+        @Override
+        public int compare(ByteBuffer b1, ByteBuffer b2) {
+            if (!b1.hasRemaining() || !b2.hasRemaining() || b1.remaining() != b2.remaining())
+                return compareBytes(b1, b2);
+            int result = b1.get(b1.position()) - b2.get(b2.position());
+            return result != 0 ? result : compareBytes(b1, b1.position() + 1, b2, b2.position() + 1);
+        }
+    };
 
-                if (!batch.isEmpty()) {
-                    fetchDataBatch(batch);
-                }
+    /**
+     * Variable length two's complement numbers (IntegerType)
+     */
+    private static final Comparator<ByteBuffer> BIG_INTEGER = new Comparator<ByteBuffer>() {
+        @Override
+        public int compare(ByteBuffer b1, ByteBuffer b2) {
+            if (!b1.hasRemaining() || !b2.hasRemaining())
+                return b1.remaining() - b2.remaining();
+            return BigIntegerSerializer.get().fromByteBuffer(b1.duplicate())
+                    .compareTo(BigIntegerSerializer.get().fromByteBuffer(b2.duplicate()));
+        }
+    };
+
+    private static final Comparator<ByteBuffer> DOUBLE = new Comparator<ByteBuffer>() {
+        @Override
+        public int compare(ByteBuffer b1, ByteBuffer b2) {
+            if (b1.remaining() != 8 || b2.remaining() != 8)
+                return compareBytes(b1, b2);
+            return Double.compare(b1.getDouble(b1.position()), b2.getDouble(b2.position()));
+        }
+    };
+
+    private static final Comparator<ByteBuffer> FLOAT = new Comparator<ByteBuffer>() {
+        @Override
+        public int compare(ByteBuffer b1, ByteBuffer b2) {
+            if (b1.remaining() != 4 || b2.remaining() != 4)
+                return compareBytes(b1, b2);
+            return Float.compare(b1.getFloat(b1.position()), b2.getFloat(b2.position()));
+        }
+    };
+
+    /**
+     * UUIDs ordered by version, then by time for version 1 UUIDs, then by their bytes
+     * (TimeUUIDType and UUIDType)
+     */
+    private static final Comparator<ByteBuffer> TIME_UUID = new Comparator<ByteBuffer>() {
+        @Override
+        public int compare(ByteBuffer b1, ByteBuffer b2) {
+            if (b1.remaining() != 16 || b2.remaining() != 16)
+                return compareBytes(b1, b2);
+            int version1 = (b1.get(b1.position() + 6) >> 4) & 0x0F;
+            int version2 = (b2.get(b2.position() + 6) >> 4) & 0x0F;
+            if (version1 != version2)
+                return version1 - version2;
+            if (version1 == 1) {
+                long time1 = getUUIDTime(b1);
+                long time2 = getUUIDTime(b2);
+                if (time1 != time2)
+                    return time1 < time2 ? -1 : 1;
             }
-        };
+            return compareBytes(b1, b2);
+        }
+    };
+
+    /**
+     * UUIDs ordered like java.util.UUID.compareTo (LexicalUUIDType)
+     */
+    private static final Comparator<ByteBuffer> LEXICAL_UUID = new Comparator<ByteBuffer>() {
+        @Override
+        public int compare(ByteBuffer b1, ByteBuffer b2) {
+            if (b1.remaining() != 16 || b2.remaining() != 16)
+                return compareBytes(b1, b2);
+            long msb1 = b1.getLong(b1.position());
+            long msb2 = b2.getLong(b2.position());
+            if (msb1 != msb2)
+                return msb1 < msb2 ? -1 : 1;
+            long lsb1 = b1.getLong(b1.position() + 8);
+            long lsb2 = b2.getLong(b2.position() + 8);
+            return lsb1 == lsb2 ? 0 : (lsb1 < lsb2 ? -1 : 1);
+        }
+    };
+
+    /**
+     * @return 60 bit timestamp of a version 1 UUID
+     */
+    private static long getUUIDTime(ByteBuffer uuid) {
+        int p = uuid.position();
+        return ((long)(uuid.get(p + 6) & 0x0F) << 56)
+             | ((long)(uuid.get(p + 7) & 0xFF) << 48)
+             | ((long)(uuid.get(p + 4) & 0xFF) << 40)
+             | ((long)(uuid.get(p + 5) & 0xFF) << 32)
+             | (uuid.getInt(p) & 0xFFFFFFFFL);
     }
 
-    private void fetchDataBatch(final Collection<K> keys) {
-        new Task() {
-            @Override
-            protected void internalRun() {
-                try {
-                    OperationResult<Rows<K, C>> result = ks.prepareQuery(cfData).withRetryPolicy(retry)
-                            .setConsistencyLevel(consistencyLevel).getKeySlice(keys)
-                            .withColumnSlice(new ColumnSlice<C>(columnSlice)).execute();
+    /**
+     * @return Comparator of serialized values consistent with the index column family
+     *          comparator for the comparator type of the value serializer
+     */
+    static Comparator<ByteBuffer> getValueComparator(Serializer<?> valSerializer) {
+        ComparatorType type;
+        try {
+            type = valSerializer.getComparatorType();
+        }
+        catch (Exception e) {
+            return UNSIGNED_BYTES;
+        }
+        if (type == null)
+            return UNSIGNED_BYTES;
+
+        switch (type) {
+        case LONGTYPE:
+        case INT32TYPE:
+        case DATETYPE:
+            return SIGNED_FIXED_LENGTH;
+        case INTEGERTYPE:
+            return BIG_INTEGER;
+        case DOUBLETYPE:
+            return DOUBLE;
+        case FLOATTYPE:
+            return FLOAT;
+        case TIMEUUIDTYPE:
+        case UUIDTYPE:
+            return TIME_UUID;
+        case LEXICALUUIDTYPE:
+            return LEXICAL_UUID;
+        default:
+            return UNSIGNED_BYTES;
+        }
+    }
 
-                    for (Row<K, C> row : result.getResult()) {
-                        callback.apply(row);
-                    }
-                }
-                catch (ConnectionException e) {
-                    e.printStackTrace();
-                }
+    /**
+     * @return Set that only keeps the maxSize keys that were most recently added or found
+     */
+    private static Set<ByteBuffer> newDedupSet(final int maxSize) {
+        return Collections.newSetFromMap(new LinkedHashMap<ByteBuffer, Boolean>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Boolean> eldest) {
+                return size() > maxSize;
             }
-        };
+        });
+    }
+
+    /**
+     * Budget of bytes of data rows in flight.  A request that exceeds the whole budget is
+     * allowed when nothing else is in flight.
+     */
+    private static class MemoryBudget {
+        private final long max;
+        private long       used = 0;
+
+        MemoryBudget(long max) {
+            this.max = max;
+        }
+
+        synchronized boolean tryAcquire(long bytes) {
+            if (used > 0 && used + bytes > max)
+                return false;
+            used += bytes;
+            return true;
+        }
+
+        synchronized void acquire(long bytes) throws InterruptedException {
+            while (used > 0 && used + bytes > max)
+                wait();
+            used += bytes;
+        }
+
+        synchronized void release(long bytes) {
+            used -= bytes;
+            notifyAll();
+        }
     }
 }
@@ -0,0 +1,403 @@
+package com.netflix.astyanax.recipes;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.base.Function;
+import com.google.common.base.Objects;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+import com.netflix.astyanax.ColumnListMutation;
+import com.netflix.astyanax.Keyspace;
+import com.netflix.astyanax.MutationBatch;
+import com.netflix.astyanax.Serializer;
+import com.netflix.astyanax.connectionpool.OperationResult;
+import com.netflix.astyanax.connectionpool.exceptions.ConnectionException;
+import com.netflix.astyanax.model.ColumnFamily;
+import com.netflix.astyanax.model.ColumnList;
+import com.netflix.astyanax.model.Composites;
+import com.netflix.astyanax.model.ConsistencyLevel;
+import com.netflix.astyanax.model.Row;
+import com.netflix.astyanax.model.Rows;
+import com.netflix.astyanax.query.RowSliceQuery;
+import com.netflix.astyanax.serializers.ByteBufferSerializer;
+import com.netflix.astyanax.serializers.StringSerializer;
+
+/**
+ * Maintains the sharded reverse index read by ReverseIndexQuery.
+ *
+ * CFData:K C=V1 C=V2
+ *
+ * CFIndex: &lt;prefix&gt;&lt;shard&gt; V1:K
+ *
+ * The index entry of a data row is added to the same MutationBatch as the data write so that
+ * both are applied together.  Entries are spread across shardCount index rows by a hash of the
+ * data row key, which keeps the shards about the same size no matter how the values are
+ * distributed and keeps a hot value from piling up in a single index row.  Since a key always
+ * maps to the same shard the shard count can't be changed without rebuilding the index.
+ *
+ * When the indexed value of a row changes the entry of the previous value must be deleted.
+ * The previous value is taken from a cache of the values last indexed by this writer or, on a
+ * cache miss, read from the data row before the mutation is executed and extracted with the
+ * value extractor.  The new values are only cached once the mutation was executed successfully
+ * with execute(); rows of a mutation executed directly are read again on their next update.
+ * The cache assumes that this writer is the only one updating the rows it caches; call
+ * invalidate() for rows that were changed elsewhere.
+ *
+ * The index columns of a mutation are written with a timestamp taken from the keyspace's clock
+ * when the writer first updates that mutation, rather than with the mutation's own timestamp.
+ * A column that was already deleted or added earlier in the same mutation is written one
+ * microsecond after that earlier operation so that it supersedes it; otherwise a row updated
+ * A->B->A in one mutation would lose its entry to the tombstone of the first update.
+ *
+ * <code>
+ *      ReverseIndexWriter<Long, String, Long> writer = ReverseIndexWriter.newWriter(keyspace, CF_DATA, "Index",
+ *              LongSerializer.get(), new Function<ColumnList<String>, Long>() {
+ *                  public Long apply(ColumnList<String> columns) {
+ *                      return columns.getLongValue("B", null);
+ *                  }
+ *              })
+ *          .withShardPrefix("B_")
+ *          .withShardCount(64);
+ *
+ *      MutationBatch m = keyspace.prepareMutationBatch();
+ *      m.withRow(CF_DATA, key).putColumn("B", value, null);
+ *      writer.update(m, key, value);
+ *      writer.execute(m);
+ *
+ *      writer.newQuery().fromIndexValue(100L).toIndexValue(200L).forEach(...).execute();
+ * </code>
+ *
+ * @param <K>
+ *            Key type for data table
+ * @param <C>
+ *            Column name type for data table
+ * @param <V>
+ *            Value type being indexed
+ */
+public class ReverseIndexWriter<K, C, V> {
+    public static final int    DEFAULT_SHARD_COUNT  = 16;
+    public static final int    DEFAULT_CACHE_SIZE   = 10000;
+    public static final String DEFAULT_SHARD_PREFIX = "";
+
+    public static <K, C, V> ReverseIndexWriter<K, C, V> newWriter(Keyspace ks, ColumnFamily<K, C> cf, String indexCf,
+            Serializer<V> valSerializer, Function<ColumnList<C>, V> valueExtractor) {
+        return new ReverseIndexWriter<K, C, V>(ks, cf, indexCf, valSerializer, valueExtractor);
+    }
+
+    private final Keyspace ks;
+    private final ColumnFamily<K, C> cfData;
+    private final String indexCfName;
+    private final ColumnFamily<ByteBuffer, ByteBuffer> cfIndex;
+    private final Serializer<V> valSerializer;
+    private final Function<ColumnList<C>, V> valueExtractor;
+    private String shardPrefix = DEFAULT_SHARD_PREFIX;
+    private int shardCount = DEFAULT_SHARD_COUNT;
+    private Collection<C> indexedColumns;
+    private ConsistencyLevel consistencyLevel = ConsistencyLevel.CL_LOCAL_QUORUM;
+    private Integer ttl = null;
+    private Cache<K, Optional<V>> cache = CacheBuilder.newBuilder().maximumSize(DEFAULT_CACHE_SIZE).build();
+
+    // Updates of mutations that haven't been executed yet, cached once the mutation succeeds
+    private final ConcurrentMap<MutationBatch, PendingUpdates<K, V>> pending = new MapMaker().weakKeys().makeMap();
+
+    /**
+     * Values and index column timestamps of the rows updated in a mutation
+     */
+    private static class PendingUpdates<K, V> {
+        private final long timestamp;
+        private final Map<K, Optional<V>> values = Maps.newHashMap();
+        private final Map<ByteBuffer, Long> columnTimestamps = Maps.newHashMap();
+
+        PendingUpdates(long timestamp) {
+            this.timestamp = timestamp;
+        }
+
+        /**
+         * Timestamp of the next operation on an index column, later than any earlier operation
+         * on that column in the same mutation
+         */
+        synchronized long nextTimestamp(ByteBuffer column) {
+            Long last = columnTimestamps.get(column);
+            long next = last == null ? timestamp : last + 1;
+            columnTimestamps.put(column, next);
+            return next;
+        }
+
+        synchronized Optional<V> get(K key) {
+            return values.get(key);
+        }
+
+        synchronized void put(K key, Optional<V> value) {
+            values.put(key, value);
+        }
+
+        synchronized Map<K, Optional<V>> getValues() {
+            return Maps.newHashMap(values);
+        }
+    }
+
+    public ReverseIndexWriter(Keyspace ks, ColumnFamily<K, C> cfData, String indexCf, Serializer<V> valSerializer,
+            Function<ColumnList<C>, V> valueExtractor) {
+        this.ks = ks;
+        this.cfData = cfData;
+        this.indexCfName = indexCf;
+        this.cfIndex = ColumnFamily.newColumnFamily(indexCf, ByteBufferSerializer.get(), ByteBufferSerializer.get());
+        this.valSerializer = valSerializer;
+        this.valueExtractor = valueExtractor;
+    }
+
+    /**
+     * Prefix of the index row keys.  Shard n is stored in row &lt;prefix&gt;n
+     * @param prefix
+     * @return
+     */
+    public ReverseIndexWriter<K, C, V> withShardPrefix(String prefix) {
+        this.shardPrefix = prefix;
+        return this;
+    }
+
+    public ReverseIndexWriter<K, C, V> withShardCount(int count) {
+        Preconditions.checkArgument(count > 0, "Shard count must be positive");
+        this.shardCount = count;
+        return this;
+    }
+
+    /**
+     * Number of rows whose last indexed value is cached.  Zero disables the cache so that the
+     * previous value is always read from the data row.
+     * @param size
+     * @return
+     */
+    public ReverseIndexWriter<K, C, V> withCacheSize(int size) {
+        this.cache = CacheBuilder.newBuilder().maximumSize(size).build();
+        return this;
+    }
+
+    /**
+     * Columns the value extractor needs when the previous value is read from the data row.
+     * By default the entire row is read.
+     * @param columns
+     * @return
+     */
+    public ReverseIndexWriter<K, C, V> withIndexedColumns(Collection<C> columns) {
+        this.indexedColumns = columns;
+        return this;
+    }
+
+    /**
+     * Consistency level used to read the previous values
+     * @param consistencyLevel
+     * @return
+     */
+    public ReverseIndexWriter<K, C, V> withConsistencyLevel(ConsistencyLevel consistencyLevel) {
+        this.consistencyLevel = consistencyLevel;
+        return this;
+    }
+
+    public ReverseIndexWriter<K, C, V> withTtl(Integer ttl) {
+        this.ttl = ttl;
+        return this;
+    }
+
+    /**
+     * Add the index entry for the row's new value, and remove the entry of its previous value,
+     * to the mutation
+     * @param m
+     * @param key
+     * @param value New value or null if the row no longer has a value
+     * @throws ConnectionException
+     */
+    public void update(MutationBatch m, K key, V value) throws ConnectionException {
+        update(m, Collections.singletonMap(key, value));
+    }
+
+    /**
+     * Update the index entries of many rows.  Previous values that aren't cached are read with
+     * a single multiget.
+     * @param m
+     * @param values Mapping of row key to new value.  A null value removes the row's entry.
+     * @throws ConnectionException
+     */
+    public void update(MutationBatch m, Map<K, V> values) throws ConnectionException {
+        PendingUpdates<K, V> updates = getPendingUpdates(m);
+        Map<K, V> previous = readPreviousValues(updates, values.keySet());
+
+        for (Entry<K, V> entry : values.entrySet()) {
+            K key      = entry.getKey();
+            V value    = entry.getValue();
+            V oldValue = previous.get(key);
+
+            if (!Objects.equal(oldValue, value)) {
+                ColumnListMutation<ByteBuffer> row = m.withRow(cfIndex, getShardKey(key));
+                if (oldValue != null) {
+                    ByteBuffer column = getIndexColumn(oldValue, key);
+                    row.setTimestamp(updates.nextTimestamp(column)).deleteColumn(column);
+                }
+                if (value != null) {
+                    ByteBuffer column = getIndexColumn(value, key);
+                    row.setTimestamp(updates.nextTimestamp(column)).putEmptyColumn(column, ttl);
+                }
+            }
+
+            // The cached value is stale once the mutation is executed, unless it is executed
+            // with execute() which caches the new value
+            cache.invalidate(key);
+            updates.put(key, Optional.fromNullable(value));
+        }
+    }
+
+    /**
+     * Execute the mutation and cache the values of the rows updated with it once it succeeded.
+     * The rows of a mutation that failed are read again on their next update since it isn't
+     * known whether the mutation was applied.
+     * @param m
+     * @return
+     * @throws ConnectionException
+     */
+    public OperationResult<Void> execute(MutationBatch m) throws ConnectionException {
+        PendingUpdates<K, V> updates = pending.remove(m);
+        OperationResult<Void> result = m.execute();
+        if (updates != null)
+            cache.putAll(updates.getValues());
+        return result;
+    }
+
+    /**
+     * Remove the index entry of a row, such as when the row is deleted
+     * @param m
+     * @param key
+     * @throws ConnectionException
+     */
+    public void remove(MutationBatch m, K key) throws ConnectionException {
+        update(m, key, null);
+    }
+
+    /**
+     * Forget the cached value of a row so that its previous value is read from the data row
+     * on the next update.  Call this when the row was changed by another writer.
+     * @param key
+     */
+    public void invalidate(K key) {
+        cache.invalidate(key);
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    /**
+     * @param key
+     * @return Index of the shard holding the row's index entry
+     */
+    public int getShard(K key) {
+        ByteBuffer bytes = cfData.getKeySerializer().toByteBuffer(key);
+        int hash = Hashing.murmur3_32().hashBytes(toArray(bytes)).asInt();
+        return (hash & Integer.MAX_VALUE) % shardCount;
+    }
+
+    /**
+     * @return Row keys of all index shards, as expected by ReverseIndexQuery.withIndexShards
+     */
+    public Collection<ByteBuffer> getIndexShards() {
+        return Shards.newStringShardBuilder().setPrefix(shardPrefix).setShardCount(shardCount).build();
+    }
+
+    /**
+     * @return Query on all shards of this index
+     */
+    public ReverseIndexQuery<K, C, V> newQuery() {
+        return ReverseIndexQuery.newQuery(ks, cfData, indexCfName, valSerializer).withIndexShards(getIndexShards());
+    }
+
+    /**
+     * Count the entries of each shard, such as to check the shards' balance
+     * @return Mapping of shard index to entry count
+     * @throws ConnectionException
+     */
+    public SortedMap<Integer, Integer> readShardSizes() throws ConnectionException {
+        SortedMap<Integer, Integer> sizes = Maps.newTreeMap();
+        for (int i = 0; i < shardCount; i++) {
+            sizes.put(i, ks.prepareQuery(cfIndex).setConsistencyLevel(consistencyLevel)
+                    .getKey(getShardKey(i)).getCount().execute().getResult());
+        }
+        return sizes;
+    }
+
+    private ByteBuffer getShardKey(K key) {
+        return getShardKey(getShard(key));
+    }
+
+    private ByteBuffer getShardKey(int shard) {
+        return StringSerializer.get().toByteBuffer(shardPrefix + shard);
+    }
+
+    private ByteBuffer getIndexColumn(V value, K key) {
+        return Composites.newCompositeBuilder().add(value, valSerializer).add(key, cfData.getKeySerializer()).build();
+    }
+
+    private PendingUpdates<K, V> getPendingUpdates(MutationBatch m) {
+        PendingUpdates<K, V> updates = pending.get(m);
+        if (updates == null) {
+            PendingUpdates<K, V> newUpdates = new PendingUpdates<K, V>(ks.getConfig().getClock().getCurrentTime());
+            updates = pending.putIfAbsent(m, newUpdates);
+            if (updates == null)
+                updates = newUpdates;
+        }
+        return updates;
+    }
+
+    /**
+     * Values of the rows before the mutation.  A row updated earlier in the same mutation
+     * takes the value of that update, whose entry is replaced.
+     */
+    private Map<K, V> readPreviousValues(PendingUpdates<K, V> updates, Collection<K> keys) throws ConnectionException {
+        Map<K, V> previous = Maps.newHashMap();
+        List<K> misses = Lists.newArrayList();
+        for (K key : keys) {
+            Optional<V> cached = updates.get(key);
+            if (cached == null)
+                cached = cache.getIfPresent(key);
+            if (cached == null)
+                misses.add(key);
+            else if (cached.isPresent())
+                previous.put(key, cached.get());
+        }
+
+        if (misses.isEmpty())
+            return previous;
+
+        RowSliceQuery<K, C> query = ks.prepareQuery(cfData).setConsistencyLevel(consistencyLevel).getKeySlice(misses);
+        if (indexedColumns != null)
+            query = query.withColumnSlice(indexedColumns);
+        Rows<K, C> rows = query.execute().getResult();
+
+        for (K key : misses) {
+            Row<K, C> row = rows.getRow(key);
+            if (row != null && !row.getColumns().isEmpty()) {
+                V value = valueExtractor.apply(row.getColumns());
+                if (value != null)
+                    previous.put(key, value);
+            }
+        }
+        return previous;
+    }
+
+    private static byte[] toArray(ByteBuffer bytes) {
+        byte[] array = new byte[bytes.remaining()];
+        bytes.duplicate().get(array);
+        return array;
+    }
+}
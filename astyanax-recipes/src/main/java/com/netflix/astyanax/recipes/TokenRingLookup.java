@@ -0,0 +1,114 @@
+package com.netflix.astyanax.recipes;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.Lists;
+import com.netflix.astyanax.connectionpool.ConnectionPool;
+import com.netflix.astyanax.connectionpool.Host;
+import com.netflix.astyanax.connectionpool.HostConnectionPool;
+import com.netflix.astyanax.connectionpool.TokenRange;
+
+/**
+ * Map a token to the index of the token range of the ring that owns it.  Used to group
+ * rows into batches that are each owned by a single range, and to find a replica of that
+ * range to pin each batch to, so that every batch is sent directly to a replica of its rows.
+ */
+public class TokenRingLookup {
+    private final BigInteger[]  numericEnds;
+    private final String[]      ends;
+    private final TokenRange[]  ranges;
+    private final AtomicInteger nextReplica = new AtomicInteger();
+
+    public TokenRingLookup(List<TokenRange> ranges) {
+        boolean numeric = true;
+        for (TokenRange range : ranges) {
+            try {
+                new BigInteger(range.getEndToken());
+            }
+            catch (NumberFormatException e) {
+                numeric = false;
+                break;
+            }
+        }
+
+        final boolean isNumeric = numeric;
+        List<TokenRange> sorted = Lists.newArrayList(ranges);
+        Collections.sort(sorted, new Comparator<TokenRange>() {
+            @Override
+            public int compare(TokenRange o1, TokenRange o2) {
+                if (isNumeric)
+                    return new BigInteger(o1.getEndToken()).compareTo(new BigInteger(o2.getEndToken()));
+                return o1.getEndToken().compareTo(o2.getEndToken());
+            }
+        });
+
+        this.ranges      = sorted.toArray(new TokenRange[sorted.size()]);
+        this.ends        = new String[sorted.size()];
+        this.numericEnds = isNumeric ? new BigInteger[sorted.size()] : null;
+        for (int i = 0; i < this.ranges.length; i++) {
+            ends[i] = this.ranges[i].getEndToken();
+            if (isNumeric)
+                numericEnds[i] = new BigInteger(ends[i]);
+        }
+    }
+
+    /**
+     * Ranges are (start, end] so the owner is the first range whose end token is >= token,
+     * wrapping around to the first range
+     * @param token
+     * @return
+     */
+    public int getRangeIndex(String token) {
+        if (ends.length <= 1)
+            return 0;
+
+        int index;
+        if (numericEnds != null)
+            index = Arrays.binarySearch(numericEnds, new BigInteger(token));
+        else
+            index = Arrays.binarySearch(ends, token);
+
+        if (index < 0)
+            index = -index - 1;
+        return index == ends.length ? 0 : index;
+    }
+
+    /**
+     * @return Number of token ranges in the ring
+     */
+    public int getRangeCount() {
+        return Math.max(1, ends.length);
+    }
+
+    /**
+     * Pick an active host of the connection pool that is a replica of a token range.  Successive
+     * calls rotate through the replicas of a range to spread the load.
+     *
+     * @param rangeIndex Index returned by getRangeIndex
+     * @param pool       Connection pool of the keyspace the operation is executed on, may be null
+     * @return Host to pin the operation to or null if none of the replicas is active in the pool
+     */
+    public Host getReplicaHost(int rangeIndex, ConnectionPool<?> pool) {
+        if (pool == null || rangeIndex >= ranges.length)
+            return null;
+
+        List<String> endpoints = ranges[rangeIndex].getEndpoints();
+        if (endpoints == null || endpoints.isEmpty())
+            return null;
+
+        List<Host> replicas = Lists.newArrayList();
+        for (HostConnectionPool<?> hostPool : pool.getActivePools()) {
+            Host host = hostPool.getHost();
+            if (endpoints.contains(host.getIpAddress()) || endpoints.contains(host.getHostName()))
+                replicas.add(host);
+        }
+        if (replicas.isEmpty())
+            return null;
+        return replicas.get((nextReplica.getAndIncrement() & Integer.MAX_VALUE) % replicas.size());
+    }
+}
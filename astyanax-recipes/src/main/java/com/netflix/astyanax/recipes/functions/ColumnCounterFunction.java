@@ -8,6 +8,9 @@ import com.netflix.astyanax.model.Row;
 /**
  * Very basic function to count the total number of columns
  * 
+ * This transfers all the row data to the client.  Use AllRowsCounter to count
+ * large column families.
+ * 
  * @author elandau
  *
  * @param <K>
@@ -0,0 +1,113 @@
+package com.netflix.astyanax.recipes.functions;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * Thread safe HyperLogLog cardinality estimator for raw keys.  Uses 2^precision
+ * registers for a relative standard error of about 1.04/sqrt(2^precision) (0.8% for
+ * the default precision of 14).
+ */
+public class HyperLogLog {
+    private static final int DEFAULT_PRECISION = 14;
+    private static final HashFunction HASH = Hashing.murmur3_128();
+    
+    private final int precision;
+    private final int registerCount;
+    private final AtomicIntegerArray registers;
+    
+    public HyperLogLog() {
+        this(DEFAULT_PRECISION);
+    }
+    
+    public HyperLogLog(int precision) {
+        Preconditions.checkArgument(precision >= 4 && precision <= 18, "Precision must be between 4 and 18");
+        this.precision     = precision;
+        this.registerCount = 1 << precision;
+        this.registers     = new AtomicIntegerArray(registerCount);
+    }
+    
+    /**
+     * Add a raw key.  The buffer position is not modified.
+     * @param key
+     */
+    public void offer(ByteBuffer key) {
+        ByteBuffer dup = key.duplicate();
+        byte[] bytes = new byte[dup.remaining()];
+        dup.get(bytes);
+        offerHash(HASH.hashBytes(bytes).asLong());
+    }
+    
+    public void offer(byte[] key) {
+        offerHash(HASH.hashBytes(key).asLong());
+    }
+    
+    void offerHash(long hash) {
+        int index = (int)(hash >>> (64 - precision));
+        // Position of the first 1 bit in the remaining bits, with a sentinel bit to bound the rank
+        long remaining = (hash << precision) | (1L << (precision - 1));
+        int rank = Long.numberOfLeadingZeros(remaining) + 1;
+        
+        int current;
+        while (rank > (current = registers.get(index))) {
+            if (registers.compareAndSet(index, current, rank))
+                break;
+        }
+    }
+    
+    /**
+     * Merge the registers of another estimator with the same precision into this one
+     * @param other
+     */
+    public void merge(HyperLogLog other) {
+        Preconditions.checkArgument(other.precision == precision, "Precision mismatch");
+        for (int i = 0; i < registerCount; i++) {
+            int rank = other.registers.get(i);
+            int current;
+            while (rank > (current = registers.get(i))) {
+                if (registers.compareAndSet(i, current, rank))
+                    break;
+            }
+        }
+    }
+    
+    /**
+     * @return Estimated number of distinct keys offered so far
+     */
+    public long cardinality() {
+        double sum = 0;
+        int zeros = 0;
+        for (int i = 0; i < registerCount; i++) {
+            int rank = registers.get(i);
+            sum += 1.0 / (1L << rank);
+            if (rank == 0)
+                zeros++;
+        }
+        
+        double estimate = alpha() * registerCount * registerCount / sum;
+        
+        // Small range correction using linear counting
+        if (estimate <= 2.5 * registerCount && zeros > 0) 
+            estimate = registerCount * Math.log((double)registerCount / zeros);
+        
+        return Math.round(estimate);
+    }
+    
+    public void reset() {
+        for (int i = 0; i < registerCount; i++) 
+            registers.set(i, 0);
+    }
+    
+    private double alpha() {
+        switch (registerCount) {
+        case 16: return 0.673;
+        case 32: return 0.697;
+        case 64: return 0.709;
+        default: return 0.7213 / (1 + 1.079 / registerCount);
+        }
+    }
+}
@@ -8,6 +8,9 @@ import com.netflix.astyanax.model.Row;
 /**
  * Simple function to counter the number of rows
  * 
+ * This transfers all the row data to the client.  Use AllRowsCounter to count
+ * large column families.
+ * 
  * @author elandau
  *
  * @param <K>
@@ -0,0 +1,390 @@
+package com.netflix.astyanax.recipes.functions;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xerial.snappy.SnappyOutputStream;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.netflix.astyanax.model.Row;
+import com.netflix.astyanax.recipes.reader.AbortableRowFunction;
+import com.netflix.astyanax.util.StreamingRowsWriter;
+
+/**
+ * Function that streams rows into one or more StreamingRowsWriter (such as JsonRowsWriter
+ * or CsvRowsWriter).  Use it as the row function of an AllRowsReader to export a column
+ * family without materializing it in memory.
+ *
+ * Rows from the reader's token range threads are placed on a bounded queue which is
+ * drained by one writer thread per output shard.  When the queue is full the reader
+ * threads block, so the read rate never exceeds what the writers can sustain.  Each
+ * shard is written to its own OutputStream, optionally compressed.
+ *
+ * AllRowsReader will call flush() once all token ranges have been read, which waits for
+ * the queue to drain and finalizes all outputs.  If the read fails or is cancelled it calls
+ * abort() instead, which stops the writer threads and closes the outputs without ending them 
+ * so that a partial export is never mistaken for a complete one.
+ *
+ * <pre>
+ * RowsWriterFunction&lt;String, String&gt; export = RowsWriterFunction.builder(
+ *       new Function&lt;PrintWriter, StreamingRowsWriter&gt;() {
+ *           public StreamingRowsWriter apply(PrintWriter out) {
+ *               return new JsonRowsWriter(out, serializers);
+ *           }
+ *       })
+ *     .withOutputFiles("/tmp/export-%d.json.gz")
+ *     .withShardCount(4)
+ *     .withCompression(Compression.GZIP)
+ *     .build();
+ *
+ * new AllRowsReader.Builder&lt;String, String&gt;(keyspace, CF)
+ *     .forEachRow(export)
+ *     .build()
+ *     .call();
+ * </pre>
+ *
+ * @param <K>
+ * @param <C>
+ */
+public class RowsWriterFunction<K,C> implements Function<Row<K,C>, Boolean>, Flushable, Closeable, AbortableRowFunction {
+    private static final Logger LOG = LoggerFactory.getLogger(RowsWriterFunction.class);
+
+    private static final int  DEFAULT_QUEUE_SIZE   = 1000;
+    private static final int  DEFAULT_SHARD_COUNT  = 1;
+    private static final int  DEFAULT_BUFFER_SIZE  = 64 * 1024;
+    private static final long POLL_INTERVAL        = 100;
+    private static final Charset UTF8              = Charset.forName("UTF-8");
+
+    /**
+     * Compression applied to each output shard
+     */
+    public static enum Compression {
+        NONE {
+            @Override
+            OutputStream wrap(OutputStream out) throws IOException {
+                return out;
+            }
+        },
+        GZIP {
+            @Override
+            OutputStream wrap(OutputStream out) throws IOException {
+                return new GZIPOutputStream(out, DEFAULT_BUFFER_SIZE);
+            }
+        },
+        SNAPPY {
+            @Override
+            OutputStream wrap(OutputStream out) throws IOException {
+                return new SnappyOutputStream(out);
+            }
+        };
+
+        abstract OutputStream wrap(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Factory for the raw output stream of each shard
+     */
+    public static interface OutputStreamFactory {
+        OutputStream create(int shard) throws IOException;
+    }
+
+    public static class Builder<K,C> {
+        private final Function<PrintWriter, StreamingRowsWriter> writerFactory;
+        private OutputStreamFactory outputFactory;
+        private Compression         compression = Compression.NONE;
+        private int                 shardCount  = DEFAULT_SHARD_COUNT;
+        private int                 queueSize   = DEFAULT_QUEUE_SIZE;
+        private int                 bufferSize  = DEFAULT_BUFFER_SIZE;
+
+        public Builder(Function<PrintWriter, StreamingRowsWriter> writerFactory) {
+            this.writerFactory = writerFactory;
+        }
+
+        /**
+         * Provide the output stream for each shard.  The stream will be closed once
+         * the shard has been completely written.
+         * @param outputFactory
+         * @return
+         */
+        public Builder<K,C> withOutputStreamFactory(OutputStreamFactory outputFactory) {
+            this.outputFactory = outputFactory;
+            return this;
+        }
+
+        /**
+         * Write each shard to a file.  The file name is generated using String.format
+         * with the shard index as the only argument (ex. "/tmp/export-%d.json")
+         * @param pathFormat
+         * @return
+         */
+        public Builder<K,C> withOutputFiles(final String pathFormat) {
+            this.outputFactory = new OutputStreamFactory() {
+                @Override
+                public OutputStream create(int shard) throws IOException {
+                    return new FileOutputStream(String.format(pathFormat, shard));
+                }
+            };
+            return this;
+        }
+
+        /**
+         * Number of output shards.  Each shard is written by its own thread.
+         * @param shardCount
+         * @return
+         */
+        public Builder<K,C> withShardCount(int shardCount) {
+            Preconditions.checkArgument(shardCount >= 1, "Shard count must be >= 1");
+            this.shardCount = shardCount;
+            return this;
+        }
+
+        /**
+         * Maximum number of rows buffered between the readers and the writers.  Readers
+         * will block once this limit is reached.
+         * @param queueSize
+         * @return
+         */
+        public Builder<K,C> withQueueSize(int queueSize) {
+            Preconditions.checkArgument(queueSize >= 1, "Queue size must be >= 1");
+            this.queueSize = queueSize;
+            return this;
+        }
+
+        public Builder<K,C> withCompression(Compression compression) {
+            this.compression = compression;
+            return this;
+        }
+
+        public Builder<K,C> withBufferSize(int bufferSize) {
+            this.bufferSize = bufferSize;
+            return this;
+        }
+
+        public RowsWriterFunction<K,C> build() {
+            Preconditions.checkNotNull(writerFactory,  "Writer factory must be specified");
+            Preconditions.checkNotNull(outputFactory,  "Output must be specified");
+            return new RowsWriterFunction<K,C>(this);
+        }
+    }
+
+    public static <K, C> Builder<K,C> builder(Function<PrintWriter, StreamingRowsWriter> writerFactory) {
+        return new Builder<K,C>(writerFactory);
+    }
+
+    private final Function<PrintWriter, StreamingRowsWriter> writerFactory;
+    private final OutputStreamFactory       outputFactory;
+    private final Compression               compression;
+    private final int                       shardCount;
+    private final int                       bufferSize;
+    private final BlockingQueue<Row<K,C>>   queue;
+    private final AtomicReference<Exception> error = new AtomicReference<Exception>();
+    private final AtomicLong                rowCount = new AtomicLong();
+    private final List<Future<Void>>        futures = Lists.newArrayList();
+    private ExecutorService                 executor;
+    private volatile boolean                started = false;
+    private volatile boolean                done = false;
+    private volatile boolean                aborted = false;
+    private boolean                         finished = false;
+
+    private RowsWriterFunction(Builder<K,C> builder) {
+        this.writerFactory = builder.writerFactory;
+        this.outputFactory = builder.outputFactory;
+        this.compression   = builder.compression;
+        this.shardCount    = builder.shardCount;
+        this.bufferSize    = builder.bufferSize;
+        this.queue         = new ArrayBlockingQueue<Row<K,C>>(builder.queueSize);
+    }
+
+    @Override
+    public Boolean apply(Row<K, C> row) {
+        if (done)
+            return false;
+        // Only the first rows take the lock to start the writer threads
+        if (!started)
+            start();
+        try {
+            while (!queue.offer(row, POLL_INTERVAL, TimeUnit.MILLISECONDS)) {
+                if (error.get() != null || done)
+                    return false;
+            }
+            return error.get() == null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Wait for all queued rows to be written and finalize all shards.  No rows may
+     * be added after this call.
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        if (finished)
+            return;
+
+        start();
+        done = true;
+        finished = true;
+        try {
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    error.compareAndSet(null, e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for writers to finish", e);
+                }
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        if (error.get() != null)
+            throw new IOException("Failed to write rows", error.get());
+    }
+
+    /**
+     * Finalize all shards and stop the writer threads.  Rows still on the queue are written
+     * first.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (executor == null) {
+                // No row was ever received and flush() wasn't called so there is nothing to finalize
+                done = true;
+                finished = true;
+                return;
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Stop the writer threads and close all outputs without ending them.  Rows still on 
+     * the queue are discarded.  AllRowsReader calls this when the read fails or is cancelled.
+     */
+    @Override
+    public void abort(Exception cause) throws IOException {
+        synchronized (this) {
+            if (finished)
+                return;
+            aborted  = true;
+            done     = true;
+            finished = true;
+            if (executor == null)
+                return;
+        }
+        
+        LOG.warn("Aborting export after " + rowCount.get() + " rows", cause);
+        queue.clear();
+        try {
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    // Already recorded by the writer thread
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for writers to stop", e);
+                }
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return Number of rows written so far across all shards
+     */
+    public long getRowCount() {
+        return rowCount.get();
+    }
+
+    private synchronized void start() {
+        if (executor != null || finished)
+            return;
+
+        executor = Executors.newFixedThreadPool(shardCount,
+                new ThreadFactoryBuilder().setDaemon(true)
+                    .setNameFormat("RowsWriterFunction-%d")
+                    .build());
+
+        for (int i = 0; i < shardCount; i++) {
+            futures.add(executor.submit(makeShardTask(i)));
+        }
+        started = true;
+    }
+
+    private Callable<Void> makeShardTask(final int shard) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                PrintWriter out = null;
+                try {
+                    out = new PrintWriter(new OutputStreamWriter(
+                            compression.wrap(new BufferedOutputStream(outputFactory.create(shard), bufferSize)), UTF8));
+                    StreamingRowsWriter writer = writerFactory.apply(out);
+                    writer.start();
+                    while (error.get() == null && !aborted) {
+                        // Read the flag before polling so that an empty queue after the flag was
+                        // set means that all rows have been consumed
+                        boolean isDone = done;
+                        Row<K,C> row = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                        if (row == null) {
+                            if (isDone)
+                                break;
+                            continue;
+                        }
+                        writer.writeRow(row);
+                        rowCount.incrementAndGet();
+                    }
+                    // Leave the output incomplete if any shard failed or the read was aborted
+                    if (aborted || error.get() != null)
+                        return null;
+                    writer.end();
+                    if (out.checkError())
+                        throw new IOException("Error writing to shard " + shard);
+                    return null;
+                }
+                catch (Exception e) {
+                    LOG.error("Failed to write shard " + shard, e);
+                    error.compareAndSet(null, e);
+                    throw e;
+                }
+                finally {
+                    if (out != null)
+                        out.close();
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,86 @@
+/*******************************************************************************
+ * Copyright 2011 Netflix
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.netflix.astyanax.recipes.locks;
+
+import java.util.Random;
+
+import com.netflix.astyanax.retry.RetryPolicy;
+import com.netflix.astyanax.retry.SleepingRetryPolicy;
+
+/**
+ * Lock backoff that sizes its retry delay from how long locks on the column family are 
+ * actually held, as observed by CountingLockStats, instead of from a fixed base interval.
+ * 
+ * A busy row is expected to be released about one average hold time after it was found
+ * busy, so the first retry sleeps a random time between 0.5 and 1.5 times the average hold 
+ * time.  Each further retry adds one more hold time to the range, which spreads out 
+ * contenders that keep colliding.  Delays are bounded by the min and max sleep times and
+ * the min sleep time is used until a hold time was observed.
+ * 
+ * <code>
+ *      CountingLockStats stats = new CountingLockStats();
+ *      ColumnPrefixDistributedRowLock<String> lock = 
+ *          new ColumnPrefixDistributedRowLock<String>(keyspace, columnFamily, "row")
+ *              .withStats(stats)
+ *              .withBackoff(new AdaptiveLockBackoff(stats, columnFamily.getName(), 10, 1000, 5));
+ * </code>
+ */
+public class AdaptiveLockBackoff extends SleepingRetryPolicy {
+    private final Random            random = new Random();
+    private final CountingLockStats stats;
+    private final String            columnFamily;
+    private final long              minSleepTimeMs;
+    private final long              maxSleepTimeMs;
+    
+    /**
+     * @param stats             Stats that the locks of the column family record to
+     * @param columnFamily      Name of the locked column family
+     * @param minSleepTimeMs
+     * @param maxSleepTimeMs
+     * @param maxAttempts       Max number of retries or -1 for no limit
+     */
+    public AdaptiveLockBackoff(CountingLockStats stats, String columnFamily, long minSleepTimeMs, long maxSleepTimeMs, int maxAttempts) {
+        super(maxAttempts);
+        this.stats          = stats;
+        this.columnFamily   = columnFamily;
+        this.minSleepTimeMs = minSleepTimeMs;
+        this.maxSleepTimeMs = maxSleepTimeMs;
+    }
+
+    @Override
+    public long getSleepTimeMs() {
+        long holdTime = stats.getColumnFamilyStats(columnFamily).getAverageHoldTime();
+        if (holdTime <= 0)
+            return minSleepTimeMs;
+        
+        double spread = getAttemptCount() + 1;
+        long sleepTime = (long)(holdTime * (0.5 + random.nextDouble() * spread));
+        return Math.max(minSleepTimeMs, Math.min(maxSleepTimeMs, sleepTime));
+    }
+    
+    public long getMinSleepTimeMs() {
+        return minSleepTimeMs;
+    }
+    
+    public long getMaxSleepTimeMs() {
+        return maxSleepTimeMs;
+    }
+
+    @Override
+    public RetryPolicy duplicate() {
+        return new AdaptiveLockBackoff(stats, columnFamily, minSleepTimeMs, maxSleepTimeMs, getMaxAttemptCount());
+    }
+}
@@ -127,6 +127,7 @@ public class ColumnPrefixDistributedRowLock<K> implements DistributedRowLock {
     private RetryPolicy      backoffPolicy    = RunOnce.get();
     private long             acquireTime      = 0;
     private int              retryCount       = 0;
+    private LockStats        stats            = null;
 
     public ColumnPrefixDistributedRowLock(Keyspace keyspace, ColumnFamily<K, String> columnFamily, K key) {
         this.keyspace     = keyspace;
@@ -225,6 +226,15 @@ public class ColumnPrefixDistributedRowLock<K> implements DistributedRowLock {
         this.backoffPolicy  = policy;
         return this;
     }
+    
+    /**
+     * Record acquire latency, contention, stale lock cleanups and hold times to the stats
+     * @param stats
+     */
+    public ColumnPrefixDistributedRowLock<K> withStats(LockStats stats) {
+        this.stats = stats;
+        return this;
+    }
 
     /**
      * Try to take the lock.  The caller must call .release() to properly clean up
@@ -239,6 +249,8 @@ public class ColumnPrefixDistributedRowLock<K> implements DistributedRowLock {
         
         RetryPolicy retry = backoffPolicy.duplicate();
         retryCount = 0;
+        acquireTime = 0;
+        long startTime = System.nanoTime();
         while (true) {
             try {
                 long curTimeMicros = getCurrentTimeMicros();
@@ -249,9 +261,13 @@ public class ColumnPrefixDistributedRowLock<K> implements DistributedRowLock {
                 
                 verifyLock(curTimeMicros);
                 acquireTime = System.currentTimeMillis();
+                if (stats != null)
+                    stats.recordAcquire(columnFamily.getName(), key, TimeUnit.MICROSECONDS.convert(System.nanoTime() - startTime, TimeUnit.NANOSECONDS), retryCount);
                 return;
             }
             catch (BusyLockException e) {
+                if (stats != null)
+                    stats.recordBusy(columnFamily.getName(), key);
                 release();
                 if(!retry.allowRetry())
                     throw e;
@@ -284,22 +300,44 @@ public class ColumnPrefixDistributedRowLock<K> implements DistributedRowLock {
             throw new IllegalStateException("verifyLock() called without attempting to take the lock");
         
         // Read back all columns. There should be only 1 if we got the lock
-        Map<String, Long> lockResult = readLockColumns(readDataColumns);
-
+        verifyLock(curTimeInMicros, readLockColumns(readDataColumns));
+    }
+    
+    /**
+     * Verify that the lock was acquired given lock columns that were already read back, 
+     * such as when verifying the locks of many rows with a single query.  Stale lock columns
+     * are deleted when the lock is released.
+     * 
+     * @param curTimeInMicros
+     * @param lockResult    Lock columns of the row and their expiration times
+     * @throws BusyLockException
+     */
+    public void verifyLock(long curTimeInMicros, Map<String, Long> lockResult) throws BusyLockException, StaleLockException {
+        if (lockColumn == null) 
+            throw new IllegalStateException("verifyLock() called without attempting to take the lock");
+        
         // Cleanup and check that we really got the lock
-        for (Entry<String, Long> entry : lockResult.entrySet()) {
-            // This is a stale lock that was never cleaned up
-            if (entry.getValue() != 0 && curTimeInMicros > entry.getValue()) {
-                if (failOnStaleLock) {
-                    throw new StaleLockException("Stale lock on row '" + key + "'.  Manual cleanup requried.");
+        int staleCount = 0;
+        try {
+            for (Entry<String, Long> entry : lockResult.entrySet()) {
+                // This is a stale lock that was never cleaned up
+                if (entry.getValue() != 0 && curTimeInMicros > entry.getValue()) {
+                    if (failOnStaleLock) {
+                        throw new StaleLockException("Stale lock on row '" + key + "'.  Manual cleanup requried.");
+                    }
+                    if (locksToDelete.add(entry.getKey()))
+                        staleCount++;
+                }
+                // Lock already taken, and not by us
+                else if (!entry.getKey().equals(lockColumn)) {
+                    throw new BusyLockException("Lock already acquired for row '" + key + "' with lock column " + entry.getKey());
                 }
-                locksToDelete.add(entry.getKey());
-            }
-            // Lock already taken, and not by us
-            else if (!entry.getKey().equals(lockColumn)) {
-                throw new BusyLockException("Lock already acquired for row '" + key + "' with lock column " + entry.getKey());
             }
         }
+        finally {
+            if (stats != null && staleCount > 0)
+                stats.recordStaleLocks(columnFamily.getName(), key, staleCount);
+        }
     }
 
     /**
@@ -515,8 +553,11 @@ public class ColumnPrefixDistributedRowLock<K> implements DistributedRowLock {
         for (String c : locksToDelete) {
             row.deleteColumn(c);
         }
-        if (!excludeCurrentLock && lockColumn != null) 
+        if (!excludeCurrentLock && lockColumn != null) {
             row.deleteColumn(lockColumn);
+            if (stats != null && acquireTime != 0)
+                stats.recordRelease(columnFamily.getName(), key, System.currentTimeMillis() - acquireTime);
+        }
         locksToDelete.clear();
         lockColumn = null;
     }
@@ -0,0 +1,300 @@
+/*******************************************************************************
+ * Copyright 2011 Netflix
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.netflix.astyanax.recipes.locks;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.netflix.astyanax.recipes.Log2Histogram;
+
+/**
+ * LockStats that keeps counters per column family.
+ * 
+ * For each column family this tracks
+ * 1. Acquire latency as a log2 histogram of microseconds
+ * 2. Contention, the fraction of lock attempts that found the row busy
+ * 3. Stale lock columns that were cleaned up
+ * 4. A moving average of the time locks are held, which AdaptiveLockBackoff uses to pick
+ *      its retry delays
+ * 5. The most contended keys, using a Space-Saving top-K sketch with a fixed number of 
+ *      counters.  Reported counts may overestimate a key's true count by at most its error.
+ */
+public class CountingLockStats implements LockStats {
+    public static final int    DEFAULT_TOP_KEY_CAPACITY = 100;
+    
+    private static final int    LATENCY_BUCKET_COUNT = 40;
+    private static final double HOLD_TIME_ALPHA      = 0.2;
+    
+    /**
+     * Count of a key in the top-K sketch
+     */
+    public static class KeyCount {
+        private final String key;
+        private final long   count;
+        private final long   error;
+        
+        KeyCount(String key, long count, long error) {
+            this.key   = key;
+            this.count = count;
+            this.error = error;
+        }
+        
+        public String getKey() {
+            return key;
+        }
+        
+        /**
+         * @return Estimated count, which may exceed the true count by up to getError()
+         */
+        public long getCount() {
+            return count;
+        }
+        
+        public long getError() {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + count;
+        }
+    }
+    
+    /**
+     * Space-Saving sketch.  When all counters are in use a new key replaces the key with 
+     * the smallest count and inherits that count as its error.
+     */
+    private static class TopKeys {
+        private final int                 capacity;
+        private final Map<String, long[]> counters = Maps.newHashMap();     // key -> {count, error}
+        
+        TopKeys(int capacity) {
+            this.capacity = capacity;
+        }
+        
+        synchronized void add(String key) {
+            long[] counter = counters.get(key);
+            if (counter != null) {
+                counter[0]++;
+                return;
+            }
+            
+            if (counters.size() < capacity) {
+                counters.put(key, new long[]{1, 0});
+                return;
+            }
+            
+            Entry<String, long[]> min = null;
+            for (Entry<String, long[]> entry : counters.entrySet()) {
+                if (min == null || entry.getValue()[0] < min.getValue()[0])
+                    min = entry;
+            }
+            long minCount = min.getValue()[0];
+            counters.remove(min.getKey());
+            counters.put(key, new long[]{minCount + 1, minCount});
+        }
+        
+        synchronized List<KeyCount> top(int n) {
+            List<KeyCount> result = Lists.newArrayListWithCapacity(counters.size());
+            for (Entry<String, long[]> entry : counters.entrySet()) {
+                result.add(new KeyCount(entry.getKey(), entry.getValue()[0], entry.getValue()[1]));
+            }
+            Collections.sort(result, new Comparator<KeyCount>() {
+                @Override
+                public int compare(KeyCount o1, KeyCount o2) {
+                    return o1.count > o2.count ? -1 : (o1.count < o2.count ? 1 : 0);
+                }
+            });
+            return result.subList(0, Math.min(n, result.size()));
+        }
+    }
+    
+    /**
+     * Lock counters of a single column family
+     */
+    public static class ColumnFamilyLockStats {
+        private final String          columnFamily;
+        private final AtomicLong      acquireCount    = new AtomicLong();
+        private final AtomicLong      busyCount       = new AtomicLong();
+        private final AtomicLong      staleLockCount  = new AtomicLong();
+        private final AtomicLong      releaseCount    = new AtomicLong();
+        private final Log2Histogram   acquireLatency  = new Log2Histogram(LATENCY_BUCKET_COUNT);
+        private final AtomicLong      holdTimeBits    = new AtomicLong(Double.doubleToLongBits(-1));
+        private final TopKeys         topKeys;
+        
+        ColumnFamilyLockStats(String columnFamily, int topKeyCapacity) {
+            this.columnFamily = columnFamily;
+            this.topKeys      = new TopKeys(topKeyCapacity);
+        }
+        
+        void recordHoldTime(long holdTimeMillis) {
+            while (true) {
+                long   bits    = holdTimeBits.get();
+                double current = Double.longBitsToDouble(bits);
+                double next    = current < 0 
+                               ? holdTimeMillis 
+                               : current + HOLD_TIME_ALPHA * (holdTimeMillis - current);
+                if (holdTimeBits.compareAndSet(bits, Double.doubleToLongBits(next)))
+                    return;
+            }
+        }
+        
+        public String getColumnFamily() {
+            return columnFamily;
+        }
+        
+        public long getAcquireCount() {
+            return acquireCount.get();
+        }
+        
+        public long getBusyCount() {
+            return busyCount.get();
+        }
+        
+        public long getStaleLockCount() {
+            return staleLockCount.get();
+        }
+        
+        public long getReleaseCount() {
+            return releaseCount.get();
+        }
+        
+        /**
+         * @return Fraction of lock attempts that found the row locked by someone else
+         */
+        public double getContentionRate() {
+            long busy     = busyCount.get();
+            long attempts = busy + acquireCount.get();
+            return attempts == 0 ? 0 : (double)busy / attempts;
+        }
+        
+        /**
+         * @return Exponentially weighted moving average of the lock hold time in milliseconds 
+         *         or -1 if no lock was released yet
+         */
+        public long getAverageHoldTime() {
+            return Math.round(Double.longBitsToDouble(holdTimeBits.get()));
+        }
+        
+        /**
+         * @param percentile
+         * @return Upper bound, in microseconds, of the histogram bucket containing the percentile
+         */
+        public long getAcquireLatencyPercentile(double percentile) {
+            return acquireLatency.getPercentile(percentile);
+        }
+        
+        /**
+         * @return Acquire latency histogram.  Bucket i counts latencies of up to 2^i microseconds
+         */
+        public long[] getAcquireLatencyHistogram() {
+            return acquireLatency.getCounts();
+        }
+        
+        /**
+         * @param n
+         * @return Up to n keys that were most often found busy, most contended first
+         */
+        public List<KeyCount> getHottestKeys(int n) {
+            return topKeys.top(n);
+        }
+
+        @Override
+        public String toString() {
+            return "ColumnFamilyLockStats [cf="  + columnFamily
+                    + ", acquired=" + acquireCount.get()
+                    + ", busy="     + busyCount.get()
+                    + ", stale="    + staleLockCount.get()
+                    + ", hold="     + getAverageHoldTime()
+                    + ", p99="      + getAcquireLatencyPercentile(99) 
+                    + ", hot="      + getHottestKeys(3) + "]";
+        }
+    }
+    
+    private final ConcurrentMap<String, ColumnFamilyLockStats> stats = Maps.newConcurrentMap();
+    private final int topKeyCapacity;
+    
+    public CountingLockStats() {
+        this(DEFAULT_TOP_KEY_CAPACITY);
+    }
+    
+    /**
+     * @param topKeyCapacity  Number of keys tracked by the top-K sketch of each column family
+     */
+    public CountingLockStats(int topKeyCapacity) {
+        this.topKeyCapacity = topKeyCapacity;
+    }
+    
+    /**
+     * @param columnFamily
+     * @return Counters of the column family, which are created if needed
+     */
+    public ColumnFamilyLockStats getColumnFamilyStats(String columnFamily) {
+        ColumnFamilyLockStats cfStats = stats.get(columnFamily);
+        if (cfStats == null) {
+            cfStats = new ColumnFamilyLockStats(columnFamily, topKeyCapacity);
+            ColumnFamilyLockStats existing = stats.putIfAbsent(columnFamily, cfStats);
+            if (existing != null)
+                cfStats = existing;
+        }
+        return cfStats;
+    }
+    
+    /**
+     * @return Counters of all column families that recorded lock events
+     */
+    public Map<String, ColumnFamilyLockStats> getAllColumnFamilyStats() {
+        return Collections.unmodifiableMap(stats);
+    }
+    
+    @Override
+    public void recordAcquire(String columnFamily, Object key, long latencyMicros, int retryCount) {
+        ColumnFamilyLockStats cfStats = getColumnFamilyStats(columnFamily);
+        cfStats.acquireCount.incrementAndGet();
+        cfStats.acquireLatency.record(latencyMicros);
+    }
+
+    @Override
+    public void recordBusy(String columnFamily, Object key) {
+        ColumnFamilyLockStats cfStats = getColumnFamilyStats(columnFamily);
+        cfStats.busyCount.incrementAndGet();
+        cfStats.topKeys.add(String.valueOf(key));
+    }
+
+    @Override
+    public void recordStaleLocks(String columnFamily, Object key, int count) {
+        getColumnFamilyStats(columnFamily).staleLockCount.addAndGet(count);
+    }
+
+    @Override
+    public void recordRelease(String columnFamily, Object key, long holdTimeMillis) {
+        ColumnFamilyLockStats cfStats = getColumnFamilyStats(columnFamily);
+        cfStats.releaseCount.incrementAndGet();
+        cfStats.recordHoldTime(holdTimeMillis);
+    }
+    
+    @Override
+    public String toString() {
+        return "CountingLockStats " + stats.values();
+    }
+}
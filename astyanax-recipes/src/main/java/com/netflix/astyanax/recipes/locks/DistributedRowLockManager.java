@@ -0,0 +1,514 @@
+/*******************************************************************************
+ * Copyright 2011 Netflix
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.netflix.astyanax.recipes.locks;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Striped;
+import com.netflix.astyanax.Keyspace;
+import com.netflix.astyanax.MutationBatch;
+import com.netflix.astyanax.model.Column;
+import com.netflix.astyanax.model.ColumnFamily;
+import com.netflix.astyanax.model.ConsistencyLevel;
+import com.netflix.astyanax.model.Row;
+import com.netflix.astyanax.model.Rows;
+import com.netflix.astyanax.retry.RetryPolicy;
+import com.netflix.astyanax.retry.RunOnce;
+import com.netflix.astyanax.util.RangeBuilder;
+
+/**
+ * Manages ColumnPrefixDistributedRowLock locks for the rows of a column family on behalf of all 
+ * threads of a process.
+ * 
+ * 1. Threads of this process that lock the same row first wait on a local striped lock so that
+ *      only one of them at a time takes the distributed lock instead of all of them contending
+ *      in Cassandra and failing with BusyLockException.
+ * 2. Locks on many rows are taken with a single batched write of all lock columns followed by a
+ *      single multiget that reads back the lock columns of all rows.  If any of the rows is 
+ *      locked by someone else all the locks are released and the attempt is retried using the 
+ *      backoff policy.
+ * 3. With a lease (see withLease) the distributed lock is kept after release() so that the next
+ *      critical section for the row in this process reuses it without any call to Cassandra.
+ *      The lease must be shorter than the lock expiration (see expireLockAfter) and lock columns
+ *      of leases that expired while the row was idle are deleted by releaseExpiredLeases() or
+ *      releaseAll().  Only use leases when no other process needs the rows at the same time,
+ *      since other processes can't take the lock until the lease is released.  The lock column 
+ *      still expires at the time it was written plus the lock expiration, so when a lease is 
+ *      reused with less than the safety margin (see withLeaseSafetyMargin) left before the lock 
+ *      column expires the column is re-written, in one batch for all rows of the lock, to extend 
+ *      it.  A lock whose column already expired is taken again as if it wasn't held.
+ * 
+ * Take a lock on several rows,
+ * <code>
+ *      DistributedRowLockManager<String> manager = new DistributedRowLockManager<String>(keyspace, columnFamily);
+ *      DistributedRowLock lock = manager.newLock(Arrays.asList("key1", "key2"));
+ *      lock.acquire();
+ *      try {
+ *          // Do something
+ *      }
+ *      finally {
+ *          lock.release();
+ *      }
+ * </code>
+ * 
+ * @param <K>
+ */
+public class DistributedRowLockManager<K> {
+    public static final int DEFAULT_STRIPE_COUNT = 1024;
+
+    /**
+     * Distributed lock held by this process
+     */
+    private class HeldLock {
+        private final ColumnPrefixDistributedRowLock<K> lock;
+        private final long                              acquireTime;
+        private final long                              leaseExpiration;
+        private volatile long                           lockExpiration;
+        
+        HeldLock(ColumnPrefixDistributedRowLock<K> lock, long acquireTime, long leaseExpiration, long lockExpiration) {
+            this.lock            = lock;
+            this.acquireTime     = acquireTime;
+            this.leaseExpiration = leaseExpiration;
+            this.lockExpiration  = lockExpiration;
+        }
+        
+        boolean isLeaseExpired(long now) {
+            return now >= leaseExpiration;
+        }
+        
+        /**
+         * @return Time left until the lock column in Cassandra expires
+         */
+        long getRemainingLockTime(long now) {
+            return lockExpiration - now;
+        }
+    }
+    
+    /**
+     * Lock on a set of rows that is local to the thread using it
+     */
+    private class ManagedRowLock implements DistributedRowLock {
+        private final Set<K>     keys;
+        private List<Lock>       localLocks;
+        
+        ManagedRowLock(Collection<K> keys) {
+            this.keys = ImmutableSet.copyOf(keys);
+        }
+        
+        @Override
+        public void acquire() throws BusyLockException, StaleLockException, Exception {
+            Preconditions.checkState(localLocks == null, "Lock already acquired");
+            
+            List<Lock> locks = acquireLocalLocks(keys);
+            try {
+                acquireDistributedLocks(keys);
+                localLocks = locks;
+            }
+            catch (Exception e) {
+                releaseLocalLocks(locks);
+                throw e;
+            }
+        }
+
+        @Override
+        public void release() throws Exception {
+            if (localLocks == null)
+                return;
+            
+            try {
+                releaseDistributedLocks(keys, leaseDuration == 0);
+            }
+            finally {
+                releaseLocalLocks(localLocks);
+                localLocks = null;
+            }
+        }
+    }
+    
+    private final Keyspace                keyspace;
+    private final ColumnFamily<K, String> columnFamily;
+    private final Striped<Lock>           stripes;
+    private final ConcurrentMap<K, HeldLock> held = Maps.newConcurrentMap();
+
+    private String           prefix            = ColumnPrefixDistributedRowLock.DEFAULT_LOCK_PREFIX;
+    private ConsistencyLevel consistencyLevel  = ConsistencyLevel.CL_LOCAL_QUORUM;
+    private long             timeout           = ColumnPrefixDistributedRowLock.LOCK_TIMEOUT;
+    private TimeUnit         timeoutUnits      = ColumnPrefixDistributedRowLock.DEFAULT_OPERATION_TIMEOUT_UNITS;
+    private Integer          ttl               = null;
+    private RetryPolicy      backoffPolicy     = RunOnce.get();
+    private long             leaseDuration     = 0;
+    private Long             leaseSafetyMargin = null;
+    private LockStats        stats             = null;
+
+    public DistributedRowLockManager(Keyspace keyspace, ColumnFamily<K, String> columnFamily) {
+        this(keyspace, columnFamily, DEFAULT_STRIPE_COUNT);
+    }
+    
+    /**
+     * @param keyspace
+     * @param columnFamily
+     * @param stripeCount   Number of local locks.  Rows are mapped to local locks by hash
+     */
+    public DistributedRowLockManager(Keyspace keyspace, ColumnFamily<K, String> columnFamily, int stripeCount) {
+        this.keyspace     = keyspace;
+        this.columnFamily = columnFamily;
+        this.stripes      = Striped.lock(stripeCount);
+    }
+
+    public DistributedRowLockManager<K> withConsistencyLevel(ConsistencyLevel consistencyLevel) {
+        this.consistencyLevel = consistencyLevel;
+        return this;
+    }
+
+    public DistributedRowLockManager<K> withColumnPrefix(String prefix) {
+        this.prefix = prefix;
+        return this;
+    }
+
+    /**
+     * Time after which an abandoned lock expires.  Also bounds the time a thread waits 
+     * for the local lock of a row.
+     * @param timeout
+     * @param unit
+     */
+    public DistributedRowLockManager<K> expireLockAfter(long timeout, TimeUnit unit) {
+        this.timeout      = timeout;
+        this.timeoutUnits = unit;
+        return this;
+    }
+
+    public DistributedRowLockManager<K> withTtl(Integer ttl) {
+        this.ttl = ttl;
+        return this;
+    }
+
+    public DistributedRowLockManager<K> withBackoff(RetryPolicy policy) {
+        this.backoffPolicy = policy;
+        return this;
+    }
+
+    /**
+     * Record lock events to the stats.  The hold time of a lock taken under a lease covers 
+     * the whole time the distributed lock was held, including the idle time of the lease.
+     * @param stats
+     */
+    public DistributedRowLockManager<K> withStats(LockStats stats) {
+        this.stats = stats;
+        return this;
+    }
+
+    /**
+     * Keep distributed locks for the specified time after they are released so that they may
+     * be reused by this process.  Must be shorter than the lock expiration.
+     * @param duration
+     * @param units
+     */
+    public DistributedRowLockManager<K> withLease(long duration, TimeUnit units) {
+        Preconditions.checkArgument(
+                TimeUnit.MILLISECONDS.convert(duration, units) < TimeUnit.MILLISECONDS.convert(timeout, timeoutUnits), 
+                "Lease must be shorter than the lock expiration");
+        this.leaseDuration = TimeUnit.MILLISECONDS.convert(duration, units);
+        return this;
+    }
+
+    /**
+     * Minimum time the lock column of a reused lease must have left before it expires.  Lock 
+     * columns with less time left are re-written to extend them.  Should cover the longest critical
+     * section.  Defaults to half the lock expiration.
+     * @param margin
+     * @param units
+     */
+    public DistributedRowLockManager<K> withLeaseSafetyMargin(long margin, TimeUnit units) {
+        Preconditions.checkArgument(
+                TimeUnit.MILLISECONDS.convert(margin, units) < TimeUnit.MILLISECONDS.convert(timeout, timeoutUnits), 
+                "Safety margin must be shorter than the lock expiration");
+        this.leaseSafetyMargin = TimeUnit.MILLISECONDS.convert(margin, units);
+        return this;
+    }
+
+    public DistributedRowLock newLock(K key) {
+        return new ManagedRowLock(Collections.singleton(key));
+    }
+
+    /**
+     * Create a lock on several rows that are all locked and released together
+     * @param keys
+     */
+    public DistributedRowLock newLock(Collection<K> keys) {
+        return new ManagedRowLock(keys);
+    }
+    
+    /**
+     * Release the distributed locks whose lease expired
+     * @throws Exception
+     */
+    public void releaseExpiredLeases() throws Exception {
+        releaseHeldLocks(false);
+    }
+    
+    /**
+     * Release all distributed locks held under a lease.  Call this before shutting down.
+     * @throws Exception
+     */
+    public void releaseAll() throws Exception {
+        releaseHeldLocks(true);
+    }
+    
+    /**
+     * @return Number of distributed locks currently held by this process
+     */
+    public int getHeldLockCount() {
+        return held.size();
+    }
+    
+    private void releaseHeldLocks(boolean force) throws Exception {
+        long now = System.currentTimeMillis();
+        List<K> keys = Lists.newArrayList();
+        for (Entry<K, HeldLock> entry : held.entrySet()) {
+            if (force || entry.getValue().isLeaseExpired(now))
+                keys.add(entry.getKey());
+        }
+        
+        // Don't release locks that are in use
+        for (K key : keys) {
+            Lock local = stripes.get(key);
+            if (local.tryLock()) {
+                try {
+                    releaseDistributedLocks(Collections.singleton(key), force);
+                }
+                finally {
+                    local.unlock();
+                }
+            }
+        }
+    }
+    
+    private List<Lock> acquireLocalLocks(Collection<K> keys) throws Exception {
+        // bulkGet returns the stripes in a consistent order, which avoids deadlocks
+        List<Lock> locks = Lists.newArrayList();
+        for (Lock lock : stripes.bulkGet(keys)) {
+            if (!locks.contains(lock))
+                locks.add(lock);
+        }
+        
+        long deadline = System.nanoTime() + TimeUnit.NANOSECONDS.convert(timeout, timeoutUnits);
+        List<Lock> acquired = Lists.newArrayList();
+        try {
+            for (Lock lock : locks) {
+                if (!lock.tryLock(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS))
+                    throw new BusyLockException("Timed out waiting for local lock on rows " + keys);
+                acquired.add(lock);
+            }
+        }
+        catch (Exception e) {
+            releaseLocalLocks(acquired);
+            throw e;
+        }
+        return acquired;
+    }
+    
+    private void releaseLocalLocks(List<Lock> locks) {
+        for (Lock lock : Lists.reverse(locks)) {
+            lock.unlock();
+        }
+    }
+    
+    private ColumnPrefixDistributedRowLock<K> newDistributedLock(K key) {
+        return new ColumnPrefixDistributedRowLock<K>(keyspace, columnFamily, key)
+                .withColumnPrefix(prefix)
+                .withConsistencyLevel(consistencyLevel)
+                .expireLockAfter(timeout, timeoutUnits)
+                .withTtl(ttl)
+                .withStats(stats);
+    }
+    
+    /**
+     * Take the distributed locks of the rows that aren't already held under a lease.  The 
+     * caller must hold the local locks of the rows.
+     */
+    private void acquireDistributedLocks(Collection<K> keys) throws Exception {
+        Preconditions.checkArgument(ttl == null || TimeUnit.SECONDS.convert(timeout, timeoutUnits) < ttl, "Timeout " + timeout + " must be less than TTL " + ttl);
+        Preconditions.checkArgument(leaseDuration < TimeUnit.MILLISECONDS.convert(timeout, timeoutUnits), "Lease must be shorter than the lock expiration");
+        
+        long now    = System.currentTimeMillis();
+        long margin = getLeaseSafetyMargin();
+        List<K> toRelease = Lists.newArrayList();
+        List<K> toAcquire = Lists.newArrayList();
+        List<K> toExtend  = Lists.newArrayList();
+        for (K key : keys) {
+            HeldLock lock = held.get(key);
+            if (lock == null) {
+                toAcquire.add(key);
+            }
+            else if (lock.isLeaseExpired(now) || lock.getRemainingLockTime(now) <= 0) {
+                toRelease.add(key);
+                toAcquire.add(key);
+            }
+            else if (lock.getRemainingLockTime(now) < margin) {
+                toExtend.add(key);
+            }
+        }
+        
+        if (!toRelease.isEmpty())
+            releaseDistributedLocks(toRelease, true);
+        if (!toExtend.isEmpty())
+            extendDistributedLocks(toExtend);
+        if (toAcquire.isEmpty())
+            return;
+        
+        RetryPolicy retry = backoffPolicy.duplicate();
+        int  retryCount   = 0;
+        long startTime    = System.nanoTime();
+        while (true) {
+            long curTimeMicros = TimeUnit.MICROSECONDS.convert(System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+            
+            // Write all lock columns in one batch
+            Map<K, ColumnPrefixDistributedRowLock<K>> locks = Maps.newLinkedHashMap();
+            MutationBatch m = keyspace.prepareMutationBatch().setConsistencyLevel(consistencyLevel);
+            for (K key : toAcquire) {
+                ColumnPrefixDistributedRowLock<K> lock = newDistributedLock(key);
+                lock.fillLockMutation(m, curTimeMicros, ttl);
+                locks.put(key, lock);
+            }
+            m.execute();
+            
+            try {
+                // Read back the lock columns of all rows in one query
+                Rows<K, String> rows = keyspace.prepareQuery(columnFamily)
+                        .setConsistencyLevel(consistencyLevel)
+                        .getKeySlice(toAcquire)
+                        .withColumnRange(new RangeBuilder().setStart(prefix + "\u0000").setEnd(prefix + "\uFFFF").build())
+                        .execute()
+                        .getResult();
+                
+                for (Entry<K, ColumnPrefixDistributedRowLock<K>> entry : locks.entrySet()) {
+                    ColumnPrefixDistributedRowLock<K> lock = entry.getValue();
+                    Map<String, Long> lockColumns = Maps.newLinkedHashMap();
+                    Row<K, String> row = rows.getRow(entry.getKey());
+                    if (row != null) {
+                        for (Column<String> column : row.getColumns()) {
+                            lockColumns.put(column.getName(), lock.readTimeoutValue(column));
+                        }
+                    }
+                    try {
+                        lock.verifyLock(curTimeMicros, lockColumns);
+                    }
+                    catch (BusyLockException e) {
+                        if (stats != null)
+                            stats.recordBusy(columnFamily.getName(), entry.getKey());
+                        throw e;
+                    }
+                }
+            }
+            catch (BusyLockException e) {
+                releaseLocks(locks.values());
+                if (!retry.allowRetry())
+                    throw e;
+                retryCount++;
+                continue;
+            }
+            catch (Exception e) {
+                releaseLocks(locks.values());
+                throw e;
+            }
+            
+            long acquireTime     = System.currentTimeMillis();
+            long leaseExpiration = acquireTime + leaseDuration;
+            long lockExpiration  = getLockExpiration(curTimeMicros);
+            long latencyMicros   = TimeUnit.MICROSECONDS.convert(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+            for (Entry<K, ColumnPrefixDistributedRowLock<K>> entry : locks.entrySet()) {
+                held.put(entry.getKey(), new HeldLock(entry.getValue(), acquireTime, leaseExpiration, lockExpiration));
+                if (stats != null)
+                    stats.recordAcquire(columnFamily.getName(), entry.getKey(), latencyMicros, retryCount);
+            }
+            return;
+        }
+    }
+    
+    /**
+     * Re-write the lock columns of held locks to extend their expiration.  The caller must hold 
+     * the local locks of the rows.
+     */
+    private void extendDistributedLocks(Collection<K> keys) throws Exception {
+        long curTimeMicros = TimeUnit.MICROSECONDS.convert(System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        MutationBatch m = keyspace.prepareMutationBatch().setConsistencyLevel(consistencyLevel);
+        for (K key : keys) {
+            held.get(key).lock.fillLockMutation(m, curTimeMicros, ttl);
+        }
+        m.execute();
+        
+        long lockExpiration = getLockExpiration(curTimeMicros);
+        for (K key : keys) {
+            held.get(key).lockExpiration = lockExpiration;
+        }
+    }
+    
+    /**
+     * @return Time at which a lock column written at the specified time expires
+     */
+    private long getLockExpiration(long writeTimeMicros) {
+        return TimeUnit.MILLISECONDS.convert(writeTimeMicros, TimeUnit.MICROSECONDS) 
+             + TimeUnit.MILLISECONDS.convert(timeout, timeoutUnits);
+    }
+    
+    private long getLeaseSafetyMargin() {
+        if (leaseSafetyMargin != null)
+            return leaseSafetyMargin;
+        return TimeUnit.MILLISECONDS.convert(timeout, timeoutUnits) / 2;
+    }
+    
+    /**
+     * Release distributed locks held by this process.  Unless force is set only locks whose
+     * lease expired are released.  The caller must hold the local locks of the rows.
+     */
+    private void releaseDistributedLocks(Collection<K> keys, boolean force) throws Exception {
+        long now = System.currentTimeMillis();
+        List<ColumnPrefixDistributedRowLock<K>> locks = Lists.newArrayList();
+        for (K key : keys) {
+            HeldLock lock = held.get(key);
+            if (lock != null && (force || lock.isLeaseExpired(now))) {
+                held.remove(key);
+                locks.add(lock.lock);
+                if (stats != null)
+                    stats.recordRelease(columnFamily.getName(), key, now - lock.acquireTime);
+            }
+        }
+        releaseLocks(locks);
+    }
+    
+    private void releaseLocks(Collection<ColumnPrefixDistributedRowLock<K>> locks) throws Exception {
+        if (locks.isEmpty())
+            return;
+        
+        MutationBatch m = keyspace.prepareMutationBatch().setConsistencyLevel(consistencyLevel);
+        for (ColumnPrefixDistributedRowLock<K> lock : locks) {
+            lock.fillReleaseMutation(m, false);
+        }
+        m.execute();
+    }
+}
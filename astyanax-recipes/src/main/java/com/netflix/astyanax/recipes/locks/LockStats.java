@@ -0,0 +1,56 @@
+/*******************************************************************************
+ * Copyright 2011 Netflix
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.netflix.astyanax.recipes.locks;
+
+/**
+ * Receives the lock events of distributed row locks.  Locks only record events when 
+ * a stats instance was set with withStats().  Implementations must be thread safe since
+ * a single instance is normally shared by all the locks of a process.
+ */
+public interface LockStats {
+    /**
+     * The lock on a row was acquired
+     * @param columnFamily
+     * @param key
+     * @param latencyMicros Time from the first attempt until the lock was verified
+     * @param retryCount    Number of attempts that failed because the row was busy
+     */
+    void recordAcquire(String columnFamily, Object key, long latencyMicros, int retryCount);
+    
+    /**
+     * An attempt to take the lock failed because the row was locked by someone else
+     * @param columnFamily
+     * @param key
+     */
+    void recordBusy(String columnFamily, Object key);
+    
+    /**
+     * Stale lock columns, left behind by owners that never released them, were found
+     * and will be deleted with the release of the lock
+     * @param columnFamily
+     * @param key
+     * @param count
+     */
+    void recordStaleLocks(String columnFamily, Object key, int count);
+    
+    /**
+     * A lock that was acquired was released
+     * @param columnFamily
+     * @param key
+     * @param holdTimeMillis Time the lock was held
+     */
+    void recordRelease(String columnFamily, Object key, long holdTimeMillis);
+}
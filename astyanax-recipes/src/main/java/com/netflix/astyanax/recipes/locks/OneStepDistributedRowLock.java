@@ -43,6 +43,7 @@ public class OneStepDistributedRowLock<K, C> implements DistributedRowLock {
     private RetryPolicy      backoffPolicy    = RunOnce.get();
     private long             acquireTime      = 0;
     private int              retryCount       = 0;
+    private LockStats        stats            = null;
     private LockColumnStrategy<C> columnStrategy = null;
     
     public OneStepDistributedRowLock(Keyspace keyspace, ColumnFamily<K, C> columnFamily, K key) {
@@ -130,6 +131,15 @@ public class OneStepDistributedRowLock<K, C> implements DistributedRowLock {
         this.backoffPolicy  = policy;
         return this;
     }
+    
+    /**
+     * Record acquire latency, contention, stale lock cleanups and hold times to the stats
+     * @param stats
+     */
+    public OneStepDistributedRowLock<K, C> withStats(LockStats stats) {
+        this.stats = stats;
+        return this;
+    }
 
     /**
      * Try to take the lock.  The caller must call .release() to properly clean up
@@ -145,6 +155,8 @@ public class OneStepDistributedRowLock<K, C> implements DistributedRowLock {
         
         RetryPolicy retry = backoffPolicy.duplicate();
         retryCount = 0;
+        acquireTime = 0;
+        long startTime = System.nanoTime();
         while (true) {
             try {
                 long curTimeMicros = getCurrentTimeMicros();
@@ -155,9 +167,13 @@ public class OneStepDistributedRowLock<K, C> implements DistributedRowLock {
                 
                 verifyLock(curTimeMicros);
                 acquireTime = System.currentTimeMillis();
+                if (stats != null)
+                    stats.recordAcquire(columnFamily.getName(), key, TimeUnit.MICROSECONDS.convert(System.nanoTime() - startTime, TimeUnit.NANOSECONDS), retryCount);
                 return;
             }
             catch (BusyLockException e) {
+                if (stats != null)
+                    stats.recordBusy(columnFamily.getName(), key);
                 release();
                 if(!retry.allowRetry())
                     throw e;
@@ -195,19 +211,27 @@ public class OneStepDistributedRowLock<K, C> implements DistributedRowLock {
         Map<C, Long> lockResult = readLockColumns(readDataColumns);
 
         // Cleanup and check that we really got the lock
-        for (Entry<C, Long> entry : lockResult.entrySet()) {
-            // This is a stale lock that was never cleaned up
-            if (entry.getValue() != 0 && curTimeInMicros > entry.getValue()) {
-                if (failOnStaleLock) {
-                    throw new StaleLockException("Stale lock on row '" + key + "'.  Manual cleanup requried.");
+        int staleCount = 0;
+        try {
+            for (Entry<C, Long> entry : lockResult.entrySet()) {
+                // This is a stale lock that was never cleaned up
+                if (entry.getValue() != 0 && curTimeInMicros > entry.getValue()) {
+                    if (failOnStaleLock) {
+                        throw new StaleLockException("Stale lock on row '" + key + "'.  Manual cleanup requried.");
+                    }
+                    if (locksToDelete.add(entry.getKey()))
+                        staleCount++;
+                }
+                // Lock already taken, and not by us
+                else if (!entry.getKey().equals(getLockColumn())) {
+                    throw new BusyLockException("Lock already acquired for row '" + key + "' with lock column " + entry.getKey());
                 }
-                locksToDelete.add(entry.getKey());
-            }
-            // Lock already taken, and not by us
-            else if (!entry.getKey().equals(getLockColumn())) {
-                throw new BusyLockException("Lock already acquired for row '" + key + "' with lock column " + entry.getKey());
             }
         }
+        finally {
+            if (stats != null && staleCount > 0)
+                stats.recordStaleLocks(columnFamily.getName(), key, staleCount);
+        }
     }
 
     /**
@@ -429,8 +453,11 @@ public class OneStepDistributedRowLock<K, C> implements DistributedRowLock {
         for (C c : locksToDelete) {
             row.deleteColumn(c);
         }
-        if (!excludeCurrentLock && lockColumn != null) 
+        if (!excludeCurrentLock && lockColumn != null) {
             row.deleteColumn(lockColumn);
+            if (stats != null && acquireTime != 0)
+                stats.recordRelease(columnFamily.getName(), key, System.currentTimeMillis() - acquireTime);
+        }
         locksToDelete.clear();
         lockColumn = null;
     }
@@ -0,0 +1,18 @@
+package com.netflix.astyanax.recipes.reader;
+
+import java.io.IOException;
+
+/**
+ * Callback for row functions that hold resources (such as threads or open outputs) which 
+ * must be released when an AllRowsReader does not read all the rows.  A read that completes 
+ * calls Flushable.flush() instead, so abort must release the resources without finalizing 
+ * any output.
+ */
+public interface AbortableRowFunction {
+    /**
+     * Called once when the read failed or was cancelled
+     * @param cause Error that failed the read or null if the read was cancelled
+     * @throws IOException
+     */
+    void abort(Exception cause) throws IOException;
+}
@@ -0,0 +1,589 @@
+package com.netflix.astyanax.recipes.reader;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.netflix.astyanax.ColumnListMutation;
+import com.netflix.astyanax.Keyspace;
+import com.netflix.astyanax.MutationBatch;
+import com.netflix.astyanax.connectionpool.ConnectionPool;
+import com.netflix.astyanax.connectionpool.Host;
+import com.netflix.astyanax.connectionpool.TokenRange;
+import com.netflix.astyanax.connectionpool.exceptions.ConnectionException;
+import com.netflix.astyanax.model.Column;
+import com.netflix.astyanax.model.ColumnFamily;
+import com.netflix.astyanax.model.ConsistencyLevel;
+import com.netflix.astyanax.model.Row;
+import com.netflix.astyanax.partitioner.BigInteger127Partitioner;
+import com.netflix.astyanax.partitioner.Partitioner;
+import com.netflix.astyanax.query.CheckpointManager;
+import com.netflix.astyanax.recipes.TokenRingLookup;
+import com.netflix.astyanax.retry.RetryPolicy;
+import com.netflix.astyanax.shallows.EmptyCheckpointManager;
+
+/**
+ * Recipe to copy all rows of a column family into another column family, which may be
+ * in a different keyspace or cluster.
+ *
+ * The source is scanned by token range using AllRowsReader.  Rows are re-batched by the
+ * destination token range that owns them and each batch is pinned to an active replica of 
+ * that range in the destination connection pool, so that each batch_mutate only touches a 
+ * single replica set and is coordinated by one of its replicas.  A batch whose replica fails 
+ * is retried once through the normal connection pool.  Batches are written on a separate pool of
+ * writer threads so reads and writes are pipelined, with the number of pending batches
+ * bounded to apply back pressure on the readers.  The copy can be throttled to a maximum
+ * number of MB/s.
+ *
+ * Progress is tracked with a CheckpointManager.  A checkpoint is only recorded after all
+ * rows read before it have been written, so a failed copy can be resumed by running it
+ * again with the same checkpoint manager.
+ *
+ * @param <K>
+ * @param <C>
+ */
+public class AllRowsCopier<K, C> implements Callable<Boolean> {
+    private static final Logger LOG = LoggerFactory.getLogger(AllRowsCopier.class);
+
+    private static final Partitioner DEFAULT_PARTITIONER   = BigInteger127Partitioner.get();
+    private static final int  DEFAULT_PAGE_SIZE            = 100;
+    private static final int  DEFAULT_BATCH_SIZE           = 100;
+    private static final int  DEFAULT_MAX_BATCH_BYTES      = 4 * 1024 * 1024;
+    private static final int  DEFAULT_WRITE_CONCURRENCY    = 8;
+    private static final int  DEFAULT_MAX_PENDING_BATCHES  = 32;
+    private static final int  DEFAULT_CHECKPOINT_INTERVAL  = 100;
+
+    public static class Builder<K, C> {
+        private final Keyspace           sourceKeyspace;
+        private final ColumnFamily<K, C> sourceColumnFamily;
+        private final Keyspace           destKeyspace;
+        private final ColumnFamily<K, C> destColumnFamily;
+
+        private Partitioner         partitioner = DEFAULT_PARTITIONER;
+        private Partitioner         destPartitioner;
+        private int                 pageSize = DEFAULT_PAGE_SIZE;
+        private Integer             concurrencyLevel;
+        private String              startToken;
+        private String              endToken;
+        private String              dc;
+        private String              rack;
+        private ConsistencyLevel    readConsistencyLevel;
+        private ConsistencyLevel    writeConsistencyLevel;
+        private RetryPolicy         writeRetryPolicy;
+        private int                 batchSize = DEFAULT_BATCH_SIZE;
+        private int                 maxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+        private int                 writeConcurrency = DEFAULT_WRITE_CONCURRENCY;
+        private int                 maxPendingBatches = DEFAULT_MAX_PENDING_BATCHES;
+        private double              maxMbPerSecond = 0;
+        private CheckpointManager   checkpointManager = new EmptyCheckpointManager();
+        private int                 checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+
+        public Builder(Keyspace sourceKeyspace, ColumnFamily<K, C> sourceColumnFamily,
+                       Keyspace destKeyspace,   ColumnFamily<K, C> destColumnFamily) {
+            this.sourceKeyspace     = sourceKeyspace;
+            this.sourceColumnFamily = sourceColumnFamily;
+            this.destKeyspace       = destKeyspace;
+            this.destColumnFamily   = destColumnFamily;
+        }
+
+        /**
+         * Number of rows read from the source per query
+         * @param pageSize
+         * @return
+         */
+        public Builder<K, C> withPageSize(int pageSize) {
+            this.pageSize = pageSize;
+            return this;
+        }
+
+        /**
+         * Number of token ranges into which the source is split.  When not specified the
+         * source ring is described and each token range is read in parallel.
+         * @param concurrencyLevel
+         * @return
+         */
+        public Builder<K, C> withConcurrencyLevel(int concurrencyLevel) {
+            Preconditions.checkArgument(concurrencyLevel >= 1, "Concurrency level must be >= 1");
+            this.concurrencyLevel = concurrencyLevel;
+            return this;
+        }
+
+        public Builder<K, C> withTokenRange(String startToken, String endToken) {
+            this.startToken = startToken;
+            this.endToken   = endToken;
+            return this;
+        }
+
+        /**
+         * Partitioner of the source cluster
+         * @param partitioner
+         * @return
+         */
+        public Builder<K, C> withPartitioner(Partitioner partitioner) {
+            this.partitioner = partitioner;
+            return this;
+        }
+
+        /**
+         * Partitioner of the destination cluster.  Will be determined from the destination
+         * keyspace if not specified.
+         * @param partitioner
+         * @return
+         */
+        public Builder<K, C> withDestinationPartitioner(Partitioner partitioner) {
+            this.destPartitioner = partitioner;
+            return this;
+        }
+
+        public Builder<K, C> withDc(String dc) {
+            this.dc = dc;
+            return this;
+        }
+
+        public Builder<K, C> withRack(String rack) {
+            this.rack = rack;
+            return this;
+        }
+
+        public Builder<K, C> withReadConsistencyLevel(ConsistencyLevel consistencyLevel) {
+            this.readConsistencyLevel = consistencyLevel;
+            return this;
+        }
+
+        public Builder<K, C> withWriteConsistencyLevel(ConsistencyLevel consistencyLevel) {
+            this.writeConsistencyLevel = consistencyLevel;
+            return this;
+        }
+
+        public Builder<K, C> withWriteRetryPolicy(RetryPolicy retryPolicy) {
+            this.writeRetryPolicy = retryPolicy;
+            return this;
+        }
+
+        /**
+         * Maximum number of rows per batch_mutate.
+         * @param batchSize
+         * @return
+         */
+        public Builder<K, C> withBatchSize(int batchSize) {
+            Preconditions.checkArgument(batchSize >= 1, "Batch size must be >= 1");
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        /**
+         * Maximum approximate size of a batch_mutate in bytes.  A batch is written as soon as
+         * either the row or byte limit is reached.
+         * @param maxBatchBytes
+         * @return
+         */
+        public Builder<K, C> withMaxBatchBytes(int maxBatchBytes) {
+            this.maxBatchBytes = maxBatchBytes;
+            return this;
+        }
+
+        /**
+         * Number of threads writing to the destination
+         * @param writeConcurrency
+         * @return
+         */
+        public Builder<K, C> withWriteConcurrency(int writeConcurrency) {
+            Preconditions.checkArgument(writeConcurrency >= 1, "Write concurrency must be >= 1");
+            this.writeConcurrency = writeConcurrency;
+            return this;
+        }
+
+        /**
+         * Maximum number of batches waiting to be written.  Readers block when this limit
+         * is reached.
+         * @param maxPendingBatches
+         * @return
+         */
+        public Builder<K, C> withMaxPendingBatches(int maxPendingBatches) {
+            Preconditions.checkArgument(maxPendingBatches >= 1, "Max pending batches must be >= 1");
+            this.maxPendingBatches = maxPendingBatches;
+            return this;
+        }
+
+        /**
+         * Limit the copy rate
+         * @param maxMbPerSecond  Maximum MB/s of row data written, 0 for no limit
+         * @return
+         */
+        public Builder<K, C> withThrottle(double maxMbPerSecond) {
+            this.maxMbPerSecond = maxMbPerSecond;
+            return this;
+        }
+
+        /**
+         * Checkpoint manager used to resume a copy.  Checkpoints are only recorded once all
+         * rows up to the checkpoint have been written to the destination.
+         * @param checkpointManager
+         * @return
+         */
+        public Builder<K, C> withCheckpointManager(CheckpointManager checkpointManager) {
+            this.checkpointManager = checkpointManager;
+            return this;
+        }
+
+        /**
+         * Number of source pages between checkpoints.  Recording a checkpoint requires waiting
+         * for the reading thread's pending writes so checkpointing too often limits pipelining.
+         * @param checkpointInterval
+         * @return
+         */
+        public Builder<K, C> withCheckpointInterval(int checkpointInterval) {
+            Preconditions.checkArgument(checkpointInterval >= 1, "Checkpoint interval must be >= 1");
+            this.checkpointInterval = checkpointInterval;
+            return this;
+        }
+
+        public AllRowsCopier<K, C> build() {
+            return new AllRowsCopier<K, C>(this);
+        }
+    }
+
+    /**
+     * Rows accumulated for a single destination token range
+     */
+    private class PendingBatch {
+        final int range;
+        MutationBatch mb = prepareMutationBatch();
+        int bytes = 0;
+        
+        PendingBatch(int range) {
+            this.range = range;
+        }
+    }
+
+    /**
+     * State owned by each reader thread
+     */
+    private class ThreadContext {
+        final Map<Integer, PendingBatch> batches     = Maps.newHashMap();
+        final List<Future<?>>            inFlight    = Lists.newArrayList();
+        final Map<String, String>        checkpoints = Maps.newHashMap();
+        int pagesSinceCheckpoint = 0;
+    }
+
+    private final Builder<K, C>               config;
+    private final ThreadLocal<ThreadContext>  context  = new ThreadLocal<ThreadContext>();
+    private final Set<ThreadContext>          contexts = Collections.synchronizedSet(Sets.<ThreadContext>newIdentityHashSet());
+    private final AtomicReference<Exception>  error    = new AtomicReference<Exception>();
+    private final AtomicLong                  rowCount = new AtomicLong();
+    private final AtomicLong                  byteCount = new AtomicLong();
+    private final Semaphore                   pendingBatches;
+    private final RateLimiter                 rateLimiter;
+    private volatile TokenRingLookup          ring;
+    private volatile Partitioner              destPartitioner;
+    private volatile ConnectionPool<?>        destPool;
+    private volatile AllRowsReader<K, C>      reader;
+    private ExecutorService                   writeExecutor;
+
+    private AllRowsCopier(Builder<K, C> builder) {
+        this.config         = builder;
+        this.pendingBatches = new Semaphore(builder.maxPendingBatches);
+        this.rateLimiter    = builder.maxMbPerSecond > 0 ? RateLimiter.create(builder.maxMbPerSecond * 1024 * 1024) : null;
+    }
+
+    @Override
+    public Boolean call() throws Exception {
+        error.set(null);
+        contexts.clear();
+        rowCount.set(0);
+        byteCount.set(0);
+
+        // Resolved before any reader thread starts so that copyRow only reads them
+        ring            = new TokenRingLookup(describeDestinationRing());
+        destPartitioner = resolveDestinationPartitioner();
+        destPool        = getDestinationPool();
+
+        writeExecutor = Executors.newFixedThreadPool(config.writeConcurrency,
+                new ThreadFactoryBuilder().setDaemon(true)
+                    .setNameFormat("AstyanaxAllRowsCopier-%d")
+                    .build());
+        try {
+            AllRowsReader.Builder<K, C> builder = new AllRowsReader.Builder<K, C>(config.sourceKeyspace, config.sourceColumnFamily)
+                    .withPageSize(config.pageSize)
+                    .withPartitioner(config.partitioner)
+                    .withCheckpointManager(new DeferredCheckpointManager())
+                    .withDc(config.dc)
+                    .withRack(config.rack)
+                    .withConsistencyLevel(config.readConsistencyLevel)
+                    .forEachRow(new Function<Row<K, C>, Boolean>() {
+                        @Override
+                        public Boolean apply(Row<K, C> row) {
+                            return copyRow(row);
+                        }
+                    });
+            if (config.concurrencyLevel != null)
+                builder.withConcurrencyLevel(config.concurrencyLevel);
+            if (config.startToken != null)
+                builder.withTokenRange(config.startToken, config.endToken);
+
+            reader = builder.build();
+            boolean result;
+            try {
+                result = reader.call();
+            }
+            catch (Exception e) {
+                // A failed write cancels the reader.  Report the write failure.
+                if (error.get() != null)
+                    throw error.get();
+                throw e;
+            }
+            if (error.get() != null)
+                throw error.get();
+
+            // All reader threads are done so their contexts can be flushed from here.  Stop at
+            // the first failed write.
+            synchronized (contexts) {
+                for (ThreadContext context : contexts) {
+                    flushAndWait(context);
+                    if (error.get() != null)
+                        throw error.get();
+                }
+            }
+
+            if (result) {
+                synchronized (contexts) {
+                    for (ThreadContext context : contexts) {
+                        saveCheckpoints(context);
+                    }
+                }
+            }
+            return result;
+        }
+        finally {
+            writeExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Cancel the copy.  Rows already read will still be written but no new checkpoints
+     * will be recorded.  A failed write cancels the copy and is thrown by call() without
+     * writing the remaining batches.
+     */
+    public void cancel() {
+        AllRowsReader<K, C> reader = this.reader;
+        if (reader != null)
+            reader.cancel();
+    }
+
+    public long getRowCount() {
+        return rowCount.get();
+    }
+
+    public long getByteCount() {
+        return byteCount.get();
+    }
+
+    private List<TokenRange> describeDestinationRing() {
+        try {
+            return config.destKeyspace.describeRing(true);
+        }
+        catch (Exception e) {
+            LOG.warn("Unable to describe destination ring.  Rows will not be grouped by token range", e);
+            return Collections.emptyList();
+        }
+    }
+
+    private ConnectionPool<?> getDestinationPool() {
+        try {
+            return config.destKeyspace.getConnectionPool();
+        }
+        catch (Exception e) {
+            LOG.warn("Unable to get destination connection pool.  Batches will not be pinned to a replica", e);
+            return null;
+        }
+    }
+
+    private Partitioner resolveDestinationPartitioner() {
+        if (config.destPartitioner != null)
+            return config.destPartitioner;
+        try {
+            return config.destKeyspace.getPartitioner();
+        }
+        catch (Exception e) {
+            LOG.warn("Unable to get destination partitioner.  Using the source partitioner", e);
+            return config.partitioner;
+        }
+    }
+
+    private MutationBatch prepareMutationBatch() {
+        MutationBatch mb = config.destKeyspace.prepareMutationBatch();
+        if (config.writeConsistencyLevel != null)
+            mb.setConsistencyLevel(config.writeConsistencyLevel);
+        if (config.writeRetryPolicy != null)
+            mb.withRetryPolicy(config.writeRetryPolicy);
+        return mb;
+    }
+
+    private ThreadContext getContext() {
+        ThreadContext ctx = context.get();
+        if (ctx == null) {
+            ctx = new ThreadContext();
+            context.set(ctx);
+            contexts.add(ctx);
+        }
+        return ctx;
+    }
+
+    private boolean copyRow(Row<K, C> row) {
+        if (error.get() != null)
+            return false;
+
+        ThreadContext ctx = getContext();
+
+        int range = ring.getRangeIndex(destPartitioner.getTokenForKey(row.getRawKey()));
+        PendingBatch batch = ctx.batches.get(range);
+        if (batch == null) {
+            batch = new PendingBatch(range);
+            ctx.batches.put(range, batch);
+        }
+
+        int size = row.getRawKey().remaining();
+        ColumnListMutation<C> mbRow = batch.mb.withRow(config.destColumnFamily, row.getKey());
+        for (Column<C> column : row.getColumns()) {
+            ByteBuffer value = column.getByteBufferValue();
+            mbRow.setTimestamp(column.getTimestamp());
+            mbRow.putColumn(column.getName(), value, column.getTtl());
+            size += column.getRawName().remaining() + value.remaining();
+        }
+        batch.bytes += size;
+        rowCount.incrementAndGet();
+
+        if (batch.mb.getRowCount() >= config.batchSize || batch.bytes >= config.maxBatchBytes) {
+            ctx.batches.remove(range);
+            try {
+                submit(ctx, batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return error.get() == null;
+    }
+
+    private void submit(ThreadContext ctx, final PendingBatch batch) throws InterruptedException {
+        if (rateLimiter != null && batch.bytes > 0)
+            rateLimiter.acquire(batch.bytes);
+
+        final Host host = ring.getReplicaHost(batch.range, destPool);
+        if (host != null)
+            batch.mb.pinToHost(host);
+
+        pendingBatches.acquire();
+        try {
+            ctx.inFlight.add(writeExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        try {
+                            batch.mb.execute();
+                        }
+                        catch (ConnectionException e) {
+                            if (host == null)
+                                throw e;
+                            LOG.warn("Failed to write batch to " + host + ".  Retrying through the connection pool", e);
+                            batch.mb.pinToHost(null).execute();
+                        }
+                        byteCount.addAndGet(batch.bytes);
+                    } catch (Exception e) {
+                        LOG.error("Failed to write batch", e);
+                        error.compareAndSet(null, e);
+                        cancel();
+                    } finally {
+                        pendingBatches.release();
+                    }
+                }
+            }));
+        }
+        catch (RuntimeException e) {
+            pendingBatches.release();
+            throw e;
+        }
+
+        // Drop futures that have already completed
+        Iterator<Future<?>> iter = ctx.inFlight.iterator();
+        while (iter.hasNext()) {
+            if (iter.next().isDone())
+                iter.remove();
+        }
+    }
+
+    /**
+     * Submit all of a thread's pending batches and wait for all its writes to complete.
+     * No more batches are submitted once a write failed.
+     */
+    private void flushAndWait(ThreadContext ctx) throws Exception {
+        for (PendingBatch batch : ctx.batches.values()) {
+            if (error.get() != null)
+                break;
+            submit(ctx, batch);
+        }
+        ctx.batches.clear();
+
+        for (Future<?> future : ctx.inFlight) {
+            future.get();
+        }
+        ctx.inFlight.clear();
+    }
+
+    private void saveCheckpoints(ThreadContext ctx) throws Exception {
+        for (Map.Entry<String, String> entry : ctx.checkpoints.entrySet()) {
+            config.checkpointManager.trackCheckpoint(entry.getKey(), entry.getValue());
+        }
+        ctx.checkpoints.clear();
+    }
+
+    /**
+     * Checkpoint manager given to the AllRowsReader.  Checkpoints reported by a reader thread
+     * are held until that thread's rows have been written.
+     */
+    private class DeferredCheckpointManager implements CheckpointManager {
+        @Override
+        public void trackCheckpoint(String startToken, String checkpointToken) throws Exception {
+            ThreadContext ctx = getContext();
+            ctx.checkpoints.put(startToken, checkpointToken);
+            if (++ctx.pagesSinceCheckpoint >= config.checkpointInterval) {
+                ctx.pagesSinceCheckpoint = 0;
+                flushAndWait(ctx);
+                if (error.get() != null)
+                    throw error.get();
+                saveCheckpoints(ctx);
+            }
+        }
+
+        @Override
+        public String getCheckpoint(String startToken) throws Exception {
+            return config.checkpointManager.getCheckpoint(startToken);
+        }
+
+        @Override
+        public SortedMap<String, String> getCheckpoints() throws Exception {
+            return config.checkpointManager.getCheckpoints();
+        }
+    }
+}
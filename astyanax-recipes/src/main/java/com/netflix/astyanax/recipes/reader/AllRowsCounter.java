@@ -0,0 +1,474 @@
+package com.netflix.astyanax.recipes.reader;
+
+import java.math.BigInteger;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.netflix.astyanax.Keyspace;
+import com.netflix.astyanax.connectionpool.exceptions.ConnectionException;
+import com.netflix.astyanax.model.ColumnFamily;
+import com.netflix.astyanax.model.ColumnList;
+import com.netflix.astyanax.model.ConsistencyLevel;
+import com.netflix.astyanax.model.Row;
+import com.netflix.astyanax.model.Rows;
+import com.netflix.astyanax.partitioner.BigInteger127Partitioner;
+import com.netflix.astyanax.partitioner.Partitioner;
+import com.netflix.astyanax.query.CheckpointManager;
+import com.netflix.astyanax.query.ColumnFamilyQuery;
+import com.netflix.astyanax.query.RowQuery;
+import com.netflix.astyanax.recipes.Callback;
+import com.netflix.astyanax.recipes.functions.HyperLogLog;
+import com.netflix.astyanax.util.RangeBuilder;
+
+/**
+ * Recipe to count the rows (and optionally the columns) of a column family without
+ * transferring the column data.
+ *
+ * Rows are scanned by token range using AllRowsReader but with at most one column per row.
+ * When column counts are requested each page of keys is counted server side using a
+ * single multiget_count call from the token range thread that read the page, so the
+ * counts are computed in parallel across all token ranges.  The multiget_count is bounded
+ * to a page of columns per row and rows that reach the bound are counted by paging
+ * through their columns so that wide rows never require one unbounded count.
+ *
+ * While the scan is in progress a progress callback is periodically invoked with the
+ * counts so far, a HyperLogLog estimate of distinct keys and an extrapolated estimate
+ * of the total number of rows based on the fraction of the token ring already scanned.
+ * This makes it possible to get an approximate answer long before the scan completes.
+ *
+ * @param <K>
+ * @param <C>
+ */
+public class AllRowsCounter<K, C> implements Callable<AllRowsCounter.Counts> {
+    private static final Partitioner DEFAULT_PARTITIONER = BigInteger127Partitioner.get();
+    private static final int  DEFAULT_PAGE_SIZE         = 500;
+    private static final long DEFAULT_PROGRESS_INTERVAL = 5000;
+    private static final int  DEFAULT_COLUMN_PAGE_SIZE  = 1000;
+
+    /**
+     * Snapshot of the counts
+     */
+    public static class Counts {
+        private final long    rowCount;
+        private final long    columnCount;
+        private final long    distinctKeyEstimate;
+        private final double  fractionScanned;
+        private final boolean complete;
+
+        Counts(long rowCount, long columnCount, long distinctKeyEstimate, double fractionScanned, boolean complete) {
+            this.rowCount            = rowCount;
+            this.columnCount         = columnCount;
+            this.distinctKeyEstimate = distinctKeyEstimate;
+            this.fractionScanned     = fractionScanned;
+            this.complete            = complete;
+        }
+
+        /**
+         * @return Number of rows counted so far
+         */
+        public long getRowCount() {
+            return rowCount;
+        }
+
+        /**
+         * @return Number of columns counted so far or -1 if columns are not being counted
+         */
+        public long getColumnCount() {
+            return columnCount;
+        }
+
+        /**
+         * @return HyperLogLog estimate of the number of distinct keys seen so far
+         */
+        public long getDistinctKeyEstimate() {
+            return distinctKeyEstimate;
+        }
+
+        /**
+         * @return Fraction (0 to 1) of the token range that has been scanned or -1 if unknown
+         * for the partitioner
+         */
+        public double getFractionScanned() {
+            return fractionScanned;
+        }
+
+        /**
+         * @return Row count extrapolated to the entire token range.  This is the exact count
+         * once the scan is complete.
+         */
+        public long getEstimatedRowCount() {
+            if (complete || fractionScanned <= 0)
+                return rowCount;
+            return Math.round(rowCount / fractionScanned);
+        }
+
+        public boolean isComplete() {
+            return complete;
+        }
+
+        @Override
+        public String toString() {
+            return "Counts [rows=" + rowCount + ", columns=" + columnCount + ", distinctKeys~=" + distinctKeyEstimate
+                    + ", scanned=" + fractionScanned + ", estimatedRows=" + getEstimatedRowCount()
+                    + ", complete=" + complete + "]";
+        }
+    }
+
+    public static class Builder<K, C> {
+        private final Keyspace           keyspace;
+        private final ColumnFamily<K, C> columnFamily;
+        private Partitioner         partitioner = DEFAULT_PARTITIONER;
+        private int                 pageSize = DEFAULT_PAGE_SIZE;
+        private Integer             concurrencyLevel;
+        private String              startToken;
+        private String              endToken;
+        private String              dc;
+        private String              rack;
+        private ConsistencyLevel    consistencyLevel;
+        private boolean             countColumns = false;
+        private int                 columnPageSize = DEFAULT_COLUMN_PAGE_SIZE;
+        private boolean             includeEmptyRows = false;
+        private Callback<Counts>    progressCallback;
+        private long                progressInterval = DEFAULT_PROGRESS_INTERVAL;
+
+        public Builder(Keyspace ks, ColumnFamily<K, C> columnFamily) {
+            this.keyspace     = ks;
+            this.columnFamily = columnFamily;
+        }
+
+        /**
+         * Number of keys read per query.  This is also the number of keys counted by each
+         * multiget_count call when counting columns.
+         * @param pageSize
+         * @return
+         */
+        public Builder<K, C> withPageSize(int pageSize) {
+            Preconditions.checkArgument(pageSize >= 1, "Page size must be >= 1");
+            this.pageSize = pageSize;
+            return this;
+        }
+
+        public Builder<K, C> withConcurrencyLevel(int concurrencyLevel) {
+            Preconditions.checkArgument(concurrencyLevel >= 1, "Concurrency level must be >= 1");
+            this.concurrencyLevel = concurrencyLevel;
+            return this;
+        }
+
+        public Builder<K, C> withTokenRange(String startToken, String endToken) {
+            this.startToken = startToken;
+            this.endToken   = endToken;
+            return this;
+        }
+
+        public Builder<K, C> withPartitioner(Partitioner partitioner) {
+            this.partitioner = partitioner;
+            return this;
+        }
+
+        public Builder<K, C> withDc(String dc) {
+            this.dc = dc;
+            return this;
+        }
+
+        public Builder<K, C> withRack(String rack) {
+            this.rack = rack;
+            return this;
+        }
+
+        public Builder<K, C> withConsistencyLevel(ConsistencyLevel consistencyLevel) {
+            this.consistencyLevel = consistencyLevel;
+            return this;
+        }
+
+        /**
+         * Also count the columns of every row using multiget_count
+         * @param countColumns
+         * @return
+         */
+        public Builder<K, C> withCountColumns(boolean countColumns) {
+            this.countColumns = countColumns;
+            return this;
+        }
+
+        /**
+         * Maximum number of columns counted per row by the multiget_count of a page of keys.
+         * Rows with at least this many columns are then counted separately, one page of
+         * columns at a time.
+         * @param columnPageSize
+         * @return
+         */
+        public Builder<K, C> withColumnPageSize(int columnPageSize) {
+            Preconditions.checkArgument(columnPageSize >= 1, "Column page size must be >= 1");
+            this.columnPageSize = columnPageSize;
+            return this;
+        }
+
+        /**
+         * When true rows are read with no columns at all which is the cheapest possible
+         * scan but will also count rows that only contain tombstones.  When false (the
+         * default) one column is read per row to exclude deleted rows.
+         * @param includeEmptyRows
+         * @return
+         */
+        public Builder<K, C> withIncludeEmptyRows(boolean includeEmptyRows) {
+            this.includeEmptyRows = includeEmptyRows;
+            return this;
+        }
+
+        /**
+         * Callback invoked with the counts so far at most once per interval while the scan
+         * is in progress and once when it completes.
+         * @param callback
+         * @param interval  Minimum interval between callbacks in milliseconds
+         * @return
+         */
+        public Builder<K, C> withProgressCallback(Callback<Counts> callback, long interval) {
+            this.progressCallback = callback;
+            this.progressInterval = interval;
+            return this;
+        }
+
+        public AllRowsCounter<K, C> build() {
+            return new AllRowsCounter<K, C>(this);
+        }
+    }
+
+    private final Builder<K, C>     config;
+    private final HyperLogLog       distinctKeys = new HyperLogLog();
+    private final AtomicLong        rowCount     = new AtomicLong();
+    private final AtomicLong        columnCount  = new AtomicLong();
+    private final AtomicLong        lastProgress = new AtomicLong();
+    private final ProgressCheckpointManager checkpoints;
+    private volatile AllRowsReader<K, C> reader;
+
+    private AllRowsCounter(Builder<K, C> builder) {
+        this.config      = builder;
+        this.checkpoints = new ProgressCheckpointManager(builder.partitioner, builder.startToken, builder.endToken);
+    }
+
+    @Override
+    public Counts call() throws Exception {
+        rowCount.set(0);
+        columnCount.set(0);
+        distinctKeys.reset();
+        checkpoints.reset();
+        lastProgress.set(System.currentTimeMillis());
+
+        AllRowsReader.Builder<K, C> builder = new AllRowsReader.Builder<K, C>(config.keyspace, config.columnFamily)
+                .withPageSize(config.pageSize)
+                .withPartitioner(config.partitioner)
+                .withCheckpointManager(checkpoints)
+                .withColumnRange(null, null, false, config.includeEmptyRows ? 0 : 1)
+                // Pages are counted as a whole so the last key must not be repeated
+                .withRepeatLastToken(false)
+                .withDc(config.dc)
+                .withRack(config.rack)
+                .withConsistencyLevel(config.consistencyLevel)
+                .forEachPage(new Function<Rows<K, C>, Boolean>() {
+                    @Override
+                    public Boolean apply(Rows<K, C> rows) {
+                        countPage(rows);
+                        return true;
+                    }
+                });
+        if (config.concurrencyLevel != null)
+            builder.withConcurrencyLevel(config.concurrencyLevel);
+        if (config.startToken != null)
+            builder.withTokenRange(config.startToken, config.endToken);
+
+        reader = builder.build();
+        boolean complete = reader.call();
+
+        Counts counts = getCounts(complete);
+        if (config.progressCallback != null)
+            config.progressCallback.handle(counts);
+        return counts;
+    }
+
+    /**
+     * Cancel the scan.  call() will return the partial counts.
+     */
+    public void cancel() {
+        AllRowsReader<K, C> reader = this.reader;
+        if (reader != null)
+            reader.cancel();
+    }
+
+    /**
+     * @return The counts so far.  May be called from any thread while the scan is running.
+     */
+    public Counts getCounts() {
+        return getCounts(false);
+    }
+
+    private Counts getCounts(boolean complete) {
+        return new Counts(
+                rowCount.get(),
+                config.countColumns ? columnCount.get() : -1,
+                distinctKeys.cardinality(),
+                complete ? 1.0 : checkpoints.getFractionScanned(),
+                complete);
+    }
+
+    private void countPage(Rows<K, C> rows) {
+        long count = 0;
+        for (Row<K, C> row : rows) {
+            if (!config.includeEmptyRows && (row.getColumns() == null || row.getColumns().isEmpty()))
+                continue;
+            distinctKeys.offer(row.getRawKey());
+            count++;
+        }
+
+        if (config.countColumns && count > 0) {
+            countColumns(rows);
+        }
+        rowCount.addAndGet(count);
+
+        if (config.progressCallback != null) {
+            long now = System.currentTimeMillis();
+            long last = lastProgress.get();
+            if (now - last >= config.progressInterval && lastProgress.compareAndSet(last, now))
+                config.progressCallback.handle(getCounts());
+        }
+    }
+
+    private void countColumns(Rows<K, C> rows) {
+        List<K> keys = Lists.newArrayListWithCapacity(rows.size());
+        for (Row<K, C> row : rows) {
+            if (!config.includeEmptyRows && (row.getColumns() == null || row.getColumns().isEmpty()))
+                continue;
+            keys.add(row.getKey());
+        }
+
+        try {
+            Map<K, Integer> counts = prepareQuery()
+                    .getKeySlice(keys)
+                    .withColumnRange(new RangeBuilder().setLimit(config.columnPageSize).build())
+                    .getColumnCounts()
+                    .execute().getResult();
+            long total = 0;
+            for (Map.Entry<K, Integer> entry : counts.entrySet()) {
+                if (entry.getValue() >= config.columnPageSize)
+                    total += countWideRow(entry.getKey());
+                else
+                    total += entry.getValue();
+            }
+            columnCount.addAndGet(total);
+        }
+        catch (Exception e) {
+            throw new RuntimeException("Failed to count columns", e);
+        }
+    }
+
+    /**
+     * Count the columns of a row that reached the multiget_count bound one page at a time
+     */
+    private long countWideRow(K key) throws ConnectionException {
+        RowQuery<K, C> query = prepareQuery()
+                .getKey(key)
+                .withColumnRange(new RangeBuilder().setLimit(config.columnPageSize).build())
+                .autoPaginate(true);
+
+        long total = 0;
+        ColumnList<C> columns;
+        while (!(columns = query.execute().getResult()).isEmpty()) {
+            total += columns.size();
+        }
+        return total;
+    }
+
+    private ColumnFamilyQuery<K, C> prepareQuery() {
+        ColumnFamilyQuery<K, C> query = config.keyspace.prepareQuery(config.columnFamily);
+        if (config.consistencyLevel != null)
+            query.setConsistencyLevel(config.consistencyLevel);
+        return query;
+    }
+
+    /**
+     * Checkpoint manager that keeps track of how much of the token range has been read so
+     * that the progress can be reported.  Progress is only tracked for partitioners with
+     * numeric tokens.
+     */
+    private static class ProgressCheckpointManager implements CheckpointManager {
+        private final ConcurrentMap<String, String> checkpoints = Maps.newConcurrentMap();
+        private final BigInteger ringSize;
+        private final BigInteger total;
+
+        ProgressCheckpointManager(Partitioner partitioner, String startToken, String endToken) {
+            BigInteger min = toBigInteger(partitioner.getMinToken());
+            BigInteger max = toBigInteger(partitioner.getMaxToken());
+            if (min == null || max == null) {
+                this.ringSize = null;
+                this.total    = null;
+                return;
+            }
+
+            this.ringSize = max.subtract(min).add(BigInteger.ONE);
+
+            BigInteger start = startToken == null ? null : toBigInteger(startToken);
+            BigInteger end   = endToken   == null ? null : toBigInteger(endToken);
+            if (start != null && end != null) {
+                BigInteger span = distance(start, end);
+                this.total = span.signum() == 0 ? ringSize : span;
+            }
+            else {
+                this.total = ringSize;
+            }
+        }
+
+        void reset() {
+            checkpoints.clear();
+        }
+
+        double getFractionScanned() {
+            if (total == null)
+                return -1;
+
+            BigInteger scanned = BigInteger.ZERO;
+            for (Map.Entry<String, String> entry : checkpoints.entrySet()) {
+                BigInteger start = toBigInteger(entry.getKey());
+                BigInteger current = toBigInteger(entry.getValue());
+                if (start != null && current != null)
+                    scanned = scanned.add(distance(start, current));
+            }
+            return Math.min(1.0, scanned.doubleValue() / total.doubleValue());
+        }
+
+        @Override
+        public void trackCheckpoint(String startToken, String checkpointToken) {
+            checkpoints.put(startToken, checkpointToken);
+        }
+
+        @Override
+        public String getCheckpoint(String startToken) {
+            return null;
+        }
+
+        @Override
+        public SortedMap<String, String> getCheckpoints() {
+            return ImmutableSortedMap.copyOf(checkpoints);
+        }
+
+        private BigInteger distance(BigInteger from, BigInteger to) {
+            return to.subtract(from).mod(ringSize);
+        }
+
+        private static BigInteger toBigInteger(String token) {
+            try {
+                return new BigInteger(token);
+            }
+            catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+}
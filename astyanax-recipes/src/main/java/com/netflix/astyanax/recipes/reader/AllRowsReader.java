@@ -16,6 +16,7 @@
 package com.netflix.astyanax.recipes.reader;
 
 import java.io.Flushable;
+import java.io.IOException;
 import java.math.BigInteger;
 import java.util.Collection;
 import java.util.List;
@@ -520,6 +521,27 @@ public class AllRowsReader<K, C> implements Callable<Boolean> {
      */
     @Override
     public Boolean call() throws Exception {
+        Boolean result;
+        try {
+            result = execute();
+        }
+        catch (Exception e) {
+            try {
+                abortRowFunction(e);
+            }
+            catch (IOException e2) {
+                // The read failure is the error that matters to the caller
+                LOG.warn("Failed to abort row function", e2);
+            }
+            throw e;
+        }
+        
+        if (!result)
+            abortRowFunction(error.get());
+        return result;
+    }
+    
+    private Boolean execute() throws Exception {
         error.set(null);
         
         List<Callable<Boolean>> subtasks = Lists.newArrayList();
@@ -605,6 +627,16 @@ public class AllRowsReader<K, C> implements Callable<Boolean> {
         return true;
     }
     
+    /**
+     * Let the row function release its resources without finalizing its output when
+     * not all rows were read
+     */
+    private void abortRowFunction(Exception cause) throws IOException {
+        if (this.rowFunction instanceof AbortableRowFunction) {
+            ((AbortableRowFunction)rowFunction).abort(cause);
+        }
+    }
+    
     /**
      * Submit all the callables to the executor by synchronize their execution so they all start
      * AFTER the have all been submitted.
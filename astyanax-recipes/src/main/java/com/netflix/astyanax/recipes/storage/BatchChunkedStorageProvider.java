@@ -0,0 +1,55 @@
+/*******************************************************************************
+ * Copyright 2011 Netflix
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.netflix.astyanax.recipes.storage;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * ChunkedStorageProvider that can read and write several consecutive chunks in a single 
+ * round trip.  ObjectWriter and ChunkedObjectInputStream group chunks into batches of 
+ * getChunksPerBatch() chunks, aligned to multiples of getChunksPerBatch(), when the
+ * provider implements this interface.
+ */
+public interface BatchChunkedStorageProvider extends ChunkedStorageProvider {
+    /**
+     * Write consecutive chunks in a single operation
+     * 
+     * @param objectName
+     * @param firstChunkId  Id of the first chunk
+     * @param chunks        Chunk data
+     * @param ttl
+     * @return bytes written
+     * @throws Exception
+     */
+    int writeChunks(String objectName, int firstChunkId, List<ByteBuffer> chunks, Integer ttl) throws Exception;
+
+    /**
+     * Read consecutive chunks in a single operation
+     * 
+     * @param objectName
+     * @param firstChunkId  Id of the first chunk
+     * @param count         Number of chunks to read
+     * @return Chunks in chunk id order
+     * @throws Exception
+     */
+    List<ByteBuffer> readChunks(String objectName, int firstChunkId, int count) throws Exception;
+
+    /**
+     * @return Preferred number of chunks per batch
+     */
+    int getChunksPerBatch();
+}
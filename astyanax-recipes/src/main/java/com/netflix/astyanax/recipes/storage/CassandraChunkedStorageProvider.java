@@ -16,16 +16,24 @@
 package com.netflix.astyanax.recipes.storage;
 
 import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.Map;
 
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.netflix.astyanax.ColumnListMutation;
 import com.netflix.astyanax.Keyspace;
 import com.netflix.astyanax.MutationBatch;
 import com.netflix.astyanax.connectionpool.exceptions.NotFoundException;
+import com.netflix.astyanax.model.Column;
 import com.netflix.astyanax.model.ColumnFamily;
 import com.netflix.astyanax.model.ColumnList;
 import com.netflix.astyanax.model.ConsistencyLevel;
+import com.netflix.astyanax.model.Row;
+import com.netflix.astyanax.model.Rows;
 import com.netflix.astyanax.retry.BoundedExponentialBackoff;
 import com.netflix.astyanax.retry.RetryPolicy;
 import com.netflix.astyanax.serializers.StringSerializer;
@@ -35,18 +43,26 @@ import com.netflix.astyanax.serializers.StringSerializer;
  * are written to different row keys with the row key name having the format
  * <chunknumber>$<objectname>
  * 
+ * With more than one chunk per row (see withChunksPerRow) chunk n is stored in the row of
+ * chunk number n / chunksPerRow in a column named DATA:n.  All chunks of a row are written 
+ * in a single mutation and consecutive chunks are read with a single multiget.  The number of
+ * chunks per row is stored with the object's metadata (see ObjectMetadata.getChunksPerRow) and
+ * reads and deletes use the stored value, so objects can be read no matter how the reading provider
+ * is configured.  Objects without a stored value have one chunk per row.
+ * 
  * @author elandau
  * 
  */
-public class CassandraChunkedStorageProvider implements ChunkedStorageProvider {
+public class CassandraChunkedStorageProvider implements BatchChunkedStorageProvider {
 
     private static final RetryPolicy DEFAULT_RETRY_POLICY = new BoundedExponentialBackoff(1000, 10000, 5);
     private static final ConsistencyLevel DEFAULT_CONSISTENCY_LEVEL = ConsistencyLevel.CL_QUORUM;
     private static final int DEFAULT_CHUNKSIZE = 0x4000;
     private static final String DEFAULT_ROW_KEY_FORMAT = "%s$%d";
+    private static final int DEFAULT_LAYOUT_CACHE_SIZE = 1000;
 
     public enum Columns {
-        DATA, OBJECTSIZE, CHUNKSIZE, CHUNKCOUNT, EXPIRES
+        DATA, OBJECTSIZE, CHUNKSIZE, CHUNKCOUNT, EXPIRES, CODEC, CHUNKSPERROW
     }
 
     private final ColumnFamily<String, String> cf;
@@ -56,6 +72,14 @@ public class CassandraChunkedStorageProvider implements ChunkedStorageProvider {
     private RetryPolicy retryPolicy = DEFAULT_RETRY_POLICY;
     private ConsistencyLevel consistencyLevel = DEFAULT_CONSISTENCY_LEVEL;
     private String rowKeyFormat = DEFAULT_ROW_KEY_FORMAT;
+    private int chunksPerRow = 1;
+    private Integer chunksPerBatch;
+
+    /**
+     * Stored number of chunks per row of objects recently read
+     */
+    private final Cache<String, Integer> layouts = CacheBuilder.newBuilder()
+            .maximumSize(DEFAULT_LAYOUT_CACHE_SIZE).build();
 
     public CassandraChunkedStorageProvider(Keyspace keyspace, String cfName) {
         this.keyspace = keyspace;
@@ -77,6 +101,30 @@ public class CassandraChunkedStorageProvider implements ChunkedStorageProvider {
         return this;
     }
 
+    /**
+     * Store several chunks per row.  Defaults to one chunk per row.  Only affects objects written
+     * by this provider since existing objects are read with their stored number of chunks per row.
+     * @param chunksPerRow
+     */
+    public CassandraChunkedStorageProvider withChunksPerRow(int chunksPerRow) {
+        Preconditions.checkArgument(chunksPerRow > 0, "chunksPerRow must be > 0");
+        this.chunksPerRow = chunksPerRow;
+        return this;
+    }
+
+    /**
+     * Number of chunks to write and read per round trip.  Defaults to the number of chunks
+     * per row so that each batch is sent to the replicas of a single row.  Larger batches
+     * span several rows, which saves round trips at the cost of the coordinator forwarding 
+     * the mutation to other replicas.
+     * @param chunksPerBatch
+     */
+    public CassandraChunkedStorageProvider withChunksPerBatch(int chunksPerBatch) {
+        Preconditions.checkArgument(chunksPerBatch > 0, "chunksPerBatch must be > 0");
+        this.chunksPerBatch = chunksPerBatch;
+        return this;
+    }
+
     private String getColumnName(Columns column) {
         if (names.containsKey(column))
             return names.get(column);
@@ -85,29 +133,111 @@ public class CassandraChunkedStorageProvider implements ChunkedStorageProvider {
 
     @Override
     public int writeChunk(String objectName, int chunkId, ByteBuffer data, Integer ttl) throws Exception {
-        MutationBatch m = keyspace.prepareMutationBatch().withRetryPolicy(retryPolicy);
+        return writeChunks(objectName, chunkId, Lists.newArrayList(data), ttl);
+    }
 
-        m.withRow(cf, getRowKey(objectName, chunkId)).putColumn(getColumnName(Columns.DATA), data, ttl)
-                .putColumn(getColumnName(Columns.CHUNKSIZE), data.limit(), ttl);
+    @Override
+    public int writeChunks(String objectName, int firstChunkId, List<ByteBuffer> chunks, Integer ttl) throws Exception {
+        MutationBatch m = keyspace.prepareMutationBatch().withRetryPolicy(retryPolicy);
 
-        if (chunkId == 0) {
-            m.withRow(cf, objectName).putColumn(getColumnName(Columns.CHUNKSIZE), data.limit(), ttl);
+        int bytesWritten = 0;
+        for (int i = 0; i < chunks.size(); i++) {
+            int chunkId = firstChunkId + i;
+            ByteBuffer data = chunks.get(i);
+            ColumnListMutation<String> row = m.withRow(cf, getRowKey(objectName, chunkId, chunksPerRow));
+            if (chunksPerRow == 1) {
+                row.putColumn(getColumnName(Columns.DATA), data, ttl)
+                   .putColumn(getColumnName(Columns.CHUNKSIZE), data.limit(), ttl);
+            }
+            else {
+                row.putColumn(getDataColumnName(chunkId, chunksPerRow), data, ttl);
+            }
+
+            if (chunkId == 0) {
+                m.withRow(cf, objectName).putColumn(getColumnName(Columns.CHUNKSIZE), data.limit(), ttl);
+            }
+            bytesWritten += data.limit();
         }
 
         m.execute();
 
-        return data.limit();
+        return bytesWritten;
     }
 
     @Override
     public ByteBuffer readChunk(String objectName, int chunkId) throws Exception {
+        int objectChunksPerRow = getChunksPerRow(objectName);
+        if (objectChunksPerRow > 1)
+            return readChunks(objectName, chunkId, 1).get(0);
+
         return keyspace.prepareQuery(cf).setConsistencyLevel(ConsistencyLevel.CL_ONE).withRetryPolicy(retryPolicy)
-                .getKey(getRowKey(objectName, chunkId)).getColumn(getColumnName(Columns.DATA)).execute().getResult()
+                .getKey(getRowKey(objectName, chunkId, 1)).getColumn(getColumnName(Columns.DATA)).execute().getResult()
                 .getByteBufferValue();
     }
 
-    private String getRowKey(String objectName, int chunkId) {
-        return new String(rowKeyFormat).replace("%s", objectName).replace("%d", Integer.toString(chunkId));
+    @Override
+    public List<ByteBuffer> readChunks(String objectName, int firstChunkId, int count) throws Exception {
+        int objectChunksPerRow = getChunksPerRow(objectName);
+        List<String> rowKeys = Lists.newArrayList();
+        List<String> columnNames = Lists.newArrayList();
+        for (int chunkId = firstChunkId; chunkId < firstChunkId + count; chunkId++) {
+            String rowKey = getRowKey(objectName, chunkId, objectChunksPerRow);
+            if (!rowKeys.contains(rowKey))
+                rowKeys.add(rowKey);
+            columnNames.add(getDataColumnName(chunkId, objectChunksPerRow));
+        }
+
+        Rows<String, String> rows = keyspace.prepareQuery(cf).setConsistencyLevel(ConsistencyLevel.CL_ONE)
+                .withRetryPolicy(retryPolicy).getKeySlice(rowKeys).withColumnSlice(columnNames).execute().getResult();
+
+        List<ByteBuffer> chunks = Lists.newArrayListWithCapacity(count);
+        for (int chunkId = firstChunkId; chunkId < firstChunkId + count; chunkId++) {
+            Row<String, String> row = rows.getRow(getRowKey(objectName, chunkId, objectChunksPerRow));
+            Column<String> column = (row == null) ? null : row.getColumns().getColumnByName(getDataColumnName(chunkId, objectChunksPerRow));
+            if (column == null)
+                throw new NotFoundException("Chunk " + chunkId + " of object " + objectName + " not found");
+            chunks.add(column.getByteBufferValue());
+        }
+        return chunks;
+    }
+
+    @Override
+    public int getChunksPerBatch() {
+        return chunksPerBatch != null ? chunksPerBatch : chunksPerRow;
+    }
+
+    private String getRowKey(String objectName, int chunkId, int objectChunksPerRow) {
+        return new String(rowKeyFormat).replace("%s", objectName).replace("%d", Integer.toString(chunkId / objectChunksPerRow));
+    }
+
+    private String getDataColumnName(int chunkId, int objectChunksPerRow) {
+        if (objectChunksPerRow == 1)
+            return getColumnName(Columns.DATA);
+        return getColumnName(Columns.DATA) + ":" + chunkId;
+    }
+
+    /**
+     * @param objectName
+     * @return Stored number of chunks per row of the object, or 1 if the object has no stored
+     *         value such as while it is being written
+     * @throws Exception
+     */
+    private int getChunksPerRow(String objectName) throws Exception {
+        Integer objectChunksPerRow = layouts.getIfPresent(objectName);
+        if (objectChunksPerRow != null)
+            return objectChunksPerRow;
+
+        Column<String> column = keyspace.prepareQuery(cf).setConsistencyLevel(ConsistencyLevel.CL_ONE)
+                .withRetryPolicy(retryPolicy).getKey(objectName).withColumnSlice(getColumnName(Columns.CHUNKSPERROW))
+                .execute().getResult().getColumnByName(getColumnName(Columns.CHUNKSPERROW));
+        if (column == null)
+            return 1;
+        return cacheChunksPerRow(objectName, column.getIntegerValue());
+    }
+
+    private int cacheChunksPerRow(String objectName, int objectChunksPerRow) {
+        layouts.put(objectName, objectChunksPerRow);
+        return objectChunksPerRow;
     }
 
     public CassandraChunkedStorageProvider setConsistencyLevel(ConsistencyLevel consistencyLevel) {
@@ -130,7 +260,13 @@ public class CassandraChunkedStorageProvider implements ChunkedStorageProvider {
             row.putColumn(getColumnName(Columns.CHUNKCOUNT), attr.getChunkCount(), attr.getTtl());
         if (attr.getObjectSize() != null)
             row.putColumn(getColumnName(Columns.OBJECTSIZE), attr.getObjectSize(), attr.getTtl());
+        if (attr.getChunkCodec() != null)
+            row.putColumn(getColumnName(Columns.CODEC), attr.getChunkCodec().name(), attr.getTtl());
+        int objectChunksPerRow = attr.getChunksPerRow() != null ? attr.getChunksPerRow() : chunksPerRow;
+        row.putColumn(getColumnName(Columns.CHUNKSPERROW), objectChunksPerRow, attr.getTtl());
         m.execute();
+
+        cacheChunksPerRow(objectName, objectChunksPerRow);
     }
 
     @Override
@@ -141,28 +277,43 @@ public class CassandraChunkedStorageProvider implements ChunkedStorageProvider {
             throw new NotFoundException(objectName);
         }
 
+        String codec = columns.getStringValue(getColumnName(Columns.CODEC), null);
+        Integer objectChunksPerRow = columns.getIntegerValue(getColumnName(Columns.CHUNKSPERROW), null);
+        cacheChunksPerRow(objectName, objectChunksPerRow != null ? objectChunksPerRow : 1);
+
         return new ObjectMetadata().setObjectSize(columns.getLongValue(getColumnName(Columns.OBJECTSIZE), null))
                 .setChunkSize(columns.getIntegerValue(getColumnName(Columns.CHUNKSIZE), null))
-                .setChunkCount(columns.getIntegerValue(getColumnName(Columns.CHUNKCOUNT), null));
+                .setChunkCount(columns.getIntegerValue(getColumnName(Columns.CHUNKCOUNT), null))
+                .setChunkCodec(codec == null ? null : ChunkCodec.valueOf(codec))
+                .setChunksPerRow(objectChunksPerRow);
     }
 
     @Override
     public void deleteObject(String objectName, Integer chunkCount) throws Exception, NotFoundException {
+        int objectChunksPerRow;
         if (chunkCount == null) {
             ObjectMetadata attr = readMetadata(objectName);
             if (attr.getChunkCount() == null)
                 throw new NotFoundException("Object not found :" + objectName);
             chunkCount = attr.getChunkCount();
+            objectChunksPerRow = attr.getChunksPerRow() != null ? attr.getChunksPerRow() : 1;
+        }
+        else {
+            // Without a stored value, such as when a failed write is cleaned up, one row per chunk
+            // is deleted which covers the rows of any number of chunks per row
+            objectChunksPerRow = getChunksPerRow(objectName);
         }
 
         MutationBatch m = keyspace.prepareMutationBatch().withRetryPolicy(retryPolicy);
 
-        for (int i = 0; i < chunkCount; i++) {
-            m.withRow(cf, getRowKey(objectName, i)).delete();
+        for (int i = 0; i < chunkCount; i += objectChunksPerRow) {
+            m.withRow(cf, getRowKey(objectName, i, objectChunksPerRow)).delete();
         }
         m.withRow(cf, objectName).delete();
 
         m.execute();
+
+        layouts.invalidate(objectName);
     }
 
     @Override
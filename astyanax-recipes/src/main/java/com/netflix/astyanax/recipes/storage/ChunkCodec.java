@@ -0,0 +1,257 @@
+/*******************************************************************************
+ * Copyright 2011 Netflix
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.netflix.astyanax.recipes.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Decompressor;
+import net.jpountz.lz4.LZ4Factory;
+
+import org.xerial.snappy.Snappy;
+
+/**
+ * Per chunk compression and checksums.  The codec of an object is recorded in its 
+ * ObjectMetadata (see ObjectMetadata.getChunkCodec()) and chunks of objects without a codec 
+ * are stored as is.
+ * 
+ * An encoded chunk has a 9 byte header followed by the chunk data
+ *   1 byte  - 1 if the data is compressed, 0 if it is stored as is
+ *   4 bytes - CRC32C of the uncompressed data
+ *   4 bytes - Length of the uncompressed data
+ *   
+ * Chunks that don't compress to less than MAX_COMPRESSION_RATIO of their size are stored
+ * uncompressed so that incompressible data isn't decompressed on every read.  NONE only adds 
+ * the checksum.
+ */
+public enum ChunkCodec {
+    NONE {
+        @Override
+        protected byte[] compress(byte[] data, int offset, int length) {
+            return null;
+        }
+
+        @Override
+        protected void decompress(byte[] data, int offset, int length, byte[] dest) throws IOException {
+            throw new IOException("Chunk is not compressed");
+        }
+    },
+
+    SNAPPY {
+        @Override
+        protected byte[] compress(byte[] data, int offset, int length) throws IOException {
+            byte[] compressed = new byte[Snappy.maxCompressedLength(length)];
+            int size = Snappy.compress(data, offset, length, compressed, 0);
+            return trim(compressed, size);
+        }
+
+        @Override
+        protected void decompress(byte[] data, int offset, int length, byte[] dest) throws IOException {
+            Snappy.uncompress(data, offset, length, dest, 0);
+        }
+    },
+
+    LZ4 {
+        @Override
+        protected byte[] compress(byte[] data, int offset, int length) {
+            LZ4Compressor compressor = LZ4Factory.fastestJavaInstance().fastCompressor();
+            byte[] compressed = new byte[compressor.maxCompressedLength(length)];
+            int size = compressor.compress(data, offset, length, compressed, 0);
+            return trim(compressed, size);
+        }
+
+        @Override
+        protected void decompress(byte[] data, int offset, int length, byte[] dest) {
+            LZ4Decompressor decompressor = LZ4Factory.fastestJavaInstance().decompressor();
+            decompressor.decompress(data, offset, dest, 0, dest.length);
+        }
+    },
+
+    DEFLATE {
+        @Override
+        protected byte[] compress(byte[] data, int offset, int length) {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                deflater.setInput(data, offset, length);
+                deflater.finish();
+                byte[] compressed = new byte[length + length / 100 + 64];
+                int size = 0;
+                while (!deflater.finished() && size < compressed.length) {
+                    size += deflater.deflate(compressed, size, compressed.length - size);
+                }
+                return deflater.finished() ? trim(compressed, size) : null;
+            }
+            finally {
+                deflater.end();
+            }
+        }
+
+        @Override
+        protected void decompress(byte[] data, int offset, int length, byte[] dest) throws IOException {
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(data, offset, length);
+                int size = 0;
+                while (size < dest.length && !inflater.finished()) {
+                    int n = inflater.inflate(dest, size, dest.length - size);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                        break;
+                    size += n;
+                }
+                if (size != dest.length)
+                    throw new IOException("Truncated chunk");
+            }
+            catch (DataFormatException e) {
+                throw new IOException("Corrupt chunk", e);
+            }
+            finally {
+                inflater.end();
+            }
+        }
+    };
+
+    public static final int    HEADER_SIZE = 9;
+    public static final int    MAX_CHUNK_LENGTH = 64 * 1024 * 1024;
+    public static final double MAX_COMPRESSION_RATIO = 0.9;
+
+    private static final byte FLAG_RAW = 0;
+    private static final byte FLAG_COMPRESSED = 1;
+
+    /**
+     * @return Compressed data or null if the data could not be compressed
+     */
+    protected abstract byte[] compress(byte[] data, int offset, int length) throws IOException;
+
+    /**
+     * Decompress data into dest, whose length is the length of the uncompressed data
+     */
+    protected abstract void decompress(byte[] data, int offset, int length, byte[] dest) throws IOException;
+
+    private static byte[] trim(byte[] data, int size) {
+        byte[] result = new byte[size];
+        System.arraycopy(data, 0, result, 0, size);
+        return result;
+    }
+
+    /**
+     * Compress a chunk and add the header
+     * @param chunk
+     * @return Encoded chunk
+     * @throws IOException
+     */
+    public ByteBuffer encode(ByteBuffer chunk) throws IOException {
+        byte[] data;
+        int offset;
+        int length = chunk.remaining();
+        if (chunk.hasArray()) {
+            data = chunk.array();
+            offset = chunk.arrayOffset() + chunk.position();
+        }
+        else {
+            data = new byte[length];
+            offset = 0;
+            chunk.duplicate().get(data);
+        }
+
+        byte[] compressed = compress(data, offset, length);
+        boolean useCompressed = compressed != null && compressed.length < length * MAX_COMPRESSION_RATIO;
+
+        ByteBuffer encoded = ByteBuffer.allocate(HEADER_SIZE + (useCompressed ? compressed.length : length));
+        encoded.put(useCompressed ? FLAG_COMPRESSED : FLAG_RAW);
+        encoded.putInt(Crc32c.checksum(data, offset, length));
+        encoded.putInt(length);
+        if (useCompressed)
+            encoded.put(compressed);
+        else
+            encoded.put(data, offset, length);
+        encoded.flip();
+        return encoded;
+    }
+
+    /**
+     * Decompress an encoded chunk of at most MAX_CHUNK_LENGTH bytes and verify its checksum
+     * @param encoded
+     * @return Chunk data
+     * @throws IOException If the chunk is corrupt
+     */
+    public ByteBuffer decode(ByteBuffer encoded) throws IOException {
+        return decode(encoded, MAX_CHUNK_LENGTH);
+    }
+
+    /**
+     * Decompress an encoded chunk and verify its checksum.  The length in the header is 
+     * validated before anything is allocated for the chunk.
+     * @param encoded
+     * @param maxLength Maximum length of the chunk, usually the chunk size of the object
+     * @return Chunk data
+     * @throws IOException If the chunk is corrupt or longer than maxLength
+     */
+    public ByteBuffer decode(ByteBuffer encoded, int maxLength) throws IOException {
+        ByteBuffer in = encoded.duplicate();
+        if (in.remaining() < HEADER_SIZE)
+            throw new IOException("Chunk too short");
+
+        byte flag = in.get();
+        int checksum = in.getInt();
+        int length = in.getInt();
+        if (length < 0 || length > maxLength)
+            throw new IOException("Invalid chunk length " + length + " (max " + maxLength + ")");
+
+        byte[] data;
+        byte[] src;
+        int offset;
+        if (in.hasArray()) {
+            src = in.array();
+            offset = in.arrayOffset() + in.position();
+        }
+        else {
+            src = new byte[in.remaining()];
+            offset = 0;
+            in.duplicate().get(src);
+        }
+
+        if (flag == FLAG_COMPRESSED) {
+            data = new byte[length];
+            try {
+                decompress(src, offset, in.remaining(), data);
+            }
+            catch (IOException e) {
+                throw e;
+            }
+            catch (Exception e) {
+                throw new IOException("Corrupt chunk", e);
+            }
+        }
+        else if (flag == FLAG_RAW) {
+            if (in.remaining() != length)
+                throw new IOException("Chunk length " + in.remaining() + " does not match header " + length);
+            if (Crc32c.checksum(src, offset, length) != checksum)
+                throw new IOException("Chunk checksum mismatch");
+            return ByteBuffer.wrap(src, offset, length).slice();
+        }
+        else {
+            throw new IOException("Unknown chunk flag " + flag);
+        }
+
+        if (Crc32c.checksum(data, 0, length) != checksum)
+            throw new IOException("Chunk checksum mismatch");
+        return ByteBuffer.wrap(data);
+    }
+}
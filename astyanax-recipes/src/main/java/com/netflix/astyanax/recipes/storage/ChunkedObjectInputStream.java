@@ -0,0 +1,330 @@
+/*******************************************************************************
+ * Copyright 2011 Netflix
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.netflix.astyanax.recipes.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.netflix.astyanax.connectionpool.exceptions.NotFoundException;
+import com.netflix.astyanax.retry.RetryPolicy;
+import com.netflix.astyanax.retry.RunOnce;
+
+/**
+ * InputStream over an object, or a byte range of an object, in chunked storage.
+ * 
+ * Chunks are fetched on an executor, by default the executor shared by all chunked 
+ * storage readers and writers (see ChunkedStorage.getDefaultExecutor()), with a sliding 
+ * window of up to readAhead chunk fetches in flight.  Data is returned as soon as the
+ * next chunk in sequence arrives so that the first bytes are available after a single 
+ * chunk fetch.  For a range read only the chunks covering the range are fetched.
+ * 
+ * If the provider is a BatchChunkedStorageProvider each fetch reads a batch of up to 
+ * getChunksPerBatch() consecutive chunks and readAhead is the number of batches in flight.
+ * 
+ * Chunks of objects written with a ChunkCodec are decompressed and their checksums verified
+ * in the fetching threads.  A checksum mismatch fails the read with an IOException.
+ */
+public class ChunkedObjectInputStream extends InputStream {
+    private static final Logger LOG = LoggerFactory.getLogger(ChunkedObjectInputStream.class);
+
+    private static final int DEFAULT_READ_AHEAD = 4;
+    private static final int MAX_WAIT_TIME_TO_FINISH = 60;
+
+    private final ChunkedStorageProvider provider;
+    private final String objectName;
+
+    private ExecutorService executor;
+    private int readAhead = DEFAULT_READ_AHEAD;
+    private int maxWaitTimeInSeconds = MAX_WAIT_TIME_TO_FINISH;
+    private RetryPolicy retryPolicy = new RunOnce();
+    private ObjectReadCallback callback = new NoOpObjectReadCallback();
+    private long offset = 0;
+    private Long length;
+
+    private ObjectMetadata metadata;
+    private final LinkedList<Future<List<ByteBuffer>>> pending = new LinkedList<Future<List<ByteBuffer>>>();
+    private final LinkedList<ByteBuffer> fetched = new LinkedList<ByteBuffer>();
+    private ByteBuffer current;
+    private int nextChunk;
+    private int lastChunk;
+    private long remaining;
+    private boolean closed = false;
+
+    public ChunkedObjectInputStream(ChunkedStorageProvider provider, String objectName) {
+        this.provider = provider;
+        this.objectName = objectName;
+    }
+
+    /**
+     * Only read the specified byte range of the object
+     * @param offset
+     * @param length
+     */
+    public ChunkedObjectInputStream withRange(long offset, long length) {
+        Preconditions.checkArgument(offset >= 0 && length >= 0, "Invalid range");
+        this.offset = offset;
+        this.length = length;
+        return this;
+    }
+
+    public ChunkedObjectInputStream withExecutor(ExecutorService executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Maximum number of chunk fetches in flight
+     * @param readAhead
+     */
+    public ChunkedObjectInputStream withReadAhead(int readAhead) {
+        Preconditions.checkArgument(readAhead > 0, "readAhead must be > 0");
+        this.readAhead = readAhead;
+        return this;
+    }
+
+    public ChunkedObjectInputStream withRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+        return this;
+    }
+
+    /**
+     * Maximum time to wait for a single chunk to be fetched
+     * @param maxWaitTimeInSeconds
+     */
+    public ChunkedObjectInputStream withMaxWaitTime(int maxWaitTimeInSeconds) {
+        this.maxWaitTimeInSeconds = maxWaitTimeInSeconds;
+        return this;
+    }
+
+    public ChunkedObjectInputStream withCallback(ObjectReadCallback callback) {
+        this.callback = callback;
+        return this;
+    }
+
+    /**
+     * Read the object's metadata if it wasn't read yet.  The object must be complete before
+     * it can be read.  If it isn't the metadata read is retried using the retry policy.
+     * @return Metadata of the object
+     * @throws Exception
+     */
+    public ObjectMetadata getMetadata() throws Exception {
+        if (metadata != null)
+            return metadata;
+
+        ObjectMetadata attributes;
+        RetryPolicy retry = retryPolicy.duplicate();
+        do {
+            try {
+                attributes = provider.readMetadata(objectName);
+                if (attributes.isValidForRead())
+                    break;
+                if (!retry.allowRetry())
+                    throw new NotFoundException("File doesn't exists or isn't ready to be read: " + objectName);
+            }
+            catch (Exception e) {
+                LOG.warn(e.getMessage());
+                if (!retry.allowRetry())
+                    throw e;
+            }
+        } while (true);
+
+        if (length == null) {
+            length = Math.max(0, attributes.getObjectSize() - offset);
+        }
+        else if (offset + length > attributes.getObjectSize()) {
+            throw new IllegalArgumentException("Range " + offset + "+" + length + " exceeds size (" 
+                    + attributes.getObjectSize() + ") of object " + objectName);
+        }
+
+        if (executor == null)
+            executor = ChunkedStorage.getDefaultExecutor();
+
+        // Chunks covering the range
+        int chunkSize = attributes.getChunkSize();
+        nextChunk = (int) (offset / chunkSize);
+        lastChunk = length == 0 ? nextChunk - 1 : (int) ((offset + length - 1) / chunkSize);
+        remaining = length;
+        metadata = attributes;
+        return metadata;
+    }
+
+    /**
+     * Keep the window of chunk fetches full
+     */
+    private void fillWindow() {
+        final BatchChunkedStorageProvider batchProvider = (provider instanceof BatchChunkedStorageProvider) 
+                ? (BatchChunkedStorageProvider) provider : null;
+        final int chunksPerBatch = (batchProvider != null) ? Math.max(1, batchProvider.getChunksPerBatch()) : 1;
+        final ChunkCodec chunkCodec = metadata.getChunkCodec();
+        final int maxChunkLength = (metadata.getChunkSize() != null) ? metadata.getChunkSize() : ChunkCodec.MAX_CHUNK_LENGTH;
+
+        while (pending.size() < readAhead && nextChunk <= lastChunk) {
+            // Batches are aligned to multiples of the batch size
+            final int firstChunkId = nextChunk;
+            final int count = Math.min(chunksPerBatch - firstChunkId % chunksPerBatch, lastChunk - firstChunkId + 1);
+            nextChunk += count;
+
+            pending.add(executor.submit(new Callable<List<ByteBuffer>>() {
+                @Override
+                public List<ByteBuffer> call() throws Exception {
+                    RetryPolicy retry = retryPolicy.duplicate();
+                    while (true) {
+                        try {
+                            List<ByteBuffer> chunks = (count > 1)
+                                    ? batchProvider.readChunks(objectName, firstChunkId, count)
+                                    : Collections.singletonList(provider.readChunk(objectName, firstChunkId));
+                            if (chunkCodec != null) {
+                                List<ByteBuffer> decoded = Lists.newArrayListWithCapacity(chunks.size());
+                                for (ByteBuffer chunk : chunks) {
+                                    decoded.add(chunkCodec.decode(chunk, maxChunkLength));
+                                }
+                                chunks = decoded;
+                            }
+                            for (int i = 0; i < chunks.size(); i++) {
+                                callback.onChunk(firstChunkId + i, chunks.get(i));
+                            }
+                            return chunks;
+                        }
+                        catch (Exception e) {
+                            callback.onChunkException(firstChunkId, e);
+                            if (!retry.allowRetry())
+                                throw e;
+                        }
+                    }
+                }
+            }));
+        }
+    }
+
+    /**
+     * @return Next chunk with position and limit set to the bytes within the range or null
+     *          if the end of the range was reached
+     * @throws IOException
+     */
+    private ByteBuffer nextChunk() throws IOException {
+        boolean first = (current == null);
+        if (fetched.isEmpty()) {
+            fillWindow();
+            Future<List<ByteBuffer>> future = pending.poll();
+            if (future == null) {
+                if (remaining > 0)
+                    throw new IOException("Bytes read (" + (length - remaining) + ") does not match requested length (" 
+                            + length + ") for object " + objectName);
+                return null;
+            }
+            fillWindow();
+            fetched.addAll(getChunks(future));
+        }
+
+        ByteBuffer chunk = fetched.poll().duplicate();
+        if (first) {
+            int skip = (int) (offset % metadata.getChunkSize());
+            if (skip > chunk.remaining())
+                throw new IOException("Chunk is shorter than expected for object " + objectName);
+            chunk.position(chunk.position() + skip);
+        }
+        if (chunk.remaining() > remaining)
+            chunk.limit(chunk.position() + (int) remaining);
+        remaining -= chunk.remaining();
+        return chunk;
+    }
+
+    private List<ByteBuffer> getChunks(Future<List<ByteBuffer>> future) throws IOException {
+        try {
+            return future.get(maxWaitTimeInSeconds, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted reading object: " + objectName);
+        }
+        catch (TimeoutException e) {
+            throw new IOException("Took too long to fetch object: " + objectName, e);
+        }
+        catch (ExecutionException e) {
+            throw new IOException("Error fetching chunk of object: " + objectName, e.getCause());
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int n = read(b, 0, 1);
+        return n < 0 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (closed)
+            throw new IOException("Stream closed");
+        if (len == 0)
+            return 0;
+
+        try {
+            getMetadata();
+        }
+        catch (IOException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new IOException("Error reading metadata for object: " + objectName, e);
+        }
+
+        while (current == null || !current.hasRemaining()) {
+            ByteBuffer chunk = nextChunk();
+            if (chunk == null)
+                return -1;
+            current = chunk;
+        }
+
+        int n = Math.min(len, current.remaining());
+        current.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return current == null ? 0 : current.remaining();
+    }
+
+    /**
+     * Cancel all outstanding chunk fetches
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Future<List<ByteBuffer>> future : pending) {
+            future.cancel(true);
+        }
+        pending.clear();
+        fetched.clear();
+    }
+}
@@ -17,8 +17,35 @@ package com.netflix.astyanax.recipes.storage;
 
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 public class ChunkedStorage {
+    /**
+     * Number of threads of the executor shared by all readers and writers that were not
+     * given their own executor.  May be overridden with the system property 
+     * astyanax.chunkedstorage.threads
+     */
+    public static final int DEFAULT_THREAD_COUNT = Integer.getInteger("astyanax.chunkedstorage.threads", 32);
+
+    private static ExecutorService defaultExecutor;
+
+    /**
+     * @return Executor on which chunks are read and written unless a reader or writer is
+     *          given its own executor
+     */
+    public static synchronized ExecutorService getDefaultExecutor() {
+        if (defaultExecutor == null) {
+            defaultExecutor = Executors.newFixedThreadPool(DEFAULT_THREAD_COUNT, 
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("ChunkedStorage-%d").build());
+        }
+        return defaultExecutor;
+    }
+
     public static ObjectWriter newWriter(ChunkedStorageProvider provider, String objectName, InputStream is) {
         return new ObjectWriter(provider, objectName, is);
     }
@@ -27,6 +54,18 @@ public class ChunkedStorage {
         return new ObjectReader(provider, objectName, os);
     }
 
+    public static ChunkedObjectInputStream newInputStream(ChunkedStorageProvider provider, String objectName) {
+        return new ChunkedObjectInputStream(provider, objectName);
+    }
+
+    public static ChunkedObjectInputStream newInputStream(ChunkedStorageProvider provider, String objectName, long offset, long length) {
+        return new ChunkedObjectInputStream(provider, objectName).withRange(offset, length);
+    }
+
+    public static ReadableByteChannel newChannel(ChunkedStorageProvider provider, String objectName, long offset, long length) {
+        return Channels.newChannel(newInputStream(provider, objectName, offset, length));
+    }
+
     public static ObjectDeleter newDeleter(ChunkedStorageProvider provider, String objectName) {
         return new ObjectDeleter(provider, objectName);
     }
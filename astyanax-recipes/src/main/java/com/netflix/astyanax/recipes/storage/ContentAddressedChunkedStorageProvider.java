@@ -0,0 +1,530 @@
+/*******************************************************************************
+ * Copyright 2011 Netflix
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.netflix.astyanax.recipes.storage;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
+import com.netflix.astyanax.ColumnListMutation;
+import com.netflix.astyanax.Keyspace;
+import com.netflix.astyanax.MutationBatch;
+import com.netflix.astyanax.connectionpool.exceptions.ConnectionException;
+import com.netflix.astyanax.connectionpool.exceptions.NotFoundException;
+import com.netflix.astyanax.model.Column;
+import com.netflix.astyanax.model.ColumnFamily;
+import com.netflix.astyanax.model.ColumnList;
+import com.netflix.astyanax.model.ConsistencyLevel;
+import com.netflix.astyanax.model.Row;
+import com.netflix.astyanax.model.Rows;
+import com.netflix.astyanax.query.RowQuery;
+import com.netflix.astyanax.recipes.reader.AllRowsReader;
+import com.netflix.astyanax.retry.BoundedExponentialBackoff;
+import com.netflix.astyanax.retry.RetryPolicy;
+import com.netflix.astyanax.serializers.StringSerializer;
+
+/**
+ * ChunkProvider that stores chunks by content so that identical chunks of different objects, or
+ * of the same object, are stored only once.
+ * 
+ * Each chunk is stored in a row keyed by the SHA-256 hash of its content with the row key format
+ * sha256$<hash>.  The chunk row has a reference column REF:<objectname>$<chunkid> for every chunk
+ * of every object that has this content.  Chunks are written in batches (see getChunksPerBatch).  
+ * Each batch is written with a single mutation holding the data and the references of all chunks of 
+ * the batch.  The data is written even if the chunk already exists, since the existing data may be 
+ * deleted concurrently, so identical chunks are stored once but are still sent with every object.
+ * 
+ * An object's row stores the usual metadata plus a manifest listing the hashes of its chunks in order, 
+ * which is returned by readMetadata() as ObjectMetadata.getChunkHashes().  The manifest is split into 
+ * MANIFEST:<page> columns of at most getManifestPageSize() hashes each, written and read a few pages 
+ * per call so that the manifest of a large object never has to fit in a single thrift frame.  The 
+ * MANIFESTSIZE column holding the number of hashes is written last, with the rest of the metadata, 
+ * and pages beyond it left by a previous version of the object are ignored.  Deleting an 
+ * object removes its references, then checks which chunks have no references left and deletes their 
+ * data with the timestamp of the data that was read by that check.  The deletion therefore only 
+ * removes the data that was found unreferenced, and data written concurrently by an object with the 
+ * same content supersedes it even if it reaches Cassandra after the check.  Cassandra offers no 
+ * conditional delete, so a concurrent write is only lost if its timestamp is not later than that of 
+ * the data it replaces, which requires the clocks of the writers to be skewed by more than the time 
+ * between the two writes.
+ * 
+ * Chunk data is shared between objects and is therefore written without a TTL.  TTLs only apply to 
+ * the object metadata and references, so the data of chunks whose references all expired is left 
+ * behind.  Call deleteUnreferencedChunks() periodically to remove it when writing objects with a TTL.
+ */
+public class ContentAddressedChunkedStorageProvider implements BatchChunkedStorageProvider {
+    private static final RetryPolicy DEFAULT_RETRY_POLICY = new BoundedExponentialBackoff(1000, 10000, 5);
+    private static final int DEFAULT_CHUNKSIZE = 0x4000;
+    private static final int DEFAULT_CHUNKS_PER_BATCH = 16;
+    private static final int DEFAULT_MANIFEST_CACHE_WEIGHT = 100000;
+    private static final int DEFAULT_MANIFEST_PAGE_SIZE = 1000;
+    private static final int MANIFEST_PAGES_PER_CALL = 16;
+    private static final String CHUNK_ROW_KEY_PREFIX = "sha256$";
+    private static final String MANIFEST_SEPARATOR = ",";
+
+    public enum Columns {
+        DATA, SIZE, REF, OBJECTSIZE, CHUNKSIZE, CHUNKCOUNT, MANIFEST, MANIFESTSIZE, CODEC
+    }
+
+    private final ColumnFamily<String, String> cf;
+    private final Keyspace keyspace;
+
+    private RetryPolicy retryPolicy = DEFAULT_RETRY_POLICY;
+    private ConsistencyLevel consistencyLevel = ConsistencyLevel.CL_QUORUM;
+    private int chunksPerBatch = DEFAULT_CHUNKS_PER_BATCH;
+    private int manifestPageSize = DEFAULT_MANIFEST_PAGE_SIZE;
+
+    /**
+     * Hashes of the chunks of objects that are being written, until the metadata is written
+     */
+    private final ConcurrentMap<String, ConcurrentMap<Integer, String>> pendingManifests = Maps.newConcurrentMap();
+
+    /**
+     * Manifests of objects recently read, weighed by their number of chunks
+     */
+    private final Cache<String, List<String>> manifests = CacheBuilder.newBuilder()
+            .maximumWeight(DEFAULT_MANIFEST_CACHE_WEIGHT)
+            .weigher(new Weigher<String, List<String>>() {
+                @Override
+                public int weigh(String objectName, List<String> manifest) {
+                    return Math.max(1, manifest.size());
+                }
+            })
+            .build();
+
+    public ContentAddressedChunkedStorageProvider(Keyspace keyspace, String cfName) {
+        this(keyspace, ColumnFamily.newColumnFamily(cfName, StringSerializer.get(), StringSerializer.get()));
+    }
+
+    public ContentAddressedChunkedStorageProvider(Keyspace keyspace, ColumnFamily<String, String> cf) {
+        this.keyspace = keyspace;
+        this.cf = cf;
+    }
+
+    public ContentAddressedChunkedStorageProvider withChunksPerBatch(int chunksPerBatch) {
+        Preconditions.checkArgument(chunksPerBatch > 0, "chunksPerBatch must be > 0");
+        this.chunksPerBatch = chunksPerBatch;
+        return this;
+    }
+
+    /**
+     * Maximum number of chunk hashes stored in each column of an object's manifest
+     * @param manifestPageSize
+     * @return
+     */
+    public ContentAddressedChunkedStorageProvider withManifestPageSize(int manifestPageSize) {
+        Preconditions.checkArgument(manifestPageSize > 0, "manifestPageSize must be > 0");
+        this.manifestPageSize = manifestPageSize;
+        return this;
+    }
+
+    public int getManifestPageSize() {
+        return manifestPageSize;
+    }
+
+    public ContentAddressedChunkedStorageProvider withRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+        return this;
+    }
+
+    public ContentAddressedChunkedStorageProvider setConsistencyLevel(ConsistencyLevel consistencyLevel) {
+        this.consistencyLevel = consistencyLevel;
+        return this;
+    }
+
+    public ConsistencyLevel getConsistencyLevel() {
+        return this.consistencyLevel;
+    }
+
+    /**
+     * @param data
+     * @return Content hash of a chunk
+     */
+    public static String getChunkHash(ByteBuffer data) {
+        if (!data.hasArray()) {
+            byte[] bytes = new byte[data.remaining()];
+            data.duplicate().get(bytes);
+            return Hashing.sha256().hashBytes(bytes).toString();
+        }
+        return Hashing.sha256().hashBytes(data.array(), data.arrayOffset() + data.position(), data.remaining()).toString();
+    }
+
+    private static String getChunkRowKey(String hash) {
+        return CHUNK_ROW_KEY_PREFIX + hash;
+    }
+
+    private static String getRefColumnName(String objectName, int chunkId) {
+        return getRefColumnPrefix() + objectName + "$" + chunkId;
+    }
+
+    /**
+     * Page numbers are zero padded so that pages sort in order
+     */
+    private static String getManifestColumnName(int page) {
+        return getManifestColumnPrefix() + String.format("%08d", page);
+    }
+
+    private static String getManifestColumnPrefix() {
+        return Columns.MANIFEST.name() + ":";
+    }
+
+    @Override
+    public int writeChunk(String objectName, int chunkId, ByteBuffer data, Integer ttl) throws Exception {
+        return writeChunks(objectName, chunkId, Collections.singletonList(data), ttl);
+    }
+
+    @Override
+    public int writeChunks(String objectName, int firstChunkId, List<ByteBuffer> chunks, Integer ttl) throws Exception {
+        List<String> hashes = Lists.newArrayListWithCapacity(chunks.size());
+        for (ByteBuffer chunk : chunks) {
+            hashes.add(getChunkHash(chunk));
+        }
+
+        MutationBatch m = keyspace.prepareMutationBatch().setConsistencyLevel(consistencyLevel).withRetryPolicy(retryPolicy);
+        Set<String> written = Sets.newHashSet();
+        int bytesWritten = 0;
+        for (int i = 0; i < chunks.size(); i++) {
+            String rowKey = getChunkRowKey(hashes.get(i));
+            ByteBuffer chunk = chunks.get(i);
+            ColumnListMutation<String> row = m.withRow(cf, rowKey);
+
+            if (written.add(rowKey)) {
+                row.putColumn(Columns.DATA.name(), chunk, null)
+                   .putColumn(Columns.SIZE.name(), chunk.remaining(), null);
+                bytesWritten += chunk.remaining();
+            }
+            row.putEmptyColumn(getRefColumnName(objectName, firstChunkId + i), ttl);
+        }
+        m.execute();
+
+        ConcurrentMap<Integer, String> manifest = pendingManifests.get(objectName);
+        if (manifest == null) {
+            ConcurrentMap<Integer, String> newManifest = Maps.newConcurrentMap();
+            manifest = pendingManifests.putIfAbsent(objectName, newManifest);
+            if (manifest == null)
+                manifest = newManifest;
+        }
+        for (int i = 0; i < hashes.size(); i++) {
+            manifest.put(firstChunkId + i, hashes.get(i));
+        }
+
+        return bytesWritten;
+    }
+
+    @Override
+    public ByteBuffer readChunk(String objectName, int chunkId) throws Exception {
+        return readChunks(objectName, chunkId, 1).get(0);
+    }
+
+    @Override
+    public List<ByteBuffer> readChunks(String objectName, int firstChunkId, int count) throws Exception {
+        List<String> manifest = getManifest(objectName);
+        if (firstChunkId + count > manifest.size())
+            throw new NotFoundException("Chunks " + firstChunkId + "-" + (firstChunkId + count - 1) + " of object " + objectName + " not found");
+
+        List<String> hashes = manifest.subList(firstChunkId, firstChunkId + count);
+        Set<String> rowKeys = Sets.newLinkedHashSet();
+        for (String hash : hashes) {
+            rowKeys.add(getChunkRowKey(hash));
+        }
+
+        Rows<String, String> rows = keyspace.prepareQuery(cf).setConsistencyLevel(ConsistencyLevel.CL_ONE)
+                .withRetryPolicy(retryPolicy).getKeySlice(rowKeys).withColumnSlice(Columns.DATA.name())
+                .execute().getResult();
+
+        List<ByteBuffer> chunks = Lists.newArrayListWithCapacity(count);
+        for (int i = 0; i < hashes.size(); i++) {
+            Row<String, String> row = rows.getRow(getChunkRowKey(hashes.get(i)));
+            Column<String> column = (row == null) ? null : row.getColumns().getColumnByName(Columns.DATA.name());
+            if (column == null)
+                throw new NotFoundException("Chunk " + (firstChunkId + i) + " of object " + objectName + " not found");
+            chunks.add(column.getByteBufferValue());
+        }
+        return chunks;
+    }
+
+    private List<String> getManifest(String objectName) throws Exception {
+        List<String> manifest = manifests.getIfPresent(objectName);
+        if (manifest == null) {
+            manifest = readMetadata(objectName).getChunkHashes();
+            if (manifest == null)
+                throw new NotFoundException("Object " + objectName + " has no manifest");
+        }
+        return manifest;
+    }
+
+    @Override
+    public void writeMetadata(String objectName, ObjectMetadata attr) throws Exception {
+        MutationBatch m = keyspace.prepareMutationBatch().setConsistencyLevel(consistencyLevel).withRetryPolicy(retryPolicy);
+
+        ColumnListMutation<String> row = m.withRow(cf, objectName);
+        if (attr.getChunkSize() != null)
+            row.putColumn(Columns.CHUNKSIZE.name(), attr.getChunkSize(), attr.getTtl());
+        if (attr.getChunkCount() != null) {
+            row.putColumn(Columns.CHUNKCOUNT.name(), attr.getChunkCount(), attr.getTtl());
+
+            // Complete the manifest from the hashes of the chunks that were written
+            if (attr.getChunkHashes() == null) {
+                Map<Integer, String> pending = pendingManifests.get(objectName);
+                List<String> hashes = Lists.newArrayListWithCapacity(attr.getChunkCount());
+                for (int i = 0; i < attr.getChunkCount(); i++) {
+                    String hash = (pending == null) ? null : pending.get(i);
+                    if (hash == null)
+                        throw new IllegalStateException("Chunk " + i + " of object " + objectName + " was not written");
+                    hashes.add(hash);
+                }
+                attr.setChunkHashes(hashes);
+            }
+        }
+        if (attr.getObjectSize() != null)
+            row.putColumn(Columns.OBJECTSIZE.name(), attr.getObjectSize(), attr.getTtl());
+        if (attr.getChunkHashes() != null) {
+            writeManifest(objectName, attr.getChunkHashes(), attr.getTtl());
+            row.putColumn(Columns.MANIFESTSIZE.name(), attr.getChunkHashes().size(), attr.getTtl());
+        }
+        if (attr.getChunkCodec() != null)
+            row.putColumn(Columns.CODEC.name(), attr.getChunkCodec().name(), attr.getTtl());
+        m.execute();
+
+        if (attr.getChunkHashes() != null) {
+            pendingManifests.remove(objectName);
+            manifests.invalidate(objectName);
+        }
+    }
+
+    /**
+     * Write the manifest pages of an object, MANIFEST_PAGES_PER_CALL pages per mutation
+     */
+    private void writeManifest(String objectName, List<String> hashes, Integer ttl) throws ConnectionException {
+        List<List<String>> pages = Lists.partition(hashes, manifestPageSize);
+        for (int first = 0; first < pages.size(); first += MANIFEST_PAGES_PER_CALL) {
+            MutationBatch m = keyspace.prepareMutationBatch().setConsistencyLevel(consistencyLevel).withRetryPolicy(retryPolicy);
+            ColumnListMutation<String> row = m.withRow(cf, objectName);
+            for (int page = first; page < Math.min(pages.size(), first + MANIFEST_PAGES_PER_CALL); page++) {
+                row.putColumn(getManifestColumnName(page), StringUtils.join(pages.get(page), MANIFEST_SEPARATOR), ttl);
+            }
+            m.execute();
+        }
+    }
+
+    /**
+     * Read the first manifestSize hashes of an object's manifest, MANIFEST_PAGES_PER_CALL pages per query
+     */
+    private List<String> readManifest(String objectName, int manifestSize) throws Exception {
+        List<String> hashes = Lists.newArrayListWithCapacity(manifestSize);
+        RowQuery<String, String> query = keyspace.prepareQuery(cf).setConsistencyLevel(consistencyLevel)
+                .withRetryPolicy(retryPolicy).getKey(objectName)
+                .withColumnRange(getManifestColumnPrefix(), Columns.MANIFEST.name() + ";", false, MANIFEST_PAGES_PER_CALL)
+                .autoPaginate(true);
+
+        ColumnList<String> pages;
+        while (hashes.size() < manifestSize && !(pages = query.execute().getResult()).isEmpty()) {
+            for (Column<String> page : pages) {
+                hashes.addAll(Arrays.asList(StringUtils.split(page.getStringValue(), MANIFEST_SEPARATOR)));
+            }
+        }
+        if (hashes.size() < manifestSize)
+            throw new NotFoundException("Manifest of object " + objectName + " is incomplete");
+        return Collections.unmodifiableList(Lists.newArrayList(hashes.subList(0, manifestSize)));
+    }
+
+    @Override
+    public ObjectMetadata readMetadata(String objectName) throws Exception, NotFoundException {
+        ColumnList<String> columns = keyspace.prepareQuery(cf).setConsistencyLevel(consistencyLevel)
+                .withRetryPolicy(retryPolicy).getKey(objectName)
+                .withColumnSlice(Columns.OBJECTSIZE.name(), Columns.CHUNKSIZE.name(), Columns.CHUNKCOUNT.name(), 
+                        Columns.MANIFESTSIZE.name(), Columns.CODEC.name())
+                .execute().getResult();
+
+        if (columns.isEmpty()) {
+            throw new NotFoundException(objectName);
+        }
+
+        ObjectMetadata attr = new ObjectMetadata()
+                .setObjectSize(columns.getLongValue(Columns.OBJECTSIZE.name(), null))
+                .setChunkSize(columns.getIntegerValue(Columns.CHUNKSIZE.name(), null))
+                .setChunkCount(columns.getIntegerValue(Columns.CHUNKCOUNT.name(), null));
+
+        String codec = columns.getStringValue(Columns.CODEC.name(), null);
+        if (codec != null)
+            attr.setChunkCodec(ChunkCodec.valueOf(codec));
+
+        Integer manifestSize = columns.getIntegerValue(Columns.MANIFESTSIZE.name(), null);
+        if (manifestSize != null) {
+            List<String> hashes = readManifest(objectName, manifestSize);
+            attr.setChunkHashes(hashes);
+            manifests.put(objectName, hashes);
+        }
+        return attr;
+    }
+
+    /**
+     * Remove the object's references to its chunks and delete the chunks that are no 
+     * longer referenced by any object
+     */
+    @Override
+    public void deleteObject(String objectName, Integer chunkCount) throws Exception, NotFoundException {
+        // Chunks of the object, by chunk id
+        Map<Integer, String> hashes = Maps.newTreeMap();
+        ConcurrentMap<Integer, String> pending = pendingManifests.remove(objectName);
+        if (pending != null)
+            hashes.putAll(pending);
+
+        try {
+            List<String> manifest = readMetadata(objectName).getChunkHashes();
+            if (manifest != null) {
+                for (int i = 0; i < manifest.size(); i++) {
+                    hashes.put(i, manifest.get(i));
+                }
+            }
+        }
+        catch (NotFoundException e) {
+            if (pending == null)
+                throw e;
+        }
+        manifests.invalidate(objectName);
+
+        // Remove the references
+        MutationBatch m = keyspace.prepareMutationBatch().setConsistencyLevel(consistencyLevel).withRetryPolicy(retryPolicy);
+        Set<String> rowKeys = Sets.newLinkedHashSet();
+        for (Map.Entry<Integer, String> entry : hashes.entrySet()) {
+            String rowKey = getChunkRowKey(entry.getValue());
+            rowKeys.add(rowKey);
+            m.withRow(cf, rowKey).deleteColumn(getRefColumnName(objectName, entry.getKey()));
+        }
+        m.execute();
+
+        // Delete the data of chunks that are no longer referenced
+        m = keyspace.prepareMutationBatch().setConsistencyLevel(consistencyLevel).withRetryPolicy(retryPolicy);
+        if (!rowKeys.isEmpty()) {
+            Rows<String, String> refs = keyspace.prepareQuery(cf).setConsistencyLevel(consistencyLevel)
+                    .withRetryPolicy(retryPolicy).getKeySlice(rowKeys)
+                    .withColumnRange(getRefColumnPrefix(), Columns.SIZE.name(), false, 1)
+                    .execute().getResult();
+            for (String rowKey : rowKeys) {
+                Row<String, String> row = refs.getRow(rowKey);
+                if (row != null)
+                    deleteUnreferencedData(m, row);
+            }
+        }
+        m.withRow(cf, objectName).delete();
+        m.execute();
+    }
+
+    /**
+     * Delete the data of all chunks that are no longer referenced by any object, such as chunks 
+     * of objects whose TTL expired.  Scans the entire column family.
+     * 
+     * @return Number of chunks deleted
+     * @throws Exception
+     */
+    public int deleteUnreferencedChunks() throws Exception {
+        final AtomicInteger deleted = new AtomicInteger();
+        final AtomicReference<Exception> error = new AtomicReference<Exception>();
+
+        // See deleteUnreferencedData for the column range
+        boolean complete = new AllRowsReader.Builder<String, String>(keyspace, cf)
+                .withColumnRange(getRefColumnPrefix(), Columns.SIZE.name(), false, 1)
+                .withConsistencyLevel(consistencyLevel)
+                .forEachPage(new Function<Rows<String, String>, Boolean>() {
+                    @Override
+                    public Boolean apply(Rows<String, String> rows) {
+                        MutationBatch m = keyspace.prepareMutationBatch().setConsistencyLevel(consistencyLevel)
+                                .withRetryPolicy(retryPolicy);
+                        int count = 0;
+                        for (Row<String, String> row : rows) {
+                            if (row.getKey().startsWith(CHUNK_ROW_KEY_PREFIX) && deleteUnreferencedData(m, row)) 
+                                count++;
+                        }
+                        if (count == 0)
+                            return true;
+                        try {
+                            m.execute();
+                            deleted.addAndGet(count);
+                            return true;
+                        }
+                        catch (ConnectionException e) {
+                            error.compareAndSet(null, e);
+                            return false;
+                        }
+                    }
+                })
+                .build()
+                .call();
+
+        if (error.get() != null)
+            throw error.get();
+        if (!complete)
+            throw new IllegalStateException("Scan for unreferenced chunks did not complete");
+        return deleted.get();
+    }
+
+    /**
+     * Delete the data of a chunk that has no references.  Columns of a chunk row sort as DATA, 
+     * REF:..., SIZE so the first column of the range REF: to SIZE is a reference if the chunk has 
+     * any and SIZE otherwise.  SIZE is written together with DATA so the data is deleted with the 
+     * timestamp of SIZE, which only deletes the data that was read and not data of a concurrent 
+     * write with a later timestamp.
+     * 
+     * @param row   Chunk row read with the column range REF: to SIZE and a limit of 1
+     * @return True if the data is deleted
+     */
+    private boolean deleteUnreferencedData(MutationBatch m, Row<String, String> row) {
+        if (row.getColumns().isEmpty())
+            return false;
+        
+        Column<String> first = row.getColumns().getColumnByIndex(0);
+        if (!first.getName().equals(Columns.SIZE.name()))
+            return false;
+        
+        m.withRow(cf, row.getKey())
+         .setTimestamp(first.getTimestamp())
+         .deleteColumn(Columns.DATA.name())
+         .deleteColumn(Columns.SIZE.name());
+        return true;
+    }
+
+    private static String getRefColumnPrefix() {
+        return Columns.REF.name() + ":";
+    }
+
+    @Override
+    public int getDefaultChunkSize() {
+        return DEFAULT_CHUNKSIZE;
+    }
+
+    @Override
+    public int getChunksPerBatch() {
+        return chunksPerBatch;
+    }
+}
@@ -15,6 +15,8 @@
  ******************************************************************************/
 package com.netflix.astyanax.recipes.storage;
 
+import java.util.List;
+
 public class ObjectMetadata {
     private Integer ttl;
     private Long objectSize;
@@ -22,6 +24,9 @@ public class ObjectMetadata {
     private Integer chunkSize;
     private String parentPath;
     private String attributes;
+    private List<String> chunkHashes;
+    private ChunkCodec chunkCodec;
+    private Integer chunksPerRow;
 
     public ObjectMetadata setTtl(Integer ttl) {
         this.ttl = ttl;
@@ -84,4 +89,46 @@ public class ObjectMetadata {
     public String getAttributes() {
         return this.attributes;
     }
+    
+    /**
+     * Content hashes of the object's chunks in chunk id order.  Only set for objects in
+     * content addressed storage.  See ContentAddressedChunkedStorageProvider.
+     * @param chunkHashes
+     */
+    public ObjectMetadata setChunkHashes(List<String> chunkHashes) {
+        this.chunkHashes = chunkHashes;
+        return this;
+    }
+    
+    public List<String> getChunkHashes() {
+        return this.chunkHashes;
+    }
+    
+    /**
+     * Codec with which the object's chunks were encoded or null if the chunks are 
+     * stored as is
+     * @param chunkCodec
+     */
+    public ObjectMetadata setChunkCodec(ChunkCodec chunkCodec) {
+        this.chunkCodec = chunkCodec;
+        return this;
+    }
+    
+    public ChunkCodec getChunkCodec() {
+        return this.chunkCodec;
+    }
+    
+    /**
+     * Number of chunks stored per row or null if the provider stores one chunk per row.  Set by 
+     * the provider when reading the metadata.  See CassandraChunkedStorageProvider.withChunksPerRow.
+     * @param chunksPerRow
+     */
+    public ObjectMetadata setChunksPerRow(Integer chunksPerRow) {
+        this.chunksPerRow = chunksPerRow;
+        return this;
+    }
+    
+    public Integer getChunksPerRow() {
+        return this.chunksPerRow;
+    }
 }
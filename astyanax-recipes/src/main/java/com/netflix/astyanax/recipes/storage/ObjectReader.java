@@ -16,33 +16,27 @@
 package com.netflix.astyanax.recipes.storage;
 
 import java.io.OutputStream;
-import java.nio.ByteBuffer;
-import java.util.Collections;
-import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.atomic.AtomicReference;
-import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Preconditions;
-import com.google.common.collect.Lists;
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
-import com.netflix.astyanax.connectionpool.exceptions.NotFoundException;
 import com.netflix.astyanax.retry.RetryPolicy;
 import com.netflix.astyanax.retry.RunOnce;
 
+/**
+ * Copy an object, or a byte range of an object, to an OutputStream.  Chunks are fetched
+ * with a sliding window of concurrencyLevel fetches on the shared chunked storage executor 
+ * (or the executor provided with withExecutor) and are written to the output stream in order 
+ * as soon as they arrive.  See ChunkedObjectInputStream.
+ */
 public class ObjectReader implements Callable<ObjectMetadata> {
     private static final Logger LOG = LoggerFactory.getLogger(ObjectReader.class);
 
     private static final int DEFAULT_CONCURRENCY_LEVEL = 4;
     private static final int MAX_WAIT_TIME_TO_FINISH = 60;
-    private static final int DEFAULT_BATCH_SIZE = 11;
 
     private final ChunkedStorageProvider provider;
     private final String objectName;
@@ -50,9 +44,11 @@ public class ObjectReader implements Callable<ObjectMetadata> {
 
     private int concurrencyLevel = DEFAULT_CONCURRENCY_LEVEL;
     private int maxWaitTimeInSeconds = MAX_WAIT_TIME_TO_FINISH;
-    private int batchSize = DEFAULT_BATCH_SIZE;
     private RetryPolicy retryPolicy;
     private ObjectReadCallback callback = new NoOpObjectReadCallback();
+    private ExecutorService executor;
+    private long offset = 0;
+    private Long length;
 
     public ObjectReader(ChunkedStorageProvider provider, String objectName, OutputStream os) {
         this.provider = provider;
@@ -61,11 +57,19 @@ public class ObjectReader implements Callable<ObjectMetadata> {
         this.retryPolicy = new RunOnce();
     }
 
+    /**
+     * @deprecated Chunks are no longer read in batches.  Use withConcurrencyLevel to control 
+     *             the number of chunk fetches in flight.
+     */
+    @Deprecated
     public ObjectReader withBatchSize(int size) {
-        this.batchSize = size;
         return this;
     }
 
+    /**
+     * Maximum number of chunk fetches in flight
+     * @param level
+     */
     public ObjectReader withConcurrencyLevel(int level) {
         this.concurrencyLevel = level;
         return this;
@@ -76,6 +80,10 @@ public class ObjectReader implements Callable<ObjectMetadata> {
         return this;
     }
 
+    /**
+     * Maximum time to wait for a single chunk to be fetched
+     * @param maxWaitTimeInSeconds
+     */
     public ObjectReader withMaxWaitTime(int maxWaitTimeInSeconds) {
         this.maxWaitTimeInSeconds = maxWaitTimeInSeconds;
         return this;
@@ -86,6 +94,26 @@ public class ObjectReader implements Callable<ObjectMetadata> {
         return this;
     }
 
+    /**
+     * Executor on which to fetch chunks instead of the shared chunked storage executor
+     * @param executor
+     */
+    public ObjectReader withExecutor(ExecutorService executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Only read the specified byte range of the object
+     * @param offset
+     * @param length
+     */
+    public ObjectReader withRange(long offset, long length) {
+        this.offset = offset;
+        this.length = length;
+        return this;
+    }
+
     @Override
     public ObjectMetadata call() throws Exception {
         LOG.info("Reading: " + objectName);
@@ -93,98 +121,27 @@ public class ObjectReader implements Callable<ObjectMetadata> {
         Preconditions.checkNotNull(objectName);
         Preconditions.checkNotNull(os);
 
+        ChunkedObjectInputStream is = new ChunkedObjectInputStream(provider, objectName)
+                .withReadAhead(concurrencyLevel)
+                .withRetryPolicy(retryPolicy)
+                .withMaxWaitTime(maxWaitTimeInSeconds)
+                .withCallback(callback)
+                .withExecutor(executor);
+        if (length != null)
+            is.withRange(offset, length);
+
         try {
-            // Try to get the file metadata first. The entire file must be
-            // available before it can be downloaded.
-            // If not available then we back off and retry using the provided
-            // retry policy.
-            ObjectMetadata attributes;
-            RetryPolicy retry = retryPolicy.duplicate();
-            do {
-                try {
-                    attributes = provider.readMetadata(objectName);
-                    if (attributes.isValidForRead())
-                        break;
-                    if (!retry.allowRetry())
-                        throw new NotFoundException("File doesn't exists or isn't ready to be read: " + objectName);
-                }
-                catch (Exception e) {
-                    LOG.warn(e.getMessage());
-                    if (!retry.allowRetry())
-                        throw e;
-                }
-            } while (true);
-
-            final AtomicReference<Exception> exception = new AtomicReference<Exception>();
-            final AtomicLong totalBytesRead = new AtomicLong();
-
-            // Iterate sequentially building up the batches. Once a complete
-            // batch of ids is ready
-            // randomize fetching the chunks and then download them in parallel
-            List<Integer> idsToRead = Lists.newArrayList();
-            for (int block = 0; block < attributes.getChunkCount(); block++) {
-                idsToRead.add(block);
-
-                // Got a batch, or reached the end
-                if (idsToRead.size() == batchSize || block == attributes.getChunkCount() - 1) {
-
-                    // Read blocks in random order
-                    final int firstBlockId = idsToRead.get(0);
-                    Collections.shuffle(idsToRead);
-                    final AtomicReferenceArray<ByteBuffer> chunks = new AtomicReferenceArray<ByteBuffer>(
-                            idsToRead.size());
-                    ExecutorService executor = Executors.newFixedThreadPool(
-                            concurrencyLevel,
-                            new ThreadFactoryBuilder().setDaemon(true)
-                                    .setNameFormat("ChunkReader-" + objectName + "-%d").build());
-                    try {
-                        for (final int chunkId : idsToRead) {
-                            executor.submit(new Runnable() {
-                                @Override
-                                public void run() {
-                                    // Do the fetch
-                                    RetryPolicy retry = retryPolicy.duplicate();
-                                    while (exception.get() == null) {
-                                        try {
-                                            ByteBuffer chunk = provider.readChunk(objectName, chunkId);
-                                            totalBytesRead.addAndGet(chunk.limit());
-                                            chunks.set(chunkId - firstBlockId, chunk);
-                                            callback.onChunk(chunkId, chunk);
-                                            break;
-                                        }
-                                        catch (Exception e) {
-                                            callback.onChunkException(chunkId, e);
-                                            if (retry.allowRetry())
-                                                continue;
-                                            exception.compareAndSet(null, e);
-                                        }
-                                    }
-                                }
-                            });
-                        }
-                    }
-                    finally {
-                        executor.shutdown();
-                        if (!executor.awaitTermination(maxWaitTimeInSeconds, TimeUnit.SECONDS)) {
-                            throw new Exception("Took too long to fetch object: " + objectName);
-                        }
-                    }
-
-                    if (exception.get() != null)
-                        throw exception.get();
-
-                    for (int i = 0; i < chunks.length(); i++) {
-                        os.write(chunks.get(i).array());
-                        os.flush();
-                    }
-                    idsToRead.clear();
-                }
+            ObjectMetadata attributes = is.getMetadata();
+
+            byte[] buffer = new byte[attributes.getChunkSize()];
+            int n;
+            while ((n = is.read(buffer, 0, buffer.length)) >= 0) {
+                os.write(buffer, 0, n);
+                if (is.available() == 0)
+                    os.flush();
             }
+            os.flush();
 
-            if (totalBytesRead.get() != attributes.getObjectSize()) {
-                throw new Exception("Bytes read (" + totalBytesRead.get() + ") does not match object size ("
-                        + attributes.getObjectSize() + ") for object " + objectName);
-            }
             callback.onSuccess();
             return attributes;
         }
@@ -192,5 +149,8 @@ public class ObjectReader implements Callable<ObjectMetadata> {
             callback.onFailure(e);
             throw e;
         }
+        finally {
+            is.close();
+        }
     }
 }
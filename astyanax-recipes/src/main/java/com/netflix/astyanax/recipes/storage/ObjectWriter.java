@@ -18,10 +18,12 @@ package com.netflix.astyanax.recipes.storage;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
@@ -31,7 +33,7 @@ import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Supplier;
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.collect.Lists;
 import com.netflix.astyanax.util.BlockingConcurrentWindowCounter;
 
 public class ObjectWriter implements Callable<ObjectMetadata> {
@@ -49,6 +51,8 @@ public class ObjectWriter implements Callable<ObjectMetadata> {
     private int concurrencyLevel = DEFAULT_CONCURRENCY_LEVEL;
     private int maxWaitTimeInSeconds = MAX_WAIT_TIME_TO_FINISH;
     private ObjectWriteCallback callback = new NoOpObjectWriteCallback();
+    private ExecutorService executor;
+    private ChunkCodec chunkCodec;
 
     public ObjectWriter(ChunkedStorageProvider provider, String objectName, InputStream is) {
         this.provider = provider;
@@ -82,6 +86,27 @@ public class ObjectWriter implements Callable<ObjectMetadata> {
         return this;
     }
 
+    /**
+     * Executor on which to write chunks instead of the shared chunked storage executor.
+     * At most concurrencyLevel chunks of the object are written at a time.
+     * @param executor
+     */
+    public ObjectWriter withExecutor(ExecutorService executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Compress and checksum each chunk with the specified codec.  Chunks are encoded in the
+     * worker threads.  The codec is recorded in the object's metadata so that readers 
+     * decode the chunks automatically.
+     * @param chunkCodec
+     */
+    public ObjectWriter withChunkCodec(ChunkCodec chunkCodec) {
+        this.chunkCodec = chunkCodec;
+        return this;
+    }
+
     @Override
     public ObjectMetadata call() throws Exception {
         LOG.debug("Writing: " + objectName);
@@ -95,62 +120,91 @@ public class ObjectWriter implements Callable<ObjectMetadata> {
         final AtomicReference<Exception> exception = new AtomicReference<Exception>();
 
         try {
-            final ExecutorService executor = Executors.newFixedThreadPool(concurrencyLevel, new ThreadFactoryBuilder()
-                    .setDaemon(true).setNameFormat("ChunkWriter-" + objectName + "-%d").build());
-            final BlockingConcurrentWindowCounter chunkCounter = new BlockingConcurrentWindowCounter(concurrencyLevel);
+            final ExecutorService executor = this.executor != null ? this.executor : ChunkedStorage.getDefaultExecutor();
+            final List<Future<?>> futures = Lists.newArrayList();
+            final BatchChunkedStorageProvider batchProvider = getBatchProvider();
+            final int chunksPerBatch = batchProvider != null ? batchProvider.getChunksPerBatch() : 1;
+            final BlockingConcurrentWindowCounter batchCounter = new BlockingConcurrentWindowCounter(concurrencyLevel);
             final AutoAllocatingLinkedBlockingQueue<ByteBuffer> blocks = new AutoAllocatingLinkedBlockingQueue<ByteBuffer>(
-                    concurrencyLevel);
+                    concurrencyLevel * chunksPerBatch);
 
             try {
-                // Write file data one block at a time
+                // Write file data one batch of blocks at a time
                 boolean done = false;
                 while (!done && exception.get() == null) {
                     // This throttles us so we don't get too far ahead of
                     // ourselves if one of the threads is stuck
-                    final int chunkNumber = chunkCounter.incrementAndGet();
+                    final int batchNumber = batchCounter.incrementAndGet();
+                    final int firstChunkNumber = batchNumber * chunksPerBatch;
 
-                    // Get a block or allocate a new one
-                    final ByteBuffer bb = blocks.poll(new Supplier<ByteBuffer>() {
-                        @Override
-                        public ByteBuffer get() {
-                            return ByteBuffer.allocate(chunkSize);
+                    final List<ByteBuffer> batch = Lists.newArrayListWithCapacity(chunksPerBatch);
+                    while (!done && batch.size() < chunksPerBatch) {
+                        // Get a block or allocate a new one
+                        ByteBuffer bb = blocks.poll(new Supplier<ByteBuffer>() {
+                            @Override
+                            public ByteBuffer get() {
+                                return ByteBuffer.allocate(chunkSize);
+                            }
+                        });
+
+                        // Reset the array and copy some data
+                        bb.clear();
+                        int nBytesRead = readFully(is, bb.array(), 0, chunkSize);
+                        if (nBytesRead > 0) {
+                            bb.limit(nBytesRead);
+                            batch.add(bb);
                         }
-                    });
+                        else {
+                            blocks.add(bb);
+                        }
+                        done = nBytesRead < chunkSize;
+                    }
 
-                    // Reset the array and copy some data
-                    bb.position(0);
-                    int nBytesRead = readFully(is, bb.array(), 0, chunkSize);
-                    if (nBytesRead > 0) {
-                        bb.limit(nBytesRead);
+                    if (batch.isEmpty()) {
+                        batchCounter.release(batchNumber);
+                        continue;
+                    }
 
-                        // Send data in a worker thread
-                        executor.submit(new Runnable() {
-                            @Override
-                            public void run() {
-                                try {
-                                    if (exception.get() == null) {
-                                        LOG.debug("WRITE " + chunkNumber + " size=" + bb.limit());
-                                        provider.writeChunk(objectName, chunkNumber, bb, ttl);
-                                        callback.onChunk(chunkNumber, bb.limit());
-                                        nBytesWritten.addAndGet(bb.limit());
+                    // Send data in a worker thread
+                    futures.add(executor.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                if (exception.get() == null) {
+                                    List<ByteBuffer> chunks = batch;
+                                    if (chunkCodec != null) {
+                                        chunks = Lists.newArrayListWithCapacity(batch.size());
+                                        for (ByteBuffer bb : batch) {
+                                            chunks.add(chunkCodec.encode(bb));
+                                        }
+                                    }
+
+                                    if (batchProvider != null) {
+                                        LOG.debug("WRITE " + firstChunkNumber + "-" + (firstChunkNumber + chunks.size() - 1));
+                                        batchProvider.writeChunks(objectName, firstChunkNumber, chunks, ttl);
+                                    }
+                                    else {
+                                        LOG.debug("WRITE " + firstChunkNumber + " size=" + chunks.get(0).limit());
+                                        provider.writeChunk(objectName, firstChunkNumber, chunks.get(0), ttl);
+                                    }
+                                    for (int i = 0; i < batch.size(); i++) {
+                                        callback.onChunk(firstChunkNumber + i, batch.get(i).limit());
+                                        nBytesWritten.addAndGet(batch.get(i).limit());
                                         nChunksWritten.incrementAndGet();
                                     }
                                 }
-                                catch (Exception e) {
-                                    LOG.error(e.getMessage());
-                                    exception.compareAndSet(null, e);
-                                    callback.onChunkException(chunkNumber, e);
-                                }
-                                finally {
-                                    blocks.add(bb);
-                                    chunkCounter.release(chunkNumber);
-                                }
                             }
-                        });
-                    }
-                    else {
-                        done = true;
-                    }
+                            catch (Exception e) {
+                                LOG.error(e.getMessage());
+                                exception.compareAndSet(null, e);
+                                callback.onChunkException(firstChunkNumber, e);
+                            }
+                            finally {
+                                blocks.addAll(batch);
+                                batchCounter.release(batchNumber);
+                            }
+                        }
+                    }));
                 }
 
                 // Rethrow any exception we got in a thread
@@ -158,14 +212,20 @@ public class ObjectWriter implements Callable<ObjectMetadata> {
                     throw exception.get();
             }
             finally {
-                executor.shutdown();
-                if (!executor.awaitTermination(maxWaitTimeInSeconds, TimeUnit.SECONDS)) {
-                    throw new Exception("Took too long to write object: " + objectName);
+                // Wait for this object's outstanding chunk writes
+                long deadline = System.currentTimeMillis() + TimeUnit.MILLISECONDS.convert(maxWaitTimeInSeconds, TimeUnit.SECONDS);
+                for (Future<?> future : futures) {
+                    try {
+                        future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                    }
+                    catch (TimeoutException e) {
+                        throw new Exception("Took too long to write object: " + objectName);
+                    }
                 }
             }
 
             ObjectMetadata attr = new ObjectMetadata().setChunkCount(nChunksWritten.get())
-                    .setObjectSize(nBytesWritten.get()).setChunkSize(chunkSize).setTtl(ttl);
+                    .setObjectSize(nBytesWritten.get()).setChunkSize(chunkSize).setTtl(ttl).setChunkCodec(chunkCodec);
             provider.writeMetadata(objectName, attr);
             callback.onSuccess();
             return attr;
@@ -175,7 +235,7 @@ public class ObjectWriter implements Callable<ObjectMetadata> {
             LOG.warn(e.getMessage());
             e.printStackTrace();
             try {
-                provider.deleteObject(objectName, nChunksWritten.get() + concurrencyLevel);
+                provider.deleteObject(objectName, nChunksWritten.get() + concurrencyLevel * getChunksPerBatch());
             }
             catch (Exception e2) {
                 LOG.warn(e2.getMessage());
@@ -184,6 +244,20 @@ public class ObjectWriter implements Callable<ObjectMetadata> {
         }
     }
 
+    /**
+     * @return Provider to write batches of chunks to or null if chunks are written one at a time
+     */
+    private BatchChunkedStorageProvider getBatchProvider() {
+        if (provider instanceof BatchChunkedStorageProvider && ((BatchChunkedStorageProvider) provider).getChunksPerBatch() > 1)
+            return (BatchChunkedStorageProvider) provider;
+        return null;
+    }
+
+    private int getChunksPerBatch() {
+        BatchChunkedStorageProvider batchProvider = getBatchProvider();
+        return batchProvider != null ? batchProvider.getChunksPerBatch() : 1;
+    }
+
     /**
      * Should switch to IOUtils.read() when we update to the latest version of
      * commons-io
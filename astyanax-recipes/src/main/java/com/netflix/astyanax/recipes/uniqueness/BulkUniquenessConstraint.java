@@ -0,0 +1,520 @@
+/*******************************************************************************
+ * Copyright 2011 Netflix
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.netflix.astyanax.recipes.uniqueness;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.netflix.astyanax.Keyspace;
+import com.netflix.astyanax.MutationBatch;
+import com.netflix.astyanax.connectionpool.ConnectionPool;
+import com.netflix.astyanax.connectionpool.Host;
+import com.netflix.astyanax.connectionpool.TokenRange;
+import com.netflix.astyanax.connectionpool.exceptions.ConnectionException;
+import com.netflix.astyanax.model.Column;
+import com.netflix.astyanax.model.ColumnFamily;
+import com.netflix.astyanax.model.ConsistencyLevel;
+import com.netflix.astyanax.model.Row;
+import com.netflix.astyanax.model.Rows;
+import com.netflix.astyanax.partitioner.Partitioner;
+import com.netflix.astyanax.recipes.TokenRingLookup;
+import com.netflix.astyanax.recipes.locks.BusyLockException;
+import com.netflix.astyanax.recipes.locks.ColumnPrefixDistributedRowLock;
+import com.netflix.astyanax.recipes.locks.StaleLockException;
+import com.netflix.astyanax.util.RangeBuilder;
+import com.netflix.astyanax.util.TimeUUIDUtils;
+
+/**
+ * Claim uniqueness for many rows at once, such as when importing a large number of user 
+ * names, and report the outcome for each row.  Unlike MultiRowUniquenessConstraint, where 
+ * all rows must be unique for any of them to be claimed, each row is claimed independently.
+ * 
+ * The rows use the same lock columns as ColumnPrefixUniquenessConstraint and are claimed with
+ * 1. A write of the claim columns of all rows.  Rows are grouped by the token range that owns
+ *      them and each group is written as a separate batch, in parallel.  Each batch is pinned to 
+ *      an active replica of its range so that it goes directly to a replica of its rows.
+ * 2. A multiget that reads back the lock columns of all rows, again one query per group of rows.
+ * 3. A single pass of batches that commits the claim columns of unique rows, without TTL, and 
+ *      deletes the claim columns of rows that were not unique or failed. 
+ * A batch whose replica fails is retried once through the normal connection pool.
+ * 
+ * <code>
+ *      BulkUniquenessConstraint<String> constraint = new BulkUniquenessConstraint<String>(keyspace, columnFamily)
+ *          .withTtl(60);
+ *      BulkUniquenessConstraint.Result<String> result = constraint.acquire(userNames);
+ *      for (String userName : result.getKeys(Outcome.NOT_UNIQUE)) {
+ *          // Report duplicate
+ *      }
+ * </code>
+ * 
+ * @param <K>
+ */
+public class BulkUniquenessConstraint<K> {
+    private static final Logger LOG = LoggerFactory.getLogger(BulkUniquenessConstraint.class);
+    
+    public static final int DEFAULT_BATCH_SIZE   = 100;
+    public static final int DEFAULT_THREAD_COUNT = Integer.getInteger("astyanax.uniqueness.threads", 16);
+    
+    private static ExecutorService defaultExecutor;
+    
+    /**
+     * @return Executor on which batches are executed unless one was set with withExecutor
+     */
+    public static synchronized ExecutorService getDefaultExecutor() {
+        if (defaultExecutor == null) {
+            defaultExecutor = Executors.newFixedThreadPool(DEFAULT_THREAD_COUNT, 
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("BulkUniquenessConstraint-%d").build());
+        }
+        return defaultExecutor;
+    }
+    
+    public static enum Outcome {
+        /**
+         * The row is unique and the unique column was committed
+         */
+        ACQUIRED,
+        
+        /**
+         * The row was already claimed by someone else
+         */
+        NOT_UNIQUE,
+        
+        /**
+         * The outcome is unknown because a call to Cassandra failed.  The claim column will be 
+         * deleted by its TTL or, without a TTL, treated as stale once the lock timeout expires.
+         */
+        FAILED
+    }
+    
+    /**
+     * Outcome of each row of a bulk claim
+     * @param <K>
+     */
+    public static class Result<K> {
+        private final Map<K, String>    uniqueIds;
+        private final Map<K, Outcome>   outcomes = Maps.newLinkedHashMap();
+        private final Map<K, Exception> errors   = Maps.newHashMap();
+        
+        Result(Map<K, String> uniqueIds) {
+            this.uniqueIds = uniqueIds;
+        }
+        
+        synchronized Outcome getOutcomeInternal(K key) {
+            return outcomes.get(key);
+        }
+        
+        synchronized void setOutcome(K key, Outcome outcome) {
+            outcomes.put(key, outcome);
+        }
+        
+        /**
+         * Fail the rows that don't have an outcome yet or that were acquired
+         */
+        synchronized void fail(Collection<K> keys, Exception e) {
+            for (K key : keys) {
+                Outcome outcome = outcomes.get(key);
+                if (outcome == null || outcome == Outcome.ACQUIRED) {
+                    outcomes.put(key, Outcome.FAILED);
+                    errors.put(key, e);
+                }
+            }
+        }
+        
+        public synchronized Outcome getOutcome(K key) {
+            return outcomes.get(key);
+        }
+        
+        public synchronized Map<K, Outcome> getOutcomes() {
+            return Collections.unmodifiableMap(Maps.newLinkedHashMap(outcomes));
+        }
+        
+        public synchronized List<K> getKeys(Outcome outcome) {
+            List<K> keys = Lists.newArrayList();
+            for (Entry<K, Outcome> entry : outcomes.entrySet()) {
+                if (entry.getValue() == outcome)
+                    keys.add(entry.getKey());
+            }
+            return keys;
+        }
+        
+        /**
+         * @param key
+         * @return Unique id used for the unique column of the row
+         */
+        public String getUniqueId(K key) {
+            return uniqueIds.get(key);
+        }
+        
+        /**
+         * @param key
+         * @return Error that caused the row to fail or null if it didn't fail
+         */
+        public synchronized Exception getError(K key) {
+            return errors.get(key);
+        }
+        
+        public synchronized boolean isAllAcquired() {
+            for (Outcome outcome : outcomes.values()) {
+                if (outcome != Outcome.ACQUIRED)
+                    return false;
+            }
+            return true;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "Result [acquired=" + getKeys(Outcome.ACQUIRED).size() 
+                    + ", notUnique="   + getKeys(Outcome.NOT_UNIQUE).size()
+                    + ", failed="      + getKeys(Outcome.FAILED).size() + "]";
+        }
+    }
+    
+    /**
+     * Operation on one batch of rows
+     */
+    private static interface BatchOperation<K> {
+        /**
+         * @param keys  Rows of the batch
+         * @param host  Replica of the rows to pin the operation to or null
+         */
+        void execute(List<K> keys, Host host) throws Exception;
+    }
+    
+    /**
+     * Rows of a single token range
+     */
+    private static class Batch<K> {
+        final int     range;
+        final List<K> keys;
+        
+        Batch(int range, List<K> keys) {
+            this.range = range;
+            this.keys  = keys;
+        }
+    }
+    
+    private final Keyspace                keyspace;
+    private final ColumnFamily<K, String> columnFamily;
+    
+    private ConsistencyLevel consistencyLevel = ConsistencyLevel.CL_LOCAL_QUORUM;
+    private String           prefix           = ColumnPrefixDistributedRowLock.DEFAULT_LOCK_PREFIX;
+    private Integer          ttl              = null;
+    private int              batchSize        = DEFAULT_BATCH_SIZE;
+    private ExecutorService  executor         = null;
+    private volatile TokenRingLookup ring;
+    private volatile Partitioner     partitioner;
+    private volatile ConnectionPool<?> pool;
+    
+    public BulkUniquenessConstraint(Keyspace keyspace, ColumnFamily<K, String> columnFamily) {
+        this.keyspace     = keyspace;
+        this.columnFamily = columnFamily;
+    }
+    
+    /**
+     * TTL of the claim columns so that they expire in the event of a client crash before 
+     * the uniqueness is committed
+     * @param ttl
+     */
+    public BulkUniquenessConstraint<K> withTtl(Integer ttl) {
+        this.ttl = ttl;
+        return this;
+    }
+    
+    public BulkUniquenessConstraint<K> withConsistencyLevel(ConsistencyLevel consistencyLevel) {
+        this.consistencyLevel = consistencyLevel;
+        return this;
+    }
+    
+    /**
+     * Specify the prefix that uniquely distinguishes the lock columns from data columns
+     * @param prefix
+     */
+    public BulkUniquenessConstraint<K> withColumnPrefix(String prefix) {
+        this.prefix = prefix;
+        return this;
+    }
+    
+    /**
+     * Max number of rows in a single mutation or multiget
+     * @param batchSize
+     */
+    public BulkUniquenessConstraint<K> withBatchSize(int batchSize) {
+        Preconditions.checkArgument(batchSize > 0, "Batch size must be positive");
+        this.batchSize = batchSize;
+        return this;
+    }
+    
+    /**
+     * Executor on which batches are executed in parallel
+     * @param executor
+     */
+    public BulkUniquenessConstraint<K> withExecutor(ExecutorService executor) {
+        this.executor = executor;
+        return this;
+    }
+    
+    /**
+     * Claim the rows using a new unique id for each row
+     * @param keys
+     * @return Outcome of each row
+     * @throws InterruptedException
+     */
+    public Result<K> acquire(Collection<K> keys) throws InterruptedException {
+        Map<K, String> uniqueIds = Maps.newLinkedHashMap();
+        for (K key : keys) {
+            uniqueIds.put(key, TimeUUIDUtils.getUniqueTimeUUIDinMicros().toString());
+        }
+        return acquire(uniqueIds);
+    }
+    
+    /**
+     * Claim the rows using the specified unique ids as the unique column names.  In many 
+     * cases the unique id is the row key under which the actual data is stored.
+     * 
+     * @param uniqueIds  Mapping of row key to unique id
+     * @return Outcome of each row
+     * @throws InterruptedException
+     */
+    public Result<K> acquire(Map<K, String> uniqueIds) throws InterruptedException {
+        final long now = TimeUnit.MICROSECONDS.convert(System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        final Result<K> result = new Result<K>(Collections.unmodifiableMap(Maps.newLinkedHashMap(uniqueIds)));
+        final Map<K, ColumnPrefixDistributedRowLock<K>> locks = Maps.newLinkedHashMap();
+        for (Entry<K, String> entry : uniqueIds.entrySet()) {
+            locks.put(entry.getKey(), new ColumnPrefixDistributedRowLock<K>(keyspace, columnFamily, entry.getKey())
+                    .withColumnPrefix(prefix)
+                    .withConsistencyLevel(consistencyLevel)
+                    .withLockId(entry.getValue()));
+        }
+        
+        List<Batch<K>> batches = getBatches(locks.keySet());
+        
+        // Phase 1: Write the claim columns
+        executeBatches(batches, result, new BatchOperation<K>() {
+            @Override
+            public void execute(List<K> keys, Host host) throws Exception {
+                MutationBatch m = prepareMutationBatch(host);
+                for (K key : keys) {
+                    locks.get(key).fillLockMutation(m, now, ttl);
+                }
+                m.execute();
+            }
+        });
+        
+        // Phase 2: Read back the lock columns of the rows that were written
+        executeBatches(batches, result, new BatchOperation<K>() {
+            @Override
+            public void execute(List<K> keys, Host host) throws Exception {
+                List<K> written = Lists.newArrayListWithCapacity(keys.size());
+                for (K key : keys) {
+                    if (result.getOutcomeInternal(key) == null)
+                        written.add(key);
+                }
+                if (written.isEmpty())
+                    return;
+                
+                Rows<K, String> rows = keyspace.prepareQuery(columnFamily)
+                        .setConsistencyLevel(consistencyLevel)
+                        .pinToHost(host)
+                        .getKeySlice(written)
+                        .withColumnRange(new RangeBuilder().setStart(prefix + "\u0000").setEnd(prefix + "\uFFFF").build())
+                        .execute()
+                        .getResult();
+                
+                for (K key : written) {
+                    ColumnPrefixDistributedRowLock<K> lock = locks.get(key);
+                    Map<String, Long> lockColumns = Maps.newLinkedHashMap();
+                    Row<K, String> row = rows.getRow(key);
+                    if (row != null) {
+                        for (Column<String> column : row.getColumns()) {
+                            lockColumns.put(column.getName(), lock.readTimeoutValue(column));
+                        }
+                    }
+                    
+                    try {
+                        lock.verifyLock(now, lockColumns);
+                        result.setOutcome(key, Outcome.ACQUIRED);
+                    }
+                    catch (BusyLockException e) {
+                        result.setOutcome(key, Outcome.NOT_UNIQUE);
+                    }
+                    catch (StaleLockException e) {
+                        result.setOutcome(key, Outcome.NOT_UNIQUE);
+                    }
+                }
+            }
+        });
+        
+        // Phase 3: Commit the unique rows and roll back all others
+        executeBatches(batches, result, new BatchOperation<K>() {
+            @Override
+            public void execute(List<K> keys, Host host) throws Exception {
+                MutationBatch m = prepareMutationBatch(host);
+                for (K key : keys) {
+                    ColumnPrefixDistributedRowLock<K> lock = locks.get(key);
+                    if (result.getOutcomeInternal(key) == Outcome.ACQUIRED) {
+                        lock.fillReleaseMutation(m, true);
+                        lock.fillLockMutation(m, null, null);
+                    }
+                    else {
+                        lock.fillReleaseMutation(m, false);
+                    }
+                }
+                m.execute();
+            }
+        });
+        
+        return result;
+    }
+    
+    /**
+     * Release the uniqueness of rows that were acquired with the specified unique ids
+     * @param uniqueIds  Mapping of row key to unique id
+     * @throws Exception
+     */
+    public void release(Map<K, String> uniqueIds) throws Exception {
+        final Map<K, String> ids = uniqueIds;
+        final Result<K> result = new Result<K>(uniqueIds);
+        executeBatches(getBatches(uniqueIds.keySet()), result, new BatchOperation<K>() {
+            @Override
+            public void execute(List<K> keys, Host host) throws Exception {
+                MutationBatch m = prepareMutationBatch(host);
+                for (K key : keys) {
+                    m.withRow(columnFamily, key).deleteColumn(prefix + ids.get(key));
+                }
+                m.execute();
+            }
+        });
+        
+        for (K key : uniqueIds.keySet()) {
+            Exception e = result.getError(key);
+            if (e != null)
+                throw e;
+        }
+    }
+    
+    private MutationBatch prepareMutationBatch(Host host) {
+        return keyspace.prepareMutationBatch()
+                .setConsistencyLevel(consistencyLevel)
+                .pinToHost(host);
+    }
+    
+    /**
+     * Execute the operation on all batches in parallel and fail the rows of batches
+     * whose operation failed.  Each operation is pinned to a replica of its rows and
+     * retried once through the connection pool if the replica fails.
+     */
+    private void executeBatches(List<Batch<K>> batches, Result<K> result, final BatchOperation<K> operation) throws InterruptedException {
+        ExecutorService executor = this.executor != null ? this.executor : getDefaultExecutor();
+        
+        List<Future<Void>> futures = Lists.newArrayListWithCapacity(batches.size());
+        for (final Batch<K> batch : batches) {
+            final Host host = getRing().getReplicaHost(batch.range, pool);
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    try {
+                        operation.execute(batch.keys, host);
+                    }
+                    catch (ConnectionException e) {
+                        if (host == null)
+                            throw e;
+                        LOG.warn("Failed to execute batch on " + host + ".  Retrying through the connection pool", e);
+                        operation.execute(batch.keys, null);
+                    }
+                    return null;
+                }
+            }));
+        }
+        
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                futures.get(i).get();
+            }
+            catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                result.fail(batches.get(i).keys, cause instanceof Exception ? (Exception)cause : e);
+            }
+            catch (InterruptedException e) {
+                for (Future<Void> future : futures) {
+                    future.cancel(true);
+                }
+                throw e;
+            }
+        }
+    }
+    
+    /**
+     * Group the rows by the token range that owns them and split each group into batches
+     */
+    private List<Batch<K>> getBatches(Collection<K> keys) {
+        TokenRingLookup ring        = getRing();
+        Partitioner     partitioner = this.partitioner;
+        
+        Map<Integer, List<K>> groups = Maps.newTreeMap();
+        for (K key : keys) {
+            int range = (partitioner == null)
+                      ? 0 
+                      : ring.getRangeIndex(partitioner.getTokenForKey(columnFamily.getKeySerializer().toByteBuffer(key)));
+            List<K> group = groups.get(range);
+            if (group == null) {
+                group = Lists.newArrayList();
+                groups.put(range, group);
+            }
+            group.add(key);
+        }
+        
+        List<Batch<K>> batches = Lists.newArrayList();
+        for (Entry<Integer, List<K>> group : groups.entrySet()) {
+            for (List<K> batch : Lists.partition(group.getValue(), batchSize)) {
+                batches.add(new Batch<K>(group.getKey(), batch));
+            }
+        }
+        return batches;
+    }
+    
+    private TokenRingLookup getRing() {
+        if (ring == null) {
+            try {
+                partitioner = keyspace.getPartitioner();
+                pool        = keyspace.getConnectionPool();
+                ring        = new TokenRingLookup(keyspace.describeRing(true));
+            }
+            catch (Exception e) {
+                LOG.warn("Unable to describe ring.  Rows will not be grouped by token range", e);
+                partitioner = null;
+                pool        = null;
+                ring        = new TokenRingLookup(Collections.<TokenRange>emptyList());
+            }
+        }
+        return ring;
+    }
+}
@@ -0,0 +1,309 @@
+package com.netflix.astyanax.recipes;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
+import com.google.common.collect.PeekingIterator;
+import com.google.common.collect.Sets;
+import com.netflix.astyanax.Keyspace;
+import com.netflix.astyanax.model.Column;
+import com.netflix.astyanax.model.ColumnFamily;
+import com.netflix.astyanax.model.ColumnList;
+import com.netflix.astyanax.query.ColumnFamilyQuery;
+import com.netflix.astyanax.query.RowQuery;
+import com.netflix.astyanax.serializers.IntegerSerializer;
+import com.netflix.astyanax.serializers.StringSerializer;
+import com.netflix.astyanax.test.TestKeyspace;
+import com.netflix.astyanax.test.TestStubs;
+import com.netflix.astyanax.test.TestStubs.StubHandler;
+
+public class DistributedMergeSortTest {
+    private static final ColumnFamily<String, Integer> CF = ColumnFamily.newColumnFamily(
+            "Shards", StringSerializer.get(), IntegerSerializer.get());
+
+    /**
+     * Keyspace stub serving the rows of a map of shard to sorted column names.  Every query
+     * is counted and queries for failedShard throw.
+     */
+    private static class ShardedRows {
+        final Map<String, List<Integer>>         rows;
+        final ConcurrentMap<String, AtomicInteger> queries = Maps.newConcurrentMap();
+        volatile String failedShard;
+
+        ShardedRows(Map<String, List<Integer>> rows) {
+            this.rows = rows;
+            for (String shard : rows.keySet()) {
+                queries.put(shard, new AtomicInteger());
+            }
+        }
+
+        int getQueryCount(String shard) {
+            return queries.get(shard).get();
+        }
+
+        Keyspace keyspace() {
+            return new TestKeyspace("DistributedMergeSortTest") {
+                @Override
+                public <K, C> ColumnFamilyQuery<K, C> prepareQuery(ColumnFamily<K, C> cf) {
+                    return columnFamilyQuery();
+                }
+            };
+        }
+
+        private <K, C> ColumnFamilyQuery<K, C> columnFamilyQuery() {
+            return TestStubs.newStub(ColumnFamilyQuery.class, new StubHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    if (method.getName().equals("setConsistencyLevel") || method.getName().equals("withRetryPolicy"))
+                        return proxy;
+                    if (method.getName().equals("getKey"))
+                        return rowQuery((String) args[0]);
+                    return super.invoke(proxy, method, args);
+                }
+            });
+        }
+
+        private RowQuery<String, Integer> rowQuery(final String shard) {
+            final Object[] range = new Object[4];
+            return TestStubs.newStub(RowQuery.class, new StubHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    if (method.getName().equals("withColumnRange") && args.length == 4) {
+                        System.arraycopy(args, 0, range, 0, 4);
+                        return proxy;
+                    }
+                    if (method.getName().equals("execute")) {
+                        queries.get(shard).incrementAndGet();
+                        if (shard.equals(failedShard))
+                            throw new RuntimeException("Failed shard " + shard);
+                        return TestStubs.newResult(slice(rows.get(shard),
+                                (Integer) range[0], (Integer) range[1], (Boolean) range[2], (Integer) range[3]));
+                    }
+                    return super.invoke(proxy, method, args);
+                }
+            });
+        }
+
+        private static ColumnList<Integer> slice(List<Integer> row, Integer start, Integer end, boolean reversed, int count) {
+            List<Integer> names = Lists.newArrayList(row);
+            if (reversed)
+                Collections.reverse(names);
+            Ordering<Integer> ordering = reversed ? Ordering.<Integer>natural().reverse() : Ordering.<Integer>natural();
+
+            List<Column<Integer>> columns = Lists.newArrayList();
+            for (Integer name : names) {
+                if (start != null && ordering.compare(name, start) < 0)
+                    continue;
+                if (end != null && ordering.compare(name, end) > 0)
+                    break;
+                if (columns.size() == count)
+                    break;
+                columns.add(TestStubs.<Column<Integer>>newStub(Column.class, ImmutableMap.<String, Object>of(
+                        "getName",    name,
+                        "getRawName", IntegerSerializer.get().toByteBuffer(name))));
+            }
+            return TestStubs.newColumnList(columns);
+        }
+    }
+
+    private static List<Integer> range(int start, int end, int step) {
+        List<Integer> names = Lists.newArrayList();
+        for (int i = start; i < end; i += step) {
+            names.add(i);
+        }
+        return names;
+    }
+
+    private static List<Integer> names(Iterable<Column<Integer>> columns) {
+        List<Integer> names = Lists.newArrayList();
+        for (Column<Integer> column : columns) {
+            names.add(column.getName());
+        }
+        return names;
+    }
+
+    /**
+     * Wait for the background fetches of a shard to reach the expected count and check that
+     * no more are issued
+     */
+    private static void assertQueryCount(ShardedRows rows, String shard, int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (rows.getQueryCount(shard) < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(100);
+        Assert.assertEquals(expected, rows.getQueryCount(shard));
+    }
+
+    @Test
+    public void testMergeIterator() {
+        List<PeekingIterator<Integer>> shards = Lists.newArrayList();
+        shards.add(Iterators.peekingIterator(ImmutableList.of(1, 4, 5, 9).iterator()));
+        shards.add(Iterators.peekingIterator(ImmutableList.<Integer>of().iterator()));
+        shards.add(Iterators.peekingIterator(ImmutableList.of(2, 3, 6).iterator()));
+        shards.add(Iterators.peekingIterator(ImmutableList.of(0, 7, 8, 10, 11).iterator()));
+        
+        Iterator<Integer> iter = new DistributedMergeSort.MergeIterator<Integer>(shards, Ordering.<Integer>natural());
+        
+        List<Integer> result = Lists.newArrayList(iter);
+        Assert.assertEquals(12, result.size());
+        Assert.assertTrue(Ordering.natural().isOrdered(result));
+        Assert.assertFalse(iter.hasNext());
+    }
+
+    @Test
+    public void testMergeIteratorFailure() {
+        // Fails when reading its second element
+        PeekingIterator<Integer> failing = Iterators.peekingIterator(new Iterator<Integer>() {
+            private int count = 0;
+
+            @Override
+            public boolean hasNext() {
+                if (count == 1)
+                    throw new RuntimeException("Failed shard");
+                return true;
+            }
+
+            @Override
+            public Integer next() {
+                return count++;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        });
+
+        List<PeekingIterator<Integer>> shards = Lists.newArrayList();
+        shards.add(failing);
+        shards.add(Iterators.peekingIterator(ImmutableList.of(1, 2).iterator()));
+
+        Iterator<Integer> iter = new DistributedMergeSort.MergeIterator<Integer>(shards, Ordering.<Integer>natural());
+        Assert.assertEquals(0, (int) iter.next());
+
+        // The failure is reported by every following call instead of corrupting the heap
+        for (int i = 0; i < 2; i++) {
+            try {
+                iter.hasNext();
+                Assert.fail();
+            }
+            catch (RuntimeException e) {
+                Assert.assertEquals("Failed shard", e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void testPagingAndDedup() {
+        // Shard sizes below, at and above multiples of the page size
+        Map<String, List<Integer>> data = ImmutableMap.<String, List<Integer>>builder()
+                .put("shard_0", range(0, 30, 3))
+                .put("shard_1", range(1, 13, 3))
+                .put("shard_2", range(2, 7, 3))
+                .put("shard_3", ImmutableList.<Integer>of())
+                .build();
+        ShardedRows rows = new ShardedRows(data);
+
+        for (int pageSize = 2; pageSize <= 5; pageSize++) {
+            List<Integer> result = names(DistributedMergeSort.newQuery(rows.keyspace(), CF)
+                    .withShards(data.keySet())
+                    .withPageSize(pageSize)
+                    .withReadAhead(1));
+
+            List<Integer> expected = Lists.newArrayList();
+            for (List<Integer> row : data.values()) {
+                expected.addAll(row);
+            }
+            Collections.sort(expected);
+
+            Assert.assertEquals("Page size " + pageSize, expected, result);
+            Assert.assertEquals(result.size(), Sets.newHashSet(result).size());
+        }
+    }
+
+    @Test
+    public void testReversedRangeOffsetAndLimit() {
+        Map<String, List<Integer>> data = ImmutableMap.<String, List<Integer>>of(
+                "shard_0", range(0, 40, 2),
+                "shard_1", range(1, 40, 2));
+        ShardedRows rows = new ShardedRows(data);
+
+        List<Integer> result = names(DistributedMergeSort.newQuery(rows.keyspace(), CF)
+                .withShards(data.keySet())
+                .withPageSize(3)
+                .withColumnRange(30, 10)
+                .withReversed(true)
+                .withOffset(2)
+                .withLimit(5));
+
+        Assert.assertEquals(ImmutableList.of(28, 27, 26, 25, 24), result);
+    }
+
+    @Test
+    public void testReadAhead() throws Exception {
+        ShardedRows rows = new ShardedRows(ImmutableMap.<String, List<Integer>>of("shard_0", range(0, 100, 1)));
+
+        Iterator<Column<Integer>> iter = DistributedMergeSort.newQuery(rows.keyspace(), CF)
+                .withShards(ImmutableList.of("shard_0"))
+                .withPageSize(10)
+                .withReadAhead(2)
+                .iterator();
+
+        // Two pages are buffered before anything is consumed
+        assertQueryCount(rows, "shard_0", 2);
+
+        // Starting on the first page frees a buffer slot for one more page
+        Assert.assertEquals(0, (int) iter.next().getName());
+        assertQueryCount(rows, "shard_0", 3);
+
+        // Every new page consumed schedules exactly one more fetch
+        for (int i = 1; i <= 10; i++) {
+            iter.next();
+        }
+        assertQueryCount(rows, "shard_0", 4);
+    }
+
+    @Test
+    public void testShardFailure() {
+        Map<String, List<Integer>> data = ImmutableMap.<String, List<Integer>>of(
+                "shard_0", range(0, 20, 2),
+                "shard_1", range(1, 20, 2));
+        ShardedRows rows = new ShardedRows(data);
+        rows.failedShard = "shard_1";
+
+        Iterator<Column<Integer>> iter = DistributedMergeSort.newQuery(rows.keyspace(), CF)
+                .withShards(data.keySet())
+                .withPageSize(2)
+                .iterator();
+
+        // The failure is reported by every call instead of an arbitrary column order
+        for (int i = 0; i < 3; i++) {
+            try {
+                if (i < 2)
+                    iter.hasNext();
+                else
+                    iter.next();
+                Assert.fail();
+            }
+            catch (RuntimeException e) {
+                Assert.assertTrue(e.getMessage().contains("shard_1"));
+            }
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.netflix.astyanax.recipes;
 
+import java.util.Arrays;
 import java.util.concurrent.TimeUnit;
 
 import junit.framework.Assert;
@@ -19,8 +20,12 @@ import com.netflix.astyanax.connectionpool.impl.CountingConnectionPoolMonitor;
 import com.netflix.astyanax.ddl.KeyspaceDefinition;
 import com.netflix.astyanax.impl.AstyanaxConfigurationImpl;
 import com.netflix.astyanax.model.ColumnFamily;
+import com.netflix.astyanax.model.ColumnList;
 import com.netflix.astyanax.model.ConsistencyLevel;
+import com.netflix.astyanax.recipes.locks.BusyLockException;
 import com.netflix.astyanax.recipes.locks.ColumnPrefixDistributedRowLock;
+import com.netflix.astyanax.recipes.locks.DistributedRowLock;
+import com.netflix.astyanax.recipes.locks.DistributedRowLockManager;
 import com.netflix.astyanax.recipes.locks.StaleLockException;
 import com.netflix.astyanax.serializers.LongSerializer;
 import com.netflix.astyanax.serializers.StringSerializer;
@@ -325,6 +330,140 @@ public class LockRecipeTest {
         }
     }
     
+    private ColumnList<String> readLockColumns(String rowKey) throws Exception {
+        return keyspace.prepareQuery(LOCK_CF_LONG).setConsistencyLevel(ConsistencyLevel.CL_ONE)
+                .getKey(rowKey).execute().getResult();
+    }
+    
+    private DistributedRowLockManager<String> newLockManager(long timeoutMillis, long leaseMillis) {
+        return new DistributedRowLockManager<String>(keyspace, LOCK_CF_LONG)
+                .withConsistencyLevel(ConsistencyLevel.CL_ONE)
+                .expireLockAfter(timeoutMillis, TimeUnit.MILLISECONDS)
+                .withLease(leaseMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    @Test
+    public void testLeaseReuse() throws Exception {
+        DistributedRowLockManager<String> manager = newLockManager(10000, 5000);
+        
+        DistributedRowLock lock = manager.newLock("testLeaseReuse");
+        lock.acquire();
+        lock.release();
+        
+        // The lock column is kept under the lease
+        ColumnList<String> columns = readLockColumns("testLeaseReuse");
+        Assert.assertEquals(1, columns.size());
+        Assert.assertEquals(1, manager.getHeldLockCount());
+        String lockColumn = columns.getColumnByIndex(0).getName();
+        long   expiration = columns.getColumnByIndex(0).getLongValue();
+        
+        // Reusing the lease with plenty of time left doesn't touch the lock column
+        lock = manager.newLock("testLeaseReuse");
+        lock.acquire();
+        lock.release();
+        columns = readLockColumns("testLeaseReuse");
+        Assert.assertEquals(1, columns.size());
+        Assert.assertEquals(lockColumn, columns.getColumnByIndex(0).getName());
+        Assert.assertEquals(expiration, columns.getColumnByIndex(0).getLongValue());
+        
+        manager.releaseAll();
+        Assert.assertEquals(0, manager.getHeldLockCount());
+        Assert.assertTrue(readLockColumns("testLeaseReuse").isEmpty());
+    }
+    
+    @Test
+    public void testLeaseReuseExtendsLockColumn() throws Exception {
+        DistributedRowLockManager<String> manager = newLockManager(2000, 1500)
+                .withLeaseSafetyMargin(1500, TimeUnit.MILLISECONDS);
+        
+        DistributedRowLock lock = manager.newLock("testLeaseExtend");
+        lock.acquire();
+        lock.release();
+        ColumnList<String> columns = readLockColumns("testLeaseExtend");
+        String lockColumn = columns.getColumnByIndex(0).getName();
+        long   expiration = columns.getColumnByIndex(0).getLongValue();
+        
+        // Less than the safety margin is left on the lock column
+        Thread.sleep(700);
+        
+        lock = manager.newLock("testLeaseExtend");
+        lock.acquire();
+        try {
+            columns = readLockColumns("testLeaseExtend");
+            Assert.assertEquals(1, columns.size());
+            Assert.assertEquals(lockColumn, columns.getColumnByIndex(0).getName());
+            Assert.assertTrue(columns.getColumnByIndex(0).getLongValue() >= expiration + TimeUnit.MICROSECONDS.convert(700, TimeUnit.MILLISECONDS));
+        }
+        finally {
+            lock.release();
+        }
+        manager.releaseAll();
+    }
+    
+    @Test
+    public void testExpiredLeaseIsReacquired() throws Exception {
+        DistributedRowLockManager<String> manager = newLockManager(2000, 500);
+        
+        DistributedRowLock lock = manager.newLock("testLeaseExpired");
+        lock.acquire();
+        lock.release();
+        String lockColumn = readLockColumns("testLeaseExpired").getColumnByIndex(0).getName();
+        
+        Thread.sleep(700);
+        
+        // The expired lease is released and the lock taken again with a new lock column
+        lock = manager.newLock("testLeaseExpired");
+        lock.acquire();
+        lock.release();
+        ColumnList<String> columns = readLockColumns("testLeaseExpired");
+        Assert.assertEquals(1, columns.size());
+        Assert.assertFalse(lockColumn.equals(columns.getColumnByIndex(0).getName()));
+        
+        // Expired leases of idle rows are released in the background
+        Thread.sleep(700);
+        manager.releaseExpiredLeases();
+        Assert.assertEquals(0, manager.getHeldLockCount());
+        Assert.assertTrue(readLockColumns("testLeaseExpired").isEmpty());
+    }
+    
+    @Test
+    public void testBatchedLock() throws Exception {
+        DistributedRowLockManager<String> manager = new DistributedRowLockManager<String>(keyspace, LOCK_CF_LONG)
+                .withConsistencyLevel(ConsistencyLevel.CL_ONE)
+                .expireLockAfter(10, TimeUnit.SECONDS);
+        DistributedRowLockManager<String> other = new DistributedRowLockManager<String>(keyspace, LOCK_CF_LONG)
+                .withConsistencyLevel(ConsistencyLevel.CL_ONE)
+                .expireLockAfter(10, TimeUnit.SECONDS);
+        
+        DistributedRowLock lock = manager.newLock(Arrays.asList("testBatch1", "testBatch2", "testBatch3"));
+        lock.acquire();
+        try {
+            for (String rowKey : Arrays.asList("testBatch1", "testBatch2", "testBatch3"))
+                Assert.assertEquals(1, readLockColumns(rowKey).size());
+            
+            // A lock on an overlapping set of rows fails and leaves no lock columns behind
+            try {
+                other.newLock(Arrays.asList("testBatch3", "testBatch4")).acquire();
+                Assert.fail("Expected the lock to be busy");
+            }
+            catch (BusyLockException e) {
+            }
+            Assert.assertEquals(1, readLockColumns("testBatch3").size());
+            Assert.assertTrue(readLockColumns("testBatch4").isEmpty());
+        }
+        finally {
+            lock.release();
+        }
+        
+        for (String rowKey : Arrays.asList("testBatch1", "testBatch2", "testBatch3"))
+            Assert.assertTrue(readLockColumns(rowKey).isEmpty());
+        
+        // The rows can be locked once released
+        lock = other.newLock(Arrays.asList("testBatch3", "testBatch4"));
+        lock.acquire();
+        lock.release();
+    }
+    
     @Test
     public void testLockAndMutate() throws Exception {
 //        String rowKey     = "testLockAndMutate";
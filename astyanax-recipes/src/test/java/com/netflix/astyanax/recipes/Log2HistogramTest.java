@@ -0,0 +1,37 @@
+package com.netflix.astyanax.recipes;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class Log2HistogramTest {
+    @Test
+    public void testPercentiles() {
+        Log2Histogram histogram = new Log2Histogram(8);
+        Assert.assertEquals(0, histogram.getPercentile(50));
+
+        histogram.record(0);
+        histogram.record(3);
+        histogram.record(5);
+        histogram.record(6);
+
+        long[] counts = histogram.getCounts();
+        Assert.assertEquals(8, counts.length);
+        Assert.assertEquals(1, counts[0]);
+        Assert.assertEquals(1, counts[2]);
+        Assert.assertEquals(2, counts[3]);
+
+        Assert.assertEquals(1, histogram.getPercentile(25));
+        Assert.assertEquals(4, histogram.getPercentile(50));
+        Assert.assertEquals(8, histogram.getPercentile(75));
+        Assert.assertEquals(8, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void testLastBucketCountsLargeValues() {
+        Log2Histogram histogram = new Log2Histogram(4);
+        histogram.record(Long.MAX_VALUE);
+        Assert.assertEquals(1, histogram.getCounts()[3]);
+        Assert.assertEquals(8, histogram.getPercentile(99));
+    }
+}
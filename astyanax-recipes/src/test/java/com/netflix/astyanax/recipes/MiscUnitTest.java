@@ -46,6 +46,8 @@ import com.netflix.astyanax.recipes.functions.RowCounterFunction;
 import com.netflix.astyanax.recipes.functions.TraceFunction;
 import com.netflix.astyanax.recipes.locks.ColumnPrefixDistributedRowLock;
 import com.netflix.astyanax.recipes.locks.StaleLockException;
+import com.netflix.astyanax.recipes.reader.AllRowsCopier;
+import com.netflix.astyanax.recipes.reader.AllRowsCounter;
 import com.netflix.astyanax.recipes.reader.AllRowsReader;
 import com.netflix.astyanax.recipes.uniqueness.ColumnPrefixUniquenessConstraint;
 import com.netflix.astyanax.recipes.uniqueness.DedicatedMultiRowUniquenessConstraint;
@@ -126,6 +128,12 @@ public class MiscUnitTest {
                     IntegerSerializer.get(),
                     IntegerSerializer.get());
 
+    public static ColumnFamily<Integer, Integer> CF_WIDE_ROWS = ColumnFamily
+            .newColumnFamily(
+                    "WideRowsMiscUnitTest", 
+                    IntegerSerializer.get(),
+                    IntegerSerializer.get());
+
     /**
      * Interal
      */
@@ -194,6 +202,8 @@ public class MiscUnitTest {
         keyspace.createColumnFamily(CF_USER_UNIQUE_UUID,  null);
         keyspace.createColumnFamily(CF_EMAIL_UNIQUE_UUID, null);
         keyspace.createColumnFamily(CF_ALL_ROWS, null);
+        keyspace.createColumnFamily(CF_ALL_ROWS_COPY, null);
+        keyspace.createColumnFamily(CF_WIDE_ROWS, null);
         
         keyspace.createColumnFamily(LOCK_CF_LONG, ImmutableMap.<String, Object>builder()
                 .put("default_validation_class", "LongType")
@@ -932,6 +942,129 @@ public class MiscUnitTest {
             .call();
     }
     
+    @Test
+    public void testAllRowsCounter() throws Exception {
+        final AtomicLong progressCount = new AtomicLong(0);
+
+        AllRowsCounter<Integer, Integer> counter = new AllRowsCounter.Builder<Integer, Integer>(keyspace, CF_ALL_ROWS)
+                .withPageSize(100)
+                .withConcurrencyLevel(4)
+                .withCountColumns(true)
+                .withProgressCallback(new Callback<AllRowsCounter.Counts>() {
+                    @Override
+                    public void handle(AllRowsCounter.Counts counts) {
+                        progressCount.incrementAndGet();
+                    }
+                }, 0)
+                .build();
+
+        AllRowsCounter.Counts counts = counter.call();
+        LOG.info(counts.toString());
+
+        Assert.assertTrue(counts.isComplete());
+        Assert.assertEquals(ALL_ROWS_COUNT, counts.getRowCount());
+        Assert.assertEquals(ALL_ROWS_COUNT, counts.getEstimatedRowCount());
+        Assert.assertEquals(ALL_ROWS_COUNT, counts.getColumnCount());
+        Assert.assertEquals(1.0, counts.getFractionScanned(), 0.0);
+        Assert.assertTrue(progressCount.get() > 0);
+
+        // HyperLogLog estimate of the distinct keys is within 5% of the exact count
+        long distinct = counts.getDistinctKeyEstimate();
+        Assert.assertTrue("Distinct key estimate " + distinct,
+                Math.abs(distinct - ALL_ROWS_COUNT) <= ALL_ROWS_COUNT * 0.05);
+    }
+
+    @Test
+    public void testAllRowsCounterWithoutColumns() throws Exception {
+        AllRowsCounter.Counts counts = new AllRowsCounter.Builder<Integer, Integer>(keyspace, CF_ALL_ROWS)
+                .withPageSize(100)
+                .build()
+                .call();
+
+        Assert.assertEquals(ALL_ROWS_COUNT, counts.getRowCount());
+        Assert.assertEquals(-1, counts.getColumnCount());
+    }
+
+    @Test
+    public void testAllRowsCounterWideRows() throws Exception {
+        MutationBatch m = keyspace.prepareMutationBatch();
+        long expectedColumns = 0;
+        for (int row = 0; row < 5; row++) {
+            // Some rows are narrower and some several times wider than the column page
+            int columns = row * 12 + 1;
+            ColumnListMutation<Integer> mbRow = m.withRow(CF_WIDE_ROWS, row);
+            for (int column = 0; column < columns; column++) {
+                mbRow.putColumn(column, column);
+            }
+            expectedColumns += columns;
+        }
+        m.execute();
+
+        AllRowsCounter.Counts counts = new AllRowsCounter.Builder<Integer, Integer>(keyspace, CF_WIDE_ROWS)
+                .withPageSize(2)
+                .withCountColumns(true)
+                .withColumnPageSize(10)
+                .build()
+                .call();
+
+        Assert.assertEquals(5, counts.getRowCount());
+        Assert.assertEquals(expectedColumns, counts.getColumnCount());
+    }
+
+    @Test
+    public void testAllRowsCopier() throws Exception {
+        AllRowsCopier<Integer, Integer> copier = new AllRowsCopier.Builder<Integer, Integer>(keyspace, CF_ALL_ROWS, keyspace, CF_ALL_ROWS_COPY)
+                .withPageSize(100)
+                .withConcurrencyLevel(4)
+                .withBatchSize(50)
+                .withWriteConcurrency(2)
+                .build();
+
+        Assert.assertTrue(copier.call());
+        Assert.assertEquals(ALL_ROWS_COUNT, copier.getRowCount());
+
+        final AtomicLong counter = new AtomicLong(0);
+        boolean result = new AllRowsReader.Builder<Integer, Integer>(keyspace, CF_ALL_ROWS_COPY)
+                .withPageSize(100)
+                .withConcurrencyLevel(4)
+                .forEachRow(new Function<Row<Integer, Integer>, Boolean>() {
+                    @Override
+                    public Boolean apply(Row<Integer, Integer> row) {
+                        if (row.getColumns().getColumnByName(0) != null)
+                            counter.incrementAndGet();
+                        return true;
+                    }
+                })
+                .build()
+                .call();
+
+        Assert.assertTrue(result);
+        Assert.assertEquals(ALL_ROWS_COUNT, counter.get());
+    }
+
+    @Test
+    public void testAllRowsCopierWithWriteFailure() throws Exception {
+        // Writes to a column family that does not exist fail
+        ColumnFamily<Integer, Integer> missing = ColumnFamily.newColumnFamily(
+                "AllRowsMiscUnitTestMissing",
+                IntegerSerializer.get(),
+                IntegerSerializer.get());
+
+        AllRowsCopier<Integer, Integer> copier = new AllRowsCopier.Builder<Integer, Integer>(keyspace, CF_ALL_ROWS, keyspace, missing)
+                .withPageSize(100)
+                .withConcurrencyLevel(2)
+                .withBatchSize(50)
+                .build();
+
+        try {
+            copier.call();
+            Assert.fail();
+        }
+        catch (Exception e) {
+            LOG.info("Copy failed as expected", e);
+        }
+    }
+
     @Test
     public void testAllRowsReaderConcurrency12() throws Exception {
         final AtomicLong counter = new AtomicLong(0);
@@ -2,8 +2,11 @@ package com.netflix.astyanax.recipes;
 
 import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicLong;
 
 import junit.framework.Assert;
@@ -15,8 +18,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Function;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Ordering;
+import com.google.common.collect.Sets;
 import com.netflix.astyanax.AstyanaxContext;
-import com.netflix.astyanax.Cluster;
 import com.netflix.astyanax.Keyspace;
 import com.netflix.astyanax.MutationBatch;
 import com.netflix.astyanax.Serializer;
@@ -24,34 +30,43 @@ import com.netflix.astyanax.annotations.Component;
 import com.netflix.astyanax.connectionpool.NodeDiscoveryType;
 import com.netflix.astyanax.connectionpool.exceptions.ConnectionException;
 import com.netflix.astyanax.connectionpool.impl.ConnectionPoolConfigurationImpl;
+import com.netflix.astyanax.connectionpool.impl.ConnectionPoolType;
 import com.netflix.astyanax.connectionpool.impl.CountingConnectionPoolMonitor;
-import com.netflix.astyanax.ddl.KeyspaceDefinition;
 import com.netflix.astyanax.impl.AstyanaxConfigurationImpl;
 import com.netflix.astyanax.model.Column;
 import com.netflix.astyanax.model.ColumnFamily;
+import com.netflix.astyanax.model.ColumnList;
+import com.netflix.astyanax.model.Composite;
+import com.netflix.astyanax.model.ConsistencyLevel;
 import com.netflix.astyanax.model.Row;
 import com.netflix.astyanax.recipes.ReverseIndexQuery.IndexEntryCallback;
 import com.netflix.astyanax.serializers.AnnotatedCompositeSerializer;
+import com.netflix.astyanax.serializers.ByteBufferSerializer;
+import com.netflix.astyanax.serializers.DoubleSerializer;
 import com.netflix.astyanax.serializers.LongSerializer;
 import com.netflix.astyanax.serializers.StringSerializer;
+import com.netflix.astyanax.serializers.TimeUUIDSerializer;
 import com.netflix.astyanax.thrift.ThriftFamilyFactory;
+import com.netflix.astyanax.util.SingletonEmbeddedCassandra;
+import com.netflix.astyanax.util.TimeUUIDUtils;
 
 public class ReverseIndexQueryTest {
 
     private static Logger LOG = LoggerFactory.getLogger(ReverseIndexQueryTest.class);
 
-    private static AstyanaxContext<Cluster> clusterContext;
+    private static Keyspace                  keyspace;
+    private static AstyanaxContext<Keyspace> keyspaceContext;
 
-    private static final String TEST_CLUSTER_NAME = "TestCluster";
+    private static final String TEST_CLUSTER_NAME = "cass_sandbox";
     private static final String TEST_KEYSPACE_NAME = "ReverseIndexTest";
     private static final String TEST_DATA_CF = "Data";
     private static final String TEST_INDEX_CF = "Index";
 
-    private static final boolean TEST_INIT_KEYSPACE = true;
     private static final long ROW_COUNT = 1000;
     private static final int SHARD_COUNT = 11;
+    private static final long CASSANDRA_WAIT_TIME = 3000;
 
-    public static final String SEEDS = "localhost:7102";
+    public static final String SEEDS = "localhost:9160";
 
     private static ColumnFamily<Long, String> CF_DATA = ColumnFamily
             .newColumnFamily(TEST_DATA_CF, LongSerializer.get(),
@@ -76,76 +91,97 @@ public class ReverseIndexQueryTest {
             .newColumnFamily(TEST_INDEX_CF, StringSerializer.get(),
                     indexEntitySerializer);
 
+    private static class TimeIndexEntry {
+        @Component(ordinal = 0)
+        UUID value;
+        @Component(ordinal = 1)
+        Long key;
+
+        public TimeIndexEntry(UUID value, Long key) {
+            this.value = value;
+            this.key = key;
+        }
+    }
+
+    private static ColumnFamily<String, TimeIndexEntry> CF_TIME_INDEX = ColumnFamily
+            .newColumnFamily("TimeIndex", StringSerializer.get(),
+                    new AnnotatedCompositeSerializer<TimeIndexEntry>(TimeIndexEntry.class));
+
+    private static final ColumnFamily<String, ByteBuffer> CF_INDEX_RAW = ColumnFamily
+            .newColumnFamily(TEST_INDEX_CF, StringSerializer.get(),
+                    ByteBufferSerializer.get());
+
     @BeforeClass
     public static void setup() throws Exception {
-        clusterContext = new AstyanaxContext.Builder()
+        SingletonEmbeddedCassandra.getInstance();
+
+        Thread.sleep(CASSANDRA_WAIT_TIME);
+
+        keyspaceContext = new AstyanaxContext.Builder()
                 .forCluster(TEST_CLUSTER_NAME)
+                .forKeyspace(TEST_KEYSPACE_NAME)
                 .withAstyanaxConfiguration(
                         new AstyanaxConfigurationImpl()
-                                .setDiscoveryType(NodeDiscoveryType.NONE))
+                                .setDiscoveryType(NodeDiscoveryType.RING_DESCRIBE)
+                                .setConnectionPoolType(ConnectionPoolType.TOKEN_AWARE)
+                                .setDiscoveryDelayInSeconds(60000))
                 .withConnectionPoolConfiguration(
-                        new ConnectionPoolConfigurationImpl(TEST_CLUSTER_NAME)
-                                .setMaxConnsPerHost(1).setSeeds(SEEDS))
+                        new ConnectionPoolConfigurationImpl(TEST_CLUSTER_NAME
+                                + "_" + TEST_KEYSPACE_NAME)
+                                .setSocketTimeout(30000)
+                                .setMaxTimeoutWhenExhausted(2000)
+                                .setMaxConnsPerHost(10)
+                                .setInitConnsPerHost(2)
+                                .setSeeds(SEEDS))
                 .withConnectionPoolMonitor(new CountingConnectionPoolMonitor())
-                .buildCluster(ThriftFamilyFactory.getInstance());
-
-        clusterContext.start();
+                .buildKeyspace(ThriftFamilyFactory.getInstance());
 
-        if (TEST_INIT_KEYSPACE) {
-            Cluster cluster = clusterContext.getEntity();
-            try {
-                LOG.info("Dropping keyspace: " + TEST_KEYSPACE_NAME);
-                cluster.dropKeyspace(TEST_KEYSPACE_NAME);
-                Thread.sleep(10000);
-            } catch (ConnectionException e) {
-                LOG.warn(e.getMessage());
-            }
+        keyspaceContext.start();
 
-            Map<String, String> stratOptions = new HashMap<String, String>();
-            stratOptions.put("replication_factor", "3");
+        keyspace = keyspaceContext.getEntity();
 
-            try {
-                LOG.info("Creating keyspace: " + TEST_KEYSPACE_NAME);
-
-                KeyspaceDefinition ksDef = cluster.makeKeyspaceDefinition();
-
-                ksDef.setName(TEST_KEYSPACE_NAME)
-                        .setStrategyOptions(stratOptions)
-                        .setStrategyClass("SimpleStrategy")
-                        .addColumnFamily(
-                                cluster.makeColumnFamilyDefinition()
-                                        .setName(CF_DATA.getName())
-                                        .setComparatorType("UTF8Type")
-                        // .setKeyValidationClass("LongType")
-                        // .setDefaultValidationClass("BytesType")
-                        )
-                        .addColumnFamily(
-                                cluster.makeColumnFamilyDefinition()
-                                        .setName(CF_INDEX.getName())
-                                        .setComparatorType(
-                                                "CompositeType(LongType, LongType)")
-                                        .setDefaultValidationClass("BytesType"));
-                cluster.addKeyspace(ksDef);
-                Thread.sleep(2000);
-                populateKeyspace();
-            } catch (ConnectionException e) {
-                LOG.error(e.getMessage());
-            }
+        try {
+            LOG.info("Dropping keyspace: " + TEST_KEYSPACE_NAME);
+            keyspace.dropKeyspace();
+        } catch (ConnectionException e) {
+            LOG.warn(e.getMessage());
         }
+
+        LOG.info("Creating keyspace: " + TEST_KEYSPACE_NAME);
+        keyspace.createKeyspace(ImmutableMap.<String, Object>builder()
+                .put("strategy_options", ImmutableMap.<String, Object>builder()
+                        .put("replication_factor", "1")
+                        .build())
+                .put("strategy_class",     "SimpleStrategy")
+                .build()
+                );
+
+        keyspace.createColumnFamily(CF_DATA, ImmutableMap.<String, Object>builder()
+                .put("comparator_type", "UTF8Type")
+                .build());
+        keyspace.createColumnFamily(CF_INDEX, ImmutableMap.<String, Object>builder()
+                .put("comparator_type", "CompositeType(LongType, LongType)")
+                .put("default_validation_class", "BytesType")
+                .build());
+        keyspace.createColumnFamily(CF_TIME_INDEX, ImmutableMap.<String, Object>builder()
+                .put("comparator_type", "CompositeType(TimeUUIDType, LongType)")
+                .put("default_validation_class", "BytesType")
+                .build());
+
+        populateKeyspace();
     }
 
     @AfterClass
-    public static void teardown() {
-        if (clusterContext != null)
-            clusterContext.shutdown();
+    public static void teardown() throws Exception {
+        if (keyspaceContext != null)
+            keyspaceContext.shutdown();
+
+        Thread.sleep(CASSANDRA_WAIT_TIME);
     }
 
     public static void populateKeyspace() throws Exception {
         LOG.info("Ppoulating keyspace: " + TEST_KEYSPACE_NAME);
 
-        Keyspace keyspace = clusterContext.getEntity().getKeyspace(
-                TEST_KEYSPACE_NAME);
-
         try {
             // CF_Users :
             // 1 :
@@ -176,12 +212,35 @@ public class ReverseIndexQueryTest {
         }
     }
 
+    private static Collection<ByteBuffer> getShards(String prefix, int count) {
+        return new Shards.StringShardBuilder().setPrefix(prefix).setShardCount(count).build();
+    }
+
+    /**
+     * Collects the keys of the rows passed to the callback
+     */
+    private static class KeyCollector implements Function<Row<Long, String>, Void> {
+        final List<Long> keys = new CopyOnWriteArrayList<Long>();
+
+        @Override
+        public Void apply(Row<Long, String> row) {
+            keys.add(row.getKey());
+            return null;
+        }
+    }
+
+    private static Set<Long> range(long start, long end) {
+        Set<Long> keys = Sets.newHashSet();
+        for (long key = start; key < end; key++)
+            keys.add(key);
+        return keys;
+    }
+
     @Test
     public void testReverseIndex() throws Exception{
         LOG.info("Starting");
         final AtomicLong counter = new AtomicLong();
 
-        Keyspace keyspace = clusterContext.getEntity().getKeyspace(TEST_KEYSPACE_NAME);
         ReverseIndexQuery
                 .newQuery(keyspace, CF_DATA, CF_INDEX.getName(),
                         LongSerializer.get())
@@ -217,6 +276,323 @@ public class ReverseIndexQueryTest {
                 }).execute();
 
         LOG.info("Read " + counter.get() + " rows");
+        Assert.assertEquals(50, counter.get());
+    }
+
+    @Test
+    public void testValueSharedAcrossPageBoundary() throws Exception {
+        // All entries of value 5 span several pages of the shard
+        MutationBatch m = keyspace.prepareMutationBatch();
+        for (long row = 0; row < 10; row++) {
+            m.withRow(CF_INDEX, "P_0").putColumn(new IndexEntry(5L, row), row, null);
+        }
+        m.withRow(CF_INDEX, "P_0").putColumn(new IndexEntry(4L, 10L), 10L, null);
+        m.withRow(CF_INDEX, "P_0").putColumn(new IndexEntry(6L, 11L), 11L, null);
+        m.execute();
+
+        KeyCollector collector = new KeyCollector();
+        ReverseIndexQuery.newQuery(keyspace, CF_DATA, CF_INDEX.getName(), LongSerializer.get())
+                .fromIndexValue(5L)
+                .toIndexValue(5L)
+                .withIndexShards(getShards("P_", 1))
+                .setShardPageSize(3)
+                .forEach(collector)
+                .execute();
+
+        Assert.assertEquals(10, collector.keys.size());
+        Assert.assertEquals(range(0, 10), Sets.newHashSet(collector.keys));
+    }
+
+    @Test
+    public void testDuplicateKeysAcrossShards() throws Exception {
+        // Every shard has the same entries
+        MutationBatch m = keyspace.prepareMutationBatch();
+        for (int shard = 0; shard < 3; shard++) {
+            for (long row = 0; row < 20; row++) {
+                m.withRow(CF_INDEX, "D_" + shard).putColumn(new IndexEntry(row, row), row, null);
+            }
+        }
+        m.execute();
+
+        for (boolean ordered : new boolean[] { false, true }) {
+            KeyCollector collector = new KeyCollector();
+            ReverseIndexQuery.newQuery(keyspace, CF_DATA, CF_INDEX.getName(), LongSerializer.get())
+                    .withIndexShards(getShards("D_", 3))
+                    .setShardPageSize(7)
+                    .withOrderedResults(ordered)
+                    .forEach(collector)
+                    .execute();
+
+            Assert.assertEquals(20, collector.keys.size());
+            Assert.assertEquals(range(0, 20), Sets.newHashSet(collector.keys));
+        }
+    }
+
+    @Test
+    public void testOrderedResults() throws Exception {
+        KeyCollector collector = new KeyCollector();
+        ReverseIndexQuery.newQuery(keyspace, CF_DATA, CF_INDEX.getName(), LongSerializer.get())
+                .fromIndexValue(100L)
+                .toIndexValue(10000L)
+                .withIndexShards(getShards("B_", SHARD_COUNT))
+                .setShardPageSize(4)
+                .setShardBlockSize(7)
+                .withOrderedResults(true)
+                .forEach(collector)
+                .execute();
+
+        // The index value of row n is n * 100
+        Assert.assertEquals(Lists.newArrayList(Ordering.natural().sortedCopy(range(1, 101))), collector.keys);
     }
 
+    @Test
+    public void testOrderedResultsByTimeUUID() throws Exception {
+        // Values 10 minutes apart so that the low bits of the timestamp, which are serialized
+        // first, wrap around and the serialized values are not in time order
+        long now = System.currentTimeMillis();
+        List<ByteBuffer> rawValues = Lists.newArrayList();
+        MutationBatch m = keyspace.prepareMutationBatch();
+        for (long row = 0; row < 40; row++) {
+            UUID value = TimeUUIDUtils.getTimeUUID(now + row * 600000);
+            rawValues.add(TimeUUIDSerializer.get().toByteBuffer(value));
+            m.withRow(CF_TIME_INDEX, "T_" + (row % 4)).putColumn(new TimeIndexEntry(value, row), row, null);
+        }
+        m.execute();
+        Assert.assertFalse(Ordering.from(ReverseIndexQuery.getValueComparator(ByteBufferSerializer.get())).isOrdered(rawValues));
+
+        KeyCollector collector = new KeyCollector();
+        ReverseIndexQuery.newQuery(keyspace, CF_DATA, CF_TIME_INDEX.getName(), TimeUUIDSerializer.get())
+                .withIndexShards(getShards("T_", 4))
+                .setShardPageSize(3)
+                .setShardBlockSize(5)
+                .withOrderedResults(true)
+                .forEach(collector)
+                .execute();
+
+        Assert.assertEquals(Lists.newArrayList(Ordering.natural().sortedCopy(range(0, 40))), collector.keys);
+    }
+
+    @Test
+    public void testValueComparators() throws Exception {
+        Ordering<ByteBuffer> longs = Ordering.from(ReverseIndexQuery.getValueComparator(LongSerializer.get()));
+        Assert.assertTrue(longs.isStrictlyOrdered(Arrays.asList(
+                LongSerializer.get().toByteBuffer(Long.MIN_VALUE),
+                LongSerializer.get().toByteBuffer(-1L),
+                LongSerializer.get().toByteBuffer(0L),
+                LongSerializer.get().toByteBuffer(1L),
+                LongSerializer.get().toByteBuffer(Long.MAX_VALUE))));
+
+        Ordering<ByteBuffer> doubles = Ordering.from(ReverseIndexQuery.getValueComparator(DoubleSerializer.get()));
+        Assert.assertTrue(doubles.isStrictlyOrdered(Arrays.asList(
+                DoubleSerializer.get().toByteBuffer(-2.5),
+                DoubleSerializer.get().toByteBuffer(-1.0),
+                DoubleSerializer.get().toByteBuffer(0.5),
+                DoubleSerializer.get().toByteBuffer(3.0))));
+
+        // UTF8Type compares the encoded bytes, which differs from String.compareTo for
+        // characters outside of the basic multilingual plane
+        Ordering<ByteBuffer> strings = Ordering.from(ReverseIndexQuery.getValueComparator(StringSerializer.get()));
+        Assert.assertTrue(strings.isStrictlyOrdered(Arrays.asList(
+                StringSerializer.get().toByteBuffer("a"),
+                StringSerializer.get().toByteBuffer("\u00e9"),
+                StringSerializer.get().toByteBuffer("\ufffd"),
+                StringSerializer.get().toByteBuffer("\ud83d\ude00"))));
+
+        Ordering<ByteBuffer> uuids = Ordering.from(ReverseIndexQuery.getValueComparator(TimeUUIDSerializer.get()));
+        long now = System.currentTimeMillis();
+        List<ByteBuffer> values = Lists.newArrayList();
+        for (int i = 0; i < 20; i++) {
+            values.add(TimeUUIDSerializer.get().toByteBuffer(TimeUUIDUtils.getTimeUUID(now + i * 600000L)));
+        }
+        Assert.assertTrue(uuids.isStrictlyOrdered(values));
+    }
+
+    @Test
+    public void testTinyMemoryBudget() throws Exception {
+        for (boolean ordered : new boolean[] { false, true }) {
+            KeyCollector collector = new KeyCollector();
+            ReverseIndexQuery.newQuery(keyspace, CF_DATA, CF_INDEX.getName(), LongSerializer.get())
+                    .fromIndexValue(100L)
+                    .toIndexValue(10000L)
+                    .withIndexShards(getShards("B_", SHARD_COUNT))
+                    .setShardBlockSize(5)
+                    .withMemoryBudget(1)
+                    .withOrderedResults(ordered)
+                    .forEach(collector)
+                    .execute();
+
+            Assert.assertEquals(100, collector.keys.size());
+            Assert.assertEquals(range(1, 101), Sets.newHashSet(collector.keys));
+        }
+    }
+
+    @Test
+    public void testIndexReadFailureIsThrown() throws Exception {
+        try {
+            ReverseIndexQuery.newQuery(keyspace, CF_DATA, "NoSuchIndex", LongSerializer.get())
+                    .withIndexShards(getShards("B_", SHARD_COUNT))
+                    .forEach(new KeyCollector())
+                    .execute();
+            Assert.fail("Expected the index read failure to be thrown");
+        }
+        catch (RuntimeException e) {
+            Assert.assertTrue(e.getCause() instanceof ConnectionException);
+        }
+    }
+
+    @Test
+    public void testCallbackFailureIsThrown() throws Exception {
+        for (boolean ordered : new boolean[] { false, true }) {
+            try {
+                ReverseIndexQuery.newQuery(keyspace, CF_DATA, CF_INDEX.getName(), LongSerializer.get())
+                        .withIndexShards(getShards("B_", SHARD_COUNT))
+                        .withOrderedResults(ordered)
+                        .forEach(new Function<Row<Long, String>, Void>() {
+                            @Override
+                            public Void apply(Row<Long, String> row) {
+                                throw new IllegalStateException("Callback failed");
+                            }
+                        })
+                        .execute();
+                Assert.fail("Expected the callback failure to be thrown");
+            }
+            catch (IllegalStateException e) {
+                Assert.assertEquals("Callback failed", e.getMessage());
+            }
+        }
+    }
+
+    private ReverseIndexWriter<Long, String, Long> newWriter(int cacheSize) {
+        return ReverseIndexWriter.newWriter(keyspace, CF_DATA, CF_INDEX.getName(), LongSerializer.get(),
+                new Function<ColumnList<String>, Long>() {
+                    @Override
+                    public Long apply(ColumnList<String> columns) {
+                        return columns.getLongValue("V", null);
+                    }
+                })
+            .withShardPrefix("W_")
+            .withShardCount(4)
+            .withIndexedColumns(Arrays.asList("V"))
+            .withCacheSize(cacheSize)
+            .withConsistencyLevel(ConsistencyLevel.CL_ONE);
+    }
+
+    /**
+     * Add the data column and the index update of a row to the mutation
+     */
+    private MutationBatch prepareValue(ReverseIndexWriter<Long, String, Long> writer, long key, Long value) throws Exception {
+        MutationBatch m = keyspace.prepareMutationBatch();
+        if (value != null)
+            m.withRow(CF_DATA, key).putColumn("V", value, null);
+        else
+            m.withRow(CF_DATA, key).deleteColumn("V");
+        writer.update(m, key, value);
+        return m;
+    }
+
+    private void writeValue(ReverseIndexWriter<Long, String, Long> writer, long key, Long value) throws Exception {
+        writer.execute(prepareValue(writer, key, value));
+    }
+
+    /**
+     * @return Values of the index entries of the row
+     */
+    private List<Long> readIndexValues(ReverseIndexWriter<Long, String, Long> writer, long key) throws Exception {
+        List<Long> values = Lists.newArrayList();
+        for (Column<ByteBuffer> column : keyspace.prepareQuery(CF_INDEX_RAW).getKey("W_" + writer.getShard(key)).execute().getResult()) {
+            Composite composite = new Composite();
+            composite.setSerializersByPosition(LongSerializer.get(), LongSerializer.get());
+            composite.deserialize(column.getName());
+            if (composite.get(1, LongSerializer.get()) == key)
+                values.add(composite.get(0, LongSerializer.get()));
+        }
+        return values;
+    }
+
+    @Test
+    public void testWriterReplacesEntryInSameBatch() throws Exception {
+        for (int cacheSize : new int[] { ReverseIndexWriter.DEFAULT_CACHE_SIZE, 0 }) {
+            long key = 20000 + cacheSize;
+            ReverseIndexWriter<Long, String, Long> writer = newWriter(cacheSize);
+            writeValue(writer, key, 5L);
+            Assert.assertEquals(Arrays.asList(5L), readIndexValues(writer, key));
+
+            MutationBatch m = prepareValue(writer, key, 7L);
+            // Nothing is written before the batch with the data row is executed
+            Assert.assertEquals(2, m.getRowCount());
+            Assert.assertEquals(Arrays.asList(5L), readIndexValues(writer, key));
+
+            writer.execute(m);
+            Assert.assertEquals(Arrays.asList(7L), readIndexValues(writer, key));
+        }
+    }
+
+    @Test
+    public void testWriterRestoresEntryInSameBatch() throws Exception {
+        for (int cacheSize : new int[] { ReverseIndexWriter.DEFAULT_CACHE_SIZE, 0 }) {
+            long key = 20500 + cacheSize;
+            ReverseIndexWriter<Long, String, Long> writer = newWriter(cacheSize);
+            writeValue(writer, key, 5L);
+
+            // The entry deleted by the first update is added back by the second
+            MutationBatch m = prepareValue(writer, key, 7L);
+            m.withRow(CF_DATA, key).putColumn("V", 5L, null);
+            writer.update(m, key, 5L);
+            writer.execute(m);
+            Assert.assertEquals(Arrays.asList(5L), readIndexValues(writer, key));
+
+            // And removed again by a third
+            m = prepareValue(writer, key, 7L);
+            writer.update(m, key, 5L);
+            writer.update(m, key, 7L);
+            writer.execute(m);
+            Assert.assertEquals(Arrays.asList(7L), readIndexValues(writer, key));
+        }
+    }
+
+    @Test
+    public void testWriterUnchangedValueWritesNothing() throws Exception {
+        for (int cacheSize : new int[] { ReverseIndexWriter.DEFAULT_CACHE_SIZE, 0 }) {
+            long key = 21000 + cacheSize;
+            ReverseIndexWriter<Long, String, Long> writer = newWriter(cacheSize);
+            writeValue(writer, key, 5L);
+
+            MutationBatch m = keyspace.prepareMutationBatch();
+            writer.update(m, key, 5L);
+            Assert.assertTrue(m.isEmpty());
+        }
+    }
+
+    @Test
+    public void testWriterNullRemovesEntry() throws Exception {
+        for (int cacheSize : new int[] { ReverseIndexWriter.DEFAULT_CACHE_SIZE, 0 }) {
+            long key = 22000 + cacheSize;
+            ReverseIndexWriter<Long, String, Long> writer = newWriter(cacheSize);
+            writeValue(writer, key, 5L);
+            writeValue(writer, key, null);
+            Assert.assertTrue(readIndexValues(writer, key).isEmpty());
+
+            // A row without a value has no entry to remove
+            MutationBatch m = keyspace.prepareMutationBatch();
+            writer.remove(m, key);
+            Assert.assertTrue(m.isEmpty());
+        }
+    }
+
+    @Test
+    public void testWriterCachesOnlyExecutedValues() throws Exception {
+        long key = 23000;
+        ReverseIndexWriter<Long, String, Long> writer = newWriter(ReverseIndexWriter.DEFAULT_CACHE_SIZE);
+        writeValue(writer, key, 5L);
+
+        // A mutation that is never executed doesn't change the previous value
+        prepareValue(writer, key, 9L);
+        writeValue(writer, key, 11L);
+        Assert.assertEquals(Arrays.asList(11L), readIndexValues(writer, key));
+
+        // Nor does a mutation executed without the writer
+        prepareValue(writer, key, 13L).execute();
+        writeValue(writer, key, 15L);
+        Assert.assertEquals(Arrays.asList(15L), readIndexValues(writer, key));
+    }
 }
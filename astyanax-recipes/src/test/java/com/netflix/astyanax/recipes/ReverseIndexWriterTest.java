@@ -0,0 +1,53 @@
+package com.netflix.astyanax.recipes;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.google.common.base.Function;
+import com.netflix.astyanax.model.ColumnFamily;
+import com.netflix.astyanax.model.ColumnList;
+import com.netflix.astyanax.serializers.LongSerializer;
+import com.netflix.astyanax.serializers.StringSerializer;
+
+public class ReverseIndexWriterTest {
+    private static final ColumnFamily<Long, String> CF_DATA = ColumnFamily.newColumnFamily("Data",
+            LongSerializer.get(), StringSerializer.get());
+
+    private ReverseIndexWriter<Long, String, Long> newWriter(int shardCount) {
+        return ReverseIndexWriter.newWriter(null, CF_DATA, "Index", LongSerializer.get(),
+                new Function<ColumnList<String>, Long>() {
+                    @Override
+                    public Long apply(ColumnList<String> columns) {
+                        return columns.getLongValue("B", null);
+                    }
+                })
+            .withShardPrefix("B_")
+            .withShardCount(shardCount);
+    }
+
+    @Test
+    public void testShardsAreBalanced() {
+        ReverseIndexWriter<Long, String, Long> writer = newWriter(16);
+
+        int[] counts = new int[16];
+        for (long key = 0; key < 16000; key++) {
+            int shard = writer.getShard(key);
+            Assert.assertEquals(shard, writer.getShard(key));
+            counts[shard]++;
+        }
+        for (int count : counts) {
+            Assert.assertTrue("Shard size " + count, count > 800 && count < 1200);
+        }
+    }
+
+    @Test
+    public void testIndexShards() {
+        Collection<ByteBuffer> shards = newWriter(4).getIndexShards();
+        Assert.assertEquals(4, shards.size());
+        Assert.assertTrue(shards.contains(StringSerializer.get().toByteBuffer("B_3")));
+    }
+}
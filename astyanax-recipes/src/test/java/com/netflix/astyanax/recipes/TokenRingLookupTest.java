@@ -0,0 +1,116 @@
+package com.netflix.astyanax.recipes;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.netflix.astyanax.connectionpool.Host;
+import com.netflix.astyanax.connectionpool.HostConnectionPool;
+import com.netflix.astyanax.connectionpool.TokenRange;
+import com.netflix.astyanax.connectionpool.impl.TokenRangeImpl;
+import com.netflix.astyanax.test.TestClient;
+import com.netflix.astyanax.test.TestConnectionPool;
+import com.netflix.astyanax.test.TestHostConnectionPool;
+
+public class TokenRingLookupTest {
+    private static List<TokenRange> ring(String... ends) {
+        List<TokenRange> ranges = Lists.newArrayList();
+        for (int i = 0; i < ends.length; i++) {
+            String start = ends[(i + ends.length - 1) % ends.length];
+            ranges.add(new TokenRangeImpl(start, ends[i], null));
+        }
+        return ranges;
+    }
+
+    @Test
+    public void testNumericTokens() {
+        // Given out of order and with different lengths so a string sort would be wrong
+        TokenRingLookup lookup = new TokenRingLookup(ring("200", "1000", "30"));
+        Assert.assertEquals(3, lookup.getRangeCount());
+
+        // Ranges are (start, end]
+        Assert.assertEquals(0, lookup.getRangeIndex("30"));
+        Assert.assertEquals(1, lookup.getRangeIndex("31"));
+        Assert.assertEquals(1, lookup.getRangeIndex("200"));
+        Assert.assertEquals(2, lookup.getRangeIndex("201"));
+        Assert.assertEquals(2, lookup.getRangeIndex("1000"));
+    }
+
+    @Test
+    public void testWrapAround() {
+        TokenRingLookup lookup = new TokenRingLookup(ring("-100", "0", "100"));
+
+        Assert.assertEquals(0, lookup.getRangeIndex("-101"));
+        Assert.assertEquals(0, lookup.getRangeIndex("-100"));
+        Assert.assertEquals(1, lookup.getRangeIndex("-99"));
+        Assert.assertEquals(2, lookup.getRangeIndex("100"));
+        // Past the last end token is owned by the first range
+        Assert.assertEquals(0, lookup.getRangeIndex("101"));
+    }
+
+    @Test
+    public void testSingleRange() {
+        TokenRingLookup lookup = new TokenRingLookup(ring("100"));
+        Assert.assertEquals(1, lookup.getRangeCount());
+        Assert.assertEquals(0, lookup.getRangeIndex("5"));
+        Assert.assertEquals(0, lookup.getRangeIndex("500"));
+    }
+
+    @Test
+    public void testEmptyRing() {
+        TokenRingLookup lookup = new TokenRingLookup(Lists.<TokenRange>newArrayList());
+        Assert.assertEquals(1, lookup.getRangeCount());
+        Assert.assertEquals(0, lookup.getRangeIndex("5"));
+    }
+
+    @Test
+    public void testNonNumericTokens() {
+        TokenRingLookup lookup = new TokenRingLookup(ring("m", "d", "t"));
+
+        Assert.assertEquals(0, lookup.getRangeIndex("a"));
+        Assert.assertEquals(0, lookup.getRangeIndex("d"));
+        Assert.assertEquals(1, lookup.getRangeIndex("e"));
+        Assert.assertEquals(2, lookup.getRangeIndex("t"));
+        Assert.assertEquals(0, lookup.getRangeIndex("z"));
+    }
+
+    @Test
+    public void testReplicaHost() {
+        final List<HostConnectionPool<TestClient>> pools = Lists.newArrayList();
+        for (String ip : Arrays.asList("10.0.0.1", "10.0.0.2", "10.0.0.3")) {
+            pools.add(new TestHostConnectionPool(new Host(ip, 9160)));
+        }
+        TestConnectionPool pool = new TestConnectionPool() {
+            @Override
+            public List<HostConnectionPool<TestClient>> getActivePools() {
+                return pools;
+            }
+        };
+
+        List<TokenRange> ranges = Lists.newArrayList();
+        ranges.add(new TokenRangeImpl("100", "0",   Arrays.asList("10.0.0.1", "10.0.0.2")));
+        ranges.add(new TokenRangeImpl("0",   "100", Arrays.asList("10.0.0.3", "10.0.0.4")));
+        TokenRingLookup lookup = new TokenRingLookup(ranges);
+
+        // Rotates through the active replicas of the range
+        Set<String> replicas = Sets.newHashSet();
+        for (int i = 0; i < 4; i++) {
+            replicas.add(lookup.getReplicaHost(lookup.getRangeIndex("-5"), pool).getIpAddress());
+        }
+        Assert.assertEquals(Sets.newHashSet("10.0.0.1", "10.0.0.2"), replicas);
+
+        // Replicas that are not in the pool are skipped
+        Assert.assertEquals("10.0.0.3", lookup.getReplicaHost(lookup.getRangeIndex("50"), pool).getIpAddress());
+
+        pools.remove(2);
+        Assert.assertNull(lookup.getReplicaHost(lookup.getRangeIndex("50"), pool));
+        Assert.assertNull(lookup.getReplicaHost(lookup.getRangeIndex("50"), null));
+        Assert.assertNull(new TokenRingLookup(Lists.<TokenRange>newArrayList()).getReplicaHost(0, pool));
+    }
+}
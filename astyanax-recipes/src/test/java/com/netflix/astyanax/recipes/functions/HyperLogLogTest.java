@@ -0,0 +1,37 @@
+package com.netflix.astyanax.recipes.functions;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.netflix.astyanax.serializers.StringSerializer;
+
+public class HyperLogLogTest {
+    @Test
+    public void testCardinality() {
+        HyperLogLog hll = new HyperLogLog();
+        Assert.assertEquals(0, hll.cardinality());
+        
+        int count = 100000;
+        for (int i = 0; i < count; i++) {
+            hll.offer(StringSerializer.get().toByteBuffer("key-" + i));
+            // Duplicates must not change the estimate
+            hll.offer(StringSerializer.get().toByteBuffer("key-" + i));
+        }
+        
+        long estimate = hll.cardinality();
+        Assert.assertTrue("Estimate " + estimate, Math.abs(estimate - count) < count * 0.03);
+    }
+    
+    @Test
+    public void testMerge() {
+        HyperLogLog a = new HyperLogLog(12);
+        HyperLogLog b = new HyperLogLog(12);
+        for (int i = 0; i < 1000; i++) {
+            a.offer(("a" + i).getBytes());
+            b.offer(("b" + i).getBytes());
+        }
+        a.merge(b);
+        Assert.assertTrue(Math.abs(a.cardinality() - 2000) < 100);
+    }
+}
@@ -0,0 +1,274 @@
+package com.netflix.astyanax.recipes.functions;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.google.common.base.Function;
+import com.netflix.astyanax.Keyspace;
+import com.netflix.astyanax.connectionpool.TokenRange;
+import com.netflix.astyanax.model.ColumnFamily;
+import com.netflix.astyanax.model.ColumnList;
+import com.netflix.astyanax.model.Row;
+import com.netflix.astyanax.model.Rows;
+import com.netflix.astyanax.partitioner.Partitioner;
+import com.netflix.astyanax.query.ColumnFamilyQuery;
+import com.netflix.astyanax.recipes.reader.AllRowsReader;
+import com.netflix.astyanax.serializers.StringSerializer;
+import com.netflix.astyanax.test.TestKeyspace;
+import com.netflix.astyanax.util.StreamingRowsWriter;
+
+public class RowsWriterFunctionTest {
+    private static final ColumnFamily<String, String> CF = ColumnFamily.newColumnFamily(
+            "RowsWriterFunctionTest", StringSerializer.get(), StringSerializer.get());
+    private static final String END = "#end";
+
+    /**
+     * Captures the output of each shard and whether it was closed
+     */
+    private static class CapturingOutput extends ByteArrayOutputStream {
+        volatile boolean closed = false;
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            super.close();
+        }
+
+        int getLineCount() {
+            int count = 0;
+            String text = toString();
+            for (String line : text.isEmpty() ? new String[0] : text.split("\n")) {
+                if (!line.equals(END))
+                    count++;
+            }
+            return count;
+        }
+
+        boolean isEnded() {
+            return toString().endsWith(END + "\n");
+        }
+    }
+
+    private static class CapturingFactory implements RowsWriterFunction.OutputStreamFactory {
+        final List<CapturingOutput> outputs = new CopyOnWriteArrayList<CapturingOutput>();
+
+        @Override
+        public OutputStream create(int shard) throws IOException {
+            CapturingOutput out = new CapturingOutput();
+            outputs.add(out);
+            return out;
+        }
+
+        int getLineCount() {
+            int count = 0;
+            for (CapturingOutput out : outputs)
+                count += out.getLineCount();
+            return count;
+        }
+
+        boolean isAllClosed() {
+            for (CapturingOutput out : outputs) {
+                if (!out.closed)
+                    return false;
+            }
+            return true;
+        }
+
+        int getEndedCount() {
+            int count = 0;
+            for (CapturingOutput out : outputs) {
+                if (out.isEnded())
+                    count++;
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Writes the key of each row on its own line followed by an END trailer
+     */
+    private static final Function<PrintWriter, StreamingRowsWriter> KEY_WRITER = new Function<PrintWriter, StreamingRowsWriter>() {
+        @Override
+        public StreamingRowsWriter apply(final PrintWriter out) {
+            return new StreamingRowsWriter() {
+                @Override
+                public void write(Rows<?, ?> rows) throws Exception {
+                    start();
+                    for (Row<?, ?> row : rows)
+                        writeRow(row);
+                    end();
+                }
+
+                @Override
+                public void start() throws Exception {
+                }
+
+                @Override
+                public void writeRow(Row<?, ?> row) throws Exception {
+                    out.println(row.getKey());
+                }
+
+                @Override
+                public void end() throws Exception {
+                    out.print(END + "\n");
+                    out.flush();
+                }
+            };
+        }
+    };
+
+    private static Row<String, String> newRow(final String key) {
+        return new Row<String, String>() {
+            @Override
+            public String getKey() {
+                return key;
+            }
+
+            @Override
+            public ByteBuffer getRawKey() {
+                return StringSerializer.get().toByteBuffer(key);
+            }
+
+            @Override
+            public ColumnList<String> getColumns() {
+                return null;
+            }
+        };
+    }
+
+    @Test
+    public void testWritesAllRowsToAllShards() throws Exception {
+        CapturingFactory factory = new CapturingFactory();
+        RowsWriterFunction<String, String> function = RowsWriterFunction.<String, String>builder(KEY_WRITER)
+                .withOutputStreamFactory(factory)
+                .withShardCount(3)
+                .withQueueSize(10)
+                .build();
+
+        for (int i = 0; i < 1000; i++)
+            Assert.assertTrue(function.apply(newRow("key-" + i)));
+        function.flush();
+
+        Assert.assertEquals(3, factory.outputs.size());
+        Assert.assertEquals(1000, factory.getLineCount());
+        Assert.assertEquals(1000, function.getRowCount());
+        Assert.assertTrue(factory.isAllClosed());
+        Assert.assertEquals(3, factory.getEndedCount());
+
+        // Closing after the flush is a no-op
+        function.close();
+        Assert.assertEquals(1000, factory.getLineCount());
+    }
+
+    @Test
+    public void testCloseWithoutRowsCreatesNoOutput() throws Exception {
+        CapturingFactory factory = new CapturingFactory();
+        RowsWriterFunction<String, String> function = RowsWriterFunction.<String, String>builder(KEY_WRITER)
+                .withOutputStreamFactory(factory)
+                .build();
+
+        function.close();
+        Assert.assertTrue(factory.outputs.isEmpty());
+        Assert.assertFalse(function.apply(newRow("late")));
+    }
+
+    @Test
+    public void testWriterFailureIsReported() throws Exception {
+        final CapturingOutput failing = new CapturingOutput() {
+            @Override
+            public void write(byte[] b, int off, int len) {
+                throw new RuntimeException("Disk full");
+            }
+        };
+        RowsWriterFunction<String, String> function = RowsWriterFunction.<String, String>builder(KEY_WRITER)
+                .withOutputStreamFactory(new RowsWriterFunction.OutputStreamFactory() {
+                    @Override
+                    public OutputStream create(int shard) throws IOException {
+                        return failing;
+                    }
+                })
+                .withBufferSize(1)
+                .build();
+
+        function.apply(newRow("key"));
+        try {
+            function.flush();
+            Assert.fail("Expected the write failure to be reported");
+        }
+        catch (IOException e) {
+        }
+        Assert.assertTrue(failing.closed);
+    }
+
+    @Test
+    public void testFailedReadAbortsOutputs() throws Exception {
+        CapturingFactory factory = new CapturingFactory();
+        RowsWriterFunction<String, String> function = RowsWriterFunction.<String, String>builder(KEY_WRITER)
+                .withOutputStreamFactory(factory)
+                .withShardCount(2)
+                .build();
+
+        // Rows received from an earlier page, before the read failed
+        function.apply(newRow("key-1"));
+        function.apply(newRow("key-2"));
+
+        Keyspace keyspace = new TestKeyspace("RowsWriterFunctionTest") {
+            @Override
+            public Partitioner getPartitioner() {
+                throw new RuntimeException("Keyspace unavailable");
+            }
+
+            @Override
+            public List<TokenRange> describeRing(String dc, String rack) {
+                throw new RuntimeException("Keyspace unavailable");
+            }
+
+            @Override
+            public <K, C> ColumnFamilyQuery<K, C> prepareQuery(ColumnFamily<K, C> cf) {
+                throw new RuntimeException("Keyspace unavailable");
+            }
+        };
+
+        // Depending on which token range task is checked first the read either throws or
+        // returns false
+        try {
+            Assert.assertFalse(new AllRowsReader.Builder<String, String>(keyspace, CF)
+                .withConcurrencyLevel(2)
+                .forEachRow(function)
+                .build()
+                .call());
+        }
+        catch (Exception e) {
+        }
+
+        // The outputs are released but not ended so the export can't be mistaken for a complete one
+        Assert.assertEquals(2, factory.outputs.size());
+        Assert.assertTrue(factory.isAllClosed());
+        Assert.assertEquals(0, factory.getEndedCount());
+        Assert.assertFalse(function.apply(newRow("late")));
+    }
+
+    @Test
+    public void testAbortAfterFlushIsNoop() throws Exception {
+        CapturingFactory factory = new CapturingFactory();
+        RowsWriterFunction<String, String> function = RowsWriterFunction.<String, String>builder(KEY_WRITER)
+                .withOutputStreamFactory(factory)
+                .build();
+
+        function.apply(newRow("key"));
+        function.flush();
+        function.abort(new Exception("Late failure"));
+
+        Assert.assertEquals(1, factory.getLineCount());
+        Assert.assertEquals(1, factory.getEndedCount());
+    }
+}
@@ -0,0 +1,68 @@
+package com.netflix.astyanax.recipes.locks;
+
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.netflix.astyanax.recipes.locks.CountingLockStats.ColumnFamilyLockStats;
+import com.netflix.astyanax.recipes.locks.CountingLockStats.KeyCount;
+
+public class CountingLockStatsTest {
+    @Test
+    public void testCounters() {
+        CountingLockStats stats = new CountingLockStats();
+        stats.recordBusy("cf", "a");
+        stats.recordAcquire("cf", "a", 100, 1);
+        stats.recordAcquire("cf", "b", 3000, 0);
+        stats.recordAcquire("cf", "c", 3000, 0);
+        stats.recordStaleLocks("cf", "b", 2);
+        stats.recordRelease("cf", "a", 50);
+        stats.recordRelease("cf", "b", 100);
+        
+        ColumnFamilyLockStats cfStats = stats.getColumnFamilyStats("cf");
+        Assert.assertEquals(3, cfStats.getAcquireCount());
+        Assert.assertEquals(1, cfStats.getBusyCount());
+        Assert.assertEquals(2, cfStats.getStaleLockCount());
+        Assert.assertEquals(0.25, cfStats.getContentionRate());
+        Assert.assertEquals(128,  cfStats.getAcquireLatencyPercentile(25));
+        Assert.assertEquals(4096, cfStats.getAcquireLatencyPercentile(99));
+        Assert.assertEquals(60, cfStats.getAverageHoldTime());
+        Assert.assertEquals(1, stats.getAllColumnFamilyStats().size());
+    }
+    
+    @Test
+    public void testHottestKeys() {
+        CountingLockStats stats = new CountingLockStats(10);
+        for (int i = 0; i < 100; i++) {
+            stats.recordBusy("cf", "hot");
+            if (i % 2 == 0)
+                stats.recordBusy("cf", "warm");
+            stats.recordBusy("cf", "cold" + i);
+        }
+        
+        List<KeyCount> top = stats.getColumnFamilyStats("cf").getHottestKeys(2);
+        Assert.assertEquals(2, top.size());
+        Assert.assertEquals("hot",  top.get(0).getKey());
+        Assert.assertEquals("warm", top.get(1).getKey());
+        Assert.assertTrue(top.get(1).getCount() >= 50);
+        Assert.assertTrue(top.get(1).getCount() - top.get(1).getError() <= 50);
+    }
+    
+    @Test
+    public void testAdaptiveBackoff() {
+        CountingLockStats stats = new CountingLockStats();
+        AdaptiveLockBackoff backoff = new AdaptiveLockBackoff(stats, "cf", 5, 1000, 3);
+        Assert.assertEquals(5, backoff.getSleepTimeMs());
+        
+        stats.recordRelease("cf", "a", 200);
+        for (int i = 0; i < 100; i++) {
+            long sleepTime = backoff.getSleepTimeMs();
+            Assert.assertTrue(sleepTime >= 100 && sleepTime <= 300);
+        }
+        
+        stats.recordRelease("cf", "a", 1000000);
+        Assert.assertEquals(1000, ((AdaptiveLockBackoff)backoff.duplicate()).getSleepTimeMs());
+    }
+}
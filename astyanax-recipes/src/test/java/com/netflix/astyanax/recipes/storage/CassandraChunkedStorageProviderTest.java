@@ -0,0 +1,165 @@
+package com.netflix.astyanax.recipes.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import com.netflix.astyanax.AstyanaxContext;
+import com.netflix.astyanax.Keyspace;
+import com.netflix.astyanax.connectionpool.NodeDiscoveryType;
+import com.netflix.astyanax.connectionpool.exceptions.NotFoundException;
+import com.netflix.astyanax.connectionpool.impl.ConnectionPoolConfigurationImpl;
+import com.netflix.astyanax.connectionpool.impl.ConnectionPoolType;
+import com.netflix.astyanax.connectionpool.impl.CountingConnectionPoolMonitor;
+import com.netflix.astyanax.impl.AstyanaxConfigurationImpl;
+import com.netflix.astyanax.model.ColumnFamily;
+import com.netflix.astyanax.serializers.StringSerializer;
+import com.netflix.astyanax.thrift.ThriftFamilyFactory;
+import com.netflix.astyanax.util.SingletonEmbeddedCassandra;
+
+public class CassandraChunkedStorageProviderTest {
+    private static Keyspace                  keyspace;
+    private static AstyanaxContext<Keyspace> keyspaceContext;
+
+    private static final String TEST_CLUSTER_NAME  = "cass_sandbox";
+    private static final String TEST_KEYSPACE_NAME = "ChunkedStorageTest";
+    private static final String SEEDS              = "localhost:9160";
+    private static final long   CASSANDRA_WAIT_TIME = 3000;
+    private static final int    CHUNK_SIZE         = 100;
+
+    private static final ColumnFamily<String, String> CF_STORAGE = ColumnFamily.newColumnFamily(
+            "Storage", StringSerializer.get(), StringSerializer.get());
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        SingletonEmbeddedCassandra.getInstance();
+
+        Thread.sleep(CASSANDRA_WAIT_TIME);
+
+        keyspaceContext = new AstyanaxContext.Builder()
+                .forCluster(TEST_CLUSTER_NAME)
+                .forKeyspace(TEST_KEYSPACE_NAME)
+                .withAstyanaxConfiguration(
+                        new AstyanaxConfigurationImpl()
+                                .setDiscoveryType(NodeDiscoveryType.RING_DESCRIBE)
+                                .setConnectionPoolType(ConnectionPoolType.TOKEN_AWARE)
+                                .setDiscoveryDelayInSeconds(60000))
+                .withConnectionPoolConfiguration(
+                        new ConnectionPoolConfigurationImpl(TEST_CLUSTER_NAME
+                                + "_" + TEST_KEYSPACE_NAME)
+                                .setSocketTimeout(30000)
+                                .setMaxTimeoutWhenExhausted(2000)
+                                .setMaxConnsPerHost(10)
+                                .setInitConnsPerHost(2)
+                                .setSeeds(SEEDS))
+                .withConnectionPoolMonitor(new CountingConnectionPoolMonitor())
+                .buildKeyspace(ThriftFamilyFactory.getInstance());
+
+        keyspaceContext.start();
+
+        keyspace = keyspaceContext.getEntity();
+
+        try {
+            keyspace.dropKeyspace();
+        }
+        catch (Exception e) {
+        }
+
+        keyspace.createKeyspace(ImmutableMap.<String, Object>builder()
+                .put("strategy_options", ImmutableMap.<String, Object>builder()
+                        .put("replication_factor", "1")
+                        .build())
+                .put("strategy_class",     "SimpleStrategy")
+                .build()
+                );
+
+        keyspace.createColumnFamily(CF_STORAGE, null);
+    }
+
+    @AfterClass
+    public static void teardown() throws Exception {
+        if (keyspaceContext != null)
+            keyspaceContext.shutdown();
+
+        Thread.sleep(CASSANDRA_WAIT_TIME);
+    }
+
+    private byte[] writeObject(ChunkedStorageProvider provider, String objectName, int size) throws Exception {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        ChunkedStorage.newWriter(provider, objectName, new ByteArrayInputStream(data)).withChunkSize(CHUNK_SIZE).call();
+        return data;
+    }
+
+    private boolean hasRow(String rowKey) throws Exception {
+        return !keyspace.prepareQuery(CF_STORAGE).getKey(rowKey).execute().getResult().isEmpty();
+    }
+
+    @Test
+    public void testChunksPerRowRoundTrip() throws Exception {
+        CassandraChunkedStorageProvider writer = new CassandraChunkedStorageProvider(keyspace, CF_STORAGE)
+                .withChunksPerRow(4);
+        byte[] data = writeObject(writer, "RoundTrip", 1050);
+
+        // 11 chunks in 3 rows
+        Assert.assertTrue(hasRow("RoundTrip$2"));
+        Assert.assertFalse(hasRow("RoundTrip$3"));
+
+        // Read with a provider that is configured with the default of one chunk per row
+        CassandraChunkedStorageProvider reader = new CassandraChunkedStorageProvider(keyspace, CF_STORAGE);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        ObjectMetadata metadata = ChunkedStorage.newReader(reader, "RoundTrip", os).call();
+        Assert.assertEquals(4, metadata.getChunksPerRow().intValue());
+        Assert.assertEquals(11, metadata.getChunkCount().intValue());
+        Assert.assertTrue(Arrays.equals(data, os.toByteArray()));
+
+        // Single chunk reads by a provider that didn't read the metadata
+        reader = new CassandraChunkedStorageProvider(keyspace, CF_STORAGE);
+        Assert.assertEquals(CHUNK_SIZE, reader.readChunk("RoundTrip", 5).remaining());
+
+        InputStream is = ChunkedStorage.newInputStream(new CassandraChunkedStorageProvider(keyspace, CF_STORAGE)
+                .withChunksPerRow(3), "RoundTrip", 350, 600);
+        Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(data, 350, 950), ByteStreams.toByteArray(is)));
+        is.close();
+    }
+
+    @Test
+    public void testDefaultLayoutRoundTrip() throws Exception {
+        CassandraChunkedStorageProvider provider = new CassandraChunkedStorageProvider(keyspace, CF_STORAGE);
+        byte[] data = writeObject(provider, "Default", 550);
+        Assert.assertTrue(hasRow("Default$5"));
+
+        // Read with a provider that writes several chunks per row
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        ObjectMetadata metadata = ChunkedStorage.newReader(new CassandraChunkedStorageProvider(keyspace, CF_STORAGE)
+                .withChunksPerRow(4), "Default", os).call();
+        Assert.assertEquals(1, metadata.getChunksPerRow().intValue());
+        Assert.assertTrue(Arrays.equals(data, os.toByteArray()));
+    }
+
+    @Test
+    public void testDeleteUsesStoredChunksPerRow() throws Exception {
+        writeObject(new CassandraChunkedStorageProvider(keyspace, CF_STORAGE).withChunksPerRow(4), "Delete", 1050);
+
+        new CassandraChunkedStorageProvider(keyspace, CF_STORAGE).deleteObject("Delete", null);
+
+        for (int row = 0; row < 3; row++)
+            Assert.assertFalse(hasRow("Delete$" + row));
+        try {
+            new CassandraChunkedStorageProvider(keyspace, CF_STORAGE).readMetadata("Delete");
+            Assert.fail("Expected the object to be deleted");
+        }
+        catch (NotFoundException e) {
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.netflix.astyanax.recipes.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.apache.commons.lang.StringUtils;
+import org.junit.Test;
+
+public class ChunkCodecTest {
+    @Test
+    public void testCrc32c() throws Exception {
+        byte[] data = "123456789".getBytes("UTF-8");
+        Assert.assertEquals(0xE3069283, Crc32c.checksum(data, 0, data.length));
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        byte[] compressible = StringUtils.repeat("log line 12345 ", 1000).getBytes("UTF-8");
+        byte[] random = new byte[10000];
+        new Random(1).nextBytes(random);
+
+        for (ChunkCodec codec : ChunkCodec.values()) {
+            ByteBuffer encoded = codec.encode(ByteBuffer.wrap(compressible));
+            if (codec != ChunkCodec.NONE)
+                Assert.assertTrue(codec.name(), encoded.remaining() < compressible.length / 4);
+            Assert.assertEquals(codec.name(), ByteBuffer.wrap(compressible), codec.decode(encoded));
+
+            // Incompressible chunks are stored as is
+            encoded = codec.encode(ByteBuffer.wrap(random));
+            Assert.assertEquals(codec.name(), random.length + ChunkCodec.HEADER_SIZE, encoded.remaining());
+            Assert.assertEquals(codec.name(), ByteBuffer.wrap(random), codec.decode(encoded));
+        }
+    }
+
+    @Test
+    public void testChecksumMismatch() throws Exception {
+        byte[] data = StringUtils.repeat("abc", 100).getBytes("UTF-8");
+        for (ChunkCodec codec : ChunkCodec.values()) {
+            ByteBuffer encoded = codec.encode(ByteBuffer.wrap(data));
+            int last = encoded.limit() - 1;
+            encoded.put(last, (byte) (encoded.get(last) ^ 0x1));
+            try {
+                codec.decode(encoded);
+                Assert.fail(codec.name());
+            }
+            catch (IOException e) {
+            }
+        }
+    }
+
+    @Test
+    public void testInvalidLength() throws Exception {
+        byte[] data = StringUtils.repeat("abc", 100).getBytes("UTF-8");
+        for (ChunkCodec codec : ChunkCodec.values()) {
+            ByteBuffer encoded = codec.encode(ByteBuffer.wrap(data));
+
+            // Longer than the chunk size
+            Assert.assertEquals(codec.name(), ByteBuffer.wrap(data), codec.decode(encoded, data.length));
+            try {
+                codec.decode(encoded, data.length - 1);
+                Assert.fail(codec.name());
+            }
+            catch (IOException e) {
+            }
+
+            // A corrupt header is rejected before allocating the chunk
+            for (int length : new int[] { Integer.MAX_VALUE, ChunkCodec.MAX_CHUNK_LENGTH + 1, -1 }) {
+                ByteBuffer corrupt = ByteBuffer.allocate(encoded.remaining()).put(encoded.duplicate());
+                corrupt.putInt(5, length).flip();
+                try {
+                    codec.decode(corrupt);
+                    Assert.fail(codec.name() + " " + length);
+                }
+                catch (IOException e) {
+                    Assert.assertTrue(e.getMessage().contains("Invalid chunk length"));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.netflix.astyanax.recipes.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.google.common.io.ByteStreams;
+
+public class ChunkedStorageTest {
+    private static final int CHUNK_SIZE = 100;
+
+    private byte[] writeObject(ChunkedStorageProvider provider, String objectName, int size) throws Exception {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        ChunkedStorage.newWriter(provider, objectName, new ByteArrayInputStream(data)).call();
+        return data;
+    }
+
+    @Test
+    public void testReadObject() throws Exception {
+        InMemoryChunkedStorageProvider provider = new InMemoryChunkedStorageProvider(CHUNK_SIZE);
+        byte[] data = writeObject(provider, "object", 1050);
+        Assert.assertEquals(11, provider.getChunkCount());
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        ObjectMetadata metadata = ChunkedStorage.newReader(provider, "object", os).withConcurrencyLevel(3).call();
+        Assert.assertEquals(1050, metadata.getObjectSize().longValue());
+        Assert.assertTrue(Arrays.equals(data, os.toByteArray()));
+    }
+
+    @Test
+    public void testReadRange() throws Exception {
+        InMemoryChunkedStorageProvider provider = new InMemoryChunkedStorageProvider(CHUNK_SIZE);
+        byte[] data = writeObject(provider, "object", 1050);
+
+        InputStream is = ChunkedStorage.newInputStream(provider, "object", 250, 300);
+        byte[] range = ByteStreams.toByteArray(is);
+        is.close();
+        Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(data, 250, 550), range));
+
+        // Only the chunks covering the range are read
+        Assert.assertEquals(4, provider.getChunkReadCount());
+
+        // Range ending at the end of the object
+        is = ChunkedStorage.newInputStream(provider, "object", 1000, 50);
+        Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(data, 1000, 1050), ByteStreams.toByteArray(is)));
+        is.close();
+
+        // Empty range
+        Assert.assertEquals(-1, ChunkedStorage.newInputStream(provider, "object", 100, 0).read());
+    }
+
+    @Test
+    public void testBatchedChunks() throws Exception {
+        InMemoryChunkedStorageProvider provider = new InMemoryChunkedStorageProvider(CHUNK_SIZE, 4);
+        byte[] data = writeObject(provider, "object", 1050);
+        Assert.assertEquals(11, provider.getChunkCount());
+        Assert.assertEquals(3, provider.getRoundTripCount());
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        ChunkedStorage.newReader(provider, "object", os).call();
+        Assert.assertTrue(Arrays.equals(data, os.toByteArray()));
+        Assert.assertEquals(6, provider.getRoundTripCount());
+
+        // Range from chunk 3 through 5 is read as two batches aligned to the batch size
+        InputStream is = ChunkedStorage.newInputStream(provider, "object", 350, 200);
+        Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(data, 350, 550), ByteStreams.toByteArray(is)));
+        is.close();
+        Assert.assertEquals(8, provider.getRoundTripCount());
+    }
+
+    @Test
+    public void testChunkCodec() throws Exception {
+        InMemoryChunkedStorageProvider provider = new InMemoryChunkedStorageProvider(CHUNK_SIZE, 4);
+        byte[] data = new byte[1050];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i % 7);
+        }
+
+        ObjectMetadata metadata = ChunkedStorage.newWriter(provider, "object", new ByteArrayInputStream(data))
+                .withChunkCodec(ChunkCodec.DEFLATE).call();
+        Assert.assertEquals(ChunkCodec.DEFLATE, metadata.getChunkCodec());
+        Assert.assertEquals(1050, metadata.getObjectSize().longValue());
+        Assert.assertTrue(provider.readChunk("object", 0).remaining() < CHUNK_SIZE);
+
+        InputStream is = ChunkedStorage.newInputStream(provider, "object", 150, 800);
+        Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(data, 150, 950), ByteStreams.toByteArray(is)));
+        is.close();
+    }
+}
@@ -0,0 +1,249 @@
+package com.netflix.astyanax.recipes.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.netflix.astyanax.AstyanaxContext;
+import com.netflix.astyanax.Keyspace;
+import com.netflix.astyanax.connectionpool.NodeDiscoveryType;
+import com.netflix.astyanax.connectionpool.exceptions.NotFoundException;
+import com.netflix.astyanax.connectionpool.impl.ConnectionPoolConfigurationImpl;
+import com.netflix.astyanax.connectionpool.impl.ConnectionPoolType;
+import com.netflix.astyanax.connectionpool.impl.CountingConnectionPoolMonitor;
+import com.netflix.astyanax.impl.AstyanaxConfigurationImpl;
+import com.netflix.astyanax.model.Column;
+import com.netflix.astyanax.model.ColumnFamily;
+import com.netflix.astyanax.model.ColumnList;
+import com.netflix.astyanax.serializers.StringSerializer;
+import com.netflix.astyanax.thrift.ThriftFamilyFactory;
+import com.netflix.astyanax.util.SingletonEmbeddedCassandra;
+
+public class ContentAddressedChunkedStorageProviderTest {
+    private static Keyspace                  keyspace;
+    private static AstyanaxContext<Keyspace> keyspaceContext;
+
+    private static final String TEST_CLUSTER_NAME  = "cass_sandbox";
+    private static final String TEST_KEYSPACE_NAME = "ContentAddressedTest";
+    private static final String SEEDS              = "localhost:9160";
+    private static final long   CASSANDRA_WAIT_TIME = 3000;
+    private static final int    CHUNK_SIZE         = 100;
+
+    private static final ColumnFamily<String, String> CF_STORAGE = ColumnFamily.newColumnFamily(
+            "Storage", StringSerializer.get(), StringSerializer.get());
+    private static final ColumnFamily<String, String> CF_TTL_STORAGE = ColumnFamily.newColumnFamily(
+            "TtlStorage", StringSerializer.get(), StringSerializer.get());
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        SingletonEmbeddedCassandra.getInstance();
+
+        Thread.sleep(CASSANDRA_WAIT_TIME);
+
+        keyspaceContext = new AstyanaxContext.Builder()
+                .forCluster(TEST_CLUSTER_NAME)
+                .forKeyspace(TEST_KEYSPACE_NAME)
+                .withAstyanaxConfiguration(
+                        new AstyanaxConfigurationImpl()
+                                .setDiscoveryType(NodeDiscoveryType.RING_DESCRIBE)
+                                .setConnectionPoolType(ConnectionPoolType.TOKEN_AWARE)
+                                .setDiscoveryDelayInSeconds(60000))
+                .withConnectionPoolConfiguration(
+                        new ConnectionPoolConfigurationImpl(TEST_CLUSTER_NAME
+                                + "_" + TEST_KEYSPACE_NAME)
+                                .setSocketTimeout(30000)
+                                .setMaxTimeoutWhenExhausted(2000)
+                                .setMaxConnsPerHost(10)
+                                .setInitConnsPerHost(2)
+                                .setSeeds(SEEDS))
+                .withConnectionPoolMonitor(new CountingConnectionPoolMonitor())
+                .buildKeyspace(ThriftFamilyFactory.getInstance());
+
+        keyspaceContext.start();
+
+        keyspace = keyspaceContext.getEntity();
+
+        try {
+            keyspace.dropKeyspace();
+        }
+        catch (Exception e) {
+        }
+
+        keyspace.createKeyspace(ImmutableMap.<String, Object>builder()
+                .put("strategy_options", ImmutableMap.<String, Object>builder()
+                        .put("replication_factor", "1")
+                        .build())
+                .put("strategy_class",     "SimpleStrategy")
+                .build()
+                );
+
+        keyspace.createColumnFamily(CF_STORAGE, null);
+        keyspace.createColumnFamily(CF_TTL_STORAGE, null);
+    }
+
+    @AfterClass
+    public static void teardown() throws Exception {
+        if (keyspaceContext != null)
+            keyspaceContext.shutdown();
+
+        Thread.sleep(CASSANDRA_WAIT_TIME);
+    }
+
+    private static byte[] newData(int seed, int size) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static void writeObject(ChunkedStorageProvider provider, String objectName, byte[] data, Integer ttl) throws Exception {
+        ChunkedStorage.newWriter(provider, objectName, new ByteArrayInputStream(data))
+            .withChunkSize(CHUNK_SIZE)
+            .withTtl(ttl)
+            .call();
+    }
+
+    private static byte[] readObject(ChunkedStorageProvider provider, String objectName) throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        ChunkedStorage.newReader(provider, objectName, os).call();
+        return os.toByteArray();
+    }
+
+    private static ColumnList<String> readChunkRow(ColumnFamily<String, String> cf, byte[] data, int chunkId) throws Exception {
+        int length = Math.min(CHUNK_SIZE, data.length - chunkId * CHUNK_SIZE);
+        String hash = ContentAddressedChunkedStorageProvider.getChunkHash(ByteBuffer.wrap(data, chunkId * CHUNK_SIZE, length));
+        return keyspace.prepareQuery(cf).getKey("sha256$" + hash).execute().getResult();
+    }
+
+    private static int getRefCount(ColumnList<String> chunkRow) {
+        int count = 0;
+        for (Column<String> column : chunkRow) {
+            if (column.getName().startsWith(ContentAddressedChunkedStorageProvider.Columns.REF.name() + ":"))
+                count++;
+        }
+        return count;
+    }
+
+    private static boolean hasData(ColumnList<String> chunkRow) {
+        return chunkRow.getColumnByName(ContentAddressedChunkedStorageProvider.Columns.DATA.name()) != null;
+    }
+
+    @Test
+    public void testIdenticalChunksAreStoredOnce() throws Exception {
+        ContentAddressedChunkedStorageProvider provider = new ContentAddressedChunkedStorageProvider(keyspace, CF_STORAGE)
+            .withChunksPerBatch(4);
+        byte[] data = newData(1, 1050);
+        writeObject(provider, "Dedup1", data, null);
+        writeObject(provider, "Dedup2", data, null);
+
+        Assert.assertTrue(Arrays.equals(data, readObject(provider, "Dedup1")));
+        Assert.assertTrue(Arrays.equals(data, readObject(provider, "Dedup2")));
+
+        // Each chunk row holds the data once and a reference of each object
+        for (int chunkId = 0; chunkId < 11; chunkId++) {
+            ColumnList<String> chunkRow = readChunkRow(CF_STORAGE, data, chunkId);
+            Assert.assertTrue(hasData(chunkRow));
+            Assert.assertEquals(2, getRefCount(chunkRow));
+        }
+
+        // Repeated chunks within an object are stored once as well
+        byte[] zeros = new byte[CHUNK_SIZE * 8];
+        writeObject(provider, "Zeros", zeros, null);
+        Assert.assertEquals(8, provider.readMetadata("Zeros").getChunkHashes().size());
+        Assert.assertEquals(8, getRefCount(readChunkRow(CF_STORAGE, zeros, 0)));
+        Assert.assertTrue(Arrays.equals(zeros, readObject(provider, "Zeros")));
+    }
+
+    @Test
+    public void testPagedManifest() throws Exception {
+        // 100 chunks with 3 hashes per manifest column span several pages per read and write call
+        ContentAddressedChunkedStorageProvider provider = new ContentAddressedChunkedStorageProvider(keyspace, CF_STORAGE)
+            .withManifestPageSize(3);
+        byte[] data = newData(5, CHUNK_SIZE * 100);
+        writeObject(provider, "Paged", data, null);
+
+        ColumnList<String> objectRow = keyspace.prepareQuery(CF_STORAGE).getKey("Paged").execute().getResult();
+        int pages = 0;
+        for (Column<String> column : objectRow) {
+            if (column.getName().startsWith(ContentAddressedChunkedStorageProvider.Columns.MANIFEST.name() + ":"))
+                pages++;
+        }
+        Assert.assertEquals(34, pages);
+
+        ContentAddressedChunkedStorageProvider reader = new ContentAddressedChunkedStorageProvider(keyspace, CF_STORAGE);
+        Assert.assertEquals(100, reader.readMetadata("Paged").getChunkHashes().size());
+        Assert.assertTrue(Arrays.equals(data, readObject(reader, "Paged")));
+
+        // Pages left by a larger previous version of the object are ignored
+        byte[] smaller = newData(6, CHUNK_SIZE * 10);
+        writeObject(provider, "Paged", smaller, null);
+        reader = new ContentAddressedChunkedStorageProvider(keyspace, CF_STORAGE);
+        Assert.assertEquals(10, reader.readMetadata("Paged").getChunkHashes().size());
+        Assert.assertTrue(Arrays.equals(smaller, readObject(reader, "Paged")));
+    }
+
+    @Test
+    public void testDeleteWhileReferenced() throws Exception {
+        ContentAddressedChunkedStorageProvider provider = new ContentAddressedChunkedStorageProvider(keyspace, CF_STORAGE);
+        byte[] data = newData(2, 550);
+        writeObject(provider, "Shared1", data, null);
+        writeObject(provider, "Shared2", data, null);
+
+        // Deleting one object keeps the chunks referenced by the other
+        provider.deleteObject("Shared1", null);
+        try {
+            provider.readMetadata("Shared1");
+            Assert.fail("Expected the object to be deleted");
+        }
+        catch (NotFoundException e) {
+        }
+        Assert.assertTrue(Arrays.equals(data, readObject(new ContentAddressedChunkedStorageProvider(keyspace, CF_STORAGE), "Shared2")));
+        Assert.assertEquals(1, getRefCount(readChunkRow(CF_STORAGE, data, 0)));
+
+        // Deleting the last reference deletes the data
+        provider.deleteObject("Shared2", null);
+        for (int chunkId = 0; chunkId < 6; chunkId++)
+            Assert.assertFalse(hasData(readChunkRow(CF_STORAGE, data, chunkId)));
+
+        // Writing the same content again after the delete stores the data again
+        writeObject(provider, "Shared3", data, null);
+        Assert.assertTrue(Arrays.equals(data, readObject(new ContentAddressedChunkedStorageProvider(keyspace, CF_STORAGE), "Shared3")));
+    }
+
+    @Test
+    public void testExpiredChunksAreSwept() throws Exception {
+        ContentAddressedChunkedStorageProvider provider = new ContentAddressedChunkedStorageProvider(keyspace, CF_TTL_STORAGE);
+
+        // The first two chunks are shared with an object without a TTL
+        byte[] permanent = newData(3, 200);
+        byte[] expiring  = Arrays.copyOf(permanent, 300);
+        System.arraycopy(newData(4, 100), 0, expiring, 200, 100);
+        writeObject(provider, "Permanent", permanent, null);
+        writeObject(provider, "Expiring", expiring, 2);
+
+        Thread.sleep(3000);
+
+        try {
+            provider.readMetadata("Expiring");
+            Assert.fail("Expected the object to expire");
+        }
+        catch (NotFoundException e) {
+        }
+
+        // The data outlives the references until it is swept
+        Assert.assertTrue(hasData(readChunkRow(CF_TTL_STORAGE, expiring, 2)));
+        Assert.assertEquals(1, provider.deleteUnreferencedChunks());
+        Assert.assertFalse(hasData(readChunkRow(CF_TTL_STORAGE, expiring, 2)));
+
+        Assert.assertTrue(Arrays.equals(permanent, readObject(provider, "Permanent")));
+        Assert.assertEquals(0, provider.deleteUnreferencedChunks());
+    }
+}
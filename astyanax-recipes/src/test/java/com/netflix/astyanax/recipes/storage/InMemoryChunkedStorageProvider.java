@@ -0,0 +1,121 @@
+package com.netflix.astyanax.recipes.storage;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.netflix.astyanax.connectionpool.exceptions.NotFoundException;
+
+/**
+ * ChunkedStorageProvider that keeps chunks in memory, for tests
+ */
+public class InMemoryChunkedStorageProvider implements BatchChunkedStorageProvider {
+    private final ConcurrentMap<String, ByteBuffer>     chunks   = Maps.newConcurrentMap();
+    private final ConcurrentMap<String, ObjectMetadata> metadata = Maps.newConcurrentMap();
+    private final AtomicInteger                         chunkReadCount = new AtomicInteger();
+    private final AtomicInteger                         roundTripCount = new AtomicInteger();
+    private final int                                   chunkSize;
+    private final int                                   chunksPerBatch;
+
+    public InMemoryChunkedStorageProvider(int chunkSize) {
+        this(chunkSize, 1);
+    }
+
+    public InMemoryChunkedStorageProvider(int chunkSize, int chunksPerBatch) {
+        this.chunkSize      = chunkSize;
+        this.chunksPerBatch = chunksPerBatch;
+    }
+
+    @Override
+    public int writeChunk(String objectName, int chunkId, ByteBuffer data, Integer ttl) throws Exception {
+        roundTripCount.incrementAndGet();
+        return putChunk(objectName, chunkId, data);
+    }
+
+    @Override
+    public int writeChunks(String objectName, int firstChunkId, List<ByteBuffer> data, Integer ttl) throws Exception {
+        roundTripCount.incrementAndGet();
+        int bytesWritten = 0;
+        for (int i = 0; i < data.size(); i++) {
+            bytesWritten += putChunk(objectName, firstChunkId + i, data.get(i));
+        }
+        return bytesWritten;
+    }
+
+    private int putChunk(String objectName, int chunkId, ByteBuffer data) {
+        ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+        copy.put(data.duplicate()).flip();
+        chunks.put(objectName + "$" + chunkId, copy);
+        return copy.limit();
+    }
+
+    @Override
+    public ByteBuffer readChunk(String objectName, int chunkId) throws Exception, NotFoundException {
+        roundTripCount.incrementAndGet();
+        return getChunk(objectName, chunkId);
+    }
+
+    @Override
+    public List<ByteBuffer> readChunks(String objectName, int firstChunkId, int count) throws Exception {
+        roundTripCount.incrementAndGet();
+        List<ByteBuffer> result = Lists.newArrayList();
+        for (int i = 0; i < count; i++) {
+            result.add(getChunk(objectName, firstChunkId + i));
+        }
+        return result;
+    }
+
+    private ByteBuffer getChunk(String objectName, int chunkId) throws NotFoundException {
+        chunkReadCount.incrementAndGet();
+        ByteBuffer chunk = chunks.get(objectName + "$" + chunkId);
+        if (chunk == null)
+            throw new NotFoundException(objectName + "$" + chunkId);
+        return chunk.duplicate();
+    }
+
+    @Override
+    public void deleteObject(String objectName, Integer chunkCount) throws Exception {
+        for (int i = 0; i < chunkCount; i++) {
+            chunks.remove(objectName + "$" + i);
+        }
+        metadata.remove(objectName);
+    }
+
+    @Override
+    public void writeMetadata(String objectName, ObjectMetadata attr) throws Exception {
+        metadata.put(objectName, attr);
+    }
+
+    @Override
+    public ObjectMetadata readMetadata(String objectName) throws Exception, NotFoundException {
+        ObjectMetadata attr = metadata.get(objectName);
+        if (attr == null)
+            throw new NotFoundException(objectName);
+        return attr;
+    }
+
+    @Override
+    public int getDefaultChunkSize() {
+        return chunkSize;
+    }
+
+    @Override
+    public int getChunksPerBatch() {
+        return chunksPerBatch;
+    }
+
+    public int getRoundTripCount() {
+        return roundTripCount.get();
+    }
+
+    public int getChunkReadCount() {
+        return chunkReadCount.get();
+    }
+
+    public int getChunkCount() {
+        return chunks.size();
+    }
+}
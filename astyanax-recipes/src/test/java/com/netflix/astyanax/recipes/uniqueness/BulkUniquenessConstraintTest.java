@@ -0,0 +1,212 @@
+package com.netflix.astyanax.recipes.uniqueness;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.netflix.astyanax.AstyanaxContext;
+import com.netflix.astyanax.Keyspace;
+import com.netflix.astyanax.connectionpool.NodeDiscoveryType;
+import com.netflix.astyanax.connectionpool.impl.ConnectionPoolConfigurationImpl;
+import com.netflix.astyanax.connectionpool.impl.ConnectionPoolType;
+import com.netflix.astyanax.connectionpool.impl.CountingConnectionPoolMonitor;
+import com.netflix.astyanax.impl.AstyanaxConfigurationImpl;
+import com.netflix.astyanax.model.Column;
+import com.netflix.astyanax.model.ColumnFamily;
+import com.netflix.astyanax.model.ConsistencyLevel;
+import com.netflix.astyanax.recipes.locks.ColumnPrefixDistributedRowLock;
+import com.netflix.astyanax.recipes.uniqueness.BulkUniquenessConstraint.Outcome;
+import com.netflix.astyanax.recipes.uniqueness.BulkUniquenessConstraint.Result;
+import com.netflix.astyanax.serializers.StringSerializer;
+import com.netflix.astyanax.thrift.ThriftFamilyFactory;
+import com.netflix.astyanax.util.RangeBuilder;
+import com.netflix.astyanax.util.SingletonEmbeddedCassandra;
+
+public class BulkUniquenessConstraintTest {
+    private static Keyspace                  keyspace;
+    private static AstyanaxContext<Keyspace> keyspaceContext;
+
+    private static final String TEST_CLUSTER_NAME  = "cass_sandbox";
+    private static final String TEST_KEYSPACE_NAME = "BulkUniquenessConstraintTest";
+    private static final String SEEDS              = "localhost:9160";
+    private static final long   CASSANDRA_WAIT_TIME = 3000;
+    private static final String PREFIX             = ColumnPrefixDistributedRowLock.DEFAULT_LOCK_PREFIX;
+    private static final ConsistencyLevel CONSISTENCY_LEVEL = ConsistencyLevel.CL_ONE;
+
+    private static final ColumnFamily<String, String> CF_UNIQUE = ColumnFamily.newColumnFamily(
+            "Unique", StringSerializer.get(), StringSerializer.get());
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        SingletonEmbeddedCassandra.getInstance();
+
+        Thread.sleep(CASSANDRA_WAIT_TIME);
+
+        keyspaceContext = new AstyanaxContext.Builder()
+                .forCluster(TEST_CLUSTER_NAME)
+                .forKeyspace(TEST_KEYSPACE_NAME)
+                .withAstyanaxConfiguration(
+                        new AstyanaxConfigurationImpl()
+                                .setDiscoveryType(NodeDiscoveryType.RING_DESCRIBE)
+                                .setConnectionPoolType(ConnectionPoolType.TOKEN_AWARE)
+                                .setDiscoveryDelayInSeconds(60000))
+                .withConnectionPoolConfiguration(
+                        new ConnectionPoolConfigurationImpl(TEST_CLUSTER_NAME
+                                + "_" + TEST_KEYSPACE_NAME)
+                                .setSocketTimeout(30000)
+                                .setMaxTimeoutWhenExhausted(2000)
+                                .setMaxConnsPerHost(10)
+                                .setInitConnsPerHost(2)
+                                .setSeeds(SEEDS))
+                .withConnectionPoolMonitor(new CountingConnectionPoolMonitor())
+                .buildKeyspace(ThriftFamilyFactory.getInstance());
+
+        keyspaceContext.start();
+
+        keyspace = keyspaceContext.getEntity();
+
+        try {
+            keyspace.dropKeyspace();
+        }
+        catch (Exception e) {
+        }
+
+        keyspace.createKeyspace(ImmutableMap.<String, Object>builder()
+                .put("strategy_options", ImmutableMap.<String, Object>builder()
+                        .put("replication_factor", "1")
+                        .build())
+                .put("strategy_class",     "SimpleStrategy")
+                .build()
+                );
+
+        keyspace.createColumnFamily(CF_UNIQUE, null);
+    }
+
+    @AfterClass
+    public static void teardown() throws Exception {
+        if (keyspaceContext != null)
+            keyspaceContext.shutdown();
+
+        Thread.sleep(CASSANDRA_WAIT_TIME);
+    }
+
+    private BulkUniquenessConstraint<String> newConstraint() {
+        return new BulkUniquenessConstraint<String>(keyspace, CF_UNIQUE)
+                .withConsistencyLevel(CONSISTENCY_LEVEL)
+                .withBatchSize(3);
+    }
+
+    private List<String> newKeys(String prefix, int count) {
+        List<String> keys = Lists.newArrayList();
+        for (int i = 0; i < count; i++)
+            keys.add(prefix + i);
+        return keys;
+    }
+
+    /**
+     * @return Lock columns of the row and their values
+     */
+    private Map<String, Long> readLockColumns(String key) throws Exception {
+        Map<String, Long> columns = Maps.newHashMap();
+        for (Column<String> column : keyspace.prepareQuery(CF_UNIQUE)
+                .getKey(key)
+                .withColumnRange(new RangeBuilder().setStart(PREFIX + "\u0000").setEnd(PREFIX + "\uFFFF").build())
+                .execute().getResult()) {
+            columns.put(column.getName(), column.getLongValue());
+        }
+        return columns;
+    }
+
+    @Test
+    public void testAllRowsAcquired() throws Exception {
+        List<String> keys = newKeys("AllAcquired_", 10);
+        Result<String> result = newConstraint().acquire(keys);
+
+        Assert.assertTrue(result.isAllAcquired());
+        Assert.assertEquals(Sets.newHashSet(keys), Sets.newHashSet(result.getKeys(Outcome.ACQUIRED)));
+        for (String key : keys) {
+            // The unique column was committed without an expiration time
+            Assert.assertEquals(ImmutableMap.of(PREFIX + result.getUniqueId(key), 0L), readLockColumns(key));
+            Assert.assertNull(result.getError(key));
+        }
+    }
+
+    @Test
+    public void testAllRowsAlreadyClaimed() throws Exception {
+        List<String> keys = newKeys("AllClaimed_", 10);
+        Result<String> first = newConstraint().acquire(keys);
+        Assert.assertTrue(first.isAllAcquired());
+
+        Result<String> second = newConstraint().acquire(keys);
+        Assert.assertFalse(second.isAllAcquired());
+        Assert.assertEquals(Sets.newHashSet(keys), Sets.newHashSet(second.getKeys(Outcome.NOT_UNIQUE)));
+
+        // Only the unique columns of the first claim are left
+        for (String key : keys) {
+            Assert.assertEquals(ImmutableMap.of(PREFIX + first.getUniqueId(key), 0L), readLockColumns(key));
+        }
+    }
+
+    @Test
+    public void testPartialConflictIsRolledBack() throws Exception {
+        List<String> keys    = newKeys("Partial_", 10);
+        List<String> claimed = Lists.newArrayList(keys.get(1), keys.get(4), keys.get(7));
+        Result<String> first = newConstraint().acquire(claimed);
+        Assert.assertTrue(first.isAllAcquired());
+
+        Result<String> second = newConstraint().acquire(keys);
+        Assert.assertEquals(Sets.newHashSet(claimed), Sets.newHashSet(second.getKeys(Outcome.NOT_UNIQUE)));
+        Assert.assertEquals(keys.size() - claimed.size(), second.getKeys(Outcome.ACQUIRED).size());
+        Assert.assertTrue(second.getKeys(Outcome.FAILED).isEmpty());
+
+        for (String key : keys) {
+            Map<String, Long> columns = readLockColumns(key);
+            if (claimed.contains(key)) {
+                // The claim column of the conflicting row was deleted
+                Assert.assertEquals(ImmutableMap.of(PREFIX + first.getUniqueId(key), 0L), columns);
+            }
+            else {
+                Assert.assertEquals(ImmutableMap.of(PREFIX + second.getUniqueId(key), 0L), columns);
+            }
+        }
+
+        // Released rows can be claimed again
+        Map<String, String> acquired = Maps.newHashMap();
+        for (String key : second.getKeys(Outcome.ACQUIRED))
+            acquired.put(key, second.getUniqueId(key));
+        newConstraint().release(acquired);
+        for (String key : acquired.keySet())
+            Assert.assertTrue(readLockColumns(key).isEmpty());
+
+        Result<String> third = newConstraint().acquire(acquired.keySet());
+        Assert.assertTrue(third.isAllAcquired());
+    }
+
+    @Test
+    public void testStaleLockIsCleanedUp() throws Exception {
+        List<String> keys = newKeys("Stale_", 5);
+
+        // Claim columns left behind by a client that crashed before committing
+        long now = TimeUnit.MICROSECONDS.convert(System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        long expired = now - TimeUnit.MICROSECONDS.convert(1, TimeUnit.MINUTES);
+        for (String key : keys) {
+            keyspace.prepareColumnMutation(CF_UNIQUE, key, PREFIX + "crashed").putValue(expired, null).execute();
+        }
+
+        Result<String> result = newConstraint().acquire(keys);
+        Assert.assertTrue(result.isAllAcquired());
+        for (String key : keys) {
+            Assert.assertEquals(ImmutableMap.of(PREFIX + result.getUniqueId(key), 0L), readLockColumns(key));
+        }
+    }
+}